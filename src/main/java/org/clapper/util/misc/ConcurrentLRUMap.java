@@ -0,0 +1,1568 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A <tt>ConcurrentLRUMap</tt> is a thread-safe counterpart of
+ * {@link LRUMap}: a <tt>Map</tt> of a fixed maximum size that discards
+ * its least recently used entries to make room for new ones. Unlike an
+ * <tt>LRUMap</tt> wrapped by <tt>Collections.synchronizedMap()</tt>, it
+ * can be read by many threads at once without their contending for a
+ * lock.</p>
+ *
+ * <p>The mappings are kept in a <tt>ConcurrentHashMap</tt>, so a lookup
+ * takes no lock. What an LRU map's reads do need to do is move the entry
+ * they found to the front of the recency order, and that order is a
+ * linked list that must be changed by one thread at a time. So
+ * {@link #get get()} doesn't change it; it merely records the access in a
+ * small ring buffer. There are several buffers, and each thread uses the
+ * one its thread ID picks, so that threads rarely contend for the same
+ * buffer. Once a buffer holds enough accesses, the thread that notices
+ * tries to take the lock that guards the recency order, and if it gets it,
+ * applies all the buffered accesses in one batch. If it doesn't, some
+ * other thread is already doing so, and it simply carries on. Accesses
+ * that arrive while a buffer is full are dropped: the recency order is a
+ * heuristic, and losing the odd access to a popular entry does no harm.</p>
+ *
+ * <p>Writes ({@link #put put()}, {@link #remove remove()} and so on) take
+ * the lock, apply any buffered accesses, update the map and the recency
+ * order, and discard the least recently used entries if the map has grown
+ * too big. Removal listeners, which work as they do for an
+ * <tt>LRUMap</tt>, are called after the lock has been released.</p>
+ *
+ * <p>A <tt>ConcurrentLRUMap</tt> can also be used as a loading cache.
+ * {@link #get(Object,CacheLoader) get(key, loader)} returns the key's
+ * value, calling the {@link CacheLoader} to load and store it if the key
+ * is missing; {@link #getAll getAll()} does the same for several keys at
+ * once, with a {@link BulkCacheLoader}. Each missing key is loaded only
+ * once, however many threads ask for it at the same time: the first
+ * thread runs the load, and the others wait for its result. With
+ * {@link #setRefreshAfterWrite setRefreshAfterWrite()}, an entry that was
+ * written longer ago than a given time is reloaded in the background
+ * when it's next requested through a loader, and the old value is
+ * returned, to that request and to others, until the new one is
+ * stored. (If the reload fails, the old value stays, and the next
+ * request tries again.)</p>
+ *
+ * <p>Note:</p>
+ *
+ * <ul>
+ *   <li>Neither keys nor values may be <tt>null</tt>.
+ *   <li>Like <tt>get()</tt>, <tt>put()</tt> and <tt>putIfAbsent()</tt>
+ *       refresh an entry, but <tt>containsKey()</tt>,
+ *       <tt>containsValue()</tt> and the collection views don't.
+ *   <li>The collection views' iterators visit the entries in no
+ *       particular order. Like a <tt>ConcurrentHashMap</tt>'s, they never
+ *       throw <tt>ConcurrentModificationException</tt>, and they reflect
+ *       some, but not necessarily all, of the changes made while they're
+ *       in use.
+ * </ul>
+ *
+ * @see LRUMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public class ConcurrentLRUMap<K,V>
+    extends AbstractMap<K,V>
+    implements ConcurrentMap<K,V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The number of slots in each read buffer. Must be a power of 2.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+
+    /**
+     * The number of buffered accesses at which a reader tries to drain its
+     * buffer.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 16;
+
+    /**
+     * The maximum number of read buffers.
+     */
+    private static final int MAX_READ_BUFFERS = 64;
+
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A mapping, the time its value was stored, and its place in the
+     * recency order. The links and the linked flag are guarded by the
+     * eviction lock.
+     */
+    private static final class Node<K,V>
+    {
+        final K       key;
+        volatile V    value;
+        volatile long writeTime = System.currentTimeMillis();
+        Node<K,V>     previous  = null;
+        Node<K,V>     next      = null;
+        boolean       linked    = false;
+
+        Node (K key, V value)
+        {
+            this.key   = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A lossy ring buffer of accessed nodes. Readers claim slots by
+     * advancing the write count; only the thread holding the eviction lock
+     * advances the read count.
+     */
+    private static final class ReadBuffer<E>
+    {
+        final AtomicReferenceArray<E> slots =
+            new AtomicReferenceArray<E> (READ_BUFFER_SIZE);
+        final AtomicLong              writeCount = new AtomicLong (0);
+        volatile long                 readCount  = 0;
+
+        ReadBuffer()
+        {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * The recency order: a doubly-linked list of nodes, most recently used
+     * first. Guarded by the eviction lock.
+     */
+    private static final class RecencyList<K,V>
+    {
+        Node<K,V> head = null;
+        Node<K,V> tail = null;
+        int       size = 0;
+
+        RecencyList()
+        {
+            // Nothing to do
+        }
+
+        void addToHead (Node<K,V> node)
+        {
+            node.previous = null;
+            node.next     = head;
+
+            if (head == null)
+                tail = node;
+            else
+                head.previous = node;
+
+            head        = node;
+            node.linked = true;
+            size++;
+        }
+
+        void remove (Node<K,V> node)
+        {
+            if (node.next != null)
+                node.next.previous = node.previous;
+            else
+                tail = node.previous;
+
+            if (node.previous != null)
+                node.previous.next = node.next;
+            else
+                head = node.next;
+
+            node.next     = null;
+            node.previous = null;
+            node.linked   = false;
+            size--;
+        }
+
+        void moveToHead (Node<K,V> node)
+        {
+            if (node != head)
+            {
+                remove (node);
+                addToHead (node);
+            }
+        }
+
+        void clear()
+        {
+            while (head != null)
+                remove (head);
+        }
+    }
+
+    /**
+     * Set of Map.Entry objects returned by entrySet().
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        private EntrySet()
+        {
+            // Nothing to do
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            final Iterator<Node<K,V>> it = data.values().iterator();
+
+            return new Iterator<Map.Entry<K,V>>()
+            {
+                private Node<K,V> current = null;
+
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public Map.Entry<K,V> next()
+                {
+                    current = it.next();
+                    return new WriteThroughEntry (current.key, current.value);
+                }
+
+                public void remove()
+                {
+                    if (current == null)
+                        throw new IllegalStateException();
+
+                    ConcurrentLRUMap.this.remove (current.key, current.value);
+                    current = null;
+                }
+            };
+        }
+
+        public boolean contains (Object o)
+        {
+            if (! (o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e    = (Map.Entry<?,?>) o;
+            Node<K,V>      node = data.get (e.getKey());
+
+            return (node != null) && node.value.equals (e.getValue());
+        }
+
+        public boolean remove (Object o)
+        {
+            if (! (o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> e = (Map.Entry<?,?>) o;
+            return ConcurrentLRUMap.this.remove (e.getKey(), e.getValue());
+        }
+
+        public int size()
+        {
+            return ConcurrentLRUMap.this.size();
+        }
+
+        public void clear()
+        {
+            ConcurrentLRUMap.this.clear();
+        }
+    }
+
+    /**
+     * An entry returned by the entry set's iterator. Setting its value
+     * stores the value in the map.
+     */
+    private class WriteThroughEntry extends AbstractMap.SimpleEntry<K,V>
+    {
+        private static final long serialVersionUID = 1L;
+
+        WriteThroughEntry (K key, V value)
+        {
+            super (key, value);
+        }
+
+        public V setValue (V value)
+        {
+            put (getKey(), value);
+            return super.setValue (value);
+        }
+    }
+
+    /**
+     * One key's share of a bulk load: waits for the whole load, and picks
+     * out the key's value.
+     */
+    private static final class KeyFuture<K,V> implements Future<V>
+    {
+        private final Future<Map<K,V>> bulk;
+        private final K                key;
+
+        KeyFuture (Future<Map<K,V>> bulk, K key)
+        {
+            this.bulk = bulk;
+            this.key  = key;
+        }
+
+        public boolean cancel (boolean mayInterruptIfRunning)
+        {
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return bulk.isDone();
+        }
+
+        public V get()
+            throws InterruptedException,
+                   ExecutionException
+        {
+            return valueOf (bulk.get());
+        }
+
+        public V get (long timeout, TimeUnit unit)
+            throws InterruptedException,
+                   ExecutionException,
+                   TimeoutException
+        {
+            return valueOf (bulk.get (timeout, unit));
+        }
+
+        private V valueOf (Map<K,V> values)
+            throws ExecutionException
+        {
+            V value = values.get (key);
+            if (value == null)
+            {
+                throw new ExecutionException
+                    (new IllegalStateException ("No value loaded for key " +
+                                                key));
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * Loads one key with a {@link BulkCacheLoader}, so that
+     * {@link #getAll getAll()} can refresh entries one at a time.
+     */
+    private static final class SingleKeyLoader<K,V>
+        implements CacheLoader<K,V>
+    {
+        private final BulkCacheLoader<K,V> loader;
+
+        SingleKeyLoader (BulkCacheLoader<K,V> loader)
+        {
+            this.loader = loader;
+        }
+
+        public V load (K key)
+            throws Exception
+        {
+            return loader.loadAll (Collections.singleton (key)).get (key);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private final ConcurrentMap<K, Node<K,V>> data;
+    private final RecencyList<K,V>            recency =
+        new RecencyList<K,V>();
+    private final ReentrantLock               evictionLock =
+        new ReentrantLock();
+    private final ReadBuffer<Node<K,V>>[]     readBuffers;
+    private volatile int                      maxCapacity;
+
+    /**
+     * Removal listeners, mapped to their "automatic only" flags.
+     */
+    private final Map<ObjectRemovalListener, Boolean> removalListeners =
+        new ConcurrentHashMap<ObjectRemovalListener, Boolean>();
+
+    private EntrySet entrySetResult = null;
+
+    /**
+     * The loads in progress, by key. The thread that adds a load runs it,
+     * and removes it when it's done; other threads that want the key's
+     * value wait for it.
+     */
+    private final ConcurrentMap<K, Future<V>> loads =
+        new ConcurrentHashMap<K, Future<V>>();
+
+    /**
+     * How long after an entry is written it's refreshed, in milliseconds,
+     * or 0 if it never is, and the executor that runs the refreshes.
+     */
+    private volatile long     refreshAfterWrite = 0;
+    private volatile Executor refreshExecutor   = null;
+
+    /*----------------------------------------------------------------------*\
+                                Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Construct a new empty map with the specified maximum capacity.
+     *
+     * @param maxCapacity the maximum number of entries permitted in the
+     *                    map. Must be positive.
+     */
+    public ConcurrentLRUMap (int maxCapacity)
+    {
+        this (LRUMap.DEFAULT_INITIAL_CAPACITY, maxCapacity);
+    }
+
+    /**
+     * Construct a new empty map with the specified initial and maximum
+     * capacities.
+     *
+     * @param initialCapacity  the initial capacity of the hash table
+     * @param maxCapacity      the maximum number of entries permitted in
+     *                         the map. Must be positive.
+     */
+    public ConcurrentLRUMap (int initialCapacity, int maxCapacity)
+    {
+        if (maxCapacity <= 0)
+            throw new IllegalArgumentException ("Bad maximum capacity: " +
+                                                maxCapacity);
+
+        this.maxCapacity = maxCapacity;
+        this.data        = new ConcurrentHashMap<K, Node<K,V>>
+                               (Math.min (initialCapacity, maxCapacity));
+
+        int buffers = 1;
+        while ( (buffers < Runtime.getRuntime().availableProcessors()) &&
+                (buffers < MAX_READ_BUFFERS) )
+        {
+            buffers <<= 1;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ReadBuffer<Node<K,V>>[] readBuffers =
+            (ReadBuffer<Node<K,V>>[]) new ReadBuffer[buffers];
+        for (int i = 0; i < buffers; i++)
+            readBuffers[i] = new ReadBuffer<Node<K,V>>();
+
+        this.readBuffers = readBuffers;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Add a listener that's called whenever an entry is removed from the
+     * map, as for {@link LRUMap#addRemovalListener}. The event's source is
+     * a <tt>Map.Entry</tt> holding the removed key and value. Listeners are
+     * called by the thread that removed the entry, after it has released
+     * the map's lock.
+     *
+     * @param listener      the listener to add
+     * @param automaticOnly <tt>true</tt> to be told only of entries that
+     *                      are discarded to make room, <tt>false</tt> to be
+     *                      told of all removals
+     *
+     * @see #removeRemovalListener
+     */
+    public void addRemovalListener (ObjectRemovalListener listener,
+                                    boolean               automaticOnly)
+    {
+        removalListeners.put (listener, automaticOnly);
+    }
+
+    /**
+     * Remove a listener added by {@link #addRemovalListener}.
+     *
+     * @param listener the listener to remove
+     *
+     * @return <tt>true</tt> if the listener was removed, <tt>false</tt> if
+     *         it wasn't registered
+     */
+    public boolean removeRemovalListener (ObjectRemovalListener listener)
+    {
+        return (removalListeners.remove (listener) != null);
+    }
+
+    /**
+     * Remove all mappings from this map. As with an <tt>LRUMap</tt>,
+     * removal listeners aren't told.
+     */
+    public void clear()
+    {
+        evictionLock.lock();
+        try
+        {
+            drainReadBuffers();
+            recency.clear();
+            data.clear();
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Determine whether this map contains a mapping for a given key. The
+     * entry isn't refreshed.
+     *
+     * @param key  the key to find
+     *
+     * @return <tt>true</tt> if the key is in the map, <tt>false</tt> if not
+     */
+    public boolean containsKey (Object key)
+    {
+        return data.containsKey (key);
+    }
+
+    /**
+     * Determine whether this map contains a given value. None of the
+     * entries is refreshed.
+     *
+     * @param value the value to find
+     *
+     * @return <tt>true</tt> if the value is in the map, <tt>false</tt> if not
+     */
+    public boolean containsValue (Object value)
+    {
+        for (Node<K,V> node : data.values())
+        {
+            if (node.value.equals (value))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Get a set view of the mappings in this map. See the class
+     * documentation for the behavior of its iterator.
+     *
+     * @return the entry set
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        if (entrySetResult == null)
+            entrySetResult = new EntrySet();
+
+        return entrySetResult;
+    }
+
+    /**
+     * Retrieve a value from the map, refreshing its entry. Takes no lock
+     * (unless it's this thread's turn to apply the buffered accesses).
+     *
+     * @param key  the key
+     *
+     * @return the associated value, or null if not found
+     */
+    public V get (Object key)
+    {
+        Node<K,V> node = data.get (key);
+
+        if (node == null)
+            return null;
+
+        recordAccess (node);
+        return node.value;
+    }
+
+    /**
+     * Retrieve a value from the map, loading and storing it if the key is
+     * missing. If another thread is already loading the key, this one
+     * waits for that load instead of starting its own. If the entry is
+     * due to be refreshed (see {@link #setRefreshAfterWrite}), a refresh
+     * is started with the loader, and the current value is returned
+     * without waiting for it. If another thread stores a value for the key
+     * while it's being loaded, that value is kept, and returned instead of
+     * the loaded one.
+     *
+     * @param key     the key
+     * @param loader  loads the value if it's missing
+     *
+     * @return the value
+     *
+     * @throws ExecutionException the load failed. The cause is the
+     *                            exception the loader threw.
+     */
+    public V get (K key, CacheLoader<? super K, ? extends V> loader)
+        throws ExecutionException
+    {
+        Node<K,V> node = data.get (key);
+
+        if (node == null)
+            return load (key, loader);
+
+        recordAccess (node);
+        V value = node.value;
+        if (needsRefresh (node))
+            refresh (key, node, value, loader);
+
+        return value;
+    }
+
+    /**
+     * Retrieve the values for several keys, loading and storing the
+     * missing ones with a single call to a {@link BulkCacheLoader}. Keys
+     * that another thread is already loading aren't passed to the loader;
+     * this thread waits for the other thread's load instead. Entries that
+     * are due to be refreshed are refreshed one at a time, as with
+     * {@link #get(Object,CacheLoader)}.
+     *
+     * @param keys    the keys
+     * @param loader  loads the missing values
+     *
+     * @return a map of the keys to their values, in the order of
+     *         <tt>keys</tt>
+     *
+     * @throws ExecutionException the load failed, or didn't return a
+     *                            value for one of the missing keys
+     */
+    public Map<K,V> getAll (Collection<? extends K>     keys,
+                            final BulkCacheLoader<K,V>  loader)
+        throws ExecutionException
+    {
+        Map<K,V>         result  = new LinkedHashMap<K,V>();
+        Map<K,Future<V>> pending = new LinkedHashMap<K,Future<V>>();
+        final Set<K>     claimed = new LinkedHashSet<K>();
+
+        FutureTask<Map<K,V>> bulk = new FutureTask<Map<K,V>>
+            (new Callable<Map<K,V>>()
+             {
+                 public Map<K,V> call()
+                     throws Exception
+                 {
+                     return loadAll (claimed, loader);
+                 }
+             });
+
+        for (K key : keys)
+        {
+            if (result.containsKey (key))
+                continue;
+
+            Node<K,V> node = data.get (key);
+            if (node != null)
+            {
+                V value = node.value;
+
+                recordAccess (node);
+                result.put (key, value);
+                if (needsRefresh (node))
+                {
+                    refresh (key, node, value,
+                             new SingleKeyLoader<K,V> (loader));
+                }
+
+                continue;
+            }
+
+            // Keep the key's place in the result until its value arrives.
+
+            Future<V> load = new KeyFuture<K,V> (bulk, key);
+            Future<V> existing = loads.putIfAbsent (key, load);
+
+            if (existing == null)
+                claimed.add (key);
+            else
+                load = existing;
+
+            result.put (key, null);
+            pending.put (key, load);
+        }
+
+        if (! claimed.isEmpty())
+        {
+            try
+            {
+                bulk.run();
+            }
+
+            finally
+            {
+                for (K key : claimed)
+                    loads.remove (key, pending.get (key));
+            }
+        }
+
+        for (Map.Entry<K,Future<V>> entry : pending.entrySet())
+            result.put (entry.getKey(), waitFor (entry.getValue()));
+
+        return result;
+    }
+
+    /**
+     * Get the maximum capacity of this map.
+     *
+     * @return the maximum capacity
+     *
+     * @see #setMaximumCapacity
+     */
+    public int getMaximumCapacity()
+    {
+        return maxCapacity;
+    }
+
+    /**
+     * Get how long after an entry is written it's refreshed.
+     *
+     * @return the time, in milliseconds, or 0 if entries aren't refreshed
+     *
+     * @see #setRefreshAfterWrite
+     */
+    public long getRefreshAfterWrite()
+    {
+        return refreshAfterWrite;
+    }
+
+    /**
+     * Determine whether this map is empty or not.
+     *
+     * @return <tt>true</tt> if the map has no mappings, <tt>false</tt>
+     *          otherwise
+     */
+    public boolean isEmpty()
+    {
+        return data.isEmpty();
+    }
+
+    /**
+     * Associate a value with a key, replacing and returning any value the
+     * key had, and making the entry the most recently used. If the map is
+     * full, the least recently used entry is discarded.
+     *
+     * @param key   the key
+     * @param value the value
+     *
+     * @return the previous value, or null if there was none
+     */
+    public V put (K key, V value)
+    {
+        return doPut (key, value, false);
+    }
+
+    /**
+     * Associate a value with a key, unless the key already has one, in
+     * which case the existing entry is refreshed.
+     *
+     * @param key   the key
+     * @param value the value
+     *
+     * @return the existing value, or null if there was none (and the new
+     *         value was stored)
+     */
+    public V putIfAbsent (K key, V value)
+    {
+        Node<K,V> node = data.get (key);
+
+        if (node != null)
+        {
+            recordAccess (node);
+            return node.value;
+        }
+
+        return doPut (key, value, true);
+    }
+
+    /**
+     * Remove the mapping for a key, if there is one.
+     *
+     * @param key the key to remove
+     *
+     * @return the previous value, or null if there was none
+     */
+    public V remove (Object key)
+    {
+        V result = null;
+
+        evictionLock.lock();
+        try
+        {
+            Node<K,V> node = data.remove (key);
+            if (node != null)
+            {
+                unlink (node);
+                result = node.value;
+            }
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+
+        if (result != null)
+            callRemovalListeners (key, result, false);
+
+        return result;
+    }
+
+    /**
+     * Remove the mapping for a key, if the key is mapped to a particular
+     * value.
+     *
+     * @param key   the key
+     * @param value the value
+     *
+     * @return <tt>true</tt> if the mapping was removed
+     */
+    public boolean remove (Object key, Object value)
+    {
+        boolean removed = false;
+
+        evictionLock.lock();
+        try
+        {
+            Node<K,V> node = data.get (key);
+            if ((node != null) && node.value.equals (value))
+            {
+                data.remove (key);
+                unlink (node);
+                removed = true;
+            }
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+
+        if (removed)
+            callRemovalListeners (key, value, false);
+
+        return removed;
+    }
+
+    /**
+     * Replace the value for a key, if the key has one.
+     *
+     * @param key   the key
+     * @param value the new value
+     *
+     * @return the previous value, or null if the key had none (and
+     *         nothing was stored)
+     */
+    public V replace (K key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException ("null value");
+
+        evictionLock.lock();
+        try
+        {
+            Node<K,V> node = data.get (key);
+            if (node == null)
+                return null;
+
+            V old = node.value;
+            node.value = value;
+            node.writeTime = System.currentTimeMillis();
+            recency.moveToHead (node);
+            return old;
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Replace the value for a key, if the key is mapped to a particular
+     * value.
+     *
+     * @param key       the key
+     * @param oldValue  the expected value
+     * @param newValue  the new value
+     *
+     * @return <tt>true</tt> if the value was replaced
+     */
+    public boolean replace (K key, V oldValue, V newValue)
+    {
+        if (newValue == null)
+            throw new NullPointerException ("null value");
+
+        evictionLock.lock();
+        try
+        {
+            Node<K,V> node = data.get (key);
+            if ((node == null) || (! node.value.equals (oldValue)))
+                return false;
+
+            node.value = newValue;
+            node.writeTime = System.currentTimeMillis();
+            recency.moveToHead (node);
+            return true;
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Change the maximum capacity of this map. If the map holds more
+     * entries than the new capacity allows, the least recently used ones
+     * are discarded.
+     *
+     * @param newCapacity  the new maximum capacity
+     *
+     * @return the old maximum capacity
+     *
+     * @see #getMaximumCapacity
+     */
+    public int setMaximumCapacity (int newCapacity)
+    {
+        if (newCapacity <= 0)
+            throw new IllegalArgumentException ("Bad maximum capacity: " +
+                                                newCapacity);
+
+        int             oldCapacity;
+        List<Node<K,V>> evicted;
+
+        evictionLock.lock();
+        try
+        {
+            oldCapacity = maxCapacity;
+            maxCapacity = newCapacity;
+
+            drainReadBuffers();
+            evicted = evict();
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+
+        notifyEvicted (evicted);
+        return oldCapacity;
+    }
+
+    /**
+     * Set how long after an entry is written it's refreshed. An entry that
+     * was written longer ago than this is reloaded when it's next
+     * requested through {@link #get(Object,CacheLoader)} or
+     * {@link #getAll getAll()}, by a task passed to an <tt>Executor</tt>.
+     * Until the task stores the new value, requests for the key get the
+     * old one. Only one refresh of a key runs at a time. If it fails, the
+     * old value is kept, and the next request for the key tries again.
+     *
+     * @param millis    the time, in milliseconds, or 0 to stop refreshing
+     *                  entries
+     * @param executor  runs the refreshes. May be null only if
+     *                  <tt>millis</tt> is 0.
+     *
+     * @return the old time
+     *
+     * @see #getRefreshAfterWrite
+     */
+    public long setRefreshAfterWrite (long millis, Executor executor)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException ("Bad refresh time: " + millis);
+
+        if ((millis > 0) && (executor == null))
+            throw new NullPointerException ("null executor");
+
+        long oldMillis = refreshAfterWrite;
+        refreshExecutor = executor;
+        refreshAfterWrite = millis;
+        return oldMillis;
+    }
+
+    /**
+     * Get the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return data.size();
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Discard the least recently used entry, as if to make room for a new
+     * one. Removal listeners are notified of an automatic removal.
+     *
+     * @return <tt>true</tt> if an entry was discarded, <tt>false</tt> if
+     *         the map is empty
+     */
+    boolean removeEldest()
+    {
+        Node<K,V> node;
+
+        evictionLock.lock();
+        try
+        {
+            drainReadBuffers();
+
+            node = recency.tail;
+            if (node != null)
+            {
+                recency.remove (node);
+                data.remove (node.key);
+            }
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+
+        if (node == null)
+            return false;
+
+        callRemovalListeners (node.key, node.value, true);
+        return true;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Store a value. The caller has already checked that the key isn't
+     * present, if onlyIfAbsent is set, but must check again under the
+     * lock.
+     *
+     * @param key           the key
+     * @param value         the value
+     * @param onlyIfAbsent  whether to leave an existing value alone
+     *
+     * @return the existing value, or null
+     */
+    private V doPut (K key, V value, boolean onlyIfAbsent)
+    {
+        if ((key == null) || (value == null))
+            throw new NullPointerException ("null key or value");
+
+        V               result = null;
+        List<Node<K,V>> evicted;
+
+        evictionLock.lock();
+        try
+        {
+            drainReadBuffers();
+
+            Node<K,V> node = data.get (key);
+
+            if (node == null)
+            {
+                node = new Node<K,V> (key, value);
+                data.put (key, node);
+                recency.addToHead (node);
+            }
+
+            else
+            {
+                result = node.value;
+                if (! onlyIfAbsent)
+                {
+                    node.value = value;
+                    node.writeTime = System.currentTimeMillis();
+                }
+                recency.moveToHead (node);
+            }
+
+            evicted = evict();
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+
+        notifyEvicted (evicted);
+        return result;
+    }
+
+    /**
+     * Discard least recently used entries until the map fits its maximum
+     * capacity. The caller must hold the eviction lock.
+     *
+     * @return the discarded nodes, or null if there were none
+     */
+    private List<Node<K,V>> evict()
+    {
+        List<Node<K,V>> evicted = null;
+
+        while (recency.size > maxCapacity)
+        {
+            Node<K,V> node = recency.tail;
+
+            recency.remove (node);
+            data.remove (node.key);
+
+            if (evicted == null)
+                evicted = new ArrayList<Node<K,V>>();
+            evicted.add (node);
+        }
+
+        return evicted;
+    }
+
+    /**
+     * Take a node out of the recency order, if it's still there. The
+     * caller must hold the eviction lock.
+     *
+     * @param node  the node
+     */
+    private void unlink (Node<K,V> node)
+    {
+        if (node.linked)
+            recency.remove (node);
+    }
+
+    /**
+     * Record an access to a node in the calling thread's read buffer, and
+     * apply the buffered accesses if enough have accumulated. If the
+     * buffer is full, or another reader claims the same slot first, the
+     * access is dropped.
+     *
+     * @param node  the node
+     */
+    private void recordAccess (Node<K,V> node)
+    {
+        ReadBuffer<Node<K,V>> buffer  = readBuffers[bufferIndex()];
+        long                  tail    = buffer.writeCount.get();
+        long                  pending = tail - buffer.readCount;
+
+        if ( (pending < READ_BUFFER_SIZE) &&
+             buffer.writeCount.compareAndSet (tail, tail + 1) )
+        {
+            buffer.slots.lazySet ((int) (tail & READ_BUFFER_MASK), node);
+            pending++;
+        }
+
+        if ((pending >= READ_BUFFER_DRAIN_THRESHOLD) && evictionLock.tryLock())
+        {
+            try
+            {
+                drainReadBuffers();
+            }
+
+            finally
+            {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Choose the calling thread's read buffer.
+     *
+     * @return the buffer's index
+     */
+    private int bufferIndex()
+    {
+        int h = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (readBuffers.length - 1);
+    }
+
+    /**
+     * Apply the accesses recorded in the read buffers to the recency
+     * order. The caller must hold the eviction lock.
+     */
+    private void drainReadBuffers()
+    {
+        for (ReadBuffer<Node<K,V>> buffer : readBuffers)
+        {
+            long head = buffer.readCount;
+            long tail = buffer.writeCount.get();
+
+            for (; head < tail; head++)
+            {
+                int       i    = (int) (head & READ_BUFFER_MASK);
+                Node<K,V> node = buffer.slots.get (i);
+
+                // A reader has claimed the slot, but hasn't filled it
+                // yet. Pick up from here next time.
+
+                if (node == null)
+                    break;
+
+                buffer.slots.lazySet (i, null);
+                if (node.linked)
+                    recency.moveToHead (node);
+            }
+
+            buffer.readCount = head;
+        }
+    }
+
+    /**
+     * Load a missing key's value, or wait for the load another thread is
+     * already running.
+     *
+     * @param key     the key
+     * @param loader  loads the value
+     *
+     * @return the value
+     *
+     * @throws ExecutionException the load failed
+     */
+    private V load (final K                                   key,
+                    final CacheLoader<? super K, ? extends V> loader)
+        throws ExecutionException
+    {
+        Future<V> load = loads.get (key);
+
+        if (load == null)
+        {
+            FutureTask<V> task = new FutureTask<V> (new Callable<V>()
+            {
+                public V call()
+                    throws Exception
+                {
+                    // The key may have been stored by a load that ended
+                    // after this thread missed it.
+
+                    Node<K,V> node = data.get (key);
+                    if (node != null)
+                        return node.value;
+
+                    // A value stored by put() while the loader ran is
+                    // newer than the loaded one, so it wins.
+
+                    V value = checkLoaded (key, loader.load (key));
+                    V existing = putIfAbsent (key, value);
+                    return (existing == null) ? value : existing;
+                }
+            });
+
+            load = loads.putIfAbsent (key, task);
+            if (load == null)
+            {
+                load = task;
+                runLoad (key, task);
+            }
+        }
+
+        return waitFor (load);
+    }
+
+    /**
+     * Load the values for the keys claimed by a call to getAll(), and
+     * store them.
+     *
+     * @param keys    the keys
+     * @param loader  loads the values
+     *
+     * @return the values
+     *
+     * @throws Exception the load failed
+     */
+    private Map<K,V> loadAll (Set<K> keys, BulkCacheLoader<K,V> loader)
+        throws Exception
+    {
+        Map<K,V> values  = new LinkedHashMap<K,V>();
+        Set<K>   missing = new LinkedHashSet<K>();
+
+        // Some of the keys may have been stored by loads that ended after
+        // this thread missed them.
+
+        for (K key : keys)
+        {
+            Node<K,V> node = data.get (key);
+            if (node != null)
+                values.put (key, node.value);
+            else
+                missing.add (key);
+        }
+
+        if (! missing.isEmpty())
+        {
+            for (Map.Entry<K,V> entry : loader.loadAll (missing).entrySet())
+            {
+                // As in load(), a value stored while the loader ran wins.
+
+                V value = entry.getValue();
+                if (value != null)
+                {
+                    V existing = putIfAbsent (entry.getKey(), value);
+                    values.put (entry.getKey(),
+                                (existing == null) ? value : existing);
+                }
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Start a refresh of a key, unless it's already being loaded. The
+     * loaded value is stored only if the entry still holds the value that
+     * was found to be stale.
+     *
+     * @param key       the key
+     * @param node      the key's entry
+     * @param oldValue  the value being refreshed
+     * @param loader    loads the new value
+     */
+    private void refresh (final K                                   key,
+                          final Node<K,V>                           node,
+                          final V                                   oldValue,
+                          final CacheLoader<? super K, ? extends V> loader)
+    {
+        final FutureTask<V> task = new FutureTask<V> (new Callable<V>()
+        {
+            public V call()
+                throws Exception
+            {
+                V value = checkLoaded (key, loader.load (key));
+                replaceIfUnchanged (node, oldValue, value);
+                return value;
+            }
+        });
+
+        if (loads.putIfAbsent (key, task) != null)
+            return;
+
+        try
+        {
+            refreshExecutor.execute (new Runnable()
+            {
+                public void run()
+                {
+                    runLoad (key, task);
+                }
+            });
+        }
+
+        catch (RuntimeException ex)
+        {
+            // The executor refused the task. The next request will try
+            // again.
+
+            loads.remove (key, task);
+        }
+    }
+
+    /**
+     * Store a refreshed value, unless the entry has changed since the
+     * refresh started. If the key was removed, or a newer value was
+     * stored while the loader was running, the refresh is stale, and the
+     * entry is left alone. Values are compared by identity, since an
+     * equal value stored by <tt>put()</tt> is still the newer one.
+     *
+     * @param node      the entry being refreshed
+     * @param oldValue  the value it held when the refresh started
+     * @param value     the refreshed value
+     */
+    private void replaceIfUnchanged (Node<K,V> node, V oldValue, V value)
+    {
+        evictionLock.lock();
+        try
+        {
+            if ((data.get (node.key) != node) || (node.value != oldValue))
+                return;
+
+            node.value = value;
+            node.writeTime = System.currentTimeMillis();
+            recency.moveToHead (node);
+        }
+
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Run a load that this thread added to the loads in progress, and
+     * remove it when it's done, whether or not it succeeded.
+     *
+     * @param key   the key being loaded
+     * @param task  the load
+     */
+    private void runLoad (K key, FutureTask<V> task)
+    {
+        try
+        {
+            task.run();
+        }
+
+        finally
+        {
+            loads.remove (key, task);
+        }
+    }
+
+    /**
+     * Determine whether an entry is due to be refreshed.
+     *
+     * @param node  the entry
+     *
+     * @return whether it is
+     */
+    private boolean needsRefresh (Node<K,V> node)
+    {
+        long millis = refreshAfterWrite;
+        return (millis > 0) &&
+               ((System.currentTimeMillis() - node.writeTime) >= millis);
+    }
+
+    /**
+     * Make sure a loader returned a value.
+     *
+     * @param key    the key that was loaded
+     * @param value  the value the loader returned
+     *
+     * @return the value
+     */
+    private V checkLoaded (K key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException ("Loader returned null for key " +
+                                            key);
+
+        return value;
+    }
+
+    /**
+     * Wait for a load to finish. An interruption doesn't end the wait, but
+     * the thread's interrupt status is restored afterwards.
+     *
+     * @param load  the load
+     *
+     * @return the value it loaded
+     *
+     * @throws ExecutionException the load failed
+     */
+    private static <V> V waitFor (Future<V> load)
+        throws ExecutionException
+    {
+        boolean interrupted = false;
+
+        try
+        {
+            for (;;)
+            {
+                try
+                {
+                    return load.get();
+                }
+
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void notifyEvicted (List<Node<K,V>> evicted)
+    {
+        if (evicted != null)
+        {
+            for (Node<K,V> node : evicted)
+                callRemovalListeners (node.key, node.value, true);
+        }
+    }
+
+    private void callRemovalListeners (Object  key,
+                                       Object  value,
+                                       boolean automatic)
+    {
+        if (removalListeners.isEmpty())
+            return;
+
+        Map.Entry<Object,Object> entry =
+            new AbstractMap.SimpleImmutableEntry<Object,Object> (key, value);
+
+        for (Map.Entry<ObjectRemovalListener, Boolean> l :
+                 removalListeners.entrySet())
+        {
+            if (automatic || (! l.getValue()))
+                l.getKey().objectRemoved (new ObjectRemovalEvent (entry));
+        }
+    }
+}
@@ -48,8 +48,8 @@ package org.clapper.util.misc;
 
 import org.clapper.util.logging.Logger;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -58,8 +58,16 @@ import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.io.Serializable;
+
+import java.lang.management.ManagementFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
@@ -74,7 +82,27 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import java.util.zip.CRC32;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * <p><tt>FileHashMap</tt> implements a <tt>java.util.Map</tt> that keeps
@@ -127,6 +155,33 @@ import java.util.TreeSet;
  *         The {@link #DATA_FILE_SUFFIX <tt>DATA_FILE_SUFFIX</tt>}
  *         constant defines this string.</td>
  *   </tr>
+ *
+ *   <tr valign="top">
+ *     <td>.kx</td>
+ *     <td>The key file, which holds the encoded keys of a map whose index
+ *         is stored on disk rather than in memory. This file exists only
+ *         for maps created with the {@link #MAPPED_INDEX} flag. (See
+ *         below.) The {@link #KEY_FILE_SUFFIX <tt>KEY_FILE_SUFFIX</tt>}
+ *         constant defines this string.</td>
+ *   </tr>
+ *
+ *   <tr valign="top">
+ *     <td>.log</td>
+ *     <td>The index change log, which records modifications made since
+ *         the index was last saved. This file exists only for maps opened
+ *         with the {@link #DURABLE} flag. (See below.)
+ *         The {@link #LOG_FILE_SUFFIX <tt>LOG_FILE_SUFFIX</tt>}
+ *         constant defines this string.</td>
+ *   </tr>
+ *
+ *   <tr valign="top">
+ *     <td>.lock</td>
+ *     <td>An empty file that a persistent map locks while it's open, so
+ *         that two processes can't modify the map at once. (See
+ *         "Read-only Sharing", below.)
+ *         The {@link #LOCK_FILE_SUFFIX <tt>LOCK_FILE_SUFFIX</tt>}
+ *         constant defines this string.</td>
+ *   </tr>
  * </table>
  * </blockquote>
  *
@@ -255,10 +310,255 @@ import java.util.TreeSet;
  *
  * <p>This mode is not the default, because it can add time to processing.
  * However, it does not access the file at all; the file gap maintenance
- * logic uses in-memory data only. So, while it adds a small amount of
- * computational overhead, the difference between running with
- * {@link #RECLAIM_FILE_GAPS} enabled and running with it disabled should not
- * be dramatic.</p>
+ * logic uses in-memory data only. The gaps are indexed both by position
+ * and by size, so freeing space (and coalescing it with its neighbors) and
+ * finding the best-fitting gap both take logarithmic time. The gap list is
+ * saved with the index, so it doesn't have to be rebuilt when the map is
+ * reopened. (For a map with a {@link #MAPPED_INDEX}, it's saved only when
+ * the map is closed. If the map isn't closed cleanly, or if it was last
+ * used without {@link #RECLAIM_FILE_GAPS}, the gap list is rebuilt from the
+ * index when the map is opened.)</p>
+ *
+ * <p><b>Memory-mapped Values</b></p>
+ *
+ * <p>By default, every value read seeks the data file and reads the
+ * serialized bytes into a fresh buffer, while holding a lock on the file.
+ * For large, read-heavy maps, you can pass the {@link #MEMORY_MAPPED} flag
+ * to the constructor. In that mode, the data file is mapped into memory in
+ * segments of up to 1GB each, and a value read becomes a simple memory
+ * copy from the mapped region. Reads no longer lock the file, and the
+ * operating system's page cache does all the caching. Writes still go
+ * through the file, and the mapping picks them up: the last segment is
+ * remapped automatically as the file grows. Memory-mapped mode relies on
+ * the operating system keeping file writes and mapped pages coherent, which
+ * is the case on all mainstream platforms.</p>
+ *
+ * <p><b>Caching Values</b></p>
+ *
+ * <p>Even with a memory-mapped data file, every <tt>get()</tt> decodes the
+ * value anew. If some keys are read much more often than others, call
+ * {@link #setValueCache setValueCache()} to keep the most recently read
+ * values in memory, in decoded form. The cache can be bounded by the number
+ * of values, by their total size (estimated as the size of their encoded
+ * form in the data file), or both; the least recently used values are
+ * discarded first. Writing or removing a value discards its cached copy.
+ * {@link #getValueCacheHits} and {@link #getValueCacheMisses} report how
+ * well the cache is working. Note that a cached value is shared by all the
+ * callers that retrieve it, so callers must not modify the values they
+ * get from a map with a value cache.</p>
+ *
+ * <p><b>Concurrent Access</b></p>
+ *
+ * <p>By default, a <tt>FileHashMap</tt> is not safe for use by multiple
+ * threads without external synchronization. If you pass the
+ * {@link #CONCURRENT} flag to the constructor, the in-memory index is kept
+ * in a concurrent hash table, and the map may be shared freely between
+ * threads:</p>
+ *
+ * <ul>
+ *   <li>Reads never lock. Values are read with positional I/O (or from the
+ *       mapped region, if {@link #MEMORY_MAPPED} is also set), so there is
+ *       no shared file pointer to protect.
+ *   <li>Writers serialize their values independently, then merely reserve
+ *       space at the end of the data file before writing into it, so they
+ *       contend only on that reservation.
+ *   <li>{@link #clear}, {@link #save} and {@link #close} wait for
+ *       in-progress writes to finish, and block new writes while they run.
+ *   <li>Iterators are weakly consistent: they never throw
+ *       <tt>ConcurrentModificationException</tt>, and they may or may not
+ *       reflect modifications made after they were created.
+ * </ul>
+ *
+ * <p>Note that interrupting a thread while it is reading or writing the
+ * data file (or, for a memory-mapped map, mapping more of it) closes the
+ * underlying file channel. The map reopens the channel, and remaps a
+ * memory-mapped file, transparently, but the interrupted operation
+ * fails.</p>
+ *
+ * <p><b>Read-only Sharing</b></p>
+ *
+ * <p>While a persistent map is open, it holds a lock on its ".lock" file:
+ * an exclusive lock normally, or a shared lock if it was opened with the
+ * {@link #READ_ONLY} flag. Any number of processes (and any number of
+ * <tt>FileHashMap</tt> objects in one process) can open a map read-only
+ * at the same time, but a map can't be opened for writing while it's open
+ * read-only, or for writing in another process; the constructor throws an
+ * <tt>IOException</tt> saying so. (The locks are advisory on some
+ * operating systems, so this protects only against other
+ * <tt>FileHashMap</tt> objects.)</p>
+ *
+ * <p>A read-only map maps its data file into memory, so that every process
+ * reading it shares the operating system's cached pages, rather than
+ * copying the values it reads. The index is shared the same way if the map
+ * was written with {@link #MAPPED_INDEX}; otherwise, each process loads
+ * its own copy of the index, so large maps that are shared should be
+ * written with <tt>MAPPED_INDEX</tt>. A map that needs recovery (one whose
+ * change log holds unsaved changes, or whose compaction was interrupted)
+ * can't be opened read-only until it has been opened for writing once.
+ * The {@link #DURABLE}, {@link #RECLAIM_FILE_GAPS} and
+ * {@link #MAPPED_INDEX} flags are ignored for read-only maps.</p>
+ *
+ * <p><b>Asynchronous Access</b></p>
+ *
+ * <p>A {@link #CONCURRENT} map also offers asynchronous versions of its
+ * main operations: {@link #getAsync}, {@link #getAllAsync} and
+ * {@link #putAsync}. They return a <tt>java.util.concurrent.Future</tt>
+ * at once, and the work is done by a small pool of I/O threads (see
+ * {@link #setAsyncExecutor}), so that a few threads can keep many reads
+ * in flight. Reads that are waiting for an I/O thread are performed
+ * together, in file order, and values that lie close together in the
+ * data file are fetched with a single read.</p>
+ *
+ * <p><b>Value Encoding</b></p>
+ *
+ * <p>By default, each value is stored using Java serialization, which
+ * writes a stream header and a class descriptor along with every value.
+ * For small values, those can be several times larger than the value
+ * itself. To avoid that overhead, pass a {@link ValueCodec} to the
+ * {@link #FileHashMap(String,int,ValueCodec)} constructor. The
+ * {@link ValueCodecs} class supplies codecs for byte arrays, strings, the
+ * boxed primitive types and <tt>Externalizable</tt> classes. The codec is
+ * not saved with the map, so a persistent map must be reopened with the
+ * same codec that was used to write it.</p>
+ *
+ * <p><b>Compaction</b></p>
+ *
+ * <p>Unless {@link #RECLAIM_FILE_GAPS} is in effect, the space occupied by
+ * removed and replaced values is never reused, so the data file of a
+ * frequently updated map keeps growing. {@link #getFragmentation} reports
+ * the fraction of the data file that is dead space, and {@link #compact}
+ * reclaims it by copying the live values, in file order, to a new data
+ * file, then swapping the new file in. Readers are never blocked;
+ * writers are blocked only while the values they changed during the copy
+ * are brought up to date, and the files are swapped. If the map is
+ * persistent, the new index is saved as part of the swap, and a crash at
+ * any point leaves either the old files or the new ones. A
+ * {@link #CONCURRENT} map can also be compacted automatically, by a
+ * background thread; see {@link #startCompactor}.</p>
+ *
+ * <p><b>Bulk Loading</b></p>
+ *
+ * <p>To build a persistent map from scratch, or to replace one with a new
+ * snapshot, use a {@link Builder}. It writes the data file in a single
+ * sequential pass and the index once, at the end, and then swaps the new
+ * files in as a unit.</p>
+ *
+ * <p><b>Expiration</b></p>
+ *
+ * <p>A mapping can be given a time to live, either with
+ * {@link #put(Object,Object,long)} or, for mappings stored without one,
+ * with {@link #setDefaultTimeToLive}. Its expiration time is kept in its
+ * index entry (and saved with the index), so it survives the map being
+ * closed and reopened. Once it has expired, {@link #get get()},
+ * {@link #containsKey containsKey()} and the asynchronous reads treat the
+ * mapping as absent, but its index entry and its space in the data file
+ * remain until it's reclaimed: by {@link #removeExpired}, by a background
+ * sweeper (see {@link #startExpirySweeper}), by a {@link #compact
+ * compaction}, which doesn't copy expired values, or by the key being
+ * stored or removed again. Until then, expired mappings are still counted
+ * by {@link #size} and still returned by the map's iterators. Expiration
+ * costs nothing on a map that never uses it.</p>
+ *
+ * <p><b>Index File Format</b></p>
+ *
+ * <p>When a map with an in-memory index is saved, the index is written to
+ * the ".ix" file in a compact binary format: a header, a table of
+ * fixed-width slots holding each value's location, and the keys, encoded by
+ * the key codec. Loading it involves no Java serialization, so opening a
+ * large map is much faster, and generates far less garbage, than it did
+ * with the serialized index files that earlier versions of this class
+ * wrote. Those files are still read, and are rewritten in the new format
+ * the next time the map is saved. Since the keys are stored in their
+ * encoded form, a persistent map must be reopened with the key codec it
+ * was saved with. (To avoid loading the keys at all when a map is opened,
+ * use an on-disk index; see below.)</p>
+ *
+ * <p><b>On-disk Index</b></p>
+ *
+ * <p>Normally, the index lives on the Java heap, where each entry costs
+ * roughly a hundred bytes in addition to the key itself. For maps with
+ * hundreds of millions of keys, that means a very large heap and long
+ * garbage collection pauses. If you pass the {@link #MAPPED_INDEX} flag to
+ * the constructor, the index is instead kept in an open-addressing hash
+ * table in a memory-mapped file (the ".ix" file), and the keys are kept,
+ * encoded by the key codec, in a separate key file (the ".kx" file).
+ * Neither occupies the Java heap; the operating system's page cache keeps
+ * the busy parts in memory. The table is updated in place, so
+ * {@link #save} merely forces it to disk.</p>
+ *
+ * <p>An on-disk index has the following differences from the in-memory
+ * one:</p>
+ *
+ * <ul>
+ *   <li>Keys are hashed and compared in their encoded form, so the key
+ *       codec (Java serialization, by default) must always encode equal
+ *       keys to identical bytes. The key's own <tt>hashCode()</tt> and
+ *       <tt>equals()</tt> methods are not used.
+ *   <li>Iterators return entries in hash table order, not in data file
+ *       order.
+ *   <li>Once a map's index has been stored on disk, it stays there: the map
+ *       is reopened with an on-disk index whether or not
+ *       {@link #MAPPED_INDEX} is specified. Opening an existing map that
+ *       has an in-memory index with {@link #MAPPED_INDEX} converts it.
+ *   <li>Its fixed-width slots have no room for an expiration time, so
+ *       mappings can't be given a time to live.
+ * </ul>
+ *
+ * <p><b>Crash Safety</b></p>
+ *
+ * <p>A persistent map's index is normally written to disk only when the
+ * map is saved or closed. If the Java VM dies first, every modification
+ * since the last save is lost, and saving a large index often is
+ * expensive. If you pass the {@link #DURABLE} flag to the constructor, the
+ * map instead appends a small record to a change log (the ".log" file)
+ * each time a key is stored or removed. The next time the map is opened,
+ * the log is replayed on top of the saved index. A record that was only
+ * partially written when the VM died is detected by its checksum and
+ * discarded.</p>
+ *
+ * <p>Every {@link #getCheckpointInterval <i>n</i>} log records, a
+ * durable map takes a <i>checkpoint</i>: it saves the index and discards
+ * the log. Writers are blocked only while the in-memory index is copied;
+ * the copy is written to disk while they continue. {@link #save} takes a
+ * checkpoint immediately. Log records reach the operating system as soon
+ * as they are written, so they survive a crash of the Java VM. To make
+ * them (and the values they refer to) survive a crash of the operating
+ * system as well, call {@link #sync}, e.g., after each batch of
+ * updates.</p>
+ *
+ * <p>Keys are written to the log with a {@link ValueCodec}. By default,
+ * Java serialization is used; use the
+ * {@link #FileHashMap(String,int,ValueCodec,ValueCodec)} constructor to
+ * supply a more compact key codec. The {@link #DURABLE} flag is ignored for
+ * transient maps.</p>
+ *
+ * <p><b>Checksums</b></p>
+ *
+ * <p>A torn write or a bad disk block can damage a value in the data
+ * file. Without checksums, the damage shows up only if the damaged value
+ * can no longer be decoded, and {@link #get get()} then quietly returns
+ * <tt>null</tt>. If you pass the {@link #CHECKSUMS} flag to the
+ * constructor, each value is stored with an 8-byte header holding its
+ * length and a CRC-32 checksum, and the header is checked every time the
+ * value is read; <tt>get()</tt> throws an
+ * <tt>IllegalStateException</tt> for a damaged value. The flag is not
+ * recorded in the map's files, so a map written with checksums must
+ * always be reopened with them, and vice versa.</p>
+ *
+ * <p>{@link #verify} checks every value in the map, in file order, and
+ * returns the keys of the damaged ones. The {@link FileHashMapScrubber}
+ * command-line program runs it against an existing map.</p>
+ *
+ * <p><b>Statistics</b></p>
+ *
+ * <p>A map counts its reads and writes of the data file, the time it
+ * spends encoding and decoding values and saving its index, and keeps
+ * track of how much of the data file is live. {@link #getStats} returns a
+ * snapshot of those statistics, and {@link #registerMBean} makes them
+ * available to JMX clients such as <tt>jconsole</tt>, through the
+ * {@link FileHashMapMXBean} interface. The counters are always kept.
+ * They're striped, so that threads reading a <tt>CONCURRENT</tt> map at
+ * once mostly update different memory, and don't contend for them.</p>
  *
  * <p><b>Restrictions</b></p>
  *
@@ -266,8 +566,9 @@ import java.util.TreeSet;
  * behavior.</p>
  *
  * <ul>
- *   <li>An object cannot be stored in a <tt>FileHashMap</tt> unless it
- *       implements <tt>java.io.Serializable</tt>.
+ *   <li>Unless a {@link ValueCodec} is passed to the constructor, an object
+ *       cannot be stored in a <tt>FileHashMap</tt> unless it implements
+ *       <tt>java.io.Serializable</tt>.
  *   <li>The maximum size of a serialized stored object is confined to
  *       a 32-bit integer. This restriction is unlikely to cause anyone
  *       problems, and it keeps the keyspace down.
@@ -305,6 +606,44 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      */
     public static final String DATA_FILE_SUFFIX = ".db";
 
+    /**
+     * Key file suffix. Used only by maps with a {@link #MAPPED_INDEX}.
+     */
+    public static final String KEY_FILE_SUFFIX = ".kx";
+
+    /**
+     * Change log file suffix. Used only by {@link #DURABLE} maps.
+     */
+    public static final String LOG_FILE_SUFFIX = ".log";
+
+    /**
+     * Lock file suffix. Used only by persistent maps.
+     */
+    public static final String LOCK_FILE_SUFFIX = ".lock";
+
+    /**
+     * The default number of change log records between checkpoints of a
+     * {@link #DURABLE} map.
+     *
+     * @see #setCheckpointInterval
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100000;
+
+    /**
+     * The default buffer size of a {@link BatchWriter}, in bytes.
+     *
+     * @see #beginBatch()
+     */
+    public static final int DEFAULT_BATCH_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The number of threads in the executor that serves the asynchronous
+     * methods, unless another executor is supplied.
+     *
+     * @see #setAsyncExecutor
+     */
+    public static final int DEFAULT_ASYNC_THREADS = 4;
+
     /**
      * Constructor flag value: If specified, the disk files will not be
      * created if they don't exist; instead, the constructor will throw an
@@ -346,13 +685,135 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      */
     public static final int RECLAIM_FILE_GAPS = 0x08;
 
+    /**
+     * Constructor flag value: Tells the object to map the data file into
+     * memory and satisfy value reads from the mapped region, rather than
+     * seeking and reading the file. This flag is not persistent; a map
+     * written without it can be reopened with it, and vice versa. See the
+     * class documentation for details.
+     */
+    public static final int MEMORY_MAPPED = 0x10;
+
+    /**
+     * Constructor flag value: Makes the map safe for concurrent use by
+     * multiple threads, with lock-free reads. This flag is not persistent.
+     * See the class documentation for details.
+     */
+    public static final int CONCURRENT = 0x20;
+
+    /**
+     * Constructor flag value: Tells the object to record each modification
+     * in an append-only change log, so that the map's contents survive a
+     * crash even if the map was never saved. This flag is not persistent,
+     * but a map opened without it still replays any change log it finds.
+     * Ignored for transient maps. See the class documentation for details.
+     */
+    public static final int DURABLE = 0x40;
+
+    /**
+     * Constructor flag value: Tells the object to keep its index in a
+     * memory-mapped, on-disk hash table, instead of on the Java heap. This
+     * flag is persistent: once a map has an on-disk index, it's always
+     * reopened with one. See the class documentation for details.
+     */
+    public static final int MAPPED_INDEX = 0x80;
+
+    /**
+     * Constructor flag value: Tells the object to store each value with a
+     * small header holding its length and a CRC-32 checksum, which is
+     * verified whenever the value is read. Like the value codec, this flag
+     * is not saved with the map, so a persistent map must always be opened
+     * with the same setting. See the class documentation for details.
+     */
+    public static final int CHECKSUMS = 0x100;
+
+    /**
+     * Constructor flag value: Opens an existing persistent map for
+     * reading only, sharing it with other processes (and other
+     * <tt>FileHashMap</tt> objects) that open it the same way. The data
+     * file is memory-mapped; so is the index, if the map was written with
+     * {@link #MAPPED_INDEX}. Methods that would modify the map throw
+     * <tt>UnsupportedOperationException</tt>. See the class documentation
+     * for details.
+     */
+    public static final int READ_ONLY = 0x200;
+
     /*----------------------------------------------------------------------*\
                              Private Constants
     \*----------------------------------------------------------------------*/
 
     /**
-     * Version stamp, written to the index file. Used to detect invalid files
-     * and older incompatible versions.
+     * Suffix appended to a file name to get the name of the new version
+     * of the file that compact() builds.
+     */
+    private static final String COMPACTION_SUFFIX = ".compact";
+
+    /**
+     * Suffix appended to the file prefix to get the name of the file that
+     * marks a compaction as committed. If it exists when the map is
+     * opened, the new files replace the old ones.
+     */
+    private static final String COMPACTION_MARKER_SUFFIX = ".compacted";
+
+    /**
+     * Suffix of the files a Builder writes before it installs them.
+     */
+    private static final String BUILD_SUFFIX = ".build";
+
+    /**
+     * Size of the buffer through which a Builder writes the data file.
+     */
+    private static final int BUILD_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Buffer size for the sequential writes compact() makes.
+     */
+    private static final int COMPACTION_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the read-ahead window used when iterating over the values.
+     */
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * The number of tasks the default asynchronous executor queues before
+     * it makes callers run their own tasks.
+     */
+    private static final int ASYNC_QUEUE_SIZE = 1024;
+
+    /**
+     * Asynchronous reads of values separated by no more than this many
+     * bytes are combined into one read, as long as the combined read is no
+     * bigger than SCAN_BUFFER_SIZE.
+     */
+    private static final int COALESCE_GAP = 64 * 1024;
+
+    /**
+     * Size of the read-ahead window used by verify().
+     */
+    private static final int VERIFY_BUFFER_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * The number of expired entries removeExpired() removes each time it
+     * takes the structure lock.
+     */
+    private static final int EXPIRY_BATCH_SIZE = 1024;
+
+    /**
+     * Size of the header (length and checksum) that precedes each value
+     * when CHECKSUMS is set.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * Suffix appended to the index file name to get the name of the file
+     * in which the gap list of a MAPPED_INDEX map is saved.
+     */
+    private static final String GAPS_FILE_SUFFIX = ".gaps";
+
+    /**
+     * Version stamp, written to index files in the old, serialized format.
+     * Used to detect invalid files and older incompatible versions.
      */
     private static final String VERSION_STAMP =
                                       "org.clapper.util.misc.FileHashMap-1.0";
@@ -365,1608 +826,5707 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
     private static final int ALL_FLAGS_MASK = NO_CREATE
                                             | TRANSIENT
                                             | FORCE_OVERWRITE
-                                            | RECLAIM_FILE_GAPS;
+                                            | RECLAIM_FILE_GAPS
+                                            | MEMORY_MAPPED
+                                            | CONCURRENT
+                                            | DURABLE
+                                            | MAPPED_INDEX
+                                            | CHECKSUMS
+                                            | READ_ONLY;
 
     /*----------------------------------------------------------------------*\
-                           Private Inner Classes
+                           Public Inner Classes
     \*----------------------------------------------------------------------*/
 
     /**
-     * Wraps the values data file and other administrative references related
-     * to it.
+     * <p>Stores many values with few writes. A <tt>BatchWriter</tt>, which
+     * is obtained from {@link FileHashMap#beginBatch()}, encodes the values
+     * passed to its {@link #put put()} method into a buffer. When the
+     * buffer fills up, or when {@link #commit} is called, the buffered
+     * values are appended to the data file with a single write, and the
+     * index is updated in one pass. Until then, the values are invisible
+     * to the map's readers.</p>
+     *
+     * <p>Batched values are always appended to the end of the data file,
+     * even if {@link FileHashMap#RECLAIM_FILE_GAPS} is set (although the
+     * space of the values they replace is still reclaimed). A
+     * <tt>BatchWriter</tt> may be used by only one thread at a time; on a
+     * {@link FileHashMap#CONCURRENT} map, several threads may use batch
+     * writers of their own.</p>
      */
-    private static class ValuesFile
+    public class BatchWriter
     {
-        private RandomAccessFile file;
-
-        ValuesFile (File f)
-            throws IOException
+        private final int          bufferSize;
+        private final List<K>      keys     = new ArrayList<K>();
+        private final List<byte[]> keyBytes = new ArrayList<byte[]>();
+        private int[]              sizes    = new int[64];
+        private byte[]             buffer   = new byte[1024];
+        private int                used     = 0;
+
+        private BatchWriter (int bufferSize)
         {
-            this.file = new RandomAccessFile (f, "rw");
+            this.bufferSize = bufferSize;
         }
 
-        RandomAccessFile getFile()
-            throws ConcurrentModificationException
+        /**
+         * Add a mapping to the batch. The mapping takes effect when the
+         * batch is written. If the batch buffer is full, it's written now.
+         *
+         * @param key    the key
+         * @param value  the value
+         *
+         * @throws IllegalArgumentException  the value couldn't be encoded,
+         *                                   or an I/O error occurred writing
+         *                                   the batch
+         * @throws NullPointerException      the specified key or value is
+         *                                   <tt>null</tt>.
+         */
+        public void put (K key, V value)
+            throws IllegalArgumentException,
+                   NullPointerException
         {
-            return file;
-        }
+            checkValidity();
 
-        void close()
-            throws IOException
-        {
-            // Lock is implicitly released on close.
-            file.close();
-        }
-    }
+            if (key == null)
+                throw new NullPointerException ("null key parameter"); // NOPMD
 
-    /**
-     * Comparator for FileHashMapEntry objects. Sorts by natural order,
-     * which is file position.
-     */
-    private class FileHashMapEntryComparator
-        implements Comparator<FileHashMapEntry<K>>
-    {
-        private FileHashMapEntryComparator()
-        {
-            // Nothing to do
-        }
+            if (value == null)
+                throw new NullPointerException ("null value parameter");// NOPMD
 
-        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
-        {
-            return o1.compareTo (o2);
-        }
+            try
+            {
+                byte[] bytes = encodeValue (value);
 
-        public boolean equals (Object o)
-        {
-            // This fail to compile with generics:
-            //
-            // return (o instanceof FileHashMapEntryComparator);
-            //
-            // But this works:
+                if (journal != null)
+                    keyBytes.add (keyCodec.encode (key));
 
-            return (this.getClass().isInstance (o));
-        }
+                append (key, bytes);
+            }
 
-        public int hashCode()                                       // NOPMD
-        {
-            return super.hashCode();
-        }
-    }
+            catch (NotSerializableException ex)
+            {
+                throw new IllegalArgumentException ("Value is not " +
+                                                    "serializable.");
+            }
 
-    /**
-     * Comparator for FileHashMapEntry objects. Sorts by object size, then
-     * file position. Used for ordering gap entries.
-     */
-    private class FileHashMapEntryGapComparator
-        implements Comparator<FileHashMapEntry<K>>
-    {
-        private FileHashMapEntryGapComparator()
-        {
-            // Nothing to do
+            catch (IOException ex)
+            {
+                throw new IllegalArgumentException ("Error saving value: " +
+                                                    ex.getMessage());
+            }
+
+            if (used >= bufferSize)
+                commit();
         }
 
-        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
+        /**
+         * Write the buffered mappings to the map.
+         *
+         * @throws IllegalArgumentException an I/O error occurred
+         */
+        public void commit()
+            throws IllegalArgumentException
         {
-            int cmp;
+            if (keys.isEmpty())
+                return;
 
-            if ((cmp = (int) (o1.getObjectSize() - o2.getObjectSize())) == 0)
-                cmp = (int) (o1.getFilePosition() - o2.getFilePosition());
+            try
+            {
+                writeBatch (keys, keyBytes, sizes, buffer, used);
+            }
 
-            return cmp;
-        }
+            catch (IOException ex)
+            {
+                throw new IllegalArgumentException ("Error saving value: " +
+                                                    ex.getMessage());
+            }
 
-        public boolean equals (Object o)
-        {
-            // This fail to compile with generics:
-            //
-            // return (o instanceof FileHashMapEntryGapComparator);
-            //
-            // But this works:
+            finally
+            {
+                keys.clear();
+                keyBytes.clear();
+                used = 0;
+            }
 
-            return (this.getClass().isInstance (o));
+            checkpointIfNeeded();
         }
 
-        public int hashCode()                                   // NOPMD
+        private void append (K key, byte[] bytes)
         {
-            return super.hashCode();
+            int n = keys.size();
+
+            if (n == sizes.length)
+            {
+                int[] newSizes = new int[n * 2];
+                System.arraycopy (sizes, 0, newSizes, 0, n);
+                sizes = newSizes;
+            }
+
+            if (bytes.length > buffer.length - used)
+            {
+                int    capacity  = Math.max (buffer.length * 2,
+                                             used + bytes.length);
+                byte[] newBuffer = new byte[capacity];
+                System.arraycopy (buffer, 0, newBuffer, 0, used);
+                buffer = newBuffer;
+            }
+
+            System.arraycopy (bytes, 0, buffer, used, bytes.length);
+            used += bytes.length;
+            sizes[n] = bytes.length;
+            keys.add (key);
         }
     }
 
     /**
-     * Internal iterator that loops through the FileHashMapEntry objects in
-     * sorted order, by file position. Used to implement other iterators.
+     * <p>Builds a new persistent map, or replaces an existing one, from a
+     * sequence of mappings, much faster than storing them one at a time
+     * with {@link FileHashMap#put put()}. The values are encoded and
+     * appended, in the order they arrive, to a new data file through a
+     * large buffer, so the data file is written in one sequential pass;
+     * the index is collected in memory as the values go by, and written
+     * once, at the end. Nothing is visible under the map's name until
+     * {@link #finish} is called.</p>
+     *
+     * <p><tt>finish()</tt> syncs the new files to disk, then renames them
+     * into place in the same way that {@link FileHashMap#compact} installs
+     * its new files: if the process dies part way through, the next
+     * <tt>FileHashMap</tt> to open the map completes the job. Either way,
+     * the map is never seen with a mixture of old and new files. The map
+     * must not be open, for reading or writing, while <tt>finish()</tt>
+     * runs.</p>
+     *
+     * <p>The following constructor flags are meaningful to a
+     * <tt>Builder</tt>; any others are rejected.</p>
+     *
+     * <ul>
+     *   <li>{@link FileHashMap#CHECKSUMS}: the values are stored with
+     *       checksums, so the map must also be opened with
+     *       <tt>CHECKSUMS</tt>.
+     *   <li>{@link FileHashMap#MAPPED_INDEX}: the index is written as an
+     *       on-disk index, rather than as an index file to be loaded into
+     *       memory.
+     * </ul>
+     *
+     * <p>A <tt>Builder</tt> may be used by only one thread at a time.</p>
      */
-    private class EntryIterator implements Iterator<FileHashMapEntry<K>>
+    public static class Builder<K,V>
     {
-        List<FileHashMapEntry<K>>     entries;
-        Iterator<FileHashMapEntry<K>> iterator;
-        FileHashMapEntry<K>           currentEntry = null;
+        private static final int BUILDER_FLAGS_MASK = CHECKSUMS
+                                                    | MAPPED_INDEX;
+
+        private final String                      pathPrefix;
+        private final int                         flags;
+        private final ValueCodec<K>               keyCodec;
+        private final ValueCodec<V>               valueCodec;
+        private final File                        dataPath;
+        private final FileOutputStream            dataFile;
+        private final OutputStream                out;
+        private final Map<K, FileHashMapEntry<K>> index =
+            new HashMap<K, FileHashMapEntry<K>>();
+        private long                              pos  = 0;
+        private boolean                           open = true;
 
         /**
-         * The expectedSize value that the iterator believes that the backing
-         * Map should have.  If this expectation is violated, the iterator
-         * has detected concurrent modification.
+         * Create a <tt>Builder</tt> that stores keys and values with Java
+         * serialization.
+         *
+         * @param pathPrefix  the prefix of the map's files, as for a
+         *                    <tt>FileHashMap</tt>
+         * @param flags       {@link FileHashMap#CHECKSUMS} and/or
+         *                    {@link FileHashMap#MAPPED_INDEX}, or 0
+         *
+         * @throws IOException can't create the new data file
          */
-        private int expectedSize = 0;
-
-        EntryIterator()
+        public Builder (String pathPrefix, int flags)
+            throws IOException
         {
-            entries      = FileHashMap.this.getSortedEntries();
-            iterator     = entries.iterator();
-            expectedSize = entries.size();
+            this (pathPrefix,
+                  flags,
+                  ValueCodecs.<K>javaSerialization(),
+                  ValueCodecs.<V>javaSerialization());
         }
 
-        public boolean hasNext()
+        /**
+         * Create a <tt>Builder</tt> that uses the specified codecs. The
+         * map must be opened with the same codecs.
+         *
+         * @param pathPrefix  the prefix of the map's files, as for a
+         *                    <tt>FileHashMap</tt>
+         * @param flags       {@link FileHashMap#CHECKSUMS} and/or
+         *                    {@link FileHashMap#MAPPED_INDEX}, or 0
+         * @param keyCodec    encodes the keys
+         * @param valueCodec  encodes the values
+         *
+         * @throws IOException can't create the new data file
+         */
+        public Builder (String        pathPrefix,
+                        int           flags,
+                        ValueCodec<K> keyCodec,
+                        ValueCodec<V> valueCodec)
+            throws IOException
         {
-            return iterator.hasNext();
-        }
+            if ((flags & ~BUILDER_FLAGS_MASK) != 0)
+                throw new IllegalArgumentException ("Bad builder flags: " +
+                                                    flags);
 
-        public FileHashMapEntry<K> next()
-        {
-            if (expectedSize != FileHashMap.this.indexMap.size())
-                throw new ConcurrentModificationException();
+            if ((keyCodec == null) || (valueCodec == null))
+                throw new NullPointerException ("null codec");
 
-            if (hasNext())
-                currentEntry = iterator.next();
+            this.pathPrefix = pathPrefix;
+            this.flags      = flags;
+            this.keyCodec   = keyCodec;
+            this.valueCodec = valueCodec;
 
-            else
-            {
-                currentEntry = null;
-                throw new NoSuchElementException();
-            }
+            // Build under names of our own, so that compacting the old map
+            // meanwhile can't get in the way.
 
-            return currentEntry;
+            dataPath = buildPath (new File (pathPrefix + DATA_FILE_SUFFIX));
+            dataFile = new FileOutputStream (dataPath);
+            out      = new BufferedOutputStream (dataFile, BUILD_BUFFER_SIZE);
         }
 
-        public void remove()
+        /**
+         * Add a mapping. Each key may be added only once.
+         *
+         * @param key    the key
+         * @param value  the value
+         *
+         * @throws IOException              the value couldn't be encoded or
+         *                                  written
+         * @throws IllegalArgumentException the key has already been added
+         * @throws NullPointerException     the key or value is
+         *                                  <tt>null</tt>
+         */
+        public void put (K key, V value)
+            throws IOException,
+                   IllegalArgumentException,
+                   NullPointerException
         {
-            if ((currentEntry != null) && (expectedSize > 0))
-            {
-                K key = currentEntry.getKey();
-                V value = FileHashMap.this.remove (key);
-                if (value != null)
-                {
-                    if (hasNext())
-                        currentEntry = iterator.next();
-                    else
-                        currentEntry = null;
-                }
-            }
-        }
-    }
+            checkOpen();
 
-    /**
-     * Specialized iterator for looping through the value set. The iterator
-     * loops through the FileHashMapEntry items, which have been sorted by
-     * file position; each call to next() causes the iterator to load the
-     * appropriate value. This approach (a) iterates through the value file
-     * sequentially, and (b) demand-loads the values, so they're not all
-     * loaded into memory at the same time.
-     */
-    private class ValueIterator implements Iterator<V>
-    {
-        EntryIterator it;
+            if (key == null)
+                throw new NullPointerException ("null key parameter"); // NOPMD
 
-        private ValueIterator()
-        {
-            it = new EntryIterator();
-        }
+            if (value == null)
+                throw new NullPointerException ("null value parameter");// NOPMD
 
-        public boolean hasNext()
-        {
-            return it.hasNext();
-        }
+            if (index.containsKey (key))
+                throw new IllegalArgumentException ("Duplicate key: " + key);
 
-        public V next()
-        {
-            return FileHashMap.this.readValueNoError (it.next());
-        }
+            byte[] bytes = valueCodec.encode (value);
+            if ((flags & CHECKSUMS) != 0)
+                bytes = addRecordHeader (bytes);
 
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
+            out.write (bytes);
+            index.put (key, new FileHashMapEntry<K> (pos, bytes.length, key));
+            pos += bytes.length;
         }
-    }
-
-    /**
-     * Shallow set that contains pointers to the on-disk values. Values
-     * are loaded only when referenced.
-     */
-    private class ValueSet extends AbstractSet<V>
-    {
-        ValuesFile valuesDB = FileHashMap.this.valuesDB;
 
-        private ValueSet()
+        /**
+         * Add every mapping an iterator returns, as if by calling
+         * {@link #put put()} on each.
+         *
+         * @param entries  the mappings
+         *
+         * @throws IOException              a value couldn't be encoded or
+         *                                  written
+         * @throws IllegalArgumentException a key was added more than once
+         * @throws NullPointerException     a key or value is <tt>null</tt>
+         */
+        public void putAll
+            (Iterator<? extends Map.Entry<? extends K, ? extends V>> entries)
+            throws IOException,
+                   IllegalArgumentException,
+                   NullPointerException
         {
-            // Nothing to do
+            while (entries.hasNext())
+            {
+                Map.Entry<? extends K, ? extends V> entry = entries.next();
+                put (entry.getKey(), entry.getValue());
+            }
         }
 
-        public void clear()
+        /**
+         * Get the number of mappings added so far.
+         *
+         * @return the number of mappings
+         */
+        public int size()
         {
-            throw new UnsupportedOperationException();
+            return index.size();
         }
 
-        public boolean contains (Object o)
+        /**
+         * Write the index, sync the new files to disk, and install them
+         * under the map's name, replacing any existing map. The
+         * <tt>Builder</tt> can't be used afterwards.
+         *
+         * @throws IOException on error, or if the map is open. The
+         *                     existing map, if any, is left alone.
+         */
+        public void finish()
+            throws IOException
         {
-            boolean containsIt = false;
+            checkOpen();
+            open = false;
 
-            // Loop through values sequentially, to optimize file access.
+            File[] files =
+            {
+                new File (pathPrefix + DATA_FILE_SUFFIX),
+                new File (pathPrefix + INDEX_FILE_SUFFIX),
+                new File (pathPrefix + KEY_FILE_SUFFIX)
+            };
+            File    indexPath = buildPath (files[1]);
+            File    keyPath   = buildPath (files[2]);
+            boolean done      = false;
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            try
             {
-                V obj = it.next();
+                out.flush();
+                dataFile.getFD().sync();
+                out.close();
 
-                if (obj.equals (o))
+                if ((flags & MAPPED_INDEX) != 0)
                 {
-                    containsIt = true;
-                    break;
+                    MappedKeyIndex<K> mapped =
+                        MappedKeyIndex.create (indexPath, keyPath, keyCodec,
+                                               index);
+                    mapped.force();
+                    mapped.close();
                 }
-            }
 
-            return containsIt;
-        }
+                else
+                {
+                    // The data file has no gaps, so say so, sparing a map
+                    // that reclaims them a scan of the file.
 
-        public boolean containsAll (Collection c)
-        {
-            boolean containsThem = true;
+                    FileHashMapIndexFile.write (indexPath, index, new long[0],
+                                                keyCodec);
+                }
 
-            // Loop through values sequentially, to optimize file access.
+                install (files);
+                done = true;
+            }
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            finally
             {
-                V obj = it.next();
-
-                if (! c.contains (obj))
+                if (! done)
                 {
-                    containsThem = false;
-                    break;
+                    closeQuietly();
+                    deleteBuildFiles();
                 }
             }
-
-            return containsThem;
         }
 
-        public boolean equals (Object o)
+        /**
+         * Give up, discarding the files built so far. The existing map, if
+         * any, is untouched. Does nothing if the <tt>Builder</tt> has
+         * already finished.
+         */
+        public void abort()
         {
-            boolean  eq    = false;
-            Set      other = (Set) o;
-
-            if (other.size() == size())
-                eq = this.containsAll (other);
+            if (! open)
+                return;
 
-            return eq;
+            open = false;
+            closeQuietly();
+            deleteBuildFiles();
         }
 
-        public int hashCode()
+        /**
+         * Close the data file being built, ignoring errors, since it's about
+         * to be discarded. The underlying file is closed separately, in case
+         * closing the buffered stream fails before it gets that far.
+         */
+        private void closeQuietly()
         {
-            int result = 0;
-
-            // Loop through values sequentially, to optimize file access.
+            try
+            {
+                out.close();
+            }
 
-            seekTo (0);
-            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            catch (IOException ex)
             {
-                Object obj = it.next();
+                // Don't care; the file's being discarded.
+            }
 
-                result += obj.hashCode();
+            try
+            {
+                dataFile.close();
             }
 
-            return result;
+            catch (IOException ex)
+            {
+                // Don't care; the file's being discarded.
+            }
         }
 
-        public boolean isEmpty()
+        /**
+         * Rename the new files into place. They're first renamed to the
+         * names compact() gives its new files, so that if we die while
+         * replacing the old files, the next map to be opened finishes the
+         * job, just as it would for an interrupted compaction.
+         *
+         * @param files  the map's data, index and key files
+         *
+         * @throws IOException on error
+         */
+        private void install (File[] files)
+            throws IOException
         {
-            return indexMap.isEmpty();
-        }
+            FileHashMapLock lock =
+                FileHashMapLock.acquire (new File (pathPrefix +
+                                                   LOCK_FILE_SUFFIX),
+                                         false);
+            try
+            {
+                File indexFile = files[1];
+                File marker    = new File (pathPrefix +
+                                           COMPACTION_MARKER_SUFFIX);
 
-        public Iterator<V> iterator()
-        {
-            return new ValueIterator();
-        }
+                for (File file : files)
+                {
+                    File staged = compactionPath (file);
 
-        public boolean remove (Object o)
-        {
-            return (FileHashMap.this.remove (o) != null);
-        }
+                    staged.delete();
+                    if (buildPath (file).exists())
+                        replaceFile (buildPath (file), staged);
+                }
 
-        public int size()
-        {
-            return currentSize();
-        }
+                // A gap list saved by the old map doesn't apply to the new
+                // data file.
 
-        private void seekTo (long pos)
-        {
-            try
-            {
-                valuesDB.getFile().seek (pos);
+                new File (indexFile.getPath() + GAPS_FILE_SUFFIX).delete();
+
+                // Commit.
+
+                new FileOutputStream (marker).close();
+
+                for (File file : files)
+                {
+                    File staged = compactionPath (file);
+                    if (staged.exists())
+                        replaceFile (staged, file);
+                    else
+                        file.delete();
+                }
+
+                File logPath = new File (pathPrefix + LOG_FILE_SUFFIX);
+                logPath.delete();
+                FileHashMapLog.rotatedPath (logPath).delete();
+                marker.delete();
             }
 
-            catch (IOException ex)
+            finally
             {
+                lock.release();
             }
         }
-    }
-
-    /**
-     * Necessary to support the Map.entrySet() routine. Each object
-     * returned by FileHashMap.entrySet().iterator() is of this type. Each
-     * EntrySetEntry object provides an alternate, user-acceptable view of
-     * a FileHashMapEntry.
-     */
-    private class EntrySetEntry implements Map.Entry<K,V>
-    {
-        private FileHashMapEntry<K> entry;
-
-        EntrySetEntry (FileHashMapEntry<K> entry)
-        {
-            this.entry = entry;
-        }
 
-        public boolean equals(Object o)
+        private void deleteBuildFiles()
         {
-            Map.Entry<K,V> mo        = (Map.Entry<K,V>) o;
-            Object         thisValue = getValue();
-            Object         thisKey   = getKey();
-
-            // Adapted directly from Map.Entry javadoc.
+            String[] suffixes =
+            {
+                DATA_FILE_SUFFIX,
+                INDEX_FILE_SUFFIX,
+                KEY_FILE_SUFFIX
+            };
 
-            return (mo.getKey() == null ?
-                    thisKey == null : mo.getKey().equals (thisKey))
-                                     &&
-                   (mo.getValue() == null ?
-                    thisValue == null : mo.getValue().equals (thisValue));
+            for (String suffix : suffixes)
+                buildPath (new File (pathPrefix + suffix)).delete();
         }
 
-        public K getKey()
+        private void checkOpen()
         {
-            return entry.getKey();
+            if (! open)
+                throw new IllegalStateException ("Builder for \"" +
+                                                 pathPrefix +
+                                                 "\" has finished.");
         }
 
-        public V getValue()
+        private static File buildPath (File path)
         {
-            return FileHashMap.this.readValueNoError (entry);
+            return new File (path.getPath() + BUILD_SUFFIX);
         }
+    }
 
-        public int hashCode()
-        {
-            // Adapted directly from the Map.Entry javadoc
-
-            V value = getValue();
-            K key   = getKey();
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
 
-            return (key == null ? 0 : key.hashCode()) ^
-                   (value == null ? 0 : value.hashCode());
+    /**
+     * The map's I/O counters. They're kept apart from the ValuesFile that
+     * updates most of them, because compaction replaces the ValuesFile.
+     */
+    private static class IOCounters
+    {
+        final StripedCounter reads          = new StripedCounter();
+        final StripedCounter bytesRead      = new StripedCounter();
+        final StripedCounter writes         = new StripedCounter();
+        final StripedCounter bytesWritten   = new StripedCounter();
+        final StripedCounter encodes        = new StripedCounter();
+        final StripedCounter encodeNanos    = new StripedCounter();
+        final StripedCounter decodes        = new StripedCounter();
+        final StripedCounter decodeNanos    = new StripedCounter();
+        final StripedCounter indexSaves     = new StripedCounter();
+        final StripedCounter indexSaveNanos = new StripedCounter();
+
+        void read (int bytes)
+        {
+            reads.increment();
+            bytesRead.add (bytes);
         }
 
-        public V setValue (V value)
+        void write (int bytes)
         {
-            throw new UnsupportedOperationException();
+            writes.increment();
+            bytesWritten.add (bytes);
         }
     }
 
     /**
-     * The actual entry set returned by FileHashMap.entrySet(). The values
-     * are demand-loaded. The iterator() and toArray() methods ensure that
-     * the keys are returned in an order that causes sequential access to the
-     * values file.
+     * Wraps the values data file and other administrative references related
+     * to it.
      */
-    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    private static class ValuesFile
     {
-        private EntrySet()
-        {
-            // Nothing to do
-        }
+        private File                path;
+        private String              mode;
+        private RandomAccessFile    file;
+        private FileChannel         channel;
+        private boolean             closed = false;
+        private IOCounters          counters;
 
-        public void clear()
+        /**
+         * The mapped file, if any. It's built on the channel, so it's
+         * replaced, along with the channel, by reopen().
+         */
+        private volatile SegmentedMappedFile mapped = null;
+
+        /**
+         * The logical end of the file. Writers reserve space by advancing
+         * it atomically, then write into the reserved region at their
+         * leisure.
+         */
+        private AtomicLong end;
+
+        ValuesFile (File f, boolean memoryMapped, IOCounters counters)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            this (f, memoryMapped, false, counters);
         }
 
-        public boolean contains (Map.Entry<K,V> o)
+        ValuesFile (File       f,
+                    boolean    memoryMapped,
+                    boolean    readOnly,
+                    IOCounters counters)
+            throws IOException
         {
-            return FileHashMap.this.containsValue(o.getValue());
+            this.path     = f;
+            this.counters = counters;
+            this.mode    = readOnly ? "r" : "rw";
+            this.file    = new RandomAccessFile (f, mode);
+            this.channel = file.getChannel();
+            this.end     = new AtomicLong (file.length());
+
+            if (memoryMapped)
+                this.mapped = newMappedFile (channel);
         }
 
-        public Iterator<Map.Entry<K,V>> iterator()
+        /**
+         * Read exactly <tt>buf.length</tt> bytes, starting at the specified
+         * file position. This method does not lock: it either copies from
+         * the mapped region or uses positional channel I/O, neither of which
+         * touches a shared file pointer.
+         */
+        void read (long pos, byte[] buf)
+            throws IOException
         {
-            return new Iterator<Map.Entry<K,V>>()
+            counters.read (buf.length);
+
+            if (mapped != null)
+                readMapped (pos, buf);
+
+            else
             {
-                EntryIterator it = new EntryIterator();
+                ByteBuffer bb = ByteBuffer.wrap (buf);
 
-                public Map.Entry<K,V> next()
+                try
                 {
-                    return (Map.Entry<K,V>) new EntrySetEntry (it.next());
+                    readFully (getChannel(), pos, bb);
                 }
 
-                public boolean hasNext()
+                catch (ClosedByInterruptException ex)
                 {
-                    return it.hasNext();
+                    // Our thread was interrupted, and the JDK closed the
+                    // channel out from under everyone. Reopen it for the
+                    // other threads, but fail this read.
+
+                    reopen();
+                    throw ex;
                 }
 
-                public void remove()
+                catch (AsynchronousCloseException ex)
                 {
-                    it.remove();
+                    // Another thread was interrupted while we were reading.
+
+                    reopen();
+                    bb.clear();
+                    readFully (getChannel(), pos, bb);
                 }
-            };
+            }
         }
 
-        public boolean equals(Object obj)
+        /**
+         * Read up to <tt>buf.length</tt> bytes, starting at the specified
+         * file position, stopping early only at the end of the file.
+         *
+         * @return the number of bytes read
+         */
+        int readAhead (long pos, byte[] buf)
+            throws IOException
         {
-            boolean eq = (this == obj);
+            ByteBuffer bb = ByteBuffer.wrap (buf);
 
-            if (! eq)
-                eq = super.equals(obj);
+            try
+            {
+                while (bb.hasRemaining())
+                {
+                    if (getChannel().read (bb, pos + bb.position()) < 0)
+                        break;
+                }
+            }
 
-            return eq;
+            catch (ClosedByInterruptException ex)
+            {
+                reopen();
+                throw ex;
+            }
+
+            counters.read (bb.position());
+            return bb.position();
         }
 
-        public int hashCode()                                // NOPMD
+        void write (long pos, byte[] buf)
+            throws IOException
         {
-            return super.hashCode();
+            write (pos, buf, 0, buf.length);
         }
 
-        public boolean remove (FileHashMapEntry<K> o)
+        void write (long pos, byte[] buf, int offset, int length)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
-        }
+            ByteBuffer bb = ByteBuffer.wrap (buf, offset, length);
 
-        public boolean removeAll (Collection c)
-        {
-            throw new UnsupportedOperationException();
-        }
+            try
+            {
+                while (bb.hasRemaining())
+                    getChannel().write (bb, pos + bb.position() - offset);
+            }
 
-        public boolean retainAll (Collection c)
-        {
-            throw new UnsupportedOperationException();
-        }
+            catch (ClosedByInterruptException ex)
+            {
+                reopen();
+                throw ex;
+            }
 
-        public int size()
-        {
-            return FileHashMap.this.size();
+            counters.write (length);
         }
-    }
-
-    /**
-     * Specialized iterator for looping through the set returned by
-     * FileHashMap.keySet(). The iterator returns the keys so that their
-     * corresponding FileHashMapEntry objects are sorted by file position
-     * value. This approach optimizes the following type of use:
-     *
-     *     Iterator it = fileHashMap.keySet().iterator();
-     *     while (it.hasNext())
-     *     {
-     *         Object value = fileHashMap.get (it.next());
-     *         ...
-     *     }
-     *
-     * That is, each key corresponds to a FileHashMapEntry, and since the
-     * keys are ordered by FileHashMapEntry file pointer, the above loop
-     * will traverse the data file sequentially.
-     */
-    private class KeyIterator implements Iterator<K>
-    {
-        private EntryIterator it;
 
-        KeyIterator()
+        /**
+         * Reserve space for a value at the end of the file.
+         *
+         * @param size the number of bytes to reserve
+         *
+         * @return the file position of the reserved region
+         */
+        long reserve (int size)
         {
-            it = new EntryIterator();
+            return end.getAndAdd (size);
         }
 
-        public boolean hasNext()
+        /**
+         * Get the logical length of the file, including space that has
+         * been reserved but not yet written.
+         *
+         * @return the length
+         */
+        long length()
         {
-            return it.hasNext();
+            return end.get();
         }
 
-        public K next()
+        /**
+         * Discard everything past a given position. A memory-mapped file
+         * isn't actually shrunk: readers don't lock, so one may still be
+         * copying from a mapped page past the new end, and touching a
+         * mapped page that no longer has a backing file page is fatal on
+         * most platforms. The space past the logical end is simply
+         * overwritten by later writes (or dropped by compaction).
+         *
+         * @param size  the new length
+         */
+        synchronized void truncate (long size)
+            throws IOException
         {
-            return it.next().getKey();
+            if (mapped == null)
+                getChannel().truncate (size);
+
+            end.set (size);
         }
 
-        public void remove()
+        void force()
+            throws IOException
         {
-            it.remove();
+            getChannel().force (false);
         }
-    }
-
-    /**
-     * Implements a key set -- the set of keys the caller used to store
-     * values in the FileHashMap. The iterator() and toArray() methods ensure
-     * that the keys are returned in a manner that optimizes looping through
-     * the associated values (as with the various iterators, above).
-     */
-    private class KeySet extends AbstractSet<K>
-    {
-        ArrayList<K> keys = null;
 
-        private KeySet()
+        synchronized void close()
+            throws IOException
         {
-            // Nothing to do
+            // Lock is implicitly released on close.
+            closed = true;
+            if (mapped != null)
+                mapped.unmapAll();
+
+            file.close();
         }
 
-        public void clear()
+        private synchronized FileChannel getChannel()
         {
-            throw new UnsupportedOperationException();
+            return channel;
         }
 
-        public boolean contains (Object o)
+        private synchronized void reopen()
+            throws IOException
         {
-            return FileHashMap.this.indexMap.containsKey (o);
+            if ((! closed) && (! channel.isOpen()))
+            {
+                log.debug ("Reopening interrupted channel for \"" +
+                           path.getPath() + "\"");
+                file    = new RandomAccessFile (path, mode);
+                channel = file.getChannel();
+
+                // The mapped file can't map anything more through the
+                // closed channel. (Segments it has already mapped stay
+                // valid, so readers still using them are unaffected.)
+
+                if (mapped != null)
+                    mapped = newMappedFile (channel);
+            }
         }
 
-        public boolean containsAll (Collection c)
+        /**
+         * Copy bytes from the mapped file. Mapping a new segment uses the
+         * channel, so it can fail the same ways a channel read can.
+         */
+        private void readMapped (long pos, byte[] buf)
+            throws IOException
         {
-            boolean  contains = true;
-            Iterator it       = c.iterator();
+            try
+            {
+                mapped.get (pos, buf, 0, buf.length);
+            }
 
-            while (contains && it.hasNext())
-                contains = FileHashMap.this.indexMap.containsKey (it.next());
+            catch (ClosedByInterruptException ex)
+            {
+                reopen();
+                throw ex;
+            }
 
-            return contains;
+            catch (ClosedChannelException ex)
+            {
+                // Another thread's interrupt closed the channel, or it had
+                // already been reopened under an old mapped file.
+
+                reopen();
+                mapped.get (pos, buf, 0, buf.length);
+            }
         }
 
-        public boolean equals (Object o)
+        private static SegmentedMappedFile newMappedFile (FileChannel channel)
         {
-            Set<K>   so        = (Set<K>) o;
-            boolean  eq        = false;
-            Set<K>   myKeys    = FileHashMap.this.indexMap.keySet();
+            return new SegmentedMappedFile
+                           (channel,
+                            FileChannel.MapMode.READ_ONLY,
+                            SegmentedMappedFile.DEFAULT_SEGMENT_SIZE);
+        }
 
-            if (so.size() == myKeys.size())
+        private static void readFully (FileChannel channel,
+                                       long        pos,
+                                       ByteBuffer  bb)
+            throws IOException
+        {
+            while (bb.hasRemaining())
             {
-                eq = true;
-                Iterator<K> it = myKeys.iterator();
-                while (eq)
+                if (channel.read (bb, pos + bb.position()) < 0)
                 {
-                    K myKey = it.next();
-
-                    if (! so.contains (myKey))
-                        eq = false;
+                    throw new IOException ("Expected to read " +
+                                           bb.capacity() +
+                                           "-byte serialized object from " +
+                                           " on-disk data file. Got only " +
+                                           bb.position() +
+                                           " bytes.");
                 }
             }
+        }
+    }
 
-            return eq;
+    /**
+     * Comparator for FileHashMapEntry objects. Sorts by natural order,
+     * which is file position.
+     */
+    private class FileHashMapEntryComparator
+        implements Comparator<FileHashMapEntry<K>>
+    {
+        private FileHashMapEntryComparator()
+        {
+            // Nothing to do
         }
 
-        public int hashCode()
+        public int compare (FileHashMapEntry<K> o1, FileHashMapEntry<K> o2)
         {
-            return FileHashMap.this.indexMap.keySet().hashCode();
+            return o1.compareTo (o2);
         }
 
-        public boolean isEmpty()
+        public boolean equals (Object o)
         {
-            return FileHashMap.this.indexMap.isEmpty();
+            // This fail to compile with generics:
+            //
+            // return (o instanceof FileHashMapEntryComparator);
+            //
+            // But this works:
+
+            return (this.getClass().isInstance (o));
         }
 
-        public Iterator<K> iterator()
+        public int hashCode()                                       // NOPMD
         {
-            return new KeyIterator();
+            return super.hashCode();
         }
+    }
 
-        public boolean remove (Object o)
+    /**
+     * Reads values for an iterator that visits them in file order. Rather
+     * than reading each value separately, it reads the data file in large
+     * chunks, and decodes the values straight out of the chunk. Small gaps
+     * between values are read along with the values, which costs less than
+     * skipping them with another read.
+     */
+    private class ReadAheadWindow
+    {
+        private final ValuesFile file;
+        private final int        windowSize;
+        private byte[]           buf    = null;
+        private long             start  = 0;
+        private int              length = 0;
+
+        ReadAheadWindow (ValuesFile file, int windowSize)
         {
-            throw new UnsupportedOperationException();
+            this.file       = file;
+            this.windowSize = windowSize;
         }
 
-        public boolean removeAll (Collection c)
+        /**
+         * Make sure a region of the file is in the window, reading ahead
+         * if it isn't. A region bigger than the window is read by itself.
+         *
+         * @return the region's offset in {@link #buffer}, or -1 if it
+         *         extends past the end of the file
+         */
+        int fill (long pos, int size)
+            throws IOException
         {
-            throw new UnsupportedOperationException();
+            if ((pos < start) || ((pos + size) > (start + length)))
+            {
+                if ((buf == null) || (size > buf.length))
+                    buf = new byte[Math.max (size, windowSize)];
+
+                start  = pos;
+                length = file.readAhead (pos, buf);
+
+                if (length < size)
+                {
+                    length = 0;
+                    return -1;
+                }
+            }
+
+            return (int) (pos - start);
         }
 
-        public boolean retainAll (Collection c)
+        byte[] buffer()
         {
-            throw new UnsupportedOperationException();
+            return buf;
         }
 
-        public int size()
+        /**
+         * Forget what's in the window, so that the next read goes to the
+         * file. Called when the window may hold bytes that have been
+         * overwritten since they were read.
+         */
+        void discard()
         {
-            return FileHashMap.this.currentSize();
+            length = 0;
         }
 
-        private synchronized void loadKeyArray()
+        V read (FileHashMapEntry<K> entry)
         {
-            if (keys == null)
+            long pos  = entry.getFilePosition();
+            int  size = entry.getObjectSize();
+
+            if (size > windowSize)
+                return readValueNoError (entry);
+
+            try
             {
-                List<FileHashMapEntry<K>> entries;
+                int offset = fill (pos, size);
+                if (offset < 0)
+                    return readValueNoError (entry);
 
-                entries = FileHashMap.this.getSortedEntries();
-                keys = new ArrayList<K>();
-                for (FileHashMapEntry<K> entry : entries)
-                    keys.add (entry.getKey());
+                return decodeValue (buf, offset, size);
+            }
+
+            catch (IOException ex)
+            {
+                return null;
+            }
+
+            catch (ClassNotFoundException ex)
+            {
+                return null;
             }
         }
     }
 
-    /*----------------------------------------------------------------------*\
-                           Private Instance Data
-    \*----------------------------------------------------------------------*/
-
     /**
-     * The index, cached in memory. Each entry in the list is a
-     * FileHashMapEntry object. This index is stored on disk, in the index
-     * file.
+     * Internal iterator that loops through the FileHashMapEntry objects in
+     * sorted order, by file position. Used to implement other iterators.
      */
-    private HashMap<K, FileHashMapEntry<K>> indexMap = null;
+    private class EntryIterator implements Iterator<FileHashMapEntry<K>>
+    {
+        List<FileHashMapEntry<K>>     entries;
+        Iterator<FileHashMapEntry<K>> iterator;
+        FileHashMapEntry<K>           currentEntry = null;
+        int                           generation = compactions;
+        ReadAheadWindow               window = null;
 
-    /**
-     * The file prefix with which this object was created.
-     */
-    private String filePrefix = null;
+        /**
+         * The expectedSize value that the iterator believes that the backing
+         * Map should have.  If this expectation is violated, the iterator
+         * has detected concurrent modification.
+         */
+        private int expectedSize = 0;
 
-    /**
-     * The index file.
-     */
-    private File indexFilePath = null;
+        EntryIterator()
+        {
+            if (mappedIndex != null)
+            {
+                // Sorting would mean loading the whole index onto the
+                // heap, which is what MAPPED_INDEX is meant to avoid.
 
-    /**
-     * The values file.
-     */
-    private File valuesDBPath = null;
+                entries      = null;
+                iterator     = indexMap.values().iterator();
+                expectedSize = indexMap.size();
+            }
 
-    /**
-     * The open values database.
-     */
-    private ValuesFile valuesDB = null;
+            else
+            {
+                entries      = FileHashMap.this.getSortedEntries();
+                iterator     = entries.iterator();
+                expectedSize = entries.size();
 
-    /**
-     * The flags specified to the constructor.
-     */
-    private int flags = 0;
+                // The entries are in file order, so read ahead, unless
+                // the file is mapped, in which case the operating system
+                // is already doing it.
 
-    /**
-     * Whether or not the index has been modified since the file was
-     * opened.
-     */
-    private boolean modified = false;
+                if ((flags & MEMORY_MAPPED) == 0)
+                    window = new ReadAheadWindow (valuesDB, SCAN_BUFFER_SIZE);
+            }
+        }
 
-    /**
-     * Whether or not the object is still valid. See close().
-     */
-    private boolean valid = true;
+        /**
+         * Read the value for an entry returned by this iterator.
+         *
+         * @param entry  the entry
+         *
+         * @return the value, or null if it can't be read
+         */
+        V readValue (FileHashMapEntry<K> entry)
+        {
+            if (generation != compactions)
+                return FileHashMap.this.readValueNoError (entry, generation);
+
+            V value = (window != null) ? window.read (entry)
+                                       : FileHashMap.this.readValueNoError
+                                             (entry);
+            if ((flags & CONCURRENT) == 0)
+                return value;
+
+            // The entries are a snapshot. As in get(), a concurrent writer
+            // may have replaced or removed this one since, and its space
+            // may have been reused, so the value is good only if the index
+            // still points where we read. If it doesn't, let get() sort it
+            // out.
+
+            K key = entry.getKey();
+            if ( (generation == compactions) &&
+                 sameLocation (entry, indexMap.get (key)) )
+            {
+                return value;
+            }
 
-    /**
-     * The value returned by the entrySet() method. It's created the first
+            // The window may hold other stale bytes, too.
+
+            if (window != null)
+                window.discard();
+
+            return FileHashMap.this.get (key);
+        }
+
+        public boolean hasNext()
+        {
+            return iterator.hasNext();
+        }
+
+        public FileHashMapEntry<K> next()
+        {
+            if ( ((flags & CONCURRENT) == 0) &&
+                 (expectedSize != FileHashMap.this.indexMap.size()) )
+            {
+                throw new ConcurrentModificationException();
+            }
+
+            if (hasNext())
+                currentEntry = iterator.next();
+
+            else
+            {
+                currentEntry = null;
+                throw new NoSuchElementException();
+            }
+
+            return currentEntry;
+        }
+
+        public void remove()
+        {
+            if ((currentEntry != null) && (expectedSize > 0))
+            {
+                K key = currentEntry.getKey();
+                V value = FileHashMap.this.remove (key);
+                if (value != null)
+                {
+                    if (hasNext())
+                        currentEntry = iterator.next();
+                    else
+                        currentEntry = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Specialized iterator for looping through the value set. The iterator
+     * loops through the FileHashMapEntry items, which have been sorted by
+     * file position; each call to next() causes the iterator to load the
+     * appropriate value. This approach (a) iterates through the value file
+     * sequentially, and (b) demand-loads the values, so they're not all
+     * loaded into memory at the same time.
+     */
+    private class ValueIterator implements Iterator<V>
+    {
+        EntryIterator it;
+
+        private ValueIterator()
+        {
+            it = new EntryIterator();
+        }
+
+        public boolean hasNext()
+        {
+            return it.hasNext();
+        }
+
+        public V next()
+        {
+            return it.readValue (it.next());
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Shallow set that contains pointers to the on-disk values. Values
+     * are loaded only when referenced.
+     */
+    private class ValueSet extends AbstractSet<V>
+    {
+        private ValueSet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Object o)
+        {
+            boolean containsIt = false;
+
+            // Loop through values sequentially, to optimize file access.
+
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                V obj = it.next();
+
+                if (obj.equals (o))
+                {
+                    containsIt = true;
+                    break;
+                }
+            }
+
+            return containsIt;
+        }
+
+        public boolean containsAll (Collection c)
+        {
+            boolean containsThem = true;
+
+            // Loop through values sequentially, to optimize file access.
+
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                V obj = it.next();
+
+                if (! c.contains (obj))
+                {
+                    containsThem = false;
+                    break;
+                }
+            }
+
+            return containsThem;
+        }
+
+        public boolean equals (Object o)
+        {
+            boolean  eq    = false;
+            Set      other = (Set) o;
+
+            if (other.size() == size())
+                eq = this.containsAll (other);
+
+            return eq;
+        }
+
+        public int hashCode()
+        {
+            int result = 0;
+
+            // Loop through values sequentially, to optimize file access.
+
+            for (Iterator<V> it = new ValueIterator(); it.hasNext(); )
+            {
+                Object obj = it.next();
+
+                result += obj.hashCode();
+            }
+
+            return result;
+        }
+
+        public boolean isEmpty()
+        {
+            return indexMap.isEmpty();
+        }
+
+        public Iterator<V> iterator()
+        {
+            return new ValueIterator();
+        }
+
+        public boolean remove (Object o)
+        {
+            return (FileHashMap.this.remove (o) != null);
+        }
+
+        public int size()
+        {
+            return currentSize();
+        }
+    }
+
+    /**
+     * Necessary to support the Map.entrySet() routine. Each object
+     * returned by FileHashMap.entrySet().iterator() is of this type. Each
+     * EntrySetEntry object provides an alternate, user-acceptable view of
+     * a FileHashMapEntry.
+     */
+    private class EntrySetEntry implements Map.Entry<K,V>
+    {
+        private FileHashMapEntry<K> entry;
+        private EntryIterator       source;
+
+        EntrySetEntry (FileHashMapEntry<K> entry, EntryIterator source)
+        {
+            this.entry  = entry;
+            this.source = source;
+        }
+
+        public boolean equals(Object o)
+        {
+            Map.Entry<K,V> mo        = (Map.Entry<K,V>) o;
+            Object         thisValue = getValue();
+            Object         thisKey   = getKey();
+
+            // Adapted directly from Map.Entry javadoc.
+
+            return (mo.getKey() == null ?
+                    thisKey == null : mo.getKey().equals (thisKey))
+                                     &&
+                   (mo.getValue() == null ?
+                    thisValue == null : mo.getValue().equals (thisValue));
+        }
+
+        public K getKey()
+        {
+            return entry.getKey();
+        }
+
+        public V getValue()
+        {
+            return source.readValue (entry);
+        }
+
+        public int hashCode()
+        {
+            // Adapted directly from the Map.Entry javadoc
+
+            V value = getValue();
+            K key   = getKey();
+
+            return (key == null ? 0 : key.hashCode()) ^
+                   (value == null ? 0 : value.hashCode());
+        }
+
+        public V setValue (V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The actual entry set returned by FileHashMap.entrySet(). The values
+     * are demand-loaded. The iterator() and toArray() methods ensure that
+     * the keys are returned in an order that causes sequential access to the
+     * values file.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        private EntrySet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Map.Entry<K,V> o)
+        {
+            return FileHashMap.this.containsValue(o.getValue());
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new Iterator<Map.Entry<K,V>>()
+            {
+                EntryIterator it = new EntryIterator();
+
+                public Map.Entry<K,V> next()
+                {
+                    return (Map.Entry<K,V>) new EntrySetEntry (it.next(),
+                                                               it);
+                }
+
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public void remove()
+                {
+                    it.remove();
+                }
+            };
+        }
+
+        public boolean equals(Object obj)
+        {
+            boolean eq = (this == obj);
+
+            if (! eq)
+                eq = super.equals(obj);
+
+            return eq;
+        }
+
+        public int hashCode()                                // NOPMD
+        {
+            return super.hashCode();
+        }
+
+        public boolean remove (FileHashMapEntry<K> o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean retainAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int size()
+        {
+            return FileHashMap.this.size();
+        }
+    }
+
+    /**
+     * Specialized iterator for looping through the set returned by
+     * FileHashMap.keySet(). The iterator returns the keys so that their
+     * corresponding FileHashMapEntry objects are sorted by file position
+     * value. This approach optimizes the following type of use:
+     *
+     *     Iterator it = fileHashMap.keySet().iterator();
+     *     while (it.hasNext())
+     *     {
+     *         Object value = fileHashMap.get (it.next());
+     *         ...
+     *     }
+     *
+     * That is, each key corresponds to a FileHashMapEntry, and since the
+     * keys are ordered by FileHashMapEntry file pointer, the above loop
+     * will traverse the data file sequentially.
+     */
+    private class KeyIterator implements Iterator<K>
+    {
+        private EntryIterator it;
+
+        KeyIterator()
+        {
+            it = new EntryIterator();
+        }
+
+        public boolean hasNext()
+        {
+            return it.hasNext();
+        }
+
+        public K next()
+        {
+            return it.next().getKey();
+        }
+
+        public void remove()
+        {
+            it.remove();
+        }
+    }
+
+    /**
+     * Implements a key set -- the set of keys the caller used to store
+     * values in the FileHashMap. The iterator() and toArray() methods ensure
+     * that the keys are returned in a manner that optimizes looping through
+     * the associated values (as with the various iterators, above).
+     */
+    private class KeySet extends AbstractSet<K>
+    {
+        ArrayList<K> keys = null;
+
+        private KeySet()
+        {
+            // Nothing to do
+        }
+
+        public void clear()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean contains (Object o)
+        {
+            return FileHashMap.this.indexMap.containsKey (o);
+        }
+
+        public boolean containsAll (Collection c)
+        {
+            boolean  contains = true;
+            Iterator it       = c.iterator();
+
+            while (contains && it.hasNext())
+                contains = FileHashMap.this.indexMap.containsKey (it.next());
+
+            return contains;
+        }
+
+        public boolean equals (Object o)
+        {
+            Set<K>   so        = (Set<K>) o;
+            boolean  eq        = false;
+            Set<K>   myKeys    = FileHashMap.this.indexMap.keySet();
+
+            if (so.size() == myKeys.size())
+            {
+                eq = true;
+                Iterator<K> it = myKeys.iterator();
+                while (eq)
+                {
+                    K myKey = it.next();
+
+                    if (! so.contains (myKey))
+                        eq = false;
+                }
+            }
+
+            return eq;
+        }
+
+        public int hashCode()
+        {
+            return FileHashMap.this.indexMap.keySet().hashCode();
+        }
+
+        public boolean isEmpty()
+        {
+            return FileHashMap.this.indexMap.isEmpty();
+        }
+
+        public Iterator<K> iterator()
+        {
+            return new KeyIterator();
+        }
+
+        public boolean remove (Object o)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean removeAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean retainAll (Collection c)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public int size()
+        {
+            return FileHashMap.this.currentSize();
+        }
+
+        private synchronized void loadKeyArray()
+        {
+            if (keys == null)
+            {
+                List<FileHashMapEntry<K>> entries;
+
+                entries = FileHashMap.this.getSortedEntries();
+                keys = new ArrayList<K>();
+                for (FileHashMapEntry<K> entry : entries)
+                    keys.add (entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Appends values to the new data file being built by compact(),
+     * buffering them so the file is written in large, sequential chunks.
+     */
+    private static class CompactionWriter
+    {
+        private final ValuesFile file;
+        private final byte[]     buf = new byte[COMPACTION_BUFFER_SIZE];
+        private int              used = 0;
+
+        CompactionWriter (ValuesFile file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * Append a value.
+         *
+         * @return the value's position in the new file
+         */
+        long append (byte[] value)
+            throws IOException
+        {
+            if (value.length > buf.length - used)
+                flush();
+
+            long pos = file.length() + used;
+
+            if (value.length > buf.length)
+                file.write (file.reserve (value.length), value);
+
+            else
+            {
+                System.arraycopy (value, 0, buf, used, value.length);
+                used += value.length;
+            }
+
+            return pos;
+        }
+
+        void flush()
+            throws IOException
+        {
+            if (used > 0)
+            {
+                file.write (file.reserve (used), buf, 0, used);
+                used = 0;
+            }
+        }
+    }
+
+    /**
+     * The result of an asynchronous operation, completed by whichever
+     * thread performs it.
+     */
+    private static class AsyncResult<T> extends FutureTask<T>
+    {
+        private static final Callable<Object> NOTHING = new Callable<Object>()
+        {
+            public Object call()
+            {
+                return null;
+            }
+        };
+
+        @SuppressWarnings("unchecked")
+        AsyncResult()
+        {
+            super ((Callable<T>) NOTHING);
+        }
+
+        void complete (T value)
+        {
+            set (value);
+        }
+
+        void fail (Throwable ex)
+        {
+            setException (ex);
+        }
+    }
+
+    /**
+     * One key to be read by readCoalesced(), and its result.
+     */
+    private class ReadRequest
+    {
+        final Object         key;
+        final AsyncResult<V> result;
+        FileHashMapEntry<K>  entry = null;
+        V                    value = null;
+        RuntimeException     error = null;
+
+        ReadRequest (Object key, AsyncResult<V> result)
+        {
+            this.key    = key;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Names the default asynchronous executor's threads, and makes them
+     * daemons.
+     */
+    private class AsyncThreadFactory implements ThreadFactory
+    {
+        private int count = 0;
+
+        public synchronized Thread newThread (Runnable r)
+        {
+            Thread thread = new Thread (r, "FileHashMap I/O (" + filePrefix +
+                                           ") #" + (++count));
+            thread.setDaemon (true);
+            return thread;
+        }
+    }
+
+    /**
+     * A background thread that does something to the map at a fixed
+     * interval, until it's shut down or the map is closed.
+     */
+    private abstract class PeriodicTask extends Thread
+    {
+        private final long intervalMillis;
+        private boolean    stopped = false;
+
+        PeriodicTask (String name, long intervalMillis)
+        {
+            super ("FileHashMap " + name + " (" + filePrefix + ")");
+            setDaemon (true);
+
+            this.intervalMillis = intervalMillis;
+        }
+
+        public void run()
+        {
+            while (waitForNextCheck())
+            {
+                try
+                {
+                    runOnce();
+                }
+
+                catch (IllegalStateException ex)
+                {
+                    // The map was closed.
+
+                    break;
+                }
+
+                catch (IOException ex)
+                {
+                    log.error ("Background " + getName() + " failed", ex);
+                }
+            }
+        }
+
+        abstract void runOnce()
+            throws IOException;
+
+        synchronized void shutDown()
+        {
+            stopped = true;
+            notifyAll();
+        }
+
+        private synchronized boolean waitForNextCheck()
+        {
+            long deadline = System.currentTimeMillis() + intervalMillis;
+            long now;
+
+            // Not interrupt(): interrupting a thread that's doing channel
+            // I/O closes the channel.
+
+            while ( (! stopped) &&
+                    ((now = System.currentTimeMillis()) < deadline) )
+            {
+                try
+                {
+                    wait (deadline - now);
+                }
+
+                catch (InterruptedException ex)
+                {
+                    stopped = true;
+                }
+            }
+
+            return (! stopped) && valid;
+        }
+    }
+
+    /**
+     * The background compaction thread. See startCompactor().
+     */
+    private class Compactor extends PeriodicTask
+    {
+        private final double threshold;
+
+        Compactor (double threshold, long intervalMillis)
+        {
+            super ("compactor", intervalMillis);
+            this.threshold = threshold;
+        }
+
+        void runOnce()
+            throws IOException
+        {
+            if (getFragmentation() >= threshold)
+            {
+                long saved = compact();
+                log.debug ("Background compaction of \"" + filePrefix +
+                           "\" reclaimed " + saved + " bytes.");
+            }
+        }
+    }
+
+    /**
+     * The background expiry thread. See startExpirySweeper().
+     */
+    private class ExpirySweeper extends PeriodicTask
+    {
+        ExpirySweeper (long intervalMillis)
+        {
+            super ("expiry sweeper", intervalMillis);
+        }
+
+        void runOnce()
+            throws IOException
+        {
+            int removed = removeExpired();
+            if (removed > 0)
+            {
+                log.debug ("Background expiry of \"" + filePrefix +
+                           "\" removed " + removed + " entries.");
+            }
+        }
+    }
+
+    /**
+     * Applies replayed change log records to the in-memory index.
+     */
+    private class JournalReplayer implements FileHashMapLog.Replayer
+    {
+        private JournalReplayer()
+        {
+            // Nothing to do
+        }
+
+        public void replayPut (byte[] keyBytes,
+                               long   pos,
+                               int    size,
+                               long   expirationTime)
+            throws IOException,
+                   ClassNotFoundException
+        {
+            K key = keyCodec.decode (keyBytes, 0, keyBytes.length);
+            FileHashMapEntry<K> entry = new FileHashMapEntry<K> (pos, size,
+                                                                 key);
+            entry.setExpirationTime (expirationTime);
+            if (expirationTime != 0)
+                expiringEntries = true;
+            indexMap.put (key, entry);
+        }
+
+        public void replayRemove (byte[] keyBytes)
+            throws IOException,
+                   ClassNotFoundException
+        {
+            indexMap.remove (keyCodec.decode (keyBytes, 0, keyBytes.length));
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                           Private Instance Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The index, cached in memory. Each entry in the list is a
+     * FileHashMapEntry object. This index is stored on disk, in the index
+     * file.
+     */
+    private volatile Map<K, FileHashMapEntry<K>> indexMap = null;
+
+    /**
+     * The file prefix with which this object was created.
+     */
+    private String filePrefix = null;
+
+    /**
+     * The index file.
+     */
+    private File indexFilePath = null;
+
+    /**
+     * The values file.
+     */
+    private File valuesDBPath = null;
+
+    /**
+     * The open values database.
+     */
+    private volatile ValuesFile valuesDB = null;
+
+    /**
+     * The key file, for a MAPPED_INDEX map.
+     */
+    private File keyFilePath = null;
+
+    /**
+     * The on-disk index, for a MAPPED_INDEX map; null otherwise. When
+     * non-null, indexMap refers to the same object.
+     */
+    private volatile MappedKeyIndex<K> mappedIndex = null;
+
+    /**
+     * The change log file.
+     */
+    private File logFilePath = null;
+
+    /**
+     * The lock file, and the lock held on it by a persistent map.
+     */
+    private File            lockFilePath = null;
+    private FileHashMapLock fileLock = null;
+
+    /**
+     * The open change log, for a DURABLE map; null otherwise. Index
+     * updates and their log records are made together while synchronized
+     * on this object, so that the log records modifications in the same
+     * order as the index sees them.
+     */
+    private FileHashMapLog journal = null;
+
+    /**
+     * Number of change log records that triggers a checkpoint.
+     */
+    private volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /**
+     * Serializes checkpoints (index saves). Must be acquired before the
+     * structure lock, never after.
+     */
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
+    /**
+     * The flags specified to the constructor.
+     */
+    private int flags = 0;
+
+    /**
+     * Encodes and decodes the values stored in the data file.
+     */
+    private ValueCodec<V> valueCodec = ValueCodecs.<V>javaSerialization();
+
+    /**
+     * Encodes and decodes the keys written to the change log.
+     */
+    private ValueCodec<K> keyCodec = ValueCodecs.<K>javaSerialization();
+
+    /**
+     * Whether or not the index has been modified since the file was
+     * opened.
+     */
+    private volatile boolean modified = false;
+
+    /**
+     * Whether or not the object is still valid. See close().
+     */
+    private volatile boolean valid = true;
+
+    /**
+     * Guards the map's structure. Writers (put, remove) share the read
+     * side, so they don't block one another; operations that must see a
+     * quiescent map (clear, save, close) take the write side. Readers
+     * don't lock at all.
+     */
+    private final ReentrantReadWriteLock structureLock =
+        new ReentrantReadWriteLock();
+
+    /**
+     * The value returned by the entrySet() method. It's created the first
      * time entrySet() is called.
      */
-    private EntrySet entrySetResult = null;
+    private EntrySet entrySetResult = null;
+
+    /**
+     * The gaps in the data file. This reference will be non-null only if
+     * the RECLAIM_FILE_GAPS flag was passed to the constructor.
+     */
+    private volatile FreeSpaceManager freeSpace = null;
+
+    /**
+     * The total size of the values the index refers to. Not maintained for
+     * a MAPPED_INDEX map, which keeps track itself.
+     */
+    private final AtomicLong liveBytes = new AtomicLong (0);
+
+    /**
+     * Serializes compactions.
+     */
+    private final ReentrantLock compactionLock = new ReentrantLock();
+
+    /**
+     * While compact() is copying values, the keys of the entries that
+     * writers change; null otherwise.
+     */
+    private volatile Set<Object> compactionDirtyKeys = null;
+
+    /**
+     * Set by clear() and stopCompactor() to make an in-progress compaction
+     * give up.
+     */
+    private volatile boolean compactionAborted = false;
+
+    /**
+     * The number of compactions that have completed. Readers use it to
+     * detect that the entry they're holding refers to the old data file.
+     */
+    private volatile int compactions = 0;
+
+    /**
+     * The decoded value cache, or null if caching is disabled.
+     */
+    private volatile ValueCache<V> valueCache = null;
+
+    /**
+     * The background compaction thread, if any.
+     */
+    private Compactor compactor = null;
+
+    /**
+     * The background expiry thread, if any.
+     */
+    private ExpirySweeper expirySweeper = null;
+
+    /**
+     * The time to live given to entries stored without an explicit one,
+     * in milliseconds; 0 means they never expire.
+     */
+    private volatile long defaultTimeToLive = 0;
+
+    /**
+     * Set once the map may contain an entry with an expiration time, so
+     * that maps that never use expiration don't pay for checking it.
+     */
+    private volatile boolean expiringEntries = false;
+
+    /**
+     * The executor for the asynchronous methods, and whether this map
+     * created it (and so must shut it down). Both are guarded by this.
+     */
+    private ExecutorService asyncExecutor = null;
+    private boolean         ownAsyncExecutor = false;
+
+    /**
+     * Asynchronous reads waiting to be performed. Whichever I/O thread
+     * gets to them first performs them all at once, so that reads of
+     * nearby values can be combined.
+     */
+    private final List<ReadRequest> pendingReads = new ArrayList<ReadRequest>();
+
+    /**
+     * I/O and timing statistics.
+     */
+    private final IOCounters counters = new IOCounters();
+
+    /**
+     * The name under which the map's MXBean is registered, or null if it
+     * isn't. Guarded by this.
+     */
+    private ObjectName mbeanName = null;
+
+    /*----------------------------------------------------------------------*\
+                            Private Class Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * For log messages
+     */
+    private static final Logger log = new Logger (FileHashMap.class);
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
+     * disk files will be in the normal temporary directory and will have
+     * the prefix "FileHashMap". The names of the associated disk files are
+     * guaranteed to be unique, and will go away when the object is
+     * finalized or when the Java VM goes away. Call this constructor is
+     * identical to calling {@link #FileHashMap(String)} with a null
+     * <tt>filePrefix</tt> parameter.</p>
+     *
+     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
+     * flag.</p>
+     *
+     * @throws IOException  Unable to create temp file
+     *
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap(String)
+     */
+    public FileHashMap()
+        throws IOException
+    {
+        this (null);
+    }
+
+    /**
+     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
+     * disk files will be in the normal temporary directory and will have
+     * the specified temporary file prefix. If no temporary file prefix is
+     * specified (i.e., the <tt>tempFilePrefix</tt> parameter is null), then
+     * "fhm" will be used. The names of the associated disk files are
+     * guaranteed to be unique, and they will go away when the object is
+     * finalized or when the Java VM goes away.</p>
+     *
+     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
+     * flag.</p>
+     *
+     * @param tempFilePrefix the prefix to use with the temporary file, or
+     *                       null for default prefix "fhm"
+     *
+     * @throws IOException  Unable to create temp file
+     *
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap()
+     */
+    public FileHashMap (String tempFilePrefix)
+        throws IOException
+    {
+        this.flags = TRANSIENT;
+        this.filePrefix = tempFilePrefix;
+
+        if (filePrefix == null)
+            filePrefix = "fmh";
+
+        this.valuesDBPath = File.createTempFile (filePrefix, DATA_FILE_SUFFIX);
+        this.valuesDBPath.deleteOnExit();
+
+        createNewMap (this.valuesDBPath);
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix. The prefix is a file prefix onto which data and index
+     * suffixes will be appended.</p>
+     *
+     * <p><u>Values for the <tt>flag</tt> parameter</u></p>
+     *
+     * <p>The <tt>flags</tt> parameter consists of a set of logically OR'd
+     * constants.
+     *
+     * <p>If <tt>(flags & NO_CREATE)</tt> is zero, the constructor will
+     * attempt to create the index files if they don't exist. Otherwise, it
+     * expects to find a saved hash map, and it will throw an exception if
+     * the files are not present.</p>
+     *
+     * <p>If <tt>(flags & TRANSIENT)</tt> is non-zero, the constructor will
+     * attempt to create a transient map. A transient map is not saved; its
+     * disk files are removed when the map is finalized or manually closed.
+     * You cannot create a transient map using a file prefix that specifies
+     * an existing, saved map. Specifying the <tt>TRANSIENT</tt> flag
+     * causes any <tt>NO_CREATE</tt> flag to be ignored.</p>
+     *
+     * <p>For example, the following statement creates a transient
+     * <tt>FileHashMap</tt>:</p>
+     *
+     * <blockquote><pre>
+     * Map map = new FileHashMap ("/my/temp/dir", FileHashMap.TRANSIENT);
+     * </pre></blockquote>
+     *
+     * <p>whereas this statements opens a persistent <tt>FileHashMap</tt>,
+     * creating it if it doesn't already exist:</p>
+     *
+     * <blockquote><pre>
+     * Map map = new FileHashMap ("/my/map/dir", FileHashMap.CREATE);
+     * </pre></blockquote>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set. See above
+     *                     for details.
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see #NO_CREATE
+     * @see #TRANSIENT
+     *
+     * @see #FileHashMap()
+     * @see #FileHashMap(String)
+     * @see #FileHashMap(String,int,ValueCodec)
+     */
+    public FileHashMap (String pathPrefix, int flags)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, flags, ValueCodecs.<V>javaSerialization());
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix, and that will use the specified codec to encode and decode
+     * its values. The <tt>pathPrefix</tt> and <tt>flags</tt> parameters
+     * are as described for {@link #FileHashMap(String,int)}.</p>
+     *
+     * <p>The codec is not stored in the map's files. If you reopen a
+     * persistent map, you must specify the same codec that was used to
+     * write it.</p>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set.
+     * @param valueCodec   The codec to use for the values
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see ValueCodecs
+     * @see #FileHashMap(String,int)
+     * @see #FileHashMap(String,int,ValueCodec,ValueCodec)
+     */
+    public FileHashMap (String pathPrefix, int flags, ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix,
+              flags,
+              ValueCodecs.<K>javaSerialization(),
+              valueCodec);
+    }
+
+    /**
+     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
+     * from and/or store its data in files derived from the specified
+     * prefix, and that will use the specified codecs to encode and decode
+     * its keys and values. The <tt>pathPrefix</tt> and <tt>flags</tt>
+     * parameters are as described for {@link #FileHashMap(String,int)}.
+     * The key codec is used to write keys to the change log of a
+     * {@link #DURABLE} map.</p>
+     *
+     * <p>The codecs are not stored in the map's files. If you reopen a
+     * persistent map, you must specify the same codecs that were used to
+     * write it.</p>
+     *
+     * @param pathPrefix   The pathname prefix to the files to be used
+     * @param flags        Flags that control the disposition of the files.
+     *                     A value of 0 means no flags are set.
+     * @param keyCodec     The codec to use for the keys
+     * @param valueCodec   The codec to use for the values
+     *
+     * @throws FileNotFoundException        The specified hash files do not
+     *                                      exist, and the {@link #NO_CREATE}
+     *                                      flag was specified.
+     * @throws ClassNotFoundException       Failed to deserialize an object
+     * @throws VersionMismatchException     Bad or unsupported version stamp
+     *                                      in <tt>FileHashMap</tt> index file
+     * @throws ObjectExistsException        One or both of the files already
+     *                                      exist, but the {@link #TRANSIENT}
+     *                                      flag was set and the
+     *                                      {@link #FORCE_OVERWRITE} flag was
+     *                                      <i>not</i> set.
+     * @throws IOException                  Other errors
+     *
+     * @see ValueCodecs
+     * @see #FileHashMap(String,int,ValueCodec)
+     */
+    public FileHashMap (String        pathPrefix,
+                        int           flags,
+                        ValueCodec<K> keyCodec,
+                        ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        assert ( ((~ALL_FLAGS_MASK) & flags) == 0 );
+
+        if (keyCodec == null)
+            throw new NullPointerException ("null keyCodec parameter");
+
+        if (valueCodec == null)
+            throw new NullPointerException ("null valueCodec parameter");
+
+        if ((flags & READ_ONLY) != 0)
+        {
+            if ((flags & (TRANSIENT | FORCE_OVERWRITE)) != 0)
+            {
+                throw new IllegalArgumentException
+                    ("FileHashMap.READ_ONLY can't be combined with " +
+                     "TRANSIENT or FORCE_OVERWRITE.");
+            }
+
+            // Values are read from the mapped file; nothing is written.
+
+            flags |= (NO_CREATE | MEMORY_MAPPED);
+            flags &= ~(DURABLE | RECLAIM_FILE_GAPS | MAPPED_INDEX);
+        }
+
+        int    filesFound = 0;
+        long[] savedGaps  = null;
+
+        this.filePrefix = pathPrefix;
+        this.flags      = flags;
+        this.keyCodec   = keyCodec;
+        this.valueCodec = valueCodec;
+
+        valuesDBPath    = new File (pathPrefix + DATA_FILE_SUFFIX);
+        indexFilePath   = new File (pathPrefix + INDEX_FILE_SUFFIX);
+        keyFilePath     = new File (pathPrefix + KEY_FILE_SUFFIX);
+        logFilePath     = new File (pathPrefix + LOG_FILE_SUFFIX);
+        lockFilePath    = new File (pathPrefix + LOCK_FILE_SUFFIX);
+
+        if ((flags & TRANSIENT) != 0)
+            flags &= (~NO_CREATE);
+
+        // Lock the map before recovering or reading it. (Don't leave a
+        // lock file behind for a map that doesn't exist and won't be
+        // created.)
+
+        if ( ((flags & TRANSIENT) == 0) &&
+             ( ((flags & NO_CREATE) == 0) ||
+               valuesDBPath.exists() ||
+               indexFilePath.exists() ||
+               new File (filePrefix + COMPACTION_MARKER_SUFFIX).exists() ) )
+        {
+            fileLock = FileHashMapLock.acquire (lockFilePath,
+                                                (flags & READ_ONLY) != 0);
+        }
+
+        boolean opened = false;
+        try
+        {
+            recoverCompaction();
+
+            if (valuesDBPath.exists())
+                filesFound++;
+            if (indexFilePath.exists())
+                filesFound++;
+
+            if ( (filesFound > 0) && ((flags & TRANSIENT) != 0) )
+            {
+                if ((flags & FORCE_OVERWRITE) == 0)
+                {
+                    throw new ObjectExistsException
+                        (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
+                         "One or both of the hash table files (\"{0}\" " +
+                         "and/or \"{1}\") already exists, but the " +
+                         "FileHashMap.FORCE_OVERWRITE constructor flag " +
+                         "was not set.",
+                         new Object[]
+                         {
+                             valuesDBPath.getName(),
+                             indexFilePath.getName()
+                         });
+                }
+
+                // FORCE_OVERWRITE is set. Wipe out the files, and reset the
+                // existence count.
+
+                valuesDBPath.delete();
+                indexFilePath.delete();
+                new File (indexFilePath.getPath() + GAPS_FILE_SUFFIX).delete();
+                keyFilePath.delete();
+                logFilePath.delete();
+                FileHashMapLog.rotatedPath (logFilePath).delete();
+                filesFound = 0;
+            }
+
+            switch (filesFound)
+            {
+                case 0:
+                    if ((flags & NO_CREATE) != 0)
+                    {
+                        // Can't localize this one. It's not one of our exceptions.
+
+                        throw new FileNotFoundException
+                                      ("On-disk hash table \"" +
+                                       pathPrefix +
+                                       "\" does not exist, and the " +
+                                       "FileHashMap.NO_CREATE flag was set.");
+                    }
+
+                    // A change log without an index and data file is stale.
+
+                    logFilePath.delete();
+                    FileHashMapLog.rotatedPath (logFilePath).delete();
+                    createNewMap (this.valuesDBPath);
+                    break;
+
+                case 1:
+                    throw new ObjectExistsException
+                                  (Package.BUNDLE_NAME,
+                                   "FileHashMap.halfMissing",
+                                   "One of the hash table files exists (\"{0}\" " +
+                                   "or \"{1}\") exists, but the other one does " +
+                                   "not.",
+                                   new Object[]
+                                   {
+                                       valuesDBPath.getName(),
+                                       indexFilePath.getName()
+                                   });
+
+                case 2:
+                    valuesDB = new ValuesFile (valuesDBPath,
+                                               (flags & MEMORY_MAPPED) != 0,
+                                               (flags & READ_ONLY) != 0,
+                                               counters);
+                    savedGaps = loadIndex();
+                    break;
+
+                default:
+                    assert (false);
+            }
+
+            if ((flags & RECLAIM_FILE_GAPS) != 0)
+            {
+                if (savedGaps != null)
+                    freeSpace = FreeSpaceManager.fromArray (savedGaps);
+                else
+                    findFileGaps();
+            }
+
+            if ((flags & TRANSIENT) == 0)
+                openJournal (filesFound == 0);
+
+            if (mappedIndex == null)
+            {
+                liveBytes.set (sumObjectSizes (indexMap));
+
+                for (FileHashMapEntry<K> entry : indexMap.values())
+                {
+                    if (entry.getExpirationTime() != 0)
+                    {
+                        expiringEntries = true;
+                        break;
+                    }
+                }
+            }
+
+            opened = true;
+        }
+
+        finally
+        {
+            if ((! opened) && (fileLock != null))
+            {
+                fileLock.release();
+                fileLock = null;
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Finalizer
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Finalizer
+     *
+     * @throws throwable on error
+     */
+    protected void finalize()
+        throws Throwable
+    {
+        try
+        {
+            close();
+        }
+
+        catch (IOException ex)
+        {
+            log.error("Error during finalize", ex);
+        }
+
+        super.finalize();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Start a batch of writes, using a buffer of
+     * {@link #DEFAULT_BATCH_BUFFER_SIZE} bytes. See {@link BatchWriter}.
+     *
+     * @return the <tt>BatchWriter</tt>
+     *
+     * @see #beginBatch(int)
+     * @see #putAll
+     */
+    public BatchWriter beginBatch()
+    {
+        return beginBatch (DEFAULT_BATCH_BUFFER_SIZE);
+    }
+
+    /**
+     * Start a batch of writes. See {@link BatchWriter}.
+     *
+     * @param bufferSize  the number of bytes of encoded values to buffer
+     *                    before writing them
+     *
+     * @return the <tt>BatchWriter</tt>
+     *
+     * @see #beginBatch()
+     * @see #putAll
+     */
+    public BatchWriter beginBatch (int bufferSize)
+    {
+        checkWritable();
+
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException ("Bad batch buffer size: " +
+                                                bufferSize);
+
+        return new BatchWriter (bufferSize);
+    }
+
+    /**
+     * <p>Removes all mappings from this map. The data file is cleared by
+     * closing it, deleting it, and reopening it. If an I/O error occurs at
+     * any point, this object will be closed and marked invalid.</p>
+     */
+    public void clear()
+    {
+        checkWritable();
+
+        checkpointLock.lock();
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try
+        {
+            indexMap.clear();
+            liveBytes.set (0);
+            ValueCache<V> cache = valueCache;
+            if (cache != null)
+                cache.clear();
+            compactionAborted = true;
+            if (freeSpace != null)
+                freeSpace.clear();
+
+            // Implement the clear operation by truncating the data file.
+
+            valuesDB.truncate (0);
+            modified = true;
+
+            // The log can't express "clear", so save the (empty) index at
+            // once.
+
+            if (journal != null)
+            {
+                saveCurrentIndex();
+                journal.reset();
+                modified = false;
+            }
+        }
+
+        catch (IOException ex)
+        {
+            log.error ("Failed to truncate FileHashMap file \"" +
+                       valuesDBPath.getPath() + "\"",
+                       ex);
+            valid = false;
+        }
+
+        finally
+        {
+            lock.unlock();
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * <p>Close this map. If the map is not marked as transient, this method
+     * saves the index to disk. Otherwise, it removes both the index file
+     * and data file.</p>
+     *
+     * @throws NotSerializableException Can't save index (bug)
+     * @throws IOException              Error writing index
+     *
+     * @see #save
+     */
+    public void close()
+        throws NotSerializableException,
+               IOException
+    {
+        // A compaction needs the locks taken below to finish, so stop the
+        // compactor before taking them. Let asynchronous operations that
+        // are already queued finish first, too.
+
+        stopCompactor();
+        stopExpirySweeper();
+        shutDownAsyncExecutor();
+
+        try
+        {
+            unregisterMBean();
+        }
+
+        catch (JMException ex)
+        {
+            log.error ("Failed to unregister FileHashMap MXBean", ex);
+        }
+
+        checkpointLock.lock();
+        Lock lock = structureLock.writeLock();
+        lock.lock();
+        try
+        {
+            if (valid)
+            {
+                if ((flags & TRANSIENT) != 0)
+                {
+                    // Be sure to remove the data files.
+
+                    if (valuesDB != null)
+                    {
+                        valuesDB.close();
+                        valuesDB = null;
+                    }
+
+                    if (mappedIndex != null)
+                        mappedIndex.close();
+
+                    deleteMapFiles();
+                }
+
+                else if ((flags & READ_ONLY) != 0)
+                {
+                    valuesDB.close();
+
+                    if (mappedIndex != null)
+                        mappedIndex.close();
+                }
+
+                else
+                {
+                    save();
+
+                    if (journal != null)
+                    {
+                        journal.close (true);
+                        journal = null;
+                    }
+
+                    if (mappedIndex != null)
+                    {
+                        if (freeSpace != null)
+                            saveMappedIndexGaps();
+
+                        mappedIndex.close();
+                    }
+                }
+
+                valid = false;
+            }
+        }
+
+        finally
+        {
+            try
+            {
+                if ((! valid) && (fileLock != null))
+                {
+                    fileLock.release();
+                    fileLock = null;
+                }
+            }
+
+            finally
+            {
+                lock.unlock();
+                checkpointLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * <p>Reclaim the dead space in the data file, by copying the live
+     * values (in file order) to a new data file, and replacing the old file
+     * with it. Readers may use the map throughout. Writers may, too, except
+     * during the final phase, in which values changed during the copy are
+     * copied again, and the new data file and index are installed. For a
+     * persistent map, the index is saved as part of that phase, and the
+     * files are replaced in such a way that a crash leaves either the old
+     * map or the new one. See the class documentation for details.</p>
+     *
+     * <p>A compaction in progress is abandoned (and 0 returned) if the map
+     * is cleared or closed.</p>
+     *
+     * @return the number of bytes by which the data file shrank
+     *
+     * @throws IOException error copying the values or saving the index
+     *
+     * @see #getFragmentation
+     * @see #startCompactor
+     */
+    public long compact()
+        throws IOException
+    {
+        checkWritable();
+
+        compactionLock.lock();
+        try
+        {
+            return doCompact();
+        }
+
+        finally
+        {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * <p>Returns <tt>true</tt> if this map contains a mapping for the
+     * specified key. Since the keys are cached in an in-memory index, this
+     * method does not have to access the data file, and is fairly
+     * cheap.</p>
+     *
+     * @param key key whose presence in this map is to be tested
+     *
+     * @return <tt>true</tt> if this map contains a mapping for the specified
+     *         key, <tt>false</tt> otherwise.
+     */
+    public boolean containsKey (Object key)
+    {
+        checkValidity();
+
+        if (expiringEntries)
+        {
+            FileHashMapEntry<K> entry = indexMap.get (key);
+            return (entry != null) && (! isExpired (entry));
+        }
+
+        return indexMap.containsKey (key);
+    }
+
+    /**
+     * <p>Returns <tt>true</tt> if this map maps one or more keys that are
+     * mapped to the specified value. Because it must iterate through some
+     * portion of the on-disk value set, this method can be slow.</p>
+     *
+     * @param value value whose presence in this map is to be tested.
+     *
+     * @return <tt>true</tt> if this map maps one or more keys to the
+     *         specified value, <tt>false</tt> otherwise.
+     */
+    public boolean containsValue (Object value)
+    {
+        checkValidity();
+        return new ValueSet().contains (value);
+    }
+
+    /**
+     * Deletes the files backing this <tt>FileHashMap</tt>. This method
+     * implicitly calls {@link #close}.
+     *
+     * @throws UnsupportedOperationException the map is READ_ONLY
+     */
+    public void delete()
+    {
+        if ((flags & READ_ONLY) != 0)
+            throw readOnly();
+
+        try
+        {
+            close();
+        }
+
+        catch (NotSerializableException ex)
+        {
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        deleteMapFiles();
+    }
+
+    /**
+     * <p>Returns a "thin" set view of the mappings contained in this map.
+     * Each element in the returned set is a <tt>Map.Entry</tt>; each
+     * <tt>Map.Entry</tt> contains a key and a proxy for the associated value.
+     * The map's values themselves are not loaded into memory until requested
+     * via a call to <tt>Map.Entry.getValue()</tt>.</p>
+     *
+     * <p>The set is backed by the map, so changes to the map are reflected
+     * in the set. If the map is modified while an iteration over the set
+     * is in progress, the results of the iteration are undefined. Neither
+     * the set nor its associated iterator supports any of the
+     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
+     * etc). If you attempt to call any of those methods, the called method
+     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     *
+     * <p>NOTE: Calling this method on an invalid or closed
+     * <tt>FileHashMap</tt> will result in an exception.</p>
+     *
+     * @return a set view of the mappings contained in this map.
+     *
+     * @see #keySet
+     * @see #values
+     * @see UnsupportedOperationException
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        checkValidity();
+
+        if (entrySetResult == null)
+            entrySetResult = new EntrySet();
+
+        return (Set<Map.Entry<K,V>>) entrySetResult;
+    }
+
+    /**
+     * <p>Compares the specified object with this map for equality.  Returns
+     * <tt>true</tt> if the given object is also a map and the two Maps
+     * represent the same mappings.  More formally, two maps <tt>t1</tt> and
+     * <tt>t2</tt> represent the same mappings if
+     * <tt>t1.entrySet().equals(t2.entrySet())</tt>.  This ensures that the
+     * <tt>equals</tt> method works properly across different implementations
+     * of the <tt>Map</tt> interface.</p>
+     *
+     * <p><b>Warning:</b>: Because this method must compare the actual
+     * values stored in the map, and the values in a file, this method can
+     * be quite slow.</p>
+     *
+     * @param o object to be compared for equality with this map.
+     *
+     * @return <tt>true</tt> if the specified object is equal to this map.
+     */
+    public boolean equals (Object o)
+    {
+        checkValidity();
+
+        return super.equals (o);
+    }
+
+    /**
+     * <p>Returns the value associated with the the specified key.  Returns
+     * <tt>null</tt> if the map contains no mapping for this key.</p>
+     *
+     * @param key key whose associated value is to be returned.
+     *
+     * @return the value to which this map maps the specified key, or
+     *         <tt>null</tt> if the map contains no mapping for this key.
+     *
+     * @throws ClassCastException   if the key is of an inappropriate type for
+     *                              this map.
+     * @throws NullPointerException key is <tt>null</tt>
+     *
+     * @see #containsKey(Object)
+     */
+    public V get (Object key)
+    {
+        checkValidity();
+
+        V                   result = null;
+        ValueCache<V>       cache = valueCache;
+        long                stamp = 0;
+
+        if (cache != null)
+        {
+            stamp  = cache.getStamp (key);
+            result = cache.get (key);
+            if ((result != null) && (! isExpired (indexMap.get (key))))
+                return result;
+
+            result = null;
+        }
+
+        int                 generation = compactions;
+        FileHashMapEntry<K> entry = indexMap.get (key);
+
+        if (isExpired (entry))
+            return null;
+
+        while (entry != null)
+        {
+            result = readValueNoError (entry);
+            if ((flags & CONCURRENT) == 0)
+                break;
+
+            // A concurrent writer may have replaced the entry, and its old
+            // space may have been reused, while we were reading. If the
+            // index still points where we read, the value is good. (An
+            // on-disk index hands out a new entry object on every lookup,
+            // so it has to be compared by location.) A compaction moves
+            // everything, so if one finished in the meantime, start over.
+
+            int                 now = compactions;
+            FileHashMapEntry<K> current = indexMap.get (key);
+
+            if ((now == generation) && sameLocation (entry, current))
+                break;
+
+            result     = null;
+            entry      = current;
+            generation = now;
+        }
+
+        if ((result == null) && (entry != null) && ((flags & CHECKSUMS) != 0))
+        {
+            // Find out whether it was a checksum failure.
+
+            if (! isRecordIntact (entry))
+            {
+                throw new IllegalStateException ("Value for key \"" + key +
+                                                 "\" in \"" +
+                                                 valuesDBPath.getPath() +
+                                                 "\" is corrupt.");
+            }
+        }
+
+        if ((cache != null) && (result != null))
+            cache.put (key, result, entry.getObjectSize(), stamp);
+
+        return result;
+    }
+
+    /**
+     * <p>Look up the values for several keys asynchronously. The values
+     * are read in file order, and values that lie close together in the
+     * data file are read with a single I/O call. Only a {@link #CONCURRENT}
+     * map supports asynchronous operations.</p>
+     *
+     * @param keys  the keys
+     *
+     * @return a <tt>Future</tt> for a map of the keys that were found to
+     *         their values
+     *
+     * @throws IllegalStateException the map isn't CONCURRENT
+     *
+     * @see #getAsync
+     * @see #setAsyncExecutor
+     */
+    public Future<Map<K,V>> getAllAsync (Collection<? extends K> keys)
+    {
+        checkAsync();
+
+        final List<ReadRequest> requests = new ArrayList<ReadRequest>();
+        for (K key : keys)
+        {
+            if (key == null)
+                throw new NullPointerException ("null key");
+
+            requests.add (new ReadRequest (key, null));
+        }
+
+        return getAsyncExecutor().submit (new Callable<Map<K,V>>()
+        {
+            @SuppressWarnings("unchecked")
+            public Map<K,V> call()
+            {
+                readCoalesced (requests);
+
+                Map<K,V> result = new HashMap<K,V>();
+                for (ReadRequest request : requests)
+                {
+                    if (request.error != null)
+                        throw request.error;
+
+                    if (request.value != null)
+                        result.put ((K) request.key, request.value);
+                }
+
+                return result;
+            }
+        });
+    }
+
+    /**
+     * <p>Look up the value for a key asynchronously. The read is queued for
+     * the I/O threads, which combine it with other queued reads of nearby
+     * values; a value in the {@link #setValueCache cache} is returned at
+     * once. Only a {@link #CONCURRENT} map supports asynchronous
+     * operations.</p>
+     *
+     * @param key  the key
+     *
+     * @return a <tt>Future</tt> for the value, or for <tt>null</tt> if the
+     *         map contains no mapping for the key
+     *
+     * @throws IllegalStateException the map isn't CONCURRENT
+     *
+     * @see #get
+     * @see #getAllAsync
+     * @see #setAsyncExecutor
+     */
+    public Future<V> getAsync (K key)
+    {
+        checkAsync();
+
+        if (key == null)
+            throw new NullPointerException ("null key");
+
+        AsyncResult<V> result = new AsyncResult<V>();
+        ValueCache<V>  cache  = valueCache;
+        V              value  = (cache == null) ? null : cache.get (key);
+
+        if ((value != null) && (! isExpired (indexMap.get (key))))
+            result.complete (value);
+
+        else
+        {
+            synchronized (pendingReads)
+            {
+                pendingReads.add (new ReadRequest (key, result));
+            }
+
+            getAsyncExecutor().execute (new Runnable()
+            {
+                public void run()
+                {
+                    drainPendingReads();
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the time to live given to mappings stored without one.
+     *
+     * @return the time to live, in milliseconds, or 0 if such mappings
+     *         never expire
+     *
+     * @see #setDefaultTimeToLive
+     */
+    public long getDefaultTimeToLive()
+    {
+        return defaultTimeToLive;
+    }
+
+    /**
+     * <p>Get the fraction of the data file that is not occupied by live
+     * values: space left by removed or replaced values that hasn't been
+     * reused, either by {@link #RECLAIM_FILE_GAPS} or by {@link #compact}.
+     * Useful for deciding when to compact the map.</p>
+     *
+     * @return the fragmentation ratio, from 0.0 (no dead space) to 1.0
+     *
+     * @see #compact
+     */
+    public double getFragmentation()
+    {
+        checkValidity();
+
+        long total = valuesDB.length();
+        long live  = (mappedIndex != null) ? mappedIndex.getLiveBytes()
+                                           : liveBytes.get();
+
+        return (total == 0) ? 0.0
+                            : Math.max (0.0, (double) (total - live) / total);
+    }
+
+    /**
+     * Get a snapshot of the map's I/O and data file statistics. The
+     * counters accumulate from the time the map was opened.
+     *
+     * @return the statistics
+     *
+     * @see #registerMBean
+     */
+    public FileHashMapStats getStats()
+    {
+        checkValidity();
+
+        FileHashMapStats stats = new FileHashMapStats();
+        FreeSpaceManager free  = freeSpace;
+
+        stats.size             = size();
+        stats.fileSize         = valuesDB.length();
+        stats.liveBytes        = (mappedIndex != null)
+                                     ? mappedIndex.getLiveBytes()
+                                     : liveBytes.get();
+        stats.gapCount         = (free == null) ? 0 : free.getGapCount();
+        stats.gapBytes         = (free == null) ? 0 : free.getFreeBytes();
+        stats.reads            = counters.reads.get();
+        stats.bytesRead        = counters.bytesRead.get();
+        stats.writes           = counters.writes.get();
+        stats.bytesWritten     = counters.bytesWritten.get();
+        stats.encodes          = counters.encodes.get();
+        stats.encodeNanos      = counters.encodeNanos.get();
+        stats.decodes          = counters.decodes.get();
+        stats.decodeNanos      = counters.decodeNanos.get();
+        stats.indexSaves       = counters.indexSaves.get();
+        stats.indexSaveNanos   = counters.indexSaveNanos.get();
+        stats.valueCacheHits   = getValueCacheHits();
+        stats.valueCacheMisses = getValueCacheMisses();
+        stats.compactions      = compactions;
+
+        return stats;
+    }
+
+    /**
+     * Get the number of <tt>get()</tt> calls that were satisfied by the
+     * value cache, since the cache was enabled.
+     *
+     * @return the hit count, or 0 if there is no value cache
+     *
+     * @see #setValueCache
+     * @see #getValueCacheMisses
+     */
+    public long getValueCacheHits()
+    {
+        ValueCache<V> cache = valueCache;
+        return (cache == null) ? 0 : cache.getHits();
+    }
+
+    /**
+     * Get the number of <tt>get()</tt> calls that had to read the data file
+     * because the value wasn't in the value cache, since the cache was
+     * enabled.
+     *
+     * @return the miss count, or 0 if there is no value cache
+     *
+     * @see #setValueCache
+     * @see #getValueCacheHits
+     */
+    public long getValueCacheMisses()
+    {
+        ValueCache<V> cache = valueCache;
+        return (cache == null) ? 0 : cache.getMisses();
+    }
+
+    /**
+     * <p>Returns the hash code value for this map. The hash code of a map
+     * is defined to be the sum of the hash codes of each entry in the
+     * map's <tt>entrySet()</tt> view. This ensures that
+     * <tt>t1.equals(t2)</tt> implies that
+     * <tt>t1.hashCode()==t2.hashCode()</tt> for any two maps <tt>t1</tt>
+     * and <tt>t2</tt>, as required by the general contract of
+     * Object.hashCode.</p>
+     *
+     * <p><b>Warning:</b>: The recommended hash code for each entry in the
+     * <tt>entrySet()</tt> view is a combination of hash codes for the
+     * entry's key and the entry's value. (See <tt>java.util.Map.Entry</tt>
+     * for details.) Because the values in a <tt>FileHashMap</tt> object
+     * are stored in a file, this method can be quite slow.</p>
+     *
+     * @return the hash code value for this map.
+     *
+     * @see Object#hashCode()
+     * @see Object#equals(Object)
+     * @see #equals(Object)
+     */
+    public int hashCode()
+    {
+        checkValidity();
+
+        return super.hashCode();
+    }
+
+    /**
+     * Determine whether the <tt>FileHashMap</tt> is valid or not. Once
+     * a <tt>FileHashMap</tt> has been closed, it is invalid and can no
+     * longer be used.
+     *
+     * @return <tt>true</tt> if this object is valid, <tt>false</tt> if not
+     */
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * <p>Returns a <tt>Set</tt> containing all the keys in this map. Since
+     * the keys are cached in memory, this method is relatively efficient.
+     * The keys are returned in an order that optimizes sequential access
+     * to the data file; see the <b>Optimizations</b> section in the main
+     * class documentation for details.</p>
+     *
+     * <p>The set is backed by the map, so changes to the map are reflected
+     * in the set. If the map is modified while an iteration over the set
+     * is in progress, the results of the iteration are undefined. Neither
+     * the set nor its associated iterator supports any of the
+     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
+     * etc). If you attempt to call any of those methods, the called method
+     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     *
+     * @return a set view of the keys contained in this map.
+     */
+    public Set<K> keySet()
+    {
+        checkValidity();
+        return new KeySet();
+    }
+
+    /**
+     * <p>Associates the specified value with the specified key in this map.
+     * If the map previously contained a mapping for this key, the old
+     * value is replaced. This map class does not permit a null value to be
+     * stored.</p>
+     *
+     * @param key   key with which the specified value is to be associated.
+     * @param value value to be associated with the specified key.
+     *
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     *
+     * @throws ClassCastException        if the class of the specified key or
+     *                                   value prevents it from being stored
+     *                                   in this map.
+     * @throws IllegalArgumentException  Value not serializable, or I/O error
+     *                                   while attempting to encode or store
+     *                                   the value.
+     * @throws NullPointerException      the specified key or value is
+     *                                   <tt>null</tt>.
+     */
+    public V put (K key, V value)
+        throws ClassCastException,
+               IllegalArgumentException,
+               NullPointerException
+    {
+        return put (key, value, defaultTimeToLive);
+    }
+
+    /**
+     * <p>Associates the specified value with the specified key in this
+     * map, for a limited time. Once the time is up, the map behaves as if
+     * the mapping had been removed, although its space isn't reclaimed
+     * until it's reclaimed. (See the class documentation for
+     * details.)</p>
+     *
+     * @param key                key with which the specified value is to
+     *                           be associated
+     * @param value              value to be associated with the specified
+     *                           key
+     * @param timeToLiveMillis   how long the mapping lasts, in
+     *                           milliseconds, or 0 for forever
+     *
+     * @return previous value associated with specified key, or
+     *         <tt>null</tt> if there was no mapping for key
+     *
+     * @throws IllegalArgumentException      the time to live is negative,
+     *                                       or the value couldn't be
+     *                                       stored
+     * @throws NullPointerException          the key or value is
+     *                                       <tt>null</tt>
+     * @throws UnsupportedOperationException the time to live isn't 0, and
+     *                                       the map has a
+     *                                       {@link #MAPPED_INDEX}
+     *
+     * @see #put(Object,Object)
+     * @see #setDefaultTimeToLive
+     */
+    public V put (K key, V value, long timeToLiveMillis)
+        throws IllegalArgumentException,
+               NullPointerException,
+               UnsupportedOperationException
+    {
+        checkWritable();
+        checkTimeToLive (timeToLiveMillis);
+
+        V result = null;
+
+        if (key == null)
+            throw new NullPointerException ("null key parameter");     // NOPMD
+
+        if (value == null)
+            throw new NullPointerException ("null value parameter");   // NOPMD
+
+        // NOTE: We don't check the key for serializability. It's perfectly
+        // reasonable to use unserializable keys if the hash map is transient.
+        // Unserializable keys will be caught on save, for persistent maps.
+
+        Lock lock = structureLock.readLock();
+        lock.lock();
+        try
+        {
+            FileHashMapEntry<K> old;
+            byte[]              keyBytes = null;
+
+            // Encode the key for the change log up front, so a bad key
+            // fails before any space is allocated.
+
+            if (journal != null)
+                keyBytes = keyCodec.encode (key);
+
+            // Write the new value first, then swing the index over to it.
+            // The old value's space is released only after the index no
+            // longer refers to it, so a concurrent reader can never see the
+            // space being reused under an entry it just fetched.
+
+            FileHashMapEntry<K> entry = writeValue (key, value);
+
+            if (timeToLiveMillis != 0)
+            {
+                entry.setExpirationTime (expirationTime (timeToLiveMillis));
+                expiringEntries = true;
+            }
+
+            old = indexPut (key, keyBytes, entry);
+
+            modified = true;
+
+            if (old != null)
+            {
+                if (! isExpired (old))
+                    result = readValueNoError (old);
+                releaseSpace (old);
+            }
+        }
+
+        catch (NotSerializableException ex)
+        {
+            throw new IllegalArgumentException ("Value is not serializable.");
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Error saving value: " +
+                                                ex.getMessage());
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        checkpointIfNeeded();
+        return result;
+    }
+
+    /**
+     * Copies all of the mappings from the specified map to this map. The
+     * values are written in batches, through a {@link BatchWriter}, rather
+     * than one at a time.
+     *
+     * @param map  the mappings to store
+     *
+     * @throws IllegalArgumentException  a value couldn't be encoded, or an
+     *                                   I/O error occurred
+     * @throws NullPointerException      a key or value is <tt>null</tt>
+     */
+    public void putAll (Map<? extends K, ? extends V> map)
+        throws IllegalArgumentException,
+               NullPointerException
+    {
+        BatchWriter batch = beginBatch();
+
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+            batch.put (entry.getKey(), entry.getValue());
+
+        batch.commit();
+    }
+
+    /**
+     * Store a value asynchronously, on one of the I/O threads. Only a
+     * {@link #CONCURRENT} map supports asynchronous operations.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return a <tt>Future</tt> for the key's previous value, or for
+     *         <tt>null</tt> if it had none. If the value couldn't be
+     *         stored, the <tt>Future</tt> throws an
+     *         <tt>ExecutionException</tt> holding the reason.
+     *
+     * @throws IllegalStateException the map isn't CONCURRENT
+     *
+     * @see #put
+     * @see #setAsyncExecutor
+     */
+    public Future<V> putAsync (final K key, final V value)
+    {
+        checkAsync();
+        checkWritable();
+
+        if ((key == null) || (value == null))
+            throw new NullPointerException ("null key or value");
+
+        return getAsyncExecutor().submit (new Callable<V>()
+        {
+            public V call()
+            {
+                return put (key, value);
+            }
+        });
+    }
+
+    /**
+     * <p>Register an MXBean for this map with the platform MBean server,
+     * so that its {@link #getStats statistics} can be monitored through
+     * JMX. The bean implements {@link FileHashMapMXBean}, and is named
+     * <tt>org.clapper.util.misc:type=FileHashMap,name=</tt><i>path</i>,
+     * where <i>path</i> is the (quoted) path of the data file. Calling
+     * this method again returns the existing name. The bean is
+     * unregistered when the map is closed, or by
+     * {@link #unregisterMBean}.</p>
+     *
+     * @return the name of the bean
+     *
+     * @throws JMException the bean can't be registered; for instance,
+     *                     another open map with the same files has already
+     *                     registered one
+     *
+     * @see #unregisterMBean
+     */
+    public synchronized ObjectName registerMBean()
+        throws JMException
+    {
+        checkValidity();
+
+        if (mbeanName == null)
+        {
+            ObjectName name =
+                new ObjectName ("org.clapper.util.misc:type=FileHashMap,name=" +
+                                ObjectName.quote (valuesDBPath.getPath()));
+
+            ManagementFactory.getPlatformMBeanServer()
+                             .registerMBean (new FileHashMapMonitor (this,
+                                                                     filePrefix),
+                                             name);
+            mbeanName = name;
+        }
+
+        return mbeanName;
+    }
+
+    /**
+     * <p>Removes the mapping for this key from this map, if present.
+     * <b>Note:</b> The space occupied by the serialized value in the
+     * data file is <i>not</i> coalesced at this point.</p>
+     *
+     * @param key key whose mapping is to be removed from the map.
+     *
+     * @return previous value associated with specified key, or <tt>null</tt>
+     *         if there was no mapping for key.
+     */
+    public V remove (Object key)
+    {
+        checkWritable();
+
+        V result = null;
+
+        Lock lock = structureLock.readLock();
+        lock.lock();
+        try
+        {
+            FileHashMapEntry<K> entry = indexRemove (key);
+
+            if (entry != null)
+            {
+                modified = true;
+                if (! isExpired (entry))
+                    result = readValueNoError (entry);
+                releaseSpace (entry);
+            }
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Error logging removal: " +
+                                             ex.getMessage());
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+
+        checkpointIfNeeded();
+        return result;
+    }
+
+    /**
+     * <p>Remove every entry whose time to live has run out, releasing its
+     * space in the data file. Entries are removed in batches, so writers
+     * aren't held up for long, and an entry that's replaced while the
+     * sweep is running is left alone. {@link #startExpirySweeper} calls
+     * this method periodically.</p>
+     *
+     * @return the number of entries removed
+     *
+     * @see #put(Object,Object,long)
+     * @see #startExpirySweeper
+     */
+    public int removeExpired()
+    {
+        checkWritable();
+
+        if (! expiringEntries)
+            return 0;
+
+        long                      now     = System.currentTimeMillis();
+        List<FileHashMapEntry<K>> expired = new ArrayList<FileHashMapEntry<K>>();
+        int                       total   = 0;
+
+        for (FileHashMapEntry<K> entry : indexMap.values())
+        {
+            if (entry.isExpired (now))
+                expired.add (entry);
+        }
+
+        for (int start = 0; start < expired.size(); start += EXPIRY_BATCH_SIZE)
+        {
+            int  end  = Math.min (start + EXPIRY_BATCH_SIZE, expired.size());
+            Lock lock = structureLock.readLock();
+
+            lock.lock();
+            try
+            {
+                checkValidity();
+
+                for (FileHashMapEntry<K> entry : expired.subList (start, end))
+                {
+                    if (indexRemoveIfCurrent (entry))
+                    {
+                        modified = true;
+                        releaseSpace (entry);
+                        total++;
+                    }
+                }
+            }
+
+            catch (IOException ex)
+            {
+                throw new IllegalStateException ("Error logging removal: " +
+                                                 ex.getMessage());
+            }
+
+            finally
+            {
+                lock.unlock();
+            }
+
+            checkpointIfNeeded();
+        }
+
+        return total;
+    }
+
+
+    /**
+     * <p>Save any in-memory index changes to disk without closing the map.
+     * You can call this method even if the map is marked as temporary;
+     * on a temporary map, <tt>save()</tt> simply returns without doing
+     * anything.</p>
+     *
+     * <p>Writers are blocked only while the in-memory index is copied, not
+     * while the copy is written to disk. For a {@link #DURABLE} map, saving
+     * also discards the change log.</p>
+     *
+     * @throws IOException              Error saving changes to disk.
+     * @throws NotSerializableException Can't save index because it contains
+     *                                  one or more objects that cannot be
+     *                                  serialized.
+     *
+     * @see #close
+     */
+    public void save()
+        throws IOException,
+               NotSerializableException
+    {
+        checkValidity();
+
+        if ( ((flags & TRANSIENT) == 0) && modified )
+            checkpoint();
+    }
+
+    /**
+     * <p>Set the executor that performs the asynchronous operations. By
+     * default, each map creates its own executor the first time it's
+     * needed, with {@link #DEFAULT_ASYNC_THREADS} daemon threads and a
+     * bounded queue; when the queue is full, callers perform their own
+     * operations. The map's own executor is shut down by {@link #close},
+     * or when it's replaced. An executor supplied here is never shut down
+     * by the map.</p>
+     *
+     * @param executor  the executor, or <tt>null</tt> to go back to the
+     *                  map's own
+     *
+     * @see #getAsync
+     * @see #getAllAsync
+     * @see #putAsync
+     */
+    public void setAsyncExecutor (ExecutorService executor)
+    {
+        shutDownAsyncExecutor();
+
+        synchronized (this)
+        {
+            asyncExecutor    = executor;
+            ownAsyncExecutor = false;
+        }
+    }
+
+    /**
+     * Get the number of change log records after which a {@link #DURABLE}
+     * map automatically saves its index and discards the log.
+     *
+     * @return the checkpoint interval, in log records
+     *
+     * @see #setCheckpointInterval
+     */
+    public int getCheckpointInterval()
+    {
+        return checkpointInterval;
+    }
+
+    /**
+     * Set the number of change log records after which a {@link #DURABLE}
+     * map automatically saves its index and discards the log. A smaller
+     * interval makes reopening after a crash faster; a larger one saves
+     * the index less often. The default is
+     * {@link #DEFAULT_CHECKPOINT_INTERVAL}. Ignored if the map isn't
+     * durable.
+     *
+     * @param records  the new interval, in log records
+     *
+     * @see #getCheckpointInterval
+     */
+    public void setCheckpointInterval (int records)
+    {
+        if (records <= 0)
+            throw new IllegalArgumentException ("Bad checkpoint interval: " +
+                                                records);
+
+        checkpointInterval = records;
+    }
+
+    /**
+     * <p>Force all values and change log records written so far to the
+     * storage device, so that they survive a crash of the operating system
+     * (or a power failure), not just of the Java VM. Normally used with
+     * {@link #DURABLE} maps, after a batch of updates. On other maps, only
+     * the values are forced; the index is still written only by
+     * {@link #save} or {@link #close}.</p>
+     *
+     * @throws IOException on error
+     */
+    public void sync()
+        throws IOException
+    {
+        checkValidity();
+
+        valuesDB.force();
+
+        FileHashMapLog j = journal;
+        if (j != null)
+            j.force();
+    }
+
+    /**
+     * <p>Set the time to live given to mappings stored without one: by
+     * {@link #put(Object,Object)}, {@link #putAll}, {@link #putAsync} and
+     * {@link BatchWriter}. Mappings already in the map aren't affected.
+     * The default is 0, meaning that mappings never expire.</p>
+     *
+     * @param timeToLiveMillis  the time to live, in milliseconds, or 0
+     *
+     * @throws IllegalArgumentException      the time to live is negative
+     * @throws UnsupportedOperationException the time to live isn't 0, and
+     *                                       the map has a
+     *                                       {@link #MAPPED_INDEX}
+     *
+     * @see #getDefaultTimeToLive
+     * @see #put(Object,Object,long)
+     */
+    public void setDefaultTimeToLive (long timeToLiveMillis)
+    {
+        checkTimeToLive (timeToLiveMillis);
+        defaultTimeToLive = timeToLiveMillis;
+    }
+
+    /**
+     * Enable, resize or disable the cache of decoded values. See the class
+     * documentation for details. Any values already cached are discarded,
+     * and the hit and miss counts start over.
+     *
+     * @param maxValues  the maximum number of values to cache, or 0 for no
+     *                   limit on the number
+     * @param maxBytes   the maximum total size of the cached values, as
+     *                   estimated by the size of their encoded form, or 0
+     *                   for no limit on the size. If both limits are 0, the
+     *                   cache is disabled.
+     *
+     * @see #getValueCacheHits
+     * @see #getValueCacheMisses
+     */
+    public void setValueCache (int maxValues, long maxBytes)
+    {
+        if ((maxValues < 0) || (maxBytes < 0))
+        {
+            throw new IllegalArgumentException ("Bad value cache limits: " +
+                                                maxValues + ", " + maxBytes);
+        }
+
+        if ((maxValues == 0) && (maxBytes == 0))
+            valueCache = null;
+        else
+            valueCache = new ValueCache<V> (maxValues, maxBytes);
+    }
+
+    /**
+     * <p>Start a background thread that compacts the map whenever its
+     * fragmentation reaches a threshold. The thread checks the
+     * fragmentation periodically, and runs {@link #compact} if necessary.
+     * It's stopped by {@link #stopCompactor} or {@link #close}. Only a
+     * {@link #CONCURRENT} map can be compacted in the background. If a
+     * background compactor is already running, it's replaced.</p>
+     *
+     * @param threshold       the fragmentation ratio (see
+     *                        {@link #getFragmentation}) that triggers a
+     *                        compaction
+     * @param intervalMillis  how often to check, in milliseconds
+     *
+     * @throws IllegalStateException the map isn't CONCURRENT
+     *
+     * @see #stopCompactor
+     */
+    public void startCompactor (double threshold, long intervalMillis)
+    {
+        checkWritable();
+
+        if ((flags & CONCURRENT) == 0)
+        {
+            throw new IllegalStateException ("Only a CONCURRENT FileHashMap " +
+                                             "can be compacted in the " +
+                                             "background.");
+        }
+
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException ("Bad compaction interval: " +
+                                                intervalMillis);
+
+        stopCompactor();
+
+        synchronized (this)
+        {
+            compactor = new Compactor (threshold, intervalMillis);
+            compactor.start();
+        }
+    }
+
+    /**
+     * Stop the background compactor started by {@link #startCompactor}, if
+     * any, and wait for it to finish. A compaction in progress is
+     * abandoned.
+     *
+     * @see #startCompactor
+     */
+    public void stopCompactor()
+    {
+        Compactor c;
+
+        synchronized (this)
+        {
+            c = compactor;
+            compactor = null;
+        }
+
+        if (c != null)
+        {
+            compactionAborted = true;
+            stopTask (c);
+        }
+    }
+
+    /**
+     * <p>Start a background thread that calls {@link #removeExpired}
+     * periodically, reclaiming the space of expired entries that nobody
+     * removes. It's stopped by {@link #stopExpirySweeper} or
+     * {@link #close}. Only a {@link #CONCURRENT} map can be swept in the
+     * background. If a sweeper is already running, it's replaced.</p>
+     *
+     * @param intervalMillis  how often to sweep, in milliseconds
+     *
+     * @throws IllegalStateException the map isn't CONCURRENT
+     *
+     * @see #stopExpirySweeper
+     * @see #put(Object,Object,long)
+     */
+    public void startExpirySweeper (long intervalMillis)
+    {
+        checkWritable();
+
+        if ((flags & CONCURRENT) == 0)
+        {
+            throw new IllegalStateException ("Only a CONCURRENT FileHashMap " +
+                                             "can be swept in the " +
+                                             "background.");
+        }
+
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException ("Bad sweep interval: " +
+                                                intervalMillis);
+
+        stopExpirySweeper();
+
+        synchronized (this)
+        {
+            expirySweeper = new ExpirySweeper (intervalMillis);
+            expirySweeper.start();
+        }
+    }
+
+    /**
+     * Stop the background sweeper started by {@link #startExpirySweeper},
+     * if any, and wait for it to finish.
+     *
+     * @see #startExpirySweeper
+     */
+    public void stopExpirySweeper()
+    {
+        ExpirySweeper s;
+
+        synchronized (this)
+        {
+            s = expirySweeper;
+            expirySweeper = null;
+        }
+
+        if (s != null)
+            stopTask (s);
+    }
+
+    /**
+     * <p>Returns the number of key-value mappings in this map. If the map
+     * contains more than <tt>Integer.MAX_VALUE</tt> elements, returns
+     * <tt>Integer.MAX_VALUE</tt>. This method queries the in-memory key
+     * index, so it is relatively efficient.</p>
+     *
+     * @return the number of key-value mappings in this map.
+     */
+    public int size()
+    {
+        checkValidity();
+        return currentSize();
+    }
+
+    /**
+     * Unregister the MXBean registered by {@link #registerMBean}. Does
+     * nothing if there isn't one.
+     *
+     * @throws JMException the bean can't be unregistered
+     *
+     * @see #registerMBean
+     */
+    public synchronized void unregisterMBean()
+        throws JMException
+    {
+        if (mbeanName != null)
+        {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  name   = mbeanName;
+
+            mbeanName = null;
+            if (server.isRegistered (name))
+                server.unregisterMBean (name);
+        }
+    }
+
+    /**
+     * <p>Check every value in the data file, and report the keys whose
+     * values are damaged. The values are visited in file order, and the
+     * file is read in large chunks, so the check runs at close to
+     * sequential disk speed. If the map was opened with
+     * {@link #CHECKSUMS}, each value's length and checksum are verified;
+     * otherwise, each value is decoded, which takes longer and detects
+     * less. A value that extends past the end of the file is always
+     * reported.</p>
+     *
+     * <p>The check is meant for a map that isn't being modified. Values
+     * that are replaced while it runs may be reported as damaged.</p>
+     *
+     * @return the keys of the damaged values. The collection is empty if
+     *         all is well.
+     *
+     * @throws IOException error reading the data file
+     */
+    public Collection<K> verify()
+        throws IOException
+    {
+        checkValidity();
+
+        List<K>         damaged = new ArrayList<K>();
+        ReadAheadWindow window  = new ReadAheadWindow (valuesDB,
+                                                       VERIFY_BUFFER_SIZE);
+
+        for (FileHashMapEntry<K> entry : getSortedEntries())
+        {
+            int  size   = entry.getObjectSize();
+            int  offset = window.fill (entry.getFilePosition(), size);
+            boolean intact;
+
+            if (offset < 0)
+                intact = false;
+
+            else if ((flags & CHECKSUMS) != 0)
+                intact = isRecordIntact (window.buffer(), offset, size);
+
+            else
+            {
+                try
+                {
+                    valueCodec.decode (window.buffer(), offset, size);
+                    intact = true;
+                }
+
+                catch (ClassNotFoundException ex)
+                {
+                    intact = false;
+                }
+
+                catch (IOException ex)
+                {
+                    intact = false;
+                }
+
+                catch (RuntimeException ex)
+                {
+                    intact = false;
+                }
+            }
+
+            if (! intact)
+            {
+                log.error ("Value for key \"" + entry.getKey() + "\" at " +
+                           "pos=" + entry.getFilePosition() + ", size=" +
+                           size + " in \"" + valuesDBPath.getPath() +
+                           "\" is damaged.");
+                damaged.add (entry.getKey());
+            }
+        }
+
+        return damaged;
+    }
+
+    /**
+     * <p>Returns a collection view of the values contained in this map. The
+     * returned collection is a "thin" view of the values contained in
+     * this map. The collection contains proxies for the actual disk-resident
+     * values; the values themselves are not loaded until a
+     * <tt>Collection</tt> method such as <tt>contains()</tt> is called.</p>
+     *
+     * <p>Iterating over the collection visits the values in data file
+     * order, reading the file in large, sequential chunks, so a full pass
+     * over a large map runs at sequential disk speed. (The same is true of
+     * the entries returned by iterating over <tt>entrySet()</tt>, provided
+     * their values are fetched in the order the entries are returned. With
+     * a {@link #MAPPED_INDEX}, entries are visited in index order, and each
+     * value is read individually.)</p>
+     *
+     * <p>The collection is backed by the map, so changes to the map are
+     * reflected in the set. If the map is modified while an iteration over
+     * the set is in progress, the results of the iteration are undefined.</p>
+     * The set does not support any of the <tt>add()</tt> methods.</p>
+     *
+     * <p><b>Warning:</b>: The <tt>toArray()</tt> methods can be dangerous,
+     * since they will attempt to load every value from the data file into
+     * an in-memory array.</p>
+     *
+     * @return a collection view of the values contained in this map.
+     *
+     * @see #keySet
+     * @see #values
+     */
+    public Collection<V> values()
+    {
+        checkValidity();
+
+        return new ValueSet();
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Rename a file, replacing any existing file with the target name.
+     *
+     * @param from  the file to rename
+     * @param to    the new name
+     *
+     * @throws IOException the file couldn't be renamed
+     */
+    static void replaceFile (File from, File to)
+        throws IOException
+    {
+        if (! from.renameTo (to))
+        {
+            // Some platforms won't rename over an existing file.
+
+            to.delete();
+            if (! from.renameTo (to))
+            {
+                throw new IOException ("Can't rename \"" + from.getPath() +
+                                       "\" to \"" + to.getPath() + "\"");
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Throw an exception if the object isn't valid.
+     */
+    private void checkValidity()
+    {
+        if (! valid)
+            throw new IllegalStateException ("Invalid FileHashMap object");
+    }
+
+    /**
+     * Make sure the map may be modified.
+     *
+     * @throws IllegalStateException         the map is closed
+     * @throws UnsupportedOperationException the map is READ_ONLY
+     */
+    private void checkWritable()
+    {
+        checkValidity();
+
+        if ((flags & READ_ONLY) != 0)
+            throw readOnly();
+    }
+
+    /**
+     * Make sure a time to live is acceptable.
+     *
+     * @param timeToLiveMillis  the time to live
+     *
+     * @throws IllegalArgumentException      it's negative
+     * @throws UnsupportedOperationException it isn't 0, and the index is
+     *                                       on disk
+     */
+    private void checkTimeToLive (long timeToLiveMillis)
+    {
+        if (timeToLiveMillis < 0)
+            throw new IllegalArgumentException ("Bad time to live: " +
+                                                timeToLiveMillis);
+
+        // A MAPPED_INDEX slot has no room for an expiration time.
+
+        if ((timeToLiveMillis != 0) && (mappedIndex != null))
+        {
+            throw new UnsupportedOperationException
+                ("FileHashMap \"" + filePrefix + "\" has a mapped index, " +
+                 "which doesn't support expiration.");
+        }
+    }
+
+    /**
+     * Convert a time to live to an expiration time.
+     *
+     * @param timeToLiveMillis  the time to live, or 0
+     *
+     * @return the expiration time, or 0 if the entry never expires
+     */
+    private static long expirationTime (long timeToLiveMillis)
+    {
+        return (timeToLiveMillis == 0)
+            ? 0
+            : System.currentTimeMillis() + timeToLiveMillis;
+    }
+
+    /**
+     * Determine whether an index entry has expired. Cheap when the map
+     * has never held an expiring entry.
+     *
+     * @param entry  the entry, or null
+     *
+     * @return <tt>true</tt> if the entry is non-null and has expired
+     */
+    private boolean isExpired (FileHashMapEntry<K> entry)
+    {
+        return expiringEntries &&
+               (entry != null) &&
+               entry.isExpired (System.currentTimeMillis());
+    }
+
+    /**
+     * Stop a background task and wait for it to finish. Does nothing if
+     * called by the task itself.
+     *
+     * @param task  the task
+     */
+    private void stopTask (PeriodicTask task)
+    {
+        if (task == Thread.currentThread())
+            return;
+
+        task.shutDown();
+
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                task.join();
+                break;
+            }
+
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Create the exception thrown when a READ_ONLY map would be modified.
+     *
+     * @return the exception
+     */
+    private UnsupportedOperationException readOnly()
+    {
+        return new UnsupportedOperationException ("FileHashMap \"" +
+                                                  filePrefix +
+                                                  "\" is read-only.");
+    }
+
+    /**
+     * Save a copy of the index and discard the change log (if any). The
+     * index is copied, and the log rotated, while writers are locked out;
+     * the copy is then written without blocking them.
+     *
+     * @throws IOException on error
+     */
+    private void checkpoint()
+        throws IOException
+    {
+        checkpointLock.lock();
+        try
+        {
+            Map<K, FileHashMapEntry<K>> snapshot = null;
+            long[]                      gaps     = null;
+
+            Lock lock = structureLock.writeLock();
+            lock.lock();
+            try
+            {
+                // An on-disk index is updated in place; it only needs to
+                // be forced to disk, which can happen while writers run.
+
+                if (mappedIndex == null)
+                {
+                    snapshot =
+                        new HashMap<K, FileHashMapEntry<K>> (indexMap);
+                    if (freeSpace != null)
+                        gaps = freeSpace.toArray();
+                }
+
+                if (journal != null)
+                    journal.rotate();
+                modified = false;
+            }
+
+            finally
+            {
+                lock.unlock();
+            }
+
+            try
+            {
+                // The saved index may refer to values that, until now,
+                // only the discarded log records vouched for.
+
+                if (journal != null)
+                    valuesDB.force();
+
+                if (snapshot != null)
+                    saveIndex (snapshot, gaps);
+                else
+                    forceMappedIndex();
+            }
 
-    /**
-     * A set of gaps in the file, ordered sequentially by file position.
-     * Each entry in the set is a FileHashMapEntry with no associated
-     * object or key. This reference will be non-null only if the
-     * RECLAIM_FILE_GAPS flag was passed to the constructor.
-     */
-    private TreeSet<FileHashMapEntry<K>> fileGaps = null;
+            catch (IOException ex)
+            {
+                modified = true;
+                throw ex;
+            }
 
-    /*----------------------------------------------------------------------*\
-                            Private Class Data
-    \*----------------------------------------------------------------------*/
+            if (journal != null)
+                journal.discardRotated();
+        }
+
+        finally
+        {
+            checkpointLock.unlock();
+        }
+    }
 
     /**
-     * For log messages
+     * Take a checkpoint if the change log has grown past the checkpoint
+     * interval. Called by writers after they've released the structure
+     * lock. If another thread is already checkpointing, returns at once.
      */
-    private static final Logger log = new Logger (FileHashMap.class);
+    private void checkpointIfNeeded()
+    {
+        FileHashMapLog j = journal;
 
-    /*----------------------------------------------------------------------*\
-                               Constructors
-    \*----------------------------------------------------------------------*/
+        if ( (j != null) &&
+             (j.getRecordCount() >= checkpointInterval) &&
+             checkpointLock.tryLock() )
+        {
+            try
+            {
+                if (valid && (j.getRecordCount() >= checkpointInterval))
+                    checkpoint();
+            }
+
+            catch (IOException ex)
+            {
+                log.error ("Failed to checkpoint FileHashMap \"" +
+                           filePrefix + "\"",
+                           ex);
+            }
+
+            finally
+            {
+                checkpointLock.unlock();
+            }
+        }
+    }
 
     /**
-     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
-     * disk files will be in the normal temporary directory and will have
-     * the prefix "FileHashMap". The names of the associated disk files are
-     * guaranteed to be unique, and will go away when the object is
-     * finalized or when the Java VM goes away. Call this constructor is
-     * identical to calling {@link #FileHashMap(String)} with a null
-     * <tt>filePrefix</tt> parameter.</p>
-     *
-     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
-     * flag.</p>
+     * Initialize a new index and data file for a hash map being created.
+     * Used only by the constructors.
      *
-     * @throws IOException  Unable to create temp file
+     * @param valuesDBPath  path to the data file
      *
-     * @see #FileHashMap(String,int)
-     * @see #FileHashMap(String)
+     * @throws IOException I/O error
      */
-    public FileHashMap()
+    private void createNewMap (File valuesDBPath)
         throws IOException
     {
-        this (null);
+        this.valuesDB = new ValuesFile (valuesDBPath,
+                                        (flags & MEMORY_MAPPED) != 0,
+                                        counters);
+
+        if ((flags & MAPPED_INDEX) != 0)
+        {
+            Map<K, FileHashMapEntry<K>> empty = Collections.emptyMap();
+            useMappedIndex (MappedKeyIndex.create (indexFilePath,
+                                                   keyFilePath,
+                                                   keyCodec,
+                                                   empty));
+        }
+
+        else
+        {
+            this.indexMap = newIndexMap();
+        }
     }
 
     /**
-     * <p>Create a new transient <tt>FileHashMap</tt> object. The transient
-     * disk files will be in the normal temporary directory and will have
-     * the specified temporary file prefix. If no temporary file prefix is
-     * specified (i.e., the <tt>tempFilePrefix</tt> parameter is null), then
-     * "fhm" will be used. The names of the associated disk files are
-     * guaranteed to be unique, and they will go away when the object is
-     * finalized or when the Java VM goes away.</p>
-     *
-     * <p>Note that this constructor implicitly sets the {@link #TRANSIENT}
-     * flag.</p>
+     * Install an on-disk index as the map's index.
      *
-     * @param tempFilePrefix the prefix to use with the temporary file, or
-     *                       null for default prefix "fhm"
+     * @param index  the index
+     */
+    private void useMappedIndex (MappedKeyIndex<K> index)
+    {
+        this.mappedIndex = index;
+        this.indexMap    = index;
+    }
+
+    /**
+     * Open the change log, replaying it if it exists. The log is kept open
+     * only if the DURABLE flag is set; a log left behind by a durable map
+     * is still replayed (then discarded) if the flag isn't set. Used only
+     * by the constructors.
      *
-     * @throws IOException  Unable to create temp file
+     * @param created  whether the map was just created
      *
-     * @see #FileHashMap(String,int)
-     * @see #FileHashMap()
+     * @throws IOException            I/O error
+     * @throws ClassNotFoundException can't decode a logged key
      */
-    public FileHashMap (String tempFilePrefix)
-        throws IOException
+    private void openJournal (boolean created)
+        throws IOException,
+               ClassNotFoundException
     {
-        this.flags = TRANSIENT;
-        this.filePrefix = tempFilePrefix;
+        boolean durable = ((flags & DURABLE) != 0);
 
-        if (filePrefix == null)
-            filePrefix = "fmh";
+        if ((flags & READ_ONLY) != 0)
+        {
+            if ( (logFilePath.length() > 0) ||
+                 FileHashMapLog.rotatedPath (logFilePath).exists() )
+            {
+                throw needsRecovery ("its change log holds unsaved changes");
+            }
 
-        this.valuesDBPath = File.createTempFile (filePrefix, DATA_FILE_SUFFIX);
-        this.valuesDBPath.deleteOnExit();
+            return;
+        }
 
-        createNewMap (this.valuesDBPath);
+        if ( durable ||
+             logFilePath.exists() ||
+             FileHashMapLog.rotatedPath (logFilePath).exists() )
+        {
+            FileHashMapLog j = new FileHashMapLog (logFilePath);
+            int replayed = j.replay (new JournalReplayer());
+
+            // Save the index right away, so that a new durable map has
+            // both of its files, and so that replayed records aren't
+            // replayed again.
+
+            if (created || (replayed > 0))
+            {
+                log.debug ("Replayed " + replayed + " log records.");
+
+                // The saved gap list predates the replayed records.
+
+                if ((replayed > 0) && (freeSpace != null))
+                    findFileGaps();
+
+                if (durable)
+                    valuesDB.force();
+                saveCurrentIndex();
+                j.reset();
+            }
+
+            if (durable)
+                journal = j;
+            else
+                j.close (true);
+        }
     }
 
     /**
-     * <p>Create a new <tt>FileHashMap</tt> object that will read its data
-     * from and/or store its data in files derived from the specified
-     * prefix. The prefix is a file prefix onto which data and index
-     * suffixes will be appended.</p>
-     *
-     * <p><u>Values for the <tt>flag</tt> parameter</u></p>
-     *
-     * <p>The <tt>flags</tt> parameter consists of a set of logically OR'd
-     * constants.
-     *
-     * <p>If <tt>(flags & NO_CREATE)</tt> is zero, the constructor will
-     * attempt to create the index files if they don't exist. Otherwise, it
-     * expects to find a saved hash map, and it will throw an exception if
-     * the files are not present.</p>
-     *
-     * <p>If <tt>(flags & TRANSIENT)</tt> is non-zero, the constructor will
-     * attempt to create a transient map. A transient map is not saved; its
-     * disk files are removed when the map is finalized or manually closed.
-     * You cannot create a transient map using a file prefix that specifies
-     * an existing, saved map. Specifying the <tt>TRANSIENT</tt> flag
-     * causes any <tt>NO_CREATE</tt> flag to be ignored.</p>
-     *
-     * <p>For example, the following statement creates a transient
-     * <tt>FileHashMap</tt>:</p>
-     *
-     * <blockquote><pre>
-     * Map map = new FileHashMap ("/my/temp/dir", FileHashMap.TRANSIENT);
-     * </pre></blockquote>
-     *
-     * <p>whereas this statements opens a persistent <tt>FileHashMap</tt>,
-     * creating it if it doesn't already exist:</p>
+     * Write a batch of encoded values, which are packed into one buffer,
+     * with a single write, and add them to the index.
      *
-     * <blockquote><pre>
-     * Map map = new FileHashMap ("/my/map/dir", FileHashMap.CREATE);
-     * </pre></blockquote>
+     * @param keys      the keys
+     * @param keyBytes  the encoded keys, for a DURABLE map
+     * @param sizes     the sizes of the encoded values
+     * @param buffer    the encoded values, one after the other
+     * @param length    the number of bytes in the buffer
      *
-     * @param pathPrefix   The pathname prefix to the files to be used
-     * @param flags        Flags that control the disposition of the files.
-     *                     A value of 0 means no flags are set. See above
-     *                     for details.
+     * @throws IOException on error
+     */
+    private void writeBatch (List<K>      keys,
+                             List<byte[]> keyBytes,
+                             int[]        sizes,
+                             byte[]       buffer,
+                             int          length)
+        throws IOException
+    {
+        int  n = keys.size();
+        List<FileHashMapEntry<K>> entries =
+            new ArrayList<FileHashMapEntry<K>> (n);
+
+        Lock lock = structureLock.readLock();
+        lock.lock();
+        try
+        {
+            checkValidity();
+
+            long pos = valuesDB.reserve (length);
+            valuesDB.write (pos, buffer, 0, length);
+
+            long expiration = expirationTime (defaultTimeToLive);
+            if (expiration != 0)
+                expiringEntries = true;
+
+            for (int i = 0; i < n; i++)
+            {
+                FileHashMapEntry<K> entry =
+                    new FileHashMapEntry<K> (pos, sizes[i], keys.get (i));
+
+                entry.setExpirationTime (expiration);
+                entries.add (entry);
+                pos += sizes[i];
+            }
+
+            List<FileHashMapEntry<K>> old = indexPutAll (keys, keyBytes,
+                                                         entries);
+            modified = true;
+
+            for (FileHashMapEntry<K> entry : old)
+            {
+                if (entry != null)
+                    releaseSpace (entry);
+            }
+        }
+
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a batch of new or replaced index entries, as if by calling
+     * indexPut() on each, but with a single write to the change log.
      *
-     * @throws FileNotFoundException        The specified hash files do not
-     *                                      exist, and the {@link #NO_CREATE}
-     *                                      flag was specified.
-     * @throws ClassNotFoundException       Failed to deserialize an object
-     * @throws VersionMismatchException     Bad or unsupported version stamp
-     *                                      in <tt>FileHashMap</tt> index file
-     * @throws ObjectExistsException        One or both of the files already
-     *                                      exist, but the {@link #TRANSIENT}
-     *                                      flag was set and the
-     *                                      {@link #FORCE_OVERWRITE} flag was
-     *                                      <i>not</i> set.
-     * @throws IOException                  Other errors
+     * @param keys      the keys
+     * @param keyBytes  the encoded keys, for a DURABLE map
+     * @param entries   the new entries
      *
-     * @see #NO_CREATE
-     * @see #TRANSIENT
+     * @return the entries that were replaced, with nulls for new keys
      *
-     * @see #FileHashMap()
-     * @see #FileHashMap(String)
+     * @throws IOException error writing the log
      */
-    public FileHashMap (String pathPrefix, int flags)
-        throws FileNotFoundException,
-               ObjectExistsException,
-               ClassNotFoundException,
-               VersionMismatchException,
-               IOException
+    private List<FileHashMapEntry<K>>
+    indexPutAll (List<K>                   keys,
+                 List<byte[]>              keyBytes,
+                 List<FileHashMapEntry<K>> entries)
+        throws IOException
     {
-        assert ( ((~ALL_FLAGS_MASK) & flags) == 0 );
+        int                       n   = keys.size();
+        List<FileHashMapEntry<K>> old = new ArrayList<FileHashMapEntry<K>> (n);
+
+        if (journal == null)
+        {
+            for (int i = 0; i < n; i++)
+                old.add (indexMap.put (keys.get (i), entries.get (i)));
+        }
 
-        int filesFound = 0;
+        else
+        {
+            long[] positions   = new long[n];
+            int[]  sizes       = new int[n];
+            long[] expirations = new long[n];
 
-        this.filePrefix = pathPrefix;
-        this.flags      = flags;
+            for (int i = 0; i < n; i++)
+            {
+                positions[i]   = entries.get (i).getFilePosition();
+                sizes[i]       = entries.get (i).getObjectSize();
+                expirations[i] = entries.get (i).getExpirationTime();
+            }
 
-        valuesDBPath    = new File (pathPrefix + DATA_FILE_SUFFIX);
-        indexFilePath   = new File (pathPrefix + INDEX_FILE_SUFFIX);
+            synchronized (journal)
+            {
+                for (int i = 0; i < n; i++)
+                    old.add (indexMap.put (keys.get (i), entries.get (i)));
 
-        if ((flags & TRANSIENT) != 0)
-            flags &= (~NO_CREATE);
+                journal.appendPuts (keyBytes, positions, sizes, expirations);
+            }
+        }
+
+        for (int i = 0; i < n; i++)
+            indexChanged (keys.get (i), old.get (i), entries.get (i));
 
-        if (valuesDBPath.exists())
-            filesFound++;
-        if (indexFilePath.exists())
-            filesFound++;
+        return old;
+    }
+
+    /**
+     * Record a new or replaced index entry in the index and, for a DURABLE
+     * map, in the change log.
+     *
+     * @param key       the key
+     * @param keyBytes  the encoded key, for a DURABLE map
+     * @param entry     the new entry
+     *
+     * @return the entry that was replaced, or null
+     *
+     * @throws IOException error writing the log
+     */
+    private FileHashMapEntry<K> indexPut (K                   key,
+                                          byte[]              keyBytes,
+                                          FileHashMapEntry<K> entry)
+        throws IOException
+    {
+        FileHashMapEntry<K> old;
+
+        if (journal == null)
+            old = indexMap.put (key, entry);
 
-        if ( (filesFound > 0) && ((flags & TRANSIENT) != 0) )
+        else
         {
-            if ((flags & FORCE_OVERWRITE) == 0)
+            synchronized (journal)
             {
-                throw new ObjectExistsException
-                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
-                     "One or both of the hash table files (\"{0}\" " +
-                     "and/or \"{1}\") already exists, but the " +
-                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
-                     "was not set.",
-                     new Object[]
-                     {
-                         valuesDBPath.getName(),
-                         indexFilePath.getName()
-                     });
+                old = indexMap.put (key, entry);
+                journal.append (FileHashMapLog.PUT,
+                                keyBytes,
+                                entry.getFilePosition(),
+                                entry.getObjectSize(),
+                                entry.getExpirationTime());
             }
+        }
 
-            // FORCE_OVERWRITE is set. Wipe out the files, and reset the
-            // existence count.
+        indexChanged (key, old, entry);
+        return old;
+    }
 
-            valuesDBPath.delete();
-            indexFilePath.delete();
-            filesFound = 0;
-        }
+    /**
+     * Remove an entry from the index and, for a DURABLE map, record the
+     * removal in the change log.
+     *
+     * @param key  the key
+     *
+     * @return the removed entry, or null
+     *
+     * @throws IOException error writing the log
+     */
+    private FileHashMapEntry<K> indexRemove (Object key)
+        throws IOException
+    {
+        FileHashMapEntry<K> entry;
+
+        if (journal == null)
+            entry = indexMap.remove (key);
 
-        switch (filesFound)
+        else
         {
-            case 0:
-                if ((flags & NO_CREATE) != 0)
+            synchronized (journal)
+            {
+                entry = indexMap.remove (key);
+                if (entry != null)
                 {
-                    // Can't localize this one. It's not one of our exceptions.
-
-                    throw new FileNotFoundException
-                                  ("On-disk hash table \"" +
-                                   pathPrefix +
-                                   "\" does not exist, and the " +
-                                   "FileHashMap.NO_CREATE flag was set.");
+                    journal.append (FileHashMapLog.REMOVE,
+                                    keyCodec.encode (entry.getKey()),
+                                    -1,
+                                    0,
+                                    0);
                 }
+            }
+        }
 
-                createNewMap (this.valuesDBPath);
-                break;
+        if (entry != null)
+            indexChanged (key, entry, null);
 
-            case 1:
-                throw new ObjectExistsException
-                              (Package.BUNDLE_NAME,
-                               "FileHashMap.halfMissing",
-                               "One of the hash table files exists (\"{0}\" " +
-                               "or \"{1}\") exists, but the other one does " +
-                               "not.",
-                               new Object[]
-                               {
-                                   valuesDBPath.getName(),
-                                   indexFilePath.getName()
-                               });
+        return entry;
+    }
 
-            case 2:
-                valuesDB = new ValuesFile (valuesDBPath);
-                loadIndex();
-                break;
+    /**
+     * Remove an entry from the index, as indexRemove() does, but only if
+     * the index still maps its key to it. Used to remove expired entries
+     * without disturbing a concurrent writer that has just replaced one.
+     *
+     * @param entry  the entry
+     *
+     * @return <tt>true</tt> if the entry was removed, <tt>false</tt> if
+     *         its key now maps to something else (or nothing)
+     *
+     * @throws IOException error writing the log
+     */
+    private boolean indexRemoveIfCurrent (FileHashMapEntry<K> entry)
+        throws IOException
+    {
+        K       key = entry.getKey();
+        boolean removed;
+
+        if (journal == null)
+            removed = removeIfCurrent (key, entry);
 
-            default:
-                assert (false);
+        else
+        {
+            synchronized (journal)
+            {
+                removed = removeIfCurrent (key, entry);
+                if (removed)
+                {
+                    journal.append (FileHashMapLog.REMOVE,
+                                    keyCodec.encode (key),
+                                    -1,
+                                    0,
+                                    0);
+                }
+            }
         }
 
-        if ((flags & RECLAIM_FILE_GAPS) != 0)
-            findFileGaps();
-    }
+        if (removed)
+            indexChanged (key, entry, null);
 
-    /*----------------------------------------------------------------------*\
-                              Finalizer
-    \*----------------------------------------------------------------------*/
+        return removed;
+    }
 
     /**
-     * Finalizer
+     * Remove a key from the in-memory index if it maps to a particular
+     * entry. Used only by indexRemoveIfCurrent().
      *
-     * @throws throwable on error
+     * @param key    the key
+     * @param entry  the entry
+     *
+     * @return whether the key was removed
      */
-    protected void finalize()
-        throws Throwable
+    private boolean removeIfCurrent (K key, FileHashMapEntry<K> entry)
     {
-        try
-        {
-            close();
-        }
+        Map<K, FileHashMapEntry<K>> index = indexMap;
 
-        catch (IOException ex)
-        {
-            log.error("Error during finalize", ex);
-        }
+        if (index instanceof ConcurrentMap)
+            return ((ConcurrentMap<K, FileHashMapEntry<K>>) index).remove
+                       (key, entry);
 
-        super.finalize();
-    }
+        if (index.get (key) != entry)
+            return false;
 
-    /*----------------------------------------------------------------------*\
-                              Public Methods
-    \*----------------------------------------------------------------------*/
+        index.remove (key);
+        return true;
+    }
 
     /**
-     * <p>Removes all mappings from this map. The data file is cleared by
-     * closing it, deleting it, and reopening it. If an I/O error occurs at
-     * any point, this object will be closed and marked invalid.</p>
+     * Bookkeeping for a change to the index: keeps the live byte count up
+     * to date, tells an in-progress compaction which keys changed, and
+     * discards the key's cached value.
+     *
+     * @param key       the key
+     * @param oldEntry  the key's old entry, or null
+     * @param newEntry  the key's new entry, or null
      */
-    public synchronized void clear()
+    private void indexChanged (Object              key,
+                               FileHashMapEntry<K> oldEntry,
+                               FileHashMapEntry<K> newEntry)
     {
-        checkValidity();
-        indexMap.clear();
+        Set<Object>   dirty = compactionDirtyKeys;
+        ValueCache<V> cache = valueCache;
 
-        try
-        {
-            // Implement the clear operation by truncating the data file.
+        if (dirty != null)
+            dirty.add (key);
 
-            valuesDB.getFile().getChannel().truncate (0);
-            modified = true;
-        }
+        if (cache != null)
+            cache.invalidate (key);
 
-        catch (IOException ex)
+        if (mappedIndex == null)
         {
-            log.error ("Failed to truncate FileHashMap file \"" +
-                       valuesDBPath.getPath() + "\"",
-                       ex);
-            valid = false;
+            long delta = 0;
+
+            if (newEntry != null)
+                delta += newEntry.getObjectSize();
+            if (oldEntry != null)
+                delta -= oldEntry.getObjectSize();
+
+            liveBytes.addAndGet (delta);
         }
     }
 
     /**
-     * <p>Close this map. If the map is not marked as transient, this method
-     * saves the index to disk. Otherwise, it removes both the index file
-     * and data file.</p>
+     * Add up the value sizes of the entries in an index.
      *
-     * @throws NotSerializableException Can't save index (bug)
-     * @throws IOException              Error writing index
+     * @param index  the index
      *
-     * @see #save
+     * @return the total size
      */
-    public synchronized void close()
-        throws NotSerializableException,
-               IOException
+    private static <K> long sumObjectSizes (Map<K, FileHashMapEntry<K>> index)
     {
-        if (valid)
-        {
-            if ((flags & TRANSIENT) != 0)
-            {
-                // Be sure to remove the data files.
-
-                if (valuesDB != null)
-                {
-                    valuesDB.close();
-                    valuesDB = null;
-                }
-
-                deleteMapFiles();
-            }
+        long total = 0;
 
-            else
-            {
-                save();
-            }
+        for (FileHashMapEntry<K> entry : index.values())
+            total += entry.getObjectSize();
 
-            valid = false;
-        }
+        return total;
     }
 
     /**
-     * <p>Returns <tt>true</tt> if this map contains a mapping for the
-     * specified key. Since the keys are cached in an in-memory index, this
-     * method does not have to access the data file, and is fairly
-     * cheap.</p>
+     * Get the name of the file in which compact() builds the new version
+     * of a file.
      *
-     * @param key key whose presence in this map is to be tested
+     * @param path  the file
      *
-     * @return <tt>true</tt> if this map contains a mapping for the specified
-     *         key, <tt>false</tt> otherwise.
+     * @return the corresponding compaction file
      */
-    public boolean containsKey (Object key)
+    private static File compactionPath (File path)
     {
-        checkValidity();
-        return indexMap.containsKey (key);
+        return new File (path.getPath() + COMPACTION_SUFFIX);
     }
 
     /**
-     * <p>Returns <tt>true</tt> if this map maps one or more keys that are
-     * mapped to the specified value. Because it must iterate through some
-     * portion of the on-disk value set, this method can be slow.</p>
-     *
-     * @param value value whose presence in this map is to be tested.
+     * Finish or undo a compaction that was interrupted by a crash. If the
+     * compaction had been committed, the new files replace the old ones,
+     * and the change log, which refers to the old data file, is discarded.
+     * Otherwise, the new files are deleted. Used only by the constructors.
      *
-     * @return <tt>true</tt> if this map maps one or more keys to the
-     *         specified value, <tt>false</tt> otherwise.
+     * @throws IOException on error
      */
-    public boolean containsValue (Object value)
+    private void recoverCompaction()
+        throws IOException
     {
-        checkValidity();
-        return new ValueSet().contains (value);
+        File   marker = new File (filePrefix + COMPACTION_MARKER_SUFFIX);
+        File[] files  = {valuesDBPath, indexFilePath, keyFilePath};
+
+        if ((flags & READ_ONLY) != 0)
+        {
+            // Leave any staged files for the next writer to clean up.
+
+            if (marker.exists())
+                throw needsRecovery ("its compaction was interrupted");
+        }
+
+        else if (marker.exists())
+        {
+            log.debug ("Completing interrupted compaction of \"" +
+                       filePrefix + "\"");
+
+            for (File file : files)
+            {
+                File newFile = compactionPath (file);
+                if (newFile.exists())
+                    replaceFile (newFile, file);
+            }
+
+            logFilePath.delete();
+            FileHashMapLog.rotatedPath (logFilePath).delete();
+            marker.delete();
+        }
+
+        else
+        {
+            for (File file : files)
+                compactionPath (file).delete();
+        }
     }
 
     /**
-     * Deletes the files backing this <tt>FileHashMap</tt>. This method
-     * implicitly calls {@link #close}.
+     * Do the work of compact(). The caller must hold the compaction lock.
+     *
+     * @return the number of bytes by which the data file shrank
+     *
+     * @throws IOException on error
      */
-    public void delete()
+    private long doCompact()
+        throws IOException
     {
+        boolean persistent = ((flags & TRANSIENT) == 0);
+        File    newDataPath = compactionPath (valuesDBPath);
+        long    oldLength;
+        boolean done = false;
+
+        ValuesFile                    oldData;
+        Iterator<FileHashMapEntry<K>> entries;
+        Map<K, FileHashMapEntry<K>>   newIndex;
+        MappedKeyIndex<K>             newMappedIndex = null;
+
+        // Start tracking changed keys, and take a consistent snapshot of
+        // the entries to copy. (An on-disk index can't be snapshotted, but
+        // its iterator is safe to use while writers run. Any entry they
+        // change is copied again at the end, anyway.)
+
+        Lock lock = structureLock.writeLock();
+        lock.lock();
         try
         {
-            close();
+            checkValidity();
+
+            compactionAborted   = false;
+            compactionDirtyKeys = Collections.newSetFromMap
+                                      (new ConcurrentHashMap<Object,Boolean>());
+            oldData   = valuesDB;
+            oldLength = oldData.length();
+
+            if (mappedIndex != null)
+                entries = mappedIndex.values().iterator();
+            else
+                entries = getSortedEntries().iterator();
         }
 
-        catch (NotSerializableException ex)
+        finally
         {
+            lock.unlock();
         }
 
-        catch (IOException ex)
+        newDataPath.delete();
+        ValuesFile       newData = new ValuesFile (newDataPath, false,
+                                                  counters);
+        CompactionWriter writer  = new CompactionWriter (newData);
+
+        try
         {
+            if (mappedIndex != null)
+            {
+                Map<K, FileHashMapEntry<K>> empty = Collections.emptyMap();
+                newMappedIndex = MappedKeyIndex.create
+                                     (compactionPath (indexFilePath),
+                                      compactionPath (keyFilePath),
+                                      keyCodec,
+                                      empty);
+                newIndex = newMappedIndex;
+            }
+
+            else
+            {
+                newIndex = new HashMap<K, FileHashMapEntry<K>>();
+            }
+
+            // Phase 1: Copy the values, without blocking anyone.
+
+            while (entries.hasNext())
+            {
+                if (compactionAborted || (! valid))
+                    return 0;
+
+                copyValue (entries.next(), oldData, writer, newIndex);
+            }
+
+            // Phase 2: Lock out writers, copy whatever they changed in the
+            // meantime, and install the new files.
+
+            checkpointLock.lock();
+            lock.lock();
+            try
+            {
+                if (compactionAborted || (! valid))
+                    return 0;
+
+                for (Object key : compactionDirtyKeys)
+                {
+                    FileHashMapEntry<K> entry = indexMap.get (key);
+
+                    if (entry == null)
+                        newIndex.remove (key);
+                    else
+                        copyValue (entry, valuesDB, writer, newIndex);
+                }
+
+                writer.flush();
+                newData.force();
+                newData.close();
+
+                if (newMappedIndex != null)
+                {
+                    newMappedIndex.force();
+                    newMappedIndex.close();
+                }
+
+                if (persistent)
+                {
+                    if (newMappedIndex == null)
+                    {
+                        saveIndex (compactionPath (indexFilePath),
+                                   newIndex,
+                                   (freeSpace == null) ? null : new long[0]);
+                    }
+
+                    // Commit. From here on, a crash is recovered by
+                    // finishing the job.
+
+                    File marker = new File (filePrefix +
+                                            COMPACTION_MARKER_SUFFIX);
+                    new FileOutputStream (marker).close();
+
+                    if (journal != null)
+                        journal.reset();
+
+                    replaceFile (newDataPath, valuesDBPath);
+                    if (newMappedIndex != null)
+                    {
+                        replaceFile (compactionPath (indexFilePath),
+                                     indexFilePath);
+                        replaceFile (compactionPath (keyFilePath),
+                                     keyFilePath);
+                    }
+
+                    else
+                    {
+                        replaceFile (compactionPath (indexFilePath),
+                                     indexFilePath);
+                    }
+
+                    marker.delete();
+                    modified = false;
+                }
+
+                else
+                {
+                    // A transient map's files are simply swapped. Its
+                    // on-disk index has to be swapped along with the data
+                    // file, since the old one points into the old file.
+
+                    replaceFile (newDataPath, valuesDBPath);
+                    if (newMappedIndex != null)
+                    {
+                        replaceFile (compactionPath (indexFilePath),
+                                     indexFilePath);
+                        replaceFile (compactionPath (keyFilePath),
+                                     keyFilePath);
+                    }
+                }
+
+                // Install the new data file and index. Readers that are
+                // still using the old ones will notice that the index
+                // changed under them, and retry. (The old on-disk index is
+                // left for the garbage collector, since a reader may still
+                // be in the middle of a lookup.)
+
+                valuesDB = new ValuesFile (valuesDBPath,
+                                           (flags & MEMORY_MAPPED) != 0,
+                                           counters);
+
+                if (newMappedIndex != null)
+                {
+                    useMappedIndex (MappedKeyIndex.open (indexFilePath,
+                                                         keyFilePath,
+                                                         keyCodec,
+                                                         false));
+                }
+
+                else if ((flags & CONCURRENT) != 0)
+                {
+                    Map<K, FileHashMapEntry<K>> m = newIndexMap();
+                    m.putAll (newIndex);
+                    indexMap = m;
+                }
+
+                else
+                {
+                    indexMap = newIndex;
+                }
+
+                liveBytes.set (valuesDB.length());
+                if (freeSpace != null)
+                    freeSpace = new FreeSpaceManager();
+
+                compactions++;
+
+                oldData.close();
+                done = true;
+
+                return oldLength - valuesDB.length();
+            }
+
+            finally
+            {
+                lock.unlock();
+                checkpointLock.unlock();
+            }
         }
 
-        deleteMapFiles();
+        finally
+        {
+            compactionDirtyKeys = null;
+
+            if (! done)
+            {
+                newData.close();
+                if (newMappedIndex != null)
+                    newMappedIndex.close();
+
+                newDataPath.delete();
+                if (persistent || (newMappedIndex != null))
+                {
+                    compactionPath (indexFilePath).delete();
+                    compactionPath (keyFilePath).delete();
+                }
+            }
+        }
     }
 
     /**
-     * <p>Returns a "thin" set view of the mappings contained in this map.
-     * Each element in the returned set is a <tt>Map.Entry</tt>; each
-     * <tt>Map.Entry</tt> contains a key and a proxy for the associated value.
-     * The map's values themselves are not loaded into memory until requested
-     * via a call to <tt>Map.Entry.getValue()</tt>.</p>
-     *
-     * <p>The set is backed by the map, so changes to the map are reflected
-     * in the set. If the map is modified while an iteration over the set
-     * is in progress, the results of the iteration are undefined. Neither
-     * the set nor its associated iterator supports any of the
-     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
-     * etc). If you attempt to call any of those methods, the called method
-     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     * Copy a value to the new data file being built by compact(), and
+     * record its new location in the new index.
      *
-     * <p>NOTE: Calling this method on an invalid or closed
-     * <tt>FileHashMap</tt> will result in an exception.</p>
-     *
-     * @return a set view of the mappings contained in this map.
+     * @param entry     the value's entry in the current index
+     * @param from      the data file to copy from
+     * @param writer    writes the new data file
+     * @param newIndex  the new index
      *
-     * @see #keySet
-     * @see #values
-     * @see UnsupportedOperationException
+     * @throws IOException on error
      */
-    public Set<Map.Entry<K,V>> entrySet()
+    private void copyValue (FileHashMapEntry<K>         entry,
+                            ValuesFile                  from,
+                            CompactionWriter            writer,
+                            Map<K, FileHashMapEntry<K>> newIndex)
+        throws IOException
     {
-        checkValidity();
+        // An expired value isn't worth copying. Its key simply vanishes
+        // from the new index.
 
-        if (entrySetResult == null)
-            entrySetResult = new EntrySet();
+        if (isExpired (entry))
+        {
+            newIndex.remove (entry.getKey());
+            return;
+        }
 
-        return (Set<Map.Entry<K,V>>) entrySetResult;
+        byte[] bytes = new byte[entry.getObjectSize()];
+
+        from.read (entry.getFilePosition(), bytes);
+
+        FileHashMapEntry<K> copy =
+            new FileHashMapEntry<K> (writer.append (bytes),
+                                     bytes.length,
+                                     entry.getKey());
+        copy.setExpirationTime (entry.getExpirationTime());
+        newIndex.put (entry.getKey(), copy);
     }
 
     /**
-     * <p>Compares the specified object with this map for equality.  Returns
-     * <tt>true</tt> if the given object is also a map and the two Maps
-     * represent the same mappings.  More formally, two maps <tt>t1</tt> and
-     * <tt>t2</tt> represent the same mappings if
-     * <tt>t1.entrySet().equals(t2.entrySet())</tt>.  This ensures that the
-     * <tt>equals</tt> method works properly across different implementations
-     * of the <tt>Map</tt> interface.</p>
-     *
-     * <p><b>Warning:</b>: Because this method must compare the actual
-     * values stored in the map, and the values in a file, this method can
-     * be quite slow.</p>
+     * Determine the size of this map. Basically, this method just consolidates
+     * the size-determination logic in one place.
      *
-     * @param o object to be compared for equality with this map.
+     * @return the size
+     */
+    private int currentSize()
+    {
+        return indexMap.size();
+    }
+
+    /**
+     * Create an empty in-memory index of the appropriate type.
      *
-     * @return <tt>true</tt> if the specified object is equal to this map.
+     * @return the new index
      */
-    public boolean equals (Object o)
+    private Map<K, FileHashMapEntry<K>> newIndexMap()
     {
-        checkValidity();
+        Map<K, FileHashMapEntry<K>> result;
 
-        return super.equals (o);
+        if ((flags & CONCURRENT) != 0)
+            result = new ConcurrentHashMap<K, FileHashMapEntry<K>>();
+        else
+            result = new HashMap<K, FileHashMapEntry<K>>();
+
+        return result;
     }
 
     /**
-     * <p>Returns the value associated with the the specified key.  Returns
-     * <tt>null</tt> if the map contains no mapping for this key.</p>
-     *
-     * @param key key whose associated value is to be returned.
-     *
-     * @return the value to which this map maps the specified key, or
-     *         <tt>null</tt> if the map contains no mapping for this key.
-     *
-     * @throws ClassCastException   if the key is of an inappropriate type for
-     *                              this map.
-     * @throws NullPointerException key is <tt>null</tt>
+     * Release the file space occupied by an entry that has already been
+     * removed from the index. The space is left as an unreferenced hole in
+     * the data file unless RECLAIM_FILE_GAPS is enabled.
      *
-     * @see #containsKey(Object)
+     * @param entry the entry whose space is to be released
      */
-    public V get (Object key)
+    private void releaseSpace (FileHashMapEntry<K> entry)
     {
-        checkValidity();
+        if (freeSpace != null)
+        {
+            log.debug ("Released value for key \"" +
+                       entry.getKey() +
+                       "\" at pos=" +
+                       entry.getFilePosition() +
+                       ", size=" +
+                       entry.getObjectSize());
+
+            freeSpace.free (entry.getFilePosition(), entry.getObjectSize());
+        }
+    }
+
+    /**
+     * Locate gaps in the file by traversing the index, and use them to
+     * initialize the freeSpace instance variable. This is done only when
+     * no saved gap list is available; thereafter, the gap list is
+     * maintained incrementally.
+     */
+    private void findFileGaps()
+    {
+        log.debug ("Looking for file gaps.");
 
-        V                   result = null;
-        FileHashMapEntry<K> entry = indexMap.get (key);
+        FreeSpaceManager gaps        = new FreeSpaceManager();
+        long             previousEnd = 0;
 
-        if (entry != null)
-            result = readValueNoError (entry);
+        for (FileHashMapEntry<K> entry : getSortedEntries())
+        {
+            long pos = entry.getFilePosition();
 
-        return result;
+            assert (pos >= previousEnd);
+            if (pos > previousEnd)
+            {
+                log.debug ("Gap at position " + previousEnd +
+                           " of size " + (pos - previousEnd));
+                gaps.free (previousEnd, pos - previousEnd);
+            }
+
+            previousEnd = pos + entry.getObjectSize();
+        }
+
+        // Space after the last value (e.g., left by removing it) is free,
+        // too.
+
+        long end = valuesDB.length();
+        if (end > previousEnd)
+            gaps.free (previousEnd, end - previousEnd);
+
+        freeSpace = gaps;
     }
 
     /**
-     * <p>Returns the hash code value for this map. The hash code of a map
-     * is defined to be the sum of the hash codes of each entry in the
-     * map's <tt>entrySet()</tt> view. This ensures that
-     * <tt>t1.equals(t2)</tt> implies that
-     * <tt>t1.hashCode()==t2.hashCode()</tt> for any two maps <tt>t1</tt>
-     * and <tt>t2</tt>, as required by the general contract of
-     * Object.hashCode.</p>
-     *
-     * <p><b>Warning:</b>: The recommended hash code for each entry in the
-     * <tt>entrySet()</tt> view is a combination of hash codes for the
-     * entry's key and the entry's value. (See <tt>java.util.Map.Entry</tt>
-     * for details.) Because the values in a <tt>FileHashMap</tt> object
-     * are stored in a file, this method can be quite slow.</p>
-     *
-     * @return the hash code value for this map.
+     * Get the list of FileHashMapEntry pointers for the values, sorted
+     * in ascending file position order.
      *
-     * @see Object#hashCode()
-     * @see Object#equals(Object)
-     * @see #equals(Object)
+     * @return A sorted list of FileHashMapEntry objects.
      */
-    public int hashCode()
+    private List<FileHashMapEntry<K>> getSortedEntries()
     {
-        checkValidity();
+        // Get the set of values in the hash index. Each value is a
+        // FileHashMapEntry object.
 
-        return super.hashCode();
+        List<FileHashMapEntry<K>> vals = new ArrayList<FileHashMapEntry<K>>();
+        vals.addAll (indexMap.values());
+
+        // Sort the list.
+
+        Collections.sort (vals, new FileHashMapEntryComparator());
+
+        return vals;
     }
 
     /**
-     * Determine whether the <tt>FileHashMap</tt> is valid or not. Once
-     * a <tt>FileHashMap</tt> has been closed, it is invalid and can no
-     * longer be used.
+     * Load the index from its disk file.
      *
-     * @return <tt>true</tt> if this object is valid, <tt>false</tt> if not
+     * @return the gap list saved with the index, as written by
+     *         FreeSpaceManager.toArray(), or null if there isn't one
+     *
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error deserializing one of the objects
+     * @throws VersionMismatchException bad version in index file
      */
-    public boolean isValid()
+    private long[] loadIndex()
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        return valid;
+        long[] gaps = null;
+
+        if (MappedKeyIndex.isMappedIndex (indexFilePath))
+        {
+            useMappedIndex (MappedKeyIndex.open (indexFilePath,
+                                                 keyFilePath,
+                                                 keyCodec,
+                                                 (flags & READ_ONLY) != 0));
+            gaps = loadMappedIndexGaps();
+        }
+
+        else if (FileHashMapIndexFile.isIndexFile (indexFilePath))
+        {
+            Map<K, FileHashMapEntry<K>> saved =
+                new HashMap<K, FileHashMapEntry<K>>();
+            gaps = FileHashMapIndexFile.read (indexFilePath, keyCodec, saved);
+            installLoadedIndex (saved);
+        }
+
+        else
+        {
+            gaps = loadSerializedIndex();
+        }
+
+        return gaps;
     }
 
     /**
-     * <p>Returns a <tt>Set</tt> containing all the keys in this map. Since
-     * the keys are cached in memory, this method is relatively efficient.
-     * The keys are returned in an order that optimizes sequential access
-     * to the data file; see the <b>Optimizations</b> section in the main
-     * class documentation for details.</p>
+     * Install an index that was loaded from the index file, converting it
+     * to the appropriate kind of index. Used only by the constructors.
      *
-     * <p>The set is backed by the map, so changes to the map are reflected
-     * in the set. If the map is modified while an iteration over the set
-     * is in progress, the results of the iteration are undefined. Neither
-     * the set nor its associated iterator supports any of the
-     * set-modification methods (e.g., <tt>add()</tt>, <tt>remove()</tt>,
-     * etc). If you attempt to call any of those methods, the called method
-     * will throw an <tt>UnsupportedOperationException</tt>.</p>
+     * @param saved  the loaded index
      *
-     * @return a set view of the keys contained in this map.
+     * @throws IOException on error
      */
-    public Set<K> keySet()
+    private void installLoadedIndex (Map<K, FileHashMapEntry<K>> saved)
+        throws IOException
     {
-        checkValidity();
-        return new KeySet();
+        if ((flags & MAPPED_INDEX) != 0)
+        {
+            // Convert to an on-disk index. It's built under a temporary
+            // name, so the old index survives a crash.
+
+            useMappedIndex (MappedKeyIndex.create (indexFilePath,
+                                                   keyFilePath,
+                                                   keyCodec,
+                                                   saved));
+        }
+
+        else if ((flags & CONCURRENT) != 0)
+        {
+            indexMap = newIndexMap();
+            indexMap.putAll (saved);
+        }
+
+        else
+        {
+            indexMap = saved;
+        }
     }
 
     /**
-     * <p>Associates the specified value with the specified key in this map.
-     * If the map previously contained a mapping for this key, the old
-     * value is replaced. This map class does not permit a null value to be
-     * stored.</p>
-     *
-     * @param key   key with which the specified value is to be associated.
-     * @param value value to be associated with the specified key.
+     * Load an index file written in the old, serialized format.
      *
-     * @return previous value associated with specified key, or <tt>null</tt>
-     *         if there was no mapping for key.
+     * @return the saved gap list, or null
      *
-     * @throws ClassCastException        if the class of the specified key or
-     *                                   value prevents it from being stored
-     *                                   in this map.
-     * @throws IllegalArgumentException  Value not serializable, or I/O error
-     *                                   while attempting to serialize value.
-     * @throws NullPointerException      the specified key or value is
-     *                                   <tt>null</tt>.
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error deserializing one of the objects
+     * @throws VersionMismatchException bad version in index file
      */
-    public V put (K key, V value)
-        throws ClassCastException,
-               IllegalArgumentException,
-               NullPointerException
+    private long[] loadSerializedIndex()
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
     {
-        checkValidity();
-
-        V result = null;
-
-        if (key == null)
-            throw new NullPointerException ("null key parameter");     // NOPMD
+        ObjectInputStream  objStream;
+        String             version;
+        long[]             gaps = null;
 
-        if (value == null)
-            throw new NullPointerException ("null value parameter");   // NOPMD
+        objStream = new ObjectInputStream
+                                  (new FileInputStream (this.indexFilePath));
+        try
+        {
+            version = (String) objStream.readObject();
 
-        if (! (value instanceof Serializable))
-            throw new IllegalArgumentException ("Value is not serializable.");
+            if (! version.equals (VERSION_STAMP))
+            {
+                throw new VersionMismatchException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.versionMismatch",
+                               "FileHashMap version mismatch in index file " +
+                               "\"{0}\". Expected version \"{1}\", found " +
+                               "version \"{2}\"",
+                               new Object[]
+                               {
+                                   indexFilePath.getName(),
+                                   VERSION_STAMP,
+                                   version
+                               },
+                               VERSION_STAMP,
+                               version);
+            }
 
-        // NOTE: We don't check the key for serializability. It's perfectly
-        // reasonable to use unserializable keys if the hash map is transient.
-        // Unserializable keys will be caught on save, for persistent maps.
+            // This typecast will generate an "unchecked cast" exception.
+            // Unfortunately, there's no way around it (other than to avoid
+            // making calls like this). See
+            // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
 
-        try
-        {
-            FileHashMapEntry<K> old = indexMap.get (key);
+            Map<K, FileHashMapEntry<K>> saved =
+                (Map<K, FileHashMapEntry<K>>) objStream.readObject();
 
-            // Read the old value first. Then, modify the index and write
-            // the new value. That way, we can reclaim the old value's space
-            // if RECLAIM_FILE_GAPS is enabled.
+            // The gap list follows, if the map was saved with
+            // RECLAIM_FILE_GAPS. Older index files don't have one.
 
-            if (old != null)
+            try
             {
-                result = readValueNoError (old);
-
-                // Removing the key forces the space to be listed in the gaps
-                // list.
+                gaps = (long[]) objStream.readObject();
+            }
 
-                remove (key);
+            catch (EOFException ex)
+            {
+                gaps = null;
             }
 
-            FileHashMapEntry<K> entry = writeValue (key, value);
-            indexMap.put (key, entry);
-            modified = true;
+            installLoadedIndex (saved);
         }
 
-        catch (IOException ex)
+        finally
         {
-            throw new IllegalArgumentException ("Error saving value: " +
-                                                ex.getMessage());
+            objStream.close();
         }
 
-        return result;
+        return gaps;
     }
 
     /**
-     * <p>Removes the mapping for this key from this map, if present.
-     * <b>Note:</b> The space occupied by the serialized value in the
-     * data file is <i>not</i> coalesced at this point.</p>
+     * Load, then delete, the gap list saved when a MAPPED_INDEX map was
+     * last closed. Deleting it ensures that it can't be used if the map is
+     * later modified and not closed cleanly, since the on-disk index is
+     * updated in place.
      *
-     * @param key key whose mapping is to be removed from the map.
+     * @return the saved gap list, or null
      *
-     * @return previous value associated with specified key, or <tt>null</tt>
-     *         if there was no mapping for key.
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   error deserializing the list
      */
-    public V remove (Object key)
+    private long[] loadMappedIndexGaps()
+        throws IOException,
+               ClassNotFoundException
     {
-        checkValidity();
-
-        V result = null;
+        File   path = new File (indexFilePath.getPath() + GAPS_FILE_SUFFIX);
+        long[] gaps = null;
 
-        // We do nothing with the space in the data file for any existing
-        // item. It remains in the data file, but is unreferenced.
-
-        if (indexMap.containsKey (key))
+        if (path.exists())
         {
-            FileHashMapEntry<K> entry = indexMap.get (key);
-            result = readValueNoError (entry);
-            indexMap.remove (key);
-            modified = true;
+            ObjectInputStream objStream =
+                new ObjectInputStream (new FileInputStream (path));
 
-            if ((flags & RECLAIM_FILE_GAPS) != 0)
+            try
+            {
+                gaps = (long[]) objStream.readObject();
+            }
+
+            finally
             {
-                // Have to recalculate gaps, since we may be able to coalesce
-                // this returned space with ones to either side of it.
+                objStream.close();
+            }
 
-                log.debug ("Removed value for key \"" +
-                           key +
-                           "\" at pos=" +
-                           entry.getFilePosition() +
-                           ", size=" +
-                           entry.getObjectSize() +
-                           ". Re-figuring gaps.");
-                findFileGaps();
+            if (! path.delete())
+            {
+                throw new IOException ("Can't delete \"" + path.getPath() +
+                                       "\"");
             }
         }
 
-        return result;
+        return gaps;
     }
 
-
     /**
-     * <p>Save any in-memory index changes to disk without closing the map.
-     * You can call this method even if the map is marked as temporary;
-     * on a temporary map, <tt>save()</tt> simply returns without doing
-     * anything.</p>
-     *
-     * @throws IOException              Error saving changes to disk.
-     * @throws NotSerializableException Can't save index because it contains
-     *                                  one or more objects that cannot be
-     *                                  serialized.
+     * Save the gap list of a MAPPED_INDEX map. Called when the map is
+     * closed.
      *
-     * @see #close
+     * @throws IOException on error
      */
-    public void save()
-        throws IOException,
-               NotSerializableException
+    private void saveMappedIndexGaps()
+        throws IOException
     {
-        checkValidity();
+        File               path      =
+            new File (indexFilePath.getPath() + GAPS_FILE_SUFFIX);
+        FileOutputStream   out       = new FileOutputStream (path);
+        ObjectOutputStream objStream = new ObjectOutputStream (out);
 
-        if ( ((flags & TRANSIENT) == 0) && modified )
-            saveIndex();
+        try
+        {
+            objStream.writeObject (freeSpace.toArray());
+            objStream.flush();
+            out.getFD().sync();
+        }
+
+        finally
+        {
+            objStream.close();
+        }
     }
 
     /**
-     * <p>Returns the number of key-value mappings in this map. If the map
-     * contains more than <tt>Integer.MAX_VALUE</tt> elements, returns
-     * <tt>Integer.MAX_VALUE</tt>. This method queries the in-memory key
-     * index, so it is relatively efficient.</p>
+     * Read an object from a specific location in the random access file
+     * data file.
      *
-     * @return the number of key-value mappings in this map.
+     * @param entry  The FileHashMapEntry specifying the object's location
+     *
+     * @return the object
+     *
+     * @throws IOException            Read error
+     * @throws ClassNotFoundException The serialized class read from the
+     *                                   file cannot be loaded
+     * @throws IllegalStateException  No object stored at location (i.e.,
+     *                                   no size value has been set)
+     *
+     * @see #getFilePosition
+     * @see #writeObject
      */
-    public int size()
+    private V readValue (FileHashMapEntry<K> entry)
+        throws IOException,
+               ClassNotFoundException,
+               IllegalStateException
     {
-        checkValidity();
-        return currentSize();
+        int   size      = entry.getObjectSize();
+        byte  byteBuf[] = new byte[size];
+
+        // Load the encoded object into memory, then decode it.
+
+        valuesDB.read (entry.getFilePosition(), byteBuf);
+        return decodeValue (byteBuf, 0, size);
     }
 
     /**
-     * <p>Returns a collection view of the values contained in this map. The
-     * returned collection is a "thin" view of the values contained in
-     * this map. The collection contains proxies for the actual disk-resident
-     * values; the values themselves are not loaded until a
-     * <tt>Collection</tt> method such as <tt>contains()</tt> is called.</p>
-     *
-     * <p>The collection is backed by the map, so changes to the map are
-     * reflected in the set. If the map is modified while an iteration over
-     * the set is in progress, the results of the iteration are undefined.</p>
-     * The set does not support any of the <tt>add()</tt> methods.</p>
-     *
-     * <p><b>Warning:</b>: The <tt>toArray()</tt> methods can be dangerous,
-     * since they will attempt to load every value from the data file into
-     * an in-memory array.</p>
+     * Create the exception thrown when a map can't be opened READ_ONLY
+     * because it needs recovery.
      *
-     * @return a collection view of the values contained in this map.
+     * @param reason  why it does
      *
-     * @see #keySet
-     * @see #values
+     * @return the exception
      */
-    public Collection<V> values()
+    private IOException needsRecovery (String reason)
     {
-        checkValidity();
-
-        return new ValueSet();
+        return new IOException ("FileHashMap \"" + filePrefix + "\" can't " +
+                                "be opened read-only, because " + reason +
+                                ". Open it for writing first.");
     }
 
-    /*----------------------------------------------------------------------*\
-                              Private Methods
-    \*----------------------------------------------------------------------*/
-
     /**
-     * Throw an exception if the object isn't valid.
+     * Make sure the map supports the asynchronous methods.
+     *
+     * @throws IllegalStateException the map is closed, or isn't CONCURRENT
      */
-    private void checkValidity()
+    private void checkAsync()
     {
-        if (! valid)
-            throw new IllegalStateException ("Invalid FileHashMap object");
+        checkValidity();
+
+        if ((flags & CONCURRENT) == 0)
+        {
+            throw new IllegalStateException ("Only a CONCURRENT FileHashMap " +
+                                             "supports asynchronous " +
+                                             "operations.");
+        }
     }
 
     /**
-     * Initialize a new index and data file for a hash map being created.
-     * Used only by the constructors.
-     *
-     * @param valuesDBPath  path to the data file
-     *
-     * @throws IOException I/O error
+     * Perform all the queued asynchronous reads. Runs on an I/O thread.
      */
-    private void createNewMap (File valuesDBPath)
-        throws IOException
+    private void drainPendingReads()
     {
-        this.valuesDB = new ValuesFile (valuesDBPath);
-        this.indexMap = new HashMap<K, FileHashMapEntry<K>>();
+        List<ReadRequest> requests;
+
+        synchronized (pendingReads)
+        {
+            if (pendingReads.isEmpty())
+                return;
+
+            requests = new ArrayList<ReadRequest> (pendingReads);
+            pendingReads.clear();
+        }
+
+        try
+        {
+            readCoalesced (requests);
+        }
+
+        catch (RuntimeException ex)
+        {
+            for (ReadRequest request : requests)
+                request.result.fail (ex);
+            return;
+        }
+
+        for (ReadRequest request : requests)
+        {
+            if (request.error != null)
+                request.result.fail (request.error);
+            else
+                request.result.complete (request.value);
+        }
     }
 
     /**
-     * Determine the size of this map. Basically, this method just consolidates
-     * the size-determination logic in one place.
+     * Get the executor for the asynchronous methods, creating the map's
+     * own if necessary.
      *
-     * @return the size
+     * @return the executor
      */
-    private int currentSize()
+    private synchronized ExecutorService getAsyncExecutor()
     {
-        return indexMap.size();
+        if (asyncExecutor == null)
+        {
+            ThreadPoolExecutor executor =
+                new ThreadPoolExecutor
+                    (DEFAULT_ASYNC_THREADS,
+                     DEFAULT_ASYNC_THREADS,
+                     60, TimeUnit.SECONDS,
+                     new ArrayBlockingQueue<Runnable> (ASYNC_QUEUE_SIZE),
+                     new AsyncThreadFactory(),
+                     new ThreadPoolExecutor.CallerRunsPolicy());
+            executor.allowCoreThreadTimeOut (true);
+
+            asyncExecutor    = executor;
+            ownAsyncExecutor = true;
+        }
+
+        return asyncExecutor;
     }
 
     /**
-     * Locate gaps in the file by traversing the index. Initializes or
-     * reinitializes the fileGaps instance variable.
+     * Read the values for a set of keys, storing them in the requests.
+     * The values are read in file order, and values that are close
+     * together are read with one I/O call. A value whose entry changed
+     * while it was being read is looked up again with get().
+     *
+     * @param requests  the keys to read
      */
-    private void findFileGaps()
+    private void readCoalesced (List<ReadRequest> requests)
     {
-        log.debug ("Looking for file gaps.");
-
-        if (fileGaps == null)
-            fileGaps = new TreeSet<FileHashMapEntry<K>> (new FileHashMapEntryGapComparator());
-        else
-            fileGaps.clear();
+        int               generation = compactions;
+        List<ReadRequest> toRead = new ArrayList<ReadRequest>();
 
-        if (currentSize() > 0)
+        for (ReadRequest request : requests)
         {
-            List<FileHashMapEntry<K>>     entries  = getSortedEntries();
-            FileHashMapEntry<K>           previous = null;
-            Iterator<FileHashMapEntry<K>> it       = entries.iterator();
+            request.entry = indexMap.get (request.key);
+            if (isExpired (request.entry))
+                request.entry = null;
+            if (request.entry != null)
+                toRead.add (request);
+        }
 
-            // Handle the first one specially.
+        Collections.sort (toRead, new Comparator<ReadRequest>()
+        {
+            public int compare (ReadRequest a, ReadRequest b)
+            {
+                long pa = a.entry.getFilePosition();
+                long pb = b.entry.getFilePosition();
+                return (pa < pb) ? -1 : ((pa == pb) ? 0 : 1);
+            }
+        });
 
-            FileHashMapEntry<K> entry = it.next();
-            long pos  = entry.getFilePosition();
-            int  size = entry.getObjectSize();
+        int i = 0;
+        while (i < toRead.size())
+        {
+            FileHashMapEntry<K> first = toRead.get (i).entry;
+            long start = first.getFilePosition();
+            long end   = start + first.getObjectSize();
+            int  j     = i + 1;
 
-            if (pos > 0)
+            while (j < toRead.size())
             {
-                // There's a gap at the beginning.
+                FileHashMapEntry<K> next = toRead.get (j).entry;
+                long nextEnd = Math.max (end, next.getFilePosition() +
+                                              next.getObjectSize());
 
-                log.debug ("First entry is at pos " + pos + ", size=" + size);
-                size = (int) pos;
-                log.debug ("Gap at position 0 of size " + size);
-                fileGaps.add (new FileHashMapEntry<K> ((long) 0, size));
+                if ( ((next.getFilePosition() - end) > COALESCE_GAP) ||
+                     ((nextEnd - start) > SCAN_BUFFER_SIZE) )
+                    break;
+
+                end = nextEnd;
+                j++;
             }
 
-            previous = entry;
+            byte[] buf = null;
+            try
+            {
+                buf = new byte[(int) (end - start)];
+                valuesDB.read (start, buf);
+            }
 
-            while (it.hasNext())
+            catch (IOException ex)
             {
-                entry = it.next();
+                buf = null;
+            }
 
-                long previousPos    = previous.getFilePosition();
-                long possibleGapPos = previousPos + previous.getObjectSize();
-                pos = entry.getFilePosition();
+            for (; i < j; i++)
+            {
+                ReadRequest         request = toRead.get (i);
+                FileHashMapEntry<K> entry   = request.entry;
 
-                assert (pos > previousPos);
-                if (possibleGapPos != pos)
+                if (buf != null)
                 {
-                    int gapSize = (int) (pos - possibleGapPos);
-
-                    log.debug ("Gap at position " + possibleGapPos +
-                               " of size " + gapSize);
-                    fileGaps.add (new FileHashMapEntry<K> (possibleGapPos,
-                                                           gapSize));
+                    try
+                    {
+                        request.value =
+                            decodeValue (buf,
+                                         (int) (entry.getFilePosition() -
+                                                start),
+                                         entry.getObjectSize());
+                    }
+
+                    catch (IOException ex)
+                    {
+                    }
+
+                    catch (ClassNotFoundException ex)
+                    {
+                    }
                 }
 
-                previous = entry;
+                // As in get(): if the entry changed while we were reading,
+                // the bytes may belong to something else.
+
+                if ( (request.value == null) ||
+                     (compactions != generation) ||
+                     (! sameLocation (entry, indexMap.get (request.key))) )
+                {
+                    try
+                    {
+                        request.value = get (request.key);
+                    }
+
+                    catch (RuntimeException ex)
+                    {
+                        request.value = null;
+                        request.error = ex;
+                    }
+                }
             }
         }
     }
 
     /**
-     * Get the list of FileHashMapEntry pointers for the values, sorted
-     * in ascending file position order.
+     * Determine whether an index entry still refers to the same stored
+     * value as an earlier lookup of the same key. (An on-disk index hands
+     * out a new entry object on every lookup, so its entries have to be
+     * compared by location.)
      *
-     * @return A sorted list of FileHashMapEntry objects.
+     * @param entry    the entry from the earlier lookup
+     * @param current  the entry now in the index, or null
+     *
+     * @return <tt>true</tt> if they're the same, <tt>false</tt> if not
      */
-    private List<FileHashMapEntry<K>> getSortedEntries()
+    private boolean sameLocation (FileHashMapEntry<K> entry,
+                                  FileHashMapEntry<K> current)
     {
-        // Get the set of values in the hash index. Each value is a
-        // FileHashMapEntry object.
+        if (current == entry)    // NOPMD (legal reference comparison)
+            return true;
 
-        List<FileHashMapEntry<K>> vals = new ArrayList<FileHashMapEntry<K>>();
-        vals.addAll (indexMap.values());
+        return (mappedIndex != null) &&
+               (current != null) &&
+               (current.getFilePosition() == entry.getFilePosition()) &&
+               (current.getObjectSize() == entry.getObjectSize());
+    }
 
-        // Sort the list.
+    /**
+     * Shut down the map's own asynchronous executor, if it has one, and
+     * wait for the operations already queued to finish. The threads are
+     * not interrupted, since interrupting channel I/O closes the channel.
+     */
+    private void shutDownAsyncExecutor()
+    {
+        ExecutorService executor = null;
 
-        Collections.sort (vals, new FileHashMapEntryComparator());
+        synchronized (this)
+        {
+            if (ownAsyncExecutor)
+                executor = asyncExecutor;
 
-        return vals;
+            asyncExecutor    = null;
+            ownAsyncExecutor = false;
+        }
+
+        if (executor != null)
+        {
+            executor.shutdown();
+
+            boolean interrupted = false;
+            for (;;)
+            {
+                try
+                {
+                    executor.awaitTermination (Long.MAX_VALUE,
+                                               TimeUnit.MILLISECONDS);
+                    break;
+                }
+
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
     /**
-     * Load the index from its disk file.
+     * Encode a value for storage in the data file, adding the record
+     * header if CHECKSUMS is set.
      *
-     * @throws IOException              on error
-     * @throws ClassNotFoundException   error deserializing one of the objects
-     * @throws VersionMismatchException bad version in index file
+     * @param value  the value
+     *
+     * @return the bytes to store
+     *
+     * @throws IOException the value can't be encoded
      */
-    private void loadIndex()
-        throws IOException,
-               ClassNotFoundException,
-               VersionMismatchException
+    private byte[] encodeValue (V value)
+        throws IOException
     {
-        ObjectInputStream  objStream;
-        String             version;
-
-        objStream = new ObjectInputStream
-                                  (new FileInputStream (this.indexFilePath));
-        version = (String) objStream.readObject();
-
-        if (! version.equals (VERSION_STAMP))
-        {
-            throw new VersionMismatchException
-                          (Package.BUNDLE_NAME,
-                           "FileHashMap.versionMismatch",
-                           "FileHashMap version mismatch in index file " +
-                           "\"{0}\". Expected version \"{1}\", found " +
-                           "version \"{2}\"",
-                           new Object[]
-                           {
-                               indexFilePath.getName(),
-                               VERSION_STAMP,
-                               version
-                           },
-                           VERSION_STAMP,
-                           version);
-        }
+        long   start = System.nanoTime();
+        byte[] bytes = valueCodec.encode (value);
 
-        // This typecast will generate an "unchecked cast" exception.
-        // Unfortunately, there's no way around it (other than to avoid
-        // making calls like this). See
-        // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
+        if ((flags & CHECKSUMS) != 0)
+            bytes = addRecordHeader (bytes);
 
-        indexMap = (HashMap<K, FileHashMapEntry<K>>) objStream.readObject();
+        counters.encodes.increment();
+        counters.encodeNanos.add (System.nanoTime() - start);
+        return bytes;
     }
 
     /**
-     * Read an object from a specific location in the random access file
-     * data file.
+     * Prefix an encoded value with the record header that CHECKSUMS
+     * requires.
      *
-     * @param entry  The FileHashMapEntry specifying the object's location
+     * @param bytes  the encoded value
      *
-     * @return the object
+     * @return the record
+     */
+    private static byte[] addRecordHeader (byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update (bytes);
+
+        byte[] record = new byte[RECORD_HEADER_SIZE + bytes.length];
+        ByteBuffer.wrap (record)
+                  .putInt (bytes.length)
+                  .putInt ((int) crc.getValue())
+                  .put (bytes);
+        return record;
+    }
+
+    /**
+     * Decode a value read from the data file, verifying and stripping the
+     * record header if CHECKSUMS is set.
      *
-     * @throws IOException            Read error
-     * @throws ClassNotFoundException The serialized class read from the
-     *                                   file cannot be loaded
-     * @throws IllegalStateException  No object stored at location (i.e.,
-     *                                   no size value has been set)
+     * @param buf     the buffer holding the stored bytes
+     * @param offset  where they start
+     * @param size    how many there are
      *
-     * @see #getFilePosition
-     * @see #writeObject
+     * @return the value
+     *
+     * @throws IOException            the value is corrupt, or can't be
+     *                                decoded
+     * @throws ClassNotFoundException the value's class can't be found
      */
-    private V readValue (FileHashMapEntry<K> entry)
+    private V decodeValue (byte[] buf, int offset, int size)
         throws IOException,
-               ClassNotFoundException,
-               IllegalStateException
+               ClassNotFoundException
     {
-        int                size      = entry.getObjectSize();
-        byte               byteBuf[] = new byte[size];
-        int                sizeRead;
-        ObjectInputStream  objStream;
+        long start = System.nanoTime();
 
-        // Load the serialized object into memory.
-
-        synchronized (this)
+        if ((flags & CHECKSUMS) != 0)
         {
-            RandomAccessFile valuesFile = valuesDB.getFile();
-            valuesFile.seek (entry.getFilePosition());
-            if ( (sizeRead = valuesFile.read (byteBuf)) != size )
-            {
-                throw new IOException ("Expected to read " +
-                                       size +
-                                       "-byte serialized object from " +
-                                       " on-disk data file. Got only " +
-                                       sizeRead +
-                                       " bytes.");
-            }
+            if (! isRecordIntact (buf, offset, size))
+                throw new IOException ("Corrupt value record");
+
+            offset += RECORD_HEADER_SIZE;
+            size   -= RECORD_HEADER_SIZE;
         }
 
-        // Use a ByteArrayInputStream and an ObjectInputStream to read
-        // the actual object itself.
+        V value = valueCodec.decode (buf, offset, size);
+
+        counters.decodes.increment();
+        counters.decodeNanos.add (System.nanoTime() - start);
+        return value;
+    }
+
+    /**
+     * Check the header of a stored record.
+     *
+     * @param buf     the buffer holding the record
+     * @param offset  where it starts
+     * @param size    its size, according to the index
+     *
+     * @return <tt>true</tt> if the length and checksum match,
+     *         <tt>false</tt> if not
+     */
+    private static boolean isRecordIntact (byte[] buf, int offset, int size)
+    {
+        if (size < RECORD_HEADER_SIZE)
+            return false;
+
+        ByteBuffer header = ByteBuffer.wrap (buf, offset, RECORD_HEADER_SIZE);
+        int        length = header.getInt();
+        int        sum    = header.getInt();
+
+        if (length != size - RECORD_HEADER_SIZE)
+            return false;
+
+        CRC32 crc = new CRC32();
+        crc.update (buf, offset + RECORD_HEADER_SIZE, length);
+        return (sum == (int) crc.getValue());
+    }
+
+    /**
+     * Read an entry's record and check its header.
+     *
+     * @param entry  the entry
+     *
+     * @return <tt>true</tt> if the record is intact, <tt>false</tt> if it
+     *         is corrupt or can't be read
+     */
+    private boolean isRecordIntact (FileHashMapEntry<K> entry)
+    {
+        byte[] buf = new byte[entry.getObjectSize()];
 
-        objStream = new ObjectInputStream (new ByteArrayInputStream (byteBuf));
+        try
+        {
+            valuesDB.read (entry.getFilePosition(), buf);
+        }
 
-        // This typecast will generate an "unchecked cast" exception.
-        // Unfortunately, there's no way around it (other than to avoid
-        // making calls like this). See
-        // http://www.langer.camelot.de/GenericsFAQ/JavaGenericsFAQ.html#Technicalities
+        catch (IOException ex)
+        {
+            return false;
+        }
 
-        return (V) objStream.readObject();
+        return isRecordIntact (buf, 0, buf.length);
     }
 
     /**
@@ -1997,25 +6557,117 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
     }
 
     /**
-     * Save the index to its disk file.
+     * Read the value for an entry that may have been fetched before a
+     * compaction moved the values around. If so, the entry's key is looked
+     * up again.
+     *
+     * @param entry       the entry
+     * @param generation  the value of the compaction counter when the
+     *                    entry was fetched
+     *
+     * @return the object, or null if not found
+     */
+    private V readValueNoError (FileHashMapEntry<K> entry, int generation)
+    {
+        if (generation == compactions)
+            return readValueNoError (entry);
+
+        return get (entry.getKey());
+    }
+
+    /**
+     * Save the index as it stands now. The caller must hold the checkpoint
+     * lock, and must either hold the structure lock or be the constructor.
+     *
+     * @throws IOException  on error
+     */
+    private void saveCurrentIndex()
+        throws IOException
+    {
+        if (mappedIndex != null)
+            forceMappedIndex();
+
+        else
+        {
+            saveIndex (new HashMap<K, FileHashMapEntry<K>> (indexMap),
+                       (freeSpace == null) ? null : freeSpace.toArray());
+        }
+    }
+
+    /**
+     * Save a copy of the index to its disk file. The copy is written to a
+     * temporary file, forced to disk, and then renamed over the old index,
+     * so a crash in mid-save leaves the old index intact. The caller must
+     * hold the checkpoint lock.
+     *
+     * @param index  the copy of the index to save
+     * @param gaps   the gap list, as returned by FreeSpaceManager.toArray(),
+     *               or null if gaps aren't being tracked
+     *
+     * @throws IOException  on error
+     */
+    private void saveIndex (Map<K, FileHashMapEntry<K>> index, long[] gaps)
+        throws IOException
+    {
+        long start = System.nanoTime();
+
+        saveIndex (indexFilePath, index, gaps);
+        countIndexSave (start);
+    }
+
+    /**
+     * Force the on-disk index to disk, which is what saving the index
+     * amounts to when MAPPED_INDEX is set.
+     *
+     * @throws IOException  on error
+     */
+    private void forceMappedIndex()
+        throws IOException
+    {
+        long start = System.nanoTime();
+
+        mappedIndex.force();
+        countIndexSave (start);
+    }
+
+    /**
+     * Count an index save in the statistics.
+     *
+     * @param start  the value of System.nanoTime() when it started
+     */
+    private void countIndexSave (long start)
+    {
+        counters.indexSaves.increment();
+        counters.indexSaveNanos.add (System.nanoTime() - start);
+    }
+
+    /**
+     * Save a copy of the index to a file, in the same way as
+     * saveIndex(Map,long[]).
+     *
+     * @param path   the file
+     * @param index  the copy of the index to save
+     * @param gaps   the gap list, or null
      *
      * @throws IOException  on error
      */
-    private synchronized void saveIndex()
+    private void saveIndex (File                        path,
+                            Map<K, FileHashMapEntry<K>> index,
+                            long[]                      gaps)
         throws IOException
     {
-        ObjectOutputStream objStream;
+        File tempPath = new File (path.getPath() + ".tmp");
 
-        objStream = new ObjectOutputStream
-                                   (new FileOutputStream (this.indexFilePath));
-        objStream.writeObject (VERSION_STAMP);
-        objStream.writeObject (indexMap);
+        FileHashMapIndexFile.write (tempPath, index, gaps, keyCodec);
+        replaceFile (tempPath, path);
 
         if (log.isDebugEnabled())
         {
-            List<FileHashMapEntry<K>> entries = getSortedEntries();
+            List<FileHashMapEntry<K>> entries =
+                new ArrayList<FileHashMapEntry<K>> (index.values());
+            Collections.sort (entries, new FileHashMapEntryComparator());
 
-            log.debug ("Just saved index. Total entries=" + currentSize());
+            log.debug ("Just saved index. Total entries=" + index.size());
             log.debug ("Index values follow.");
             for (FileHashMapEntry<K> entry : entries)
             {
@@ -2030,7 +6682,7 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
     /**
      * Write an object to the end of the data file, recording its position
      * and length in a FileHashMapEntry object. Note: The object to be
-     * stored must implement the <tt>Serializable</tt> interface.
+     * stored must be acceptable to the map's value codec.
      *
      * @param key   The object's key (specified by the caller of
      *              FileHashMap.put())
@@ -2040,104 +6692,42 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
      *         the stored object
      *
      * @throws IOException                Write error
-     * @throws NotSerializableException   Object isn't serializable
+     * @throws NotSerializableException   Object isn't serializable (default
+     *                                    codec only)
      *
      * @see #getFilePosition
      * @see #readValue
      */
-    private synchronized FileHashMapEntry<K> writeValue (K key, V obj)
+    private FileHashMapEntry<K> writeValue (K key, V obj)
         throws IOException,
                NotSerializableException
     {
-        ObjectOutputStream     objStream;
-        ByteArrayOutputStream  byteStream;
-        int                    size;
-        long                   filePos = -1;
+        byte[]  bytes;
+        int     size;
+        long    filePos = -1;
 
-        // Serialize the object to a byte buffer.
+        // Encode the object to a byte buffer.
 
-        byteStream = new ByteArrayOutputStream();
-        objStream  = new ObjectOutputStream (byteStream);
-        objStream.writeObject (obj);
-        size = byteStream.size();
+        bytes = encodeValue (obj);
+        size  = bytes.length;
 
         // Find a location for the object.
 
-        if ((flags & RECLAIM_FILE_GAPS) != 0)
-            filePos = findBestFitGap (size);
+        if (freeSpace != null)
+            filePos = freeSpace.allocate (size);
 
-        RandomAccessFile valuesFile = this.valuesDB.getFile();
         if (filePos == -1)
-            filePos = valuesFile.length();
-
-        valuesFile.seek (filePos);
+            filePos = valuesDB.reserve (size);
 
         // Write the bytes of the serialized object.
 
-        valuesFile.write (byteStream.toByteArray());
+        valuesDB.write (filePos, bytes);
 
         // Return the entry.
 
         return new FileHashMapEntry<K> (filePos, size, key);
     }
 
-    /**
-     * Finds the smallest gap that can hold a serialized object.
-     *
-     * @param objectSize  the size of the serialized object
-     *
-     * @return the file position, or -1 if not found
-     */
-    private long findBestFitGap (int objectSize)
-    {
-        long result = -1;
-
-        log.debug ("Finding smallest gap for " + objectSize + "-byte object");
-
-        assert (fileGaps != null);
-        for (Iterator<FileHashMapEntry<K>> it = fileGaps.iterator();
-             it.hasNext(); )
-        {
-            FileHashMapEntry<K> gap = it.next();
-
-            long pos  = gap.getFilePosition();
-            int  size = gap.getObjectSize();
-
-            log.debug ("Gap: pos=" + pos + ", size=" + size);
-            if (size >= objectSize)
-            {
-                log.debug ("Found it.");
-                result = pos;
-
-                if (size > objectSize)
-                {
-                    log.debug ("Gap size is larger than required. Making " +
-                               "smaller gap.");
-
-                    // Remove it and re-insert it, since the gap list is
-                    // sorted by size.
-
-                    it.remove();
-
-                    pos  += objectSize;
-                    size -= objectSize;
-                    gap.setFilePosition (pos);
-                    gap.setObjectSize (size);
-
-                    log.debug ("Saving new, smaller gap: pos=" + pos +
-                               ", size=" + size);
-
-                    fileGaps.add (gap);
-                }
-
-                break;
-            }
-        }
-
-        log.debug ("findBestFitGap: returning " + result);
-        return result;
-    }
-
     private void deleteMapFiles()
     {
 
@@ -2150,7 +6740,27 @@ public class FileHashMap<K,V> extends AbstractMap<K,V>
         if (indexFilePath != null)
         {
             indexFilePath.delete();
+            new File (indexFilePath.getPath() + GAPS_FILE_SUFFIX).delete();
             indexFilePath = null;
         }
+
+        if (keyFilePath != null)
+        {
+            keyFilePath.delete();
+            keyFilePath = null;
+        }
+
+        if (logFilePath != null)
+        {
+            logFilePath.delete();
+            FileHashMapLog.rotatedPath (logFilePath).delete();
+            logFilePath = null;
+        }
+
+        if (lockFilePath != null)
+        {
+            lockFilePath.delete();
+            lockFilePath = null;
+        }
     }
 }
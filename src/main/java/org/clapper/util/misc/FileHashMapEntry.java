@@ -90,6 +90,12 @@ class FileHashMapEntry<K>
      */
     private K key = null;
 
+    /**
+     * When the entry expires, in milliseconds since the epoch, or 0 if it
+     * never does.
+     */
+    private long expirationTime = 0;
+
     /*----------------------------------------------------------------------*\
                                Constructors
     \*----------------------------------------------------------------------*/
@@ -240,7 +246,7 @@ class FileHashMapEntry<K>
     int getObjectSize()
         throws IllegalStateException
     {
-        assert (this.objectSize > 0) : "No object stored yet";
+        assert (this.objectSize >= 0) : "No object stored yet";
         return this.objectSize;
     }
 
@@ -256,4 +262,42 @@ class FileHashMapEntry<K>
     {
         this.objectSize = size;
     }
+
+    /**
+     * Get the time at which the entry expires.
+     *
+     * @return the expiration time, in milliseconds since the epoch, or 0
+     *         if the entry never expires
+     *
+     * @see #setExpirationTime
+     */
+    long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
+
+    /**
+     * Set the time at which the entry expires.
+     *
+     * @param time  the expiration time, in milliseconds since the epoch,
+     *              or 0 if the entry never expires
+     *
+     * @see #getExpirationTime
+     */
+    void setExpirationTime (long time)
+    {
+        this.expirationTime = time;
+    }
+
+    /**
+     * Determine whether the entry has expired.
+     *
+     * @param now  the current time, in milliseconds since the epoch
+     *
+     * @return <tt>true</tt> if it has, <tt>false</tt> if not
+     */
+    boolean isExpired (long now)
+    {
+        return (expirationTime != 0) && (now >= expirationTime);
+    }
 }
@@ -0,0 +1,412 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+
+package org.clapper.util.misc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Reads and writes the binary index file of a <tt>FileHashMap</tt>
+ * whose index is kept on the heap. This class is not publicly
+ * accessible.</p>
+ *
+ * <p>The file consists of a fixed-size header, a table of fixed-width
+ * slots (one per key), the encoded keys, and the gap list. All integers
+ * are big-endian.</p>
+ *
+ * <pre>
+ *   Header (64 bytes):
+ *     int    magic number
+ *     int    format version
+ *     long   number of slots (n)
+ *     long   file offset of the first key
+ *     long   file offset of the gap list
+ *     int    number of gap list elements, or -1 if there is no gap list
+ *     (reserved)
+ *
+ *   Slot (32 bytes, n of them):
+ *     long   value file position
+ *     int    value size
+ *     int    hash of the encoded key
+ *     long   file offset of the key
+ *     long   expiration time, in milliseconds since the epoch, or 0
+ *
+ *   Key (n of them):
+ *     int    length of the encoded key
+ *     byte[] the key, encoded with the map's key codec
+ *
+ *   Gap list:
+ *     long[] as returned by FreeSpaceManager.toArray()
+ * </pre>
+ *
+ * <p>Because the slots are fixed-width, the file can be mapped into
+ * memory and any slot located without reading the ones before it; keys
+ * are decoded only when their slots are visited. Loading the file into a
+ * heap index therefore involves no Java serialization at all, unlike the
+ * old index format, which <tt>FileHashMap</tt> still reads.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class FileHashMapIndexFile
+{
+    /*----------------------------------------------------------------------*\
+                             Package Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The current format version.
+     */
+    static final int VERSION = 1;
+
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int MAGIC       = 0x46484958;     // "FHIX"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE   = 32;
+
+    private static final int H_MAGIC       = 0;
+    private static final int H_VERSION     = 4;
+    private static final int H_COUNT       = 8;
+    private static final int H_KEYS_OFFSET = 16;
+    private static final int H_GAPS_OFFSET = 24;
+    private static final int H_GAP_COUNT   = 32;
+
+    private static final int S_VALUE_POS  = 0;
+    private static final int S_VALUE_SIZE = 8;
+    private static final int S_HASH       = 12;
+    private static final int S_KEY_OFFSET = 16;
+    private static final int S_EXPIRATION = 24;
+
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    private FileHashMapIndexFile()
+    {
+        // Cannot be instantiated.
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Determine whether a file is a binary index file.
+     *
+     * @param path  the file
+     *
+     * @return <tt>true</tt> if it is, <tt>false</tt> if not
+     *
+     * @throws IOException on error
+     */
+    static boolean isIndexFile (File path)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream (new FileInputStream (path));
+
+        try
+        {
+            return (path.length() >= HEADER_SIZE) && (in.readInt() == MAGIC);
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Write an index file, and sync it to disk.
+     *
+     * @param path      the file to write
+     * @param index     the index
+     * @param gaps      the gap list, or null
+     * @param keyCodec  encodes the keys
+     *
+     * @throws IOException on error
+     */
+    static <K> void write (File                        path,
+                           Map<K, FileHashMapEntry<K>> index,
+                           long[]                      gaps,
+                           ValueCodec<K>               keyCodec)
+        throws IOException
+    {
+        // The slots hold the keys' offsets, so the keys have to be encoded
+        // before the slots can be written.
+
+        List<FileHashMapEntry<K>> entries =
+            new ArrayList<FileHashMapEntry<K>> (index.values());
+        List<byte[]>              keys = new ArrayList<byte[]> (entries.size());
+        long                      keysOffset = HEADER_SIZE +
+                                               ((long) entries.size() *
+                                                SLOT_SIZE);
+        long                      gapsOffset = keysOffset;
+
+        for (FileHashMapEntry<K> entry : entries)
+        {
+            byte[] key = keyCodec.encode (entry.getKey());
+            keys.add (key);
+            gapsOffset += 4 + key.length;
+        }
+
+        FileOutputStream out  = new FileOutputStream (path);
+        DataOutputStream data = new DataOutputStream
+                                    (new BufferedOutputStream
+                                         (out, WRITE_BUFFER_SIZE));
+        try
+        {
+            data.writeInt (MAGIC);
+            data.writeInt (VERSION);
+            data.writeLong (entries.size());
+            data.writeLong (keysOffset);
+            data.writeLong (gapsOffset);
+            data.writeInt ((gaps == null) ? -1 : gaps.length);
+            data.write (new byte[HEADER_SIZE - H_GAP_COUNT - 4]);
+
+            long keyOffset = keysOffset;
+            for (int i = 0; i < entries.size(); i++)
+            {
+                FileHashMapEntry<K> entry = entries.get (i);
+                byte[]              key   = keys.get (i);
+
+                data.writeLong (entry.getFilePosition());
+                data.writeInt (entry.getObjectSize());
+                data.writeInt (MappedKeyIndex.hash (key));
+                data.writeLong (keyOffset);
+                data.writeLong (entry.getExpirationTime());
+
+                keyOffset += 4 + key.length;
+            }
+
+            for (byte[] key : keys)
+            {
+                data.writeInt (key.length);
+                data.write (key);
+            }
+
+            if (gaps != null)
+            {
+                for (long l : gaps)
+                    data.writeLong (l);
+            }
+
+            data.flush();
+            out.getFD().sync();
+        }
+
+        finally
+        {
+            data.close();
+        }
+    }
+
+    /**
+     * Read an index file into a map.
+     *
+     * @param path      the file to read
+     * @param keyCodec  decodes the keys
+     * @param index     the map to fill
+     *
+     * @return the gap list, or null if there isn't one
+     *
+     * @throws IOException              on error
+     * @throws ClassNotFoundException   a key can't be decoded
+     * @throws VersionMismatchException unsupported format version
+     */
+    static <K> long[] read (File                        path,
+                            ValueCodec<K>               keyCodec,
+                            Map<K, FileHashMapEntry<K>> index)
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        RandomAccessFile file = new RandomAccessFile (path, "r");
+
+        try
+        {
+            FileChannel         channel = file.getChannel();
+            SegmentedMappedFile map =
+                new SegmentedMappedFile
+                    (channel,
+                     FileChannel.MapMode.READ_ONLY,
+                     SegmentedMappedFile.DEFAULT_SEGMENT_SIZE);
+
+            try
+            {
+                return read (path, channel.size(), map, keyCodec, index);
+            }
+
+            finally
+            {
+                map.unmapAll();
+            }
+        }
+
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static <K> long[] read (File                        path,
+                                    long                        length,
+                                    SegmentedMappedFile         map,
+                                    ValueCodec<K>               keyCodec,
+                                    Map<K, FileHashMapEntry<K>> index)
+        throws IOException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        if ((length < HEADER_SIZE) || (map.getInt (H_MAGIC) != MAGIC))
+            throw corrupt (path);
+
+        int version = map.getInt (H_VERSION);
+        if (version != VERSION)
+        {
+            throw new VersionMismatchException
+                          (Package.BUNDLE_NAME,
+                           "FileHashMap.versionMismatch",
+                           "FileHashMap version mismatch in index file " +
+                           "\"{0}\". Expected version \"{1}\", found " +
+                           "version \"{2}\"",
+                           new Object[]
+                           {
+                               path.getName(),
+                               String.valueOf (VERSION),
+                               String.valueOf (version)
+                           },
+                           String.valueOf (VERSION),
+                           String.valueOf (version));
+        }
+
+        long count      = map.getLong (H_COUNT);
+        long keysOffset = map.getLong (H_KEYS_OFFSET);
+        long gapsOffset = map.getLong (H_GAPS_OFFSET);
+        int  gapCount   = map.getInt (H_GAP_COUNT);
+
+        if ( (count < 0) ||
+             (keysOffset != HEADER_SIZE + (count * SLOT_SIZE)) ||
+             (gapsOffset < keysOffset) ||
+             (gapsOffset + (Math.max (gapCount, 0) * 8L) != length) )
+        {
+            throw corrupt (path);
+        }
+
+        byte[] lengthBuf = new byte[4];
+
+        for (long i = 0; i < count; i++)
+        {
+            long slot      = HEADER_SIZE + (i * SLOT_SIZE);
+            long keyOffset = map.getLong (slot + S_KEY_OFFSET);
+
+            if ((keyOffset < keysOffset) || (keyOffset + 4 > gapsOffset))
+                throw corrupt (path);
+
+            map.get (keyOffset, lengthBuf, 0, 4);
+            int keyLength = ByteBuffer.wrap (lengthBuf).getInt();
+
+            if ((keyLength < 0) || (keyOffset + 4 + keyLength > gapsOffset))
+                throw corrupt (path);
+
+            byte[] keyBytes = new byte[keyLength];
+            map.get (keyOffset + 4, keyBytes, 0, keyLength);
+
+            K                   key   = keyCodec.decode (keyBytes, 0,
+                                                       keyLength);
+            FileHashMapEntry<K> entry = new FileHashMapEntry<K>
+                                            (map.getLong (slot + S_VALUE_POS),
+                                             map.getInt (slot + S_VALUE_SIZE),
+                                             key);
+
+            entry.setExpirationTime (map.getLong (slot + S_EXPIRATION));
+            index.put (key, entry);
+        }
+
+        // The gap list isn't aligned, so it may straddle a segment
+        // boundary.
+
+        long[] gaps = null;
+        if (gapCount >= 0)
+        {
+            byte[] gapBuf = new byte[gapCount * 8];
+            map.get (gapsOffset, gapBuf, 0, gapBuf.length);
+
+            gaps = new long[gapCount];
+            ByteBuffer.wrap (gapBuf).asLongBuffer().get (gaps);
+        }
+
+        return gaps;
+    }
+
+    private static IOException corrupt (File path)
+    {
+        return new IOException ("Index file \"" + path.getPath() +
+                                "\" is corrupt.");
+    }
+}
@@ -0,0 +1,243 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+
+package org.clapper.util.misc;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>The lock a persistent <tt>FileHashMap</tt> holds on its lock file
+ * while it's open: shared for a map opened with <tt>READ_ONLY</tt>,
+ * exclusive otherwise. The operating system's file locks keep other
+ * processes out. Since those locks are held on behalf of the whole Java
+ * VM, this class also keeps track of the locks held within the VM: maps
+ * in one VM that are opened the same way share one lock, while a
+ * read-only map and a read-write map conflict. (Opening a map for writing
+ * more than once in the same VM has never been prevented, so it still
+ * isn't.) This class is not publicly accessible.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class FileHashMapLock
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final String           key;
+    private final RandomAccessFile file;
+    private final FileLock         lock;
+    private final boolean          shared;
+    private int                    holders = 1;
+
+    /*----------------------------------------------------------------------*\
+                            Private Class Data
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The locks held in this VM, by canonical path.
+     */
+    private static final Map<String, FileHashMapLock> held =
+        new HashMap<String, FileHashMapLock>();
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    private FileHashMapLock (String           key,
+                             RandomAccessFile file,
+                             FileLock         lock,
+                             boolean          shared)
+    {
+        this.key    = key;
+        this.file   = file;
+        this.lock   = lock;
+        this.shared = shared;
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Lock a lock file, creating it if necessary.
+     *
+     * @param path    the lock file
+     * @param shared  <tt>true</tt> for a shared (read-only) lock,
+     *                <tt>false</tt> for an exclusive one
+     *
+     * @return the lock
+     *
+     * @throws IOException the file is already locked in a conflicting way,
+     *                     or can't be opened
+     */
+    static FileHashMapLock acquire (File path, boolean shared)
+        throws IOException
+    {
+        String key = path.getCanonicalPath();
+
+        synchronized (held)
+        {
+            FileHashMapLock existing = held.get (key);
+
+            if (existing != null)
+            {
+                if (shared == existing.shared)
+                {
+                    existing.holders++;
+                    return existing;
+                }
+
+                throw inUse (path);
+            }
+
+            RandomAccessFile file = open (path, shared);
+            FileLock         lock = null;
+
+            try
+            {
+                lock = file.getChannel().tryLock (0, Long.MAX_VALUE, shared);
+            }
+
+            catch (OverlappingFileLockException ex)
+            {
+                // Locked through another channel in this VM, but not by us.
+            }
+
+            finally
+            {
+                if (lock == null)
+                    file.close();
+            }
+
+            if (lock == null)
+                throw inUse (path);
+
+            FileHashMapLock result = new FileHashMapLock (key, file, lock,
+                                                          shared);
+            held.put (key, result);
+            return result;
+        }
+    }
+
+    /**
+     * Give up this holder's share of the lock. The lock itself is released
+     * when the last holder gives it up.
+     *
+     * @throws IOException on error
+     */
+    void release()
+        throws IOException
+    {
+        synchronized (held)
+        {
+            if (holders == 0)
+                return;
+
+            if (--holders == 0)
+            {
+                held.remove (key);
+
+                try
+                {
+                    lock.release();
+                }
+
+                finally
+                {
+                    file.close();
+                }
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static IOException inUse (File path)
+    {
+        return new IOException ("\"" + path.getPath() + "\" is locked: the " +
+                                "FileHashMap is already open elsewhere. " +
+                                "A map can't be open for writing in more " +
+                                "than one process, or while it's open " +
+                                "read-only.");
+    }
+
+    /**
+     * Open the lock file. A shared lock needs only read access, so a
+     * read-only map can still be locked if the file exists but can't be
+     * written.
+     */
+    private static RandomAccessFile open (File path, boolean shared)
+        throws IOException
+    {
+        try
+        {
+            return new RandomAccessFile (path, "rw");
+        }
+
+        catch (FileNotFoundException ex)
+        {
+            if (shared && path.exists())
+                return new RandomAccessFile (path, "r");
+
+            throw ex;
+        }
+    }
+}
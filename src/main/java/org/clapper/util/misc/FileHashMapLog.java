@@ -0,0 +1,559 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import org.clapper.util.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * <p>Append-only log of <tt>FileHashMap</tt> index mutations. Used by
+ * <tt>FileHashMap</tt> when the <tt>DURABLE</tt> flag is set. Each
+ * <tt>put()</tt> or <tt>remove()</tt> appends one small record (operation,
+ * encoded key, value position and size) to the log, so the index can be
+ * reconstructed after a crash by loading the last saved index and
+ * replaying the log on top of it. This class is not publicly
+ * accessible.</p>
+ *
+ * <p>Each record has the following layout. All integers are big-endian.</p>
+ *
+ * <pre>
+ *   int    payload length (n)
+ *   int    CRC-32 of the payload
+ *   byte   operation (PUT, EXPIRING_PUT or REMOVE)
+ *   long   value file position (puts only; -1 otherwise)
+ *   int    value size (puts only; 0 otherwise)
+ *   long   expiration time (EXPIRING_PUT only)
+ *   byte[] encoded key (the remaining bytes)
+ * </pre>
+ *
+ * <p>An <tt>EXPIRING_PUT</tt> is a <tt>PUT</tt> of an entry that has an
+ * expiration time. Logs written before expiration times existed contain
+ * only <tt>PUT</tt> and <tt>REMOVE</tt> records, so they can still be
+ * replayed.</p>
+ *
+ * <p>A record with a short payload or a bad checksum marks the end of the
+ * log. Such a record is the remains of a write that was interrupted by a
+ * crash; it is discarded during replay.</p>
+ *
+ * <p>A checkpoint saves the index, then discards the log. So that writers
+ * don't have to wait for the index to be saved, the log is first
+ * <i>rotated</i>: the current log file is renamed aside, and a fresh one is
+ * started. The rotated log is deleted once the index has been saved. If a
+ * crash intervenes, both logs are replayed, oldest first.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class FileHashMapLog
+{
+    /*----------------------------------------------------------------------*\
+                             Package Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Record type: key added or replaced.
+     */
+    static final byte PUT = 1;
+
+    /**
+     * Record type: key removed.
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * Record type: key added or replaced, with an expiration time.
+     * {@link #append append()} writes one in place of a {@link #PUT} when
+     * it's given an expiration time.
+     */
+    static final byte EXPIRING_PUT = 3;
+
+    /**
+     * Suffix appended to the log file name to get the rotated log file
+     * name.
+     */
+    static final String ROTATED_SUFFIX = ".1";
+
+    /*----------------------------------------------------------------------*\
+                           Package Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Receives the records read by {@link FileHashMapLog#replay}.
+     */
+    interface Replayer
+    {
+        void replayPut (byte[] key, long pos, int size, long expirationTime)
+            throws IOException,
+                   ClassNotFoundException;
+
+        void replayRemove (byte[] key)
+            throws IOException,
+                   ClassNotFoundException;
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int HEADER_SIZE  = 8;
+    private static final int FIXED_SIZE   = 1 + 8 + 4;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final File        path;
+    private final File        rotatedPath;
+    private RandomAccessFile  file;
+    private FileChannel       channel;
+    private long              end;
+    private int               recordCount = 0;
+
+    /*----------------------------------------------------------------------*\
+                            Private Class Data
+    \*----------------------------------------------------------------------*/
+
+    private static final Logger log = new Logger (FileHashMapLog.class);
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Open a log, creating it if it doesn't exist. The log is not replayed.
+     *
+     * @param path  the path to the log file
+     *
+     * @throws IOException on error
+     */
+    FileHashMapLog (File path)
+        throws IOException
+    {
+        this.path        = path;
+        this.rotatedPath = rotatedPath (path);
+        open();
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the name of the rotated log file that corresponds to a log file.
+     *
+     * @param path  the log file
+     *
+     * @return the rotated log file
+     */
+    static File rotatedPath (File path)
+    {
+        return new File (path.getPath() + ROTATED_SUFFIX);
+    }
+
+    /**
+     * Append a record.
+     *
+     * @param op          {@link #PUT} or {@link #REMOVE}
+     * @param key         the encoded key
+     * @param pos         the value's file position, for a PUT
+     * @param size        the value's size, for a PUT
+     * @param expiration  the entry's expiration time, for a PUT, or 0 if
+     *                    it doesn't expire
+     *
+     * @throws IOException on error
+     */
+    synchronized void append (byte   op,
+                              byte[] key,
+                              long   pos,
+                              int    size,
+                              long   expiration)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate (recordSize (key, expiration));
+        encode (buf, op, key, pos, size, expiration);
+        buf.flip();
+        write (buf);
+        recordCount++;
+    }
+
+    /**
+     * Append a series of {@link #PUT} records, with a single write.
+     *
+     * @param keys         the encoded keys
+     * @param positions    the values' file positions
+     * @param sizes        the values' sizes
+     * @param expirations  the entries' expiration times (0 for none)
+     *
+     * @throws IOException on error
+     */
+    synchronized void appendPuts (List<byte[]> keys,
+                                  long[]       positions,
+                                  int[]        sizes,
+                                  long[]       expirations)
+        throws IOException
+    {
+        int total = 0;
+        for (int i = 0; i < keys.size(); i++)
+            total += recordSize (keys.get (i), expirations[i]);
+
+        ByteBuffer buf = ByteBuffer.allocate (total);
+        for (int i = 0; i < keys.size(); i++)
+        {
+            encode (buf, PUT, keys.get (i), positions[i], sizes[i],
+                    expirations[i]);
+        }
+
+        buf.flip();
+        write (buf);
+        recordCount += keys.size();
+    }
+
+    /**
+     * Get the number of records appended since the log was last rotated
+     * or reset.
+     *
+     * @return the number of records
+     */
+    synchronized int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    /**
+     * Replay the rotated log, if any, then the current log. A torn record
+     * at the end of the current log is truncated away, so that new records
+     * can be appended after the last good one.
+     *
+     * @param replayer  receives the records
+     *
+     * @return the number of records replayed
+     *
+     * @throws IOException            on error
+     * @throws ClassNotFoundException a key can't be decoded
+     */
+    synchronized int replay (Replayer replayer)
+        throws IOException,
+               ClassNotFoundException
+    {
+        int total = 0;
+
+        if (rotatedPath.exists())
+        {
+            RandomAccessFile rotated = new RandomAccessFile (rotatedPath, "r");
+            try
+            {
+                total += replay (rotated.getChannel(), replayer);
+            }
+
+            finally
+            {
+                rotated.close();
+            }
+        }
+
+        total += replay (channel, replayer);
+        recordCount = total;
+
+        return total;
+    }
+
+    /**
+     * Rename the current log aside and start a new, empty one. If a rotated
+     * log still exists (because the checkpoint that should have discarded
+     * it failed), the current log's records are appended to it instead.
+     *
+     * @throws IOException on error
+     */
+    synchronized void rotate()
+        throws IOException
+    {
+        if (rotatedPath.exists())
+        {
+            RandomAccessFile rotated = new RandomAccessFile (rotatedPath, "rw");
+            try
+            {
+                FileChannel out = rotated.getChannel();
+                long        pos = 0;
+
+                out.position (out.size());
+                while (pos < end)
+                    pos += channel.transferTo (pos, end - pos, out);
+            }
+
+            finally
+            {
+                rotated.close();
+            }
+
+            channel.truncate (0);
+            end = 0;
+            recordCount = 0;
+        }
+
+        else
+        {
+            file.close();
+            boolean renamed = path.renameTo (rotatedPath);
+            open();
+
+            if (! renamed)
+            {
+                throw new IOException ("Can't rename \"" + path.getPath() +
+                                       "\" to \"" + rotatedPath.getPath() +
+                                       "\"");
+            }
+        }
+    }
+
+    /**
+     * Delete the rotated log. Called once the index that supersedes it has
+     * been safely saved.
+     */
+    synchronized void discardRotated()
+    {
+        if (rotatedPath.exists() && (! rotatedPath.delete()))
+            log.error ("Can't delete \"" + rotatedPath.getPath() + "\"");
+    }
+
+    /**
+     * Discard all records, in both the current and rotated logs.
+     *
+     * @throws IOException on error
+     */
+    synchronized void reset()
+        throws IOException
+    {
+        discardRotated();
+        channel.truncate (0);
+        end = 0;
+        recordCount = 0;
+    }
+
+    /**
+     * Force all appended records to the storage device.
+     *
+     * @throws IOException on error
+     */
+    void force()
+        throws IOException
+    {
+        channel.force (false);
+    }
+
+    /**
+     * Close the log. If <tt>delete</tt> is set, the (presumably empty) log
+     * file is removed as well.
+     *
+     * @param delete whether to delete the log files
+     *
+     * @throws IOException on error
+     */
+    synchronized void close (boolean delete)
+        throws IOException
+    {
+        file.close();
+
+        if (delete)
+        {
+            path.delete();
+            discardRotated();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void open()
+        throws IOException
+    {
+        file        = new RandomAccessFile (path, "rw");
+        channel     = file.getChannel();
+        end         = file.length();
+        recordCount = 0;
+    }
+
+    private void write (ByteBuffer buf)
+        throws IOException
+    {
+        while (buf.hasRemaining())
+            end += channel.write (buf, end);
+    }
+
+    private static int recordSize (byte[] key, long expiration)
+    {
+        return HEADER_SIZE + FIXED_SIZE + ((expiration == 0) ? 0 : 8) +
+               key.length;
+    }
+
+    private static void encode (ByteBuffer buf,
+                                byte       op,
+                                byte[]     key,
+                                long       pos,
+                                int        size,
+                                long       expiration)
+    {
+        int start       = buf.position();
+        int payloadSize = recordSize (key, expiration) - HEADER_SIZE;
+
+        if ((op == PUT) && (expiration != 0))
+            op = EXPIRING_PUT;
+
+        buf.putInt (payloadSize);
+        buf.putInt (0);                         // checksum placeholder
+        buf.put (op);
+        buf.putLong (pos);
+        buf.putInt (size);
+        if (op == EXPIRING_PUT)
+            buf.putLong (expiration);
+        buf.put (key);
+
+        CRC32 crc = new CRC32();
+        crc.update (buf.array(),
+                    buf.arrayOffset() + start + HEADER_SIZE,
+                    payloadSize);
+        buf.putInt (start + 4, (int) crc.getValue());
+    }
+
+    /**
+     * Replay one log file.
+     *
+     * @return the number of records replayed
+     */
+    private int replay (FileChannel in, Replayer replayer)
+        throws IOException,
+               ClassNotFoundException
+    {
+        long       pos    = 0;
+        long       length = in.size();
+        int        total  = 0;
+        ByteBuffer header = ByteBuffer.allocate (HEADER_SIZE);
+        CRC32      crc    = new CRC32();
+
+        while (pos + HEADER_SIZE <= length)
+        {
+            header.clear();
+            readFully (in, header, pos);
+            header.flip();
+
+            int payloadSize = header.getInt();
+            int checksum    = header.getInt();
+
+            if ( (payloadSize < FIXED_SIZE) ||
+                 (pos + HEADER_SIZE + payloadSize > length) )
+            {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate (payloadSize);
+            readFully (in, payload, pos + HEADER_SIZE);
+
+            crc.reset();
+            crc.update (payload.array(), 0, payloadSize);
+            if ((int) crc.getValue() != checksum)
+                break;
+
+            payload.flip();
+            byte op         = payload.get();
+            long vpos       = payload.getLong();
+            int  size       = payload.getInt();
+            long expiration = 0;
+
+            if (op == EXPIRING_PUT)
+            {
+                if (payload.remaining() < 8)
+                    break;
+
+                expiration = payload.getLong();
+            }
+
+            byte[] key = new byte[payload.remaining()];
+            payload.get (key);
+
+            if ((op == PUT) || (op == EXPIRING_PUT))
+                replayer.replayPut (key, vpos, size, expiration);
+            else if (op == REMOVE)
+                replayer.replayRemove (key);
+            else
+                break;
+
+            pos += HEADER_SIZE + payloadSize;
+            total++;
+        }
+
+        if (pos < length)
+        {
+            log.warn ("Discarding " + (length - pos) + " bytes of " +
+                      "incomplete log data at the end of log file.");
+            if (in == channel)              // NOPMD (legal reference comparison)
+            {
+                channel.truncate (pos);
+                end = pos;
+            }
+        }
+
+        return total;
+    }
+
+    private static void readFully (FileChannel in, ByteBuffer buf, long pos)
+        throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            if (in.read (buf, pos + buf.position()) < 0)
+                throw new IOException ("Unexpected end of log file");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+/**
+ * <p>The management interface of a {@link FileHashMap}, for monitoring a
+ * map through JMX. {@link FileHashMap#registerMBean} registers an MXBean
+ * with this interface in the platform MBean server; each attribute reads
+ * the map's current {@link FileHashMapStats statistics}.</p>
+ *
+ * @see FileHashMap#registerMBean
+ * @see FileHashMapStats
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public interface FileHashMapMXBean
+{
+    /**
+     * Get the prefix of the map's file names.
+     *
+     * @return the file prefix
+     */
+    public String getFilePrefix();
+
+    /**
+     * @see FileHashMapStats#getSize
+     */
+    public int getSize();
+
+    /**
+     * @see FileHashMapStats#getFileSize
+     */
+    public long getFileSize();
+
+    /**
+     * @see FileHashMapStats#getLiveBytes
+     */
+    public long getLiveBytes();
+
+    /**
+     * @see FileHashMapStats#getLiveRatio
+     */
+    public double getLiveRatio();
+
+    /**
+     * @see FileHashMapStats#getFragmentation
+     */
+    public double getFragmentation();
+
+    /**
+     * @see FileHashMapStats#getGapCount
+     */
+    public int getGapCount();
+
+    /**
+     * @see FileHashMapStats#getGapBytes
+     */
+    public long getGapBytes();
+
+    /**
+     * @see FileHashMapStats#getReads
+     */
+    public long getReads();
+
+    /**
+     * @see FileHashMapStats#getBytesRead
+     */
+    public long getBytesRead();
+
+    /**
+     * @see FileHashMapStats#getWrites
+     */
+    public long getWrites();
+
+    /**
+     * @see FileHashMapStats#getBytesWritten
+     */
+    public long getBytesWritten();
+
+    /**
+     * @see FileHashMapStats#getEncodes
+     */
+    public long getEncodes();
+
+    /**
+     * @see FileHashMapStats#getEncodeNanos
+     */
+    public long getEncodeNanos();
+
+    /**
+     * @see FileHashMapStats#getDecodes
+     */
+    public long getDecodes();
+
+    /**
+     * @see FileHashMapStats#getDecodeNanos
+     */
+    public long getDecodeNanos();
+
+    /**
+     * @see FileHashMapStats#getIndexSaves
+     */
+    public long getIndexSaves();
+
+    /**
+     * @see FileHashMapStats#getIndexSaveNanos
+     */
+    public long getIndexSaveNanos();
+
+    /**
+     * @see FileHashMapStats#getValueCacheHits
+     */
+    public long getValueCacheHits();
+
+    /**
+     * @see FileHashMapStats#getValueCacheMisses
+     */
+    public long getValueCacheMisses();
+
+    /**
+     * @see FileHashMapStats#getCompactions
+     */
+    public int getCompactions();
+}
@@ -0,0 +1,185 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+/**
+ * The MXBean {@link FileHashMap#registerMBean} registers. Each attribute
+ * takes a fresh {@link FileHashMapStats} snapshot from the map. This class
+ * is not publicly accessible.
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class FileHashMapMonitor implements FileHashMapMXBean
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final FileHashMap<?,?> map;
+    private final String           filePrefix;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    FileHashMapMonitor (FileHashMap<?,?> map, String filePrefix)
+    {
+        this.map        = map;
+        this.filePrefix = filePrefix;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    public String getFilePrefix()
+    {
+        return filePrefix;
+    }
+
+    public int getSize()
+    {
+        return map.getStats().getSize();
+    }
+
+    public long getFileSize()
+    {
+        return map.getStats().getFileSize();
+    }
+
+    public long getLiveBytes()
+    {
+        return map.getStats().getLiveBytes();
+    }
+
+    public double getLiveRatio()
+    {
+        return map.getStats().getLiveRatio();
+    }
+
+    public double getFragmentation()
+    {
+        return map.getStats().getFragmentation();
+    }
+
+    public int getGapCount()
+    {
+        return map.getStats().getGapCount();
+    }
+
+    public long getGapBytes()
+    {
+        return map.getStats().getGapBytes();
+    }
+
+    public long getReads()
+    {
+        return map.getStats().getReads();
+    }
+
+    public long getBytesRead()
+    {
+        return map.getStats().getBytesRead();
+    }
+
+    public long getWrites()
+    {
+        return map.getStats().getWrites();
+    }
+
+    public long getBytesWritten()
+    {
+        return map.getStats().getBytesWritten();
+    }
+
+    public long getEncodes()
+    {
+        return map.getStats().getEncodes();
+    }
+
+    public long getEncodeNanos()
+    {
+        return map.getStats().getEncodeNanos();
+    }
+
+    public long getDecodes()
+    {
+        return map.getStats().getDecodes();
+    }
+
+    public long getDecodeNanos()
+    {
+        return map.getStats().getDecodeNanos();
+    }
+
+    public long getIndexSaves()
+    {
+        return map.getStats().getIndexSaves();
+    }
+
+    public long getIndexSaveNanos()
+    {
+        return map.getStats().getIndexSaveNanos();
+    }
+
+    public long getValueCacheHits()
+    {
+        return map.getStats().getValueCacheHits();
+    }
+
+    public long getValueCacheMisses()
+    {
+        return map.getStats().getValueCacheMisses();
+    }
+
+    public int getCompactions()
+    {
+        return map.getStats().getCompactions();
+    }
+}
@@ -0,0 +1,209 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+
+package org.clapper.util.misc;
+
+import java.io.IOException;
+
+import java.util.Collection;
+
+/**
+ * <p>Command-line program that checks the values stored in an existing
+ * {@link FileHashMap} and lists the keys whose values are damaged. Usage:</p>
+ *
+ * <blockquote><pre>
+ * java org.clapper.util.misc.FileHashMapScrubber [-c] [-s] pathPrefix ...
+ * </pre></blockquote>
+ *
+ * <ul>
+ *   <li><tt>-c</tt>: the maps were written with {@link FileHashMap#CHECKSUMS}
+ *   <li><tt>-s</tt>: the maps' keys were encoded with
+ *       {@link ValueCodecs#forStrings}, rather than Java serialization
+ * </ul>
+ *
+ * <p>Each map is opened, checked with {@link FileHashMap#verify}, and closed
+ * again. The damaged keys are written to standard output, one per line,
+ * prefixed by the map's path prefix. The exit status is 0 if every map is
+ * intact, 1 if any value is damaged, and 2 on a usage or I/O error.</p>
+ *
+ * <p>Without <tt>-c</tt>, each value is decoded with Java serialization,
+ * so maps that use another value codec should always be written with
+ * checksums.</p>
+ *
+ * @see FileHashMap#verify
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public final class FileHashMapScrubber
+{
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    private FileHashMapScrubber()
+    {
+        // Not instantiable.
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Main Program
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Check the maps named on the command line.
+     *
+     * @param args  command-line parameters
+     */
+    public static void main (String[] args)
+    {
+        int     flags      = FileHashMap.NO_CREATE;
+        boolean stringKeys = false;
+        int     i;
+
+        for (i = 0; (i < args.length) && args[i].startsWith ("-"); i++)
+        {
+            if (args[i].equals ("-c"))
+                flags |= FileHashMap.CHECKSUMS;
+
+            else if (args[i].equals ("-s"))
+                stringKeys = true;
+
+            else
+                usage();
+        }
+
+        if (i == args.length)
+            usage();
+
+        int status = 0;
+        for (; i < args.length; i++)
+        {
+            try
+            {
+                if (! scrub (args[i], flags, stringKeys))
+                    status = Math.max (status, 1);
+            }
+
+            catch (IOException ex)
+            {
+                System.err.println (args[i] + ": " + ex.getMessage());
+                status = 2;
+            }
+
+            catch (ClassNotFoundException ex)
+            {
+                System.err.println (args[i] + ": " + ex.getMessage());
+                status = 2;
+            }
+
+            catch (NestedException ex)
+            {
+                System.err.println (args[i] + ": " + ex.getMessage());
+                status = 2;
+            }
+        }
+
+        System.exit (status);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static boolean scrub (String  pathPrefix,
+                                  int     flags,
+                                  boolean stringKeys)
+        throws IOException,
+               ClassNotFoundException,
+               NestedException
+    {
+        ValueCodec<Object> valueCodec = ValueCodecs.javaSerialization();
+        FileHashMap<?,?>   map;
+
+        if (stringKeys)
+        {
+            map = new FileHashMap<String,Object> (pathPrefix,
+                                                  flags,
+                                                  ValueCodecs.forStrings(),
+                                                  valueCodec);
+        }
+
+        else
+        {
+            map = new FileHashMap<Object,Object>
+                      (pathPrefix,
+                       flags,
+                       ValueCodecs.<Object>javaSerialization(),
+                       valueCodec);
+        }
+
+        try
+        {
+            Collection<?> damaged = map.verify();
+
+            for (Object key : damaged)
+                System.out.println (pathPrefix + ": " + key);
+
+            return damaged.isEmpty();
+        }
+
+        finally
+        {
+            map.close();
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println ("Usage: java " +
+                            FileHashMapScrubber.class.getName() +
+                            " [-c] [-s] pathPrefix ...");
+        System.exit (2);
+    }
+}
@@ -0,0 +1,350 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+/**
+ * <p>A snapshot of the statistics a {@link FileHashMap} keeps about its
+ * I/O and its data file, as returned by {@link FileHashMap#getStats}. The
+ * counters accumulate from the time the map was opened; they are not
+ * saved with the map.</p>
+ *
+ * <p>A <tt>FileHashMapStats</tt> object doesn't change once it has been
+ * created. Since the counters are read one at a time while the map
+ * continues to be used, a snapshot of a busy map may not be exactly
+ * consistent (for instance, <tt>getBytesRead()</tt> may include a read
+ * that <tt>getReads()</tt> doesn't), but each individual value is
+ * accurate.</p>
+ *
+ * @see FileHashMap#getStats
+ * @see FileHashMapMXBean
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public final class FileHashMapStats
+{
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    int    size;
+    long   fileSize;
+    long   liveBytes;
+    int    gapCount;
+    long   gapBytes;
+    long   reads;
+    long   bytesRead;
+    long   writes;
+    long   bytesWritten;
+    long   encodes;
+    long   encodeNanos;
+    long   decodes;
+    long   decodeNanos;
+    long   indexSaves;
+    long   indexSaveNanos;
+    long   valueCacheHits;
+    long   valueCacheMisses;
+    int    compactions;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create an empty snapshot. Only <tt>FileHashMap</tt> creates these;
+     * it fills in the fields directly.
+     */
+    FileHashMapStats()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * Get the length of the data file, including space reserved for
+     * values that are still being written.
+     *
+     * @return the length, in bytes
+     */
+    public long getFileSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * Get the number of bytes in the data file that hold live values.
+     *
+     * @return the number of live bytes
+     */
+    public long getLiveBytes()
+    {
+        return liveBytes;
+    }
+
+    /**
+     * Get the ratio of live bytes to the length of the data file.
+     *
+     * @return the ratio, from 0.0 to 1.0; 1.0 if the file is empty
+     */
+    public double getLiveRatio()
+    {
+        return (fileSize == 0) ? 1.0
+                               : Math.min (1.0, (double) liveBytes / fileSize);
+    }
+
+    /**
+     * Get the fraction of the data file that is not occupied by live
+     * values. This is the same value {@link FileHashMap#getFragmentation}
+     * returns.
+     *
+     * @return the fragmentation ratio, from 0.0 to 1.0
+     */
+    public double getFragmentation()
+    {
+        return 1.0 - getLiveRatio();
+    }
+
+    /**
+     * Get the number of gaps in the data file that are available for
+     * reuse. Gaps are only tracked if the map was opened with
+     * {@link FileHashMap#RECLAIM_FILE_GAPS}.
+     *
+     * @return the number of gaps, or 0 if gaps aren't tracked
+     */
+    public int getGapCount()
+    {
+        return gapCount;
+    }
+
+    /**
+     * Get the total size of the gaps counted by {@link #getGapCount}.
+     *
+     * @return the number of bytes in gaps, or 0 if gaps aren't tracked
+     */
+    public long getGapBytes()
+    {
+        return gapBytes;
+    }
+
+    /**
+     * Get the number of read operations performed on the data file.
+     * Reading several values at once, as {@link FileHashMap#verify} and
+     * the asynchronous methods do, counts as a single read. For a
+     * memory-mapped map, copies from the mapped region count as reads.
+     *
+     * @return the number of reads
+     */
+    public long getReads()
+    {
+        return reads;
+    }
+
+    /**
+     * Get the number of bytes read from the data file.
+     *
+     * @return the number of bytes read
+     */
+    public long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    /**
+     * Get the number of write operations performed on the data file.
+     *
+     * @return the number of writes
+     */
+    public long getWrites()
+    {
+        return writes;
+    }
+
+    /**
+     * Get the number of bytes written to the data file.
+     *
+     * @return the number of bytes written
+     */
+    public long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    /**
+     * Get the number of values that have been encoded for storage.
+     *
+     * @return the number of values encoded
+     */
+    public long getEncodes()
+    {
+        return encodes;
+    }
+
+    /**
+     * Get the total time spent encoding values, including computing
+     * their checksums.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getEncodeNanos()
+    {
+        return encodeNanos;
+    }
+
+    /**
+     * Get the number of values that have been decoded after being read.
+     *
+     * @return the number of values decoded
+     */
+    public long getDecodes()
+    {
+        return decodes;
+    }
+
+    /**
+     * Get the total time spent decoding values, including verifying
+     * their checksums.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getDecodeNanos()
+    {
+        return decodeNanos;
+    }
+
+    /**
+     * Get the number of times the index has been saved to disk (or, for
+     * a map opened with {@link FileHashMap#MAPPED_INDEX}, forced to disk).
+     *
+     * @return the number of index saves
+     */
+    public long getIndexSaves()
+    {
+        return indexSaves;
+    }
+
+    /**
+     * Get the total time spent saving the index.
+     *
+     * @return the time, in nanoseconds
+     */
+    public long getIndexSaveNanos()
+    {
+        return indexSaveNanos;
+    }
+
+    /**
+     * Get the number of <tt>get()</tt> calls satisfied by the value cache.
+     *
+     * @return the hit count, or 0 if there is no value cache
+     */
+    public long getValueCacheHits()
+    {
+        return valueCacheHits;
+    }
+
+    /**
+     * Get the number of <tt>get()</tt> calls that missed the value cache.
+     *
+     * @return the miss count, or 0 if there is no value cache
+     */
+    public long getValueCacheMisses()
+    {
+        return valueCacheMisses;
+    }
+
+    /**
+     * Get the number of compactions that have completed.
+     *
+     * @return the number of compactions
+     */
+    public int getCompactions()
+    {
+        return compactions;
+    }
+
+    /**
+     * Get a string representation of the statistics, for logging.
+     *
+     * @return the string
+     */
+    public String toString()
+    {
+        StringBuilder buf = new StringBuilder();
+
+        buf.append ("size=").append (size)
+           .append (", fileSize=").append (fileSize)
+           .append (", liveBytes=").append (liveBytes)
+           .append (", gaps=").append (gapCount)
+           .append (", gapBytes=").append (gapBytes)
+           .append (", reads=").append (reads)
+           .append (", bytesRead=").append (bytesRead)
+           .append (", writes=").append (writes)
+           .append (", bytesWritten=").append (bytesWritten)
+           .append (", encodes=").append (encodes)
+           .append (", encodeNanos=").append (encodeNanos)
+           .append (", decodes=").append (decodes)
+           .append (", decodeNanos=").append (decodeNanos)
+           .append (", indexSaves=").append (indexSaves)
+           .append (", indexSaveNanos=").append (indexSaveNanos)
+           .append (", compactions=").append (compactions);
+
+        return buf.toString();
+    }
+}
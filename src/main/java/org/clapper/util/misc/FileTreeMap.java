@@ -0,0 +1,2589 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * <p>A sorted companion to {@link FileHashMap}: a
+ * <tt>java.util.NavigableMap</tt> that keeps both its keys and its values
+ * in a B+tree in a disk file. Where <tt>FileHashMap</tt> keeps every key
+ * in memory, in no particular order, a <tt>FileTreeMap</tt> keeps only a
+ * bounded cache of file pages in memory, and its keys are always in
+ * order. Range queries ({@link #subMap subMap()}, {@link #headMap
+ * headMap()}, {@link #tailMap tailMap()} and their descending forms) find
+ * their first key with one walk down the tree, and then read the leaf
+ * pages in key order, one page at a time, so a scan of a small range of
+ * a huge map touches only the pages that hold the range.</p>
+ *
+ * <p><b>The Tree File</b></p>
+ *
+ * <p>The map lives in a single file, whose name is the path prefix passed
+ * to the constructor with {@link #TREE_FILE_SUFFIX} appended. The file is
+ * divided into fixed-size pages. The first page holds a header; the rest
+ * hold tree nodes, long values, and pages that have been freed for reuse.
+ * Each leaf page holds a run of keys in order, with their values, and is
+ * linked to the leaves before and after it. Each inner page holds
+ * separator keys and the numbers of the pages below them. A value too
+ * large to share a leaf page with other entries is stored in a chain of
+ * overflow pages of its own, and the leaf holds a reference to it.</p>
+ *
+ * <p>Keys and values are stored in the form produced by the key and
+ * value {@link ValueCodec}s passed to the constructor. Keys are kept in
+ * the order defined by the comparator passed to the constructor, or by
+ * their natural ordering if there isn't one. The order is not recorded
+ * in the file, so a map must always be reopened with an equivalent
+ * comparator. A key may be no larger, when encoded, than an eighth of a
+ * page; {@link #put put()} throws an <tt>IllegalArgumentException</tt>
+ * for a larger key. Null keys and values are not permitted.</p>
+ *
+ * <p><b>The Page Cache</b></p>
+ *
+ * <p>Tree nodes are read into a least-recently-used cache of
+ * {@link #DEFAULT_PAGE_CACHE_SIZE} pages, which can be changed with
+ * {@link #setPageCacheSize}. Modified nodes are written back when they
+ * leave the cache, and when the map is saved or closed. Overflow pages
+ * are not cached.</p>
+ *
+ * <p><b>Persistence</b></p>
+ *
+ * <p>The following <tt>FileHashMap</tt> constructor flags are supported:
+ * {@link FileHashMap#NO_CREATE NO_CREATE},
+ * {@link FileHashMap#TRANSIENT TRANSIENT} and
+ * {@link FileHashMap#FORCE_OVERWRITE FORCE_OVERWRITE}. They mean the same
+ * thing they do for <tt>FileHashMap</tt>. The tree file of a persistent
+ * map is brought up to date by {@link #save} and {@link #close}; a map
+ * that is neither saved nor closed after being modified may be left
+ * damaged. Removing entries does not merge pages; the space a removed
+ * entry occupied is reused by later keys that sort near it. Freed
+ * overflow pages are reused for any purpose.</p>
+ *
+ * <p>Like <tt>java.util.TreeMap</tt>, this class is not synchronized.
+ * Since even lookups update the page cache, every use of a
+ * <tt>FileTreeMap</tt> that is shared between threads must be
+ * synchronized externally. The iterators of the map and its views are
+ * fail-fast.</p>
+ *
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public class FileTreeMap<K,V>
+    extends AbstractMap<K,V>
+    implements NavigableMap<K,V>
+{
+    /*----------------------------------------------------------------------*\
+                             Public Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Suffix of the tree file.
+     */
+    public static final String TREE_FILE_SUFFIX = ".tree";
+
+    /**
+     * The size of the pages of a new tree file.
+     */
+    public static final int PAGE_SIZE = 8192;
+
+    /**
+     * The default number of pages in the page cache.
+     */
+    public static final int DEFAULT_PAGE_CACHE_SIZE = 1024;
+
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Constructor flags this class supports.
+     */
+    private static final int SUPPORTED_FLAGS = FileHashMap.NO_CREATE
+                                             | FileHashMap.TRANSIENT
+                                             | FileHashMap.FORCE_OVERWRITE;
+
+    /**
+     * Tree file magic number ("FHTR") and format version.
+     */
+    private static final int TREE_MAGIC   = 0x46485452;
+    private static final int TREE_VERSION = 1;
+
+    /**
+     * Page types. The type is the first byte of every page but the
+     * header.
+     */
+    private static final byte LEAF_PAGE     = 1;
+    private static final byte INNER_PAGE    = 2;
+    private static final byte OVERFLOW_PAGE = 3;
+    private static final byte FREE_PAGE     = 4;
+
+    /**
+     * Page header sizes. A leaf page starts with its type, its entry
+     * count and the numbers of the previous and next leaves; an inner
+     * page, with its type, its key count and its first child; an
+     * overflow page, with its type and the number of the next page in
+     * the chain.
+     */
+    private static final int LEAF_HEADER_SIZE     = 11;
+    private static final int INNER_HEADER_SIZE    = 7;
+    private static final int OVERFLOW_HEADER_SIZE = 5;
+
+    /**
+     * Stored value tags. An inline value is stored as the tag, its length
+     * and its bytes; an overflow value, as the tag, the number of its
+     * first overflow page, and its length.
+     */
+    private static final byte INLINE_VALUE        = 0;
+    private static final byte OVERFLOW_VALUE      = 1;
+    private static final int  VALUE_HEADER_SIZE   = 5;
+    private static final int  OVERFLOW_VALUE_SIZE = 9;
+
+    /**
+     * The smallest page cache. An insertion holds on to every node from
+     * the root down, and shouldn't have to write them more than once.
+     */
+    private static final int MIN_PAGE_CACHE_SIZE = 16;
+
+    /**
+     * Search relations for seek().
+     */
+    private static final int CEILING = 0;
+    private static final int HIGHER  = 1;
+    private static final int FLOOR   = 2;
+    private static final int LOWER   = 3;
+
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A tree node, as read from its page. Keys are kept both decoded, for
+     * comparison, and encoded, for writing. A leaf node holds the stored
+     * form of each value; an inner node, the page numbers of its
+     * children, one more than it has keys.
+     */
+    private static final class Node<K>
+    {
+        final int           page;
+        final boolean       leaf;
+        final List<K>       keys     = new ArrayList<K>();
+        final List<byte[]>  keyBytes = new ArrayList<byte[]>();
+        final List<byte[]>  values;
+        final List<Integer> children;
+        int                 prev  = 0;
+        int                 next  = 0;
+        boolean             dirty = false;
+
+        /**
+         * The size of the node, when written to its page.
+         */
+        int size;
+
+        Node (int page, boolean leaf)
+        {
+            this.page     = page;
+            this.leaf     = leaf;
+            this.values   = leaf ? new ArrayList<byte[]>() : null;
+            this.children = leaf ? null : new ArrayList<Integer>();
+            this.size     = leaf ? LEAF_HEADER_SIZE : INNER_HEADER_SIZE;
+        }
+
+        int entrySize (int i)
+        {
+            return 2 + keyBytes.get (i).length +
+                   (leaf ? values.get (i).length : 4);
+        }
+    }
+
+    /**
+     * A position in the leaf level of the tree.
+     */
+    private static final class Cursor<K>
+    {
+        final Node<K> leaf;
+        final int     index;
+
+        Cursor (Node<K> leaf, int index)
+        {
+            this.leaf  = leaf;
+            this.index = index;
+        }
+
+        K key()
+        {
+            return leaf.keys.get (index);
+        }
+    }
+
+    /**
+     * The result of splitting a node: the key to insert in the parent,
+     * and the new node to its right.
+     */
+    private static final class Split<K>
+    {
+        final K      key;
+        final byte[] keyBytes;
+        final int    page;
+
+        Split (K key, byte[] keyBytes, int page)
+        {
+            this.key      = key;
+            this.keyBytes = keyBytes;
+            this.page     = page;
+        }
+    }
+
+    /**
+     * A view of a range of the map, in ascending or descending order. The
+     * map itself delegates its navigation methods to an unbounded,
+     * ascending view. The bounds are always kept in ascending terms.
+     */
+    private class SubMap
+        extends AbstractMap<K,V>
+        implements NavigableMap<K,V>
+    {
+        private final boolean fromStart;
+        private final K       lo;
+        private final boolean loInclusive;
+        private final boolean toEnd;
+        private final K       hi;
+        private final boolean hiInclusive;
+        private final boolean descending;
+
+        SubMap (boolean fromStart, K lo, boolean loInclusive,
+                boolean toEnd,     K hi, boolean hiInclusive,
+                boolean descending)
+        {
+            if ((! fromStart) && (! toEnd) && (compare (lo, hi) > 0))
+                throw new IllegalArgumentException ("fromKey > toKey");
+
+            this.fromStart   = fromStart;
+            this.lo          = lo;
+            this.loInclusive = loInclusive;
+            this.toEnd       = toEnd;
+            this.hi          = hi;
+            this.hiInclusive = hiInclusive;
+            this.descending  = descending;
+        }
+
+        @SuppressWarnings("unchecked")
+        public Comparator<? super K> comparator()
+        {
+            if (! descending)
+                return comparator;
+
+            if (comparator == null)
+                return (Comparator<K>) Collections.reverseOrder();
+
+            return Collections.reverseOrder (comparator);
+        }
+
+        public boolean containsKey (Object key)
+        {
+            return inRange (key) && FileTreeMap.this.containsKey (key);
+        }
+
+        public Set<Map.Entry<K,V>> entrySet()
+        {
+            return new EntrySet (this);
+        }
+
+        public V get (Object key)
+        {
+            return inRange (key) ? FileTreeMap.this.get (key) : null;
+        }
+
+        public boolean isEmpty()
+        {
+            return absLowest() == null;
+        }
+
+        public V put (K key, V value)
+        {
+            if (! inRange (key))
+                throw new IllegalArgumentException ("key out of range");
+
+            return FileTreeMap.this.put (key, value);
+        }
+
+        public V remove (Object key)
+        {
+            return inRange (key) ? FileTreeMap.this.remove (key) : null;
+        }
+
+        public int size()
+        {
+            if (fromStart && toEnd)
+                return FileTreeMap.this.size();
+
+            int n = 0;
+            for (Cursor<K> c = first(); c != null; c = step (c))
+                n++;
+            return n;
+        }
+
+        public Map.Entry<K,V> ceilingEntry (K key)
+        {
+            return entryAt (find (key, descending ? FLOOR : CEILING));
+        }
+
+        public K ceilingKey (K key)
+        {
+            return keyAt (find (key, descending ? FLOOR : CEILING));
+        }
+
+        public NavigableSet<K> descendingKeySet()
+        {
+            return descendingMap().navigableKeySet();
+        }
+
+        public NavigableMap<K,V> descendingMap()
+        {
+            return new SubMap (fromStart, lo, loInclusive,
+                               toEnd, hi, hiInclusive,
+                               ! descending);
+        }
+
+        public Map.Entry<K,V> firstEntry()
+        {
+            return entryAt (first());
+        }
+
+        public K firstKey()
+        {
+            return keyOrThrow (first());
+        }
+
+        public Map.Entry<K,V> floorEntry (K key)
+        {
+            return entryAt (find (key, descending ? CEILING : FLOOR));
+        }
+
+        public K floorKey (K key)
+        {
+            return keyAt (find (key, descending ? CEILING : FLOOR));
+        }
+
+        public SortedMap<K,V> headMap (K toKey)
+        {
+            return headMap (toKey, false);
+        }
+
+        public NavigableMap<K,V> headMap (K toKey, boolean inclusive)
+        {
+            if (! inRange (toKey, inclusive))
+                throw new IllegalArgumentException ("toKey out of range");
+
+            if (descending)
+            {
+                return new SubMap (false, toKey, inclusive,
+                                   toEnd, hi, hiInclusive,
+                                   true);
+            }
+
+            return new SubMap (fromStart, lo, loInclusive,
+                               false, toKey, inclusive,
+                               false);
+        }
+
+        public Map.Entry<K,V> higherEntry (K key)
+        {
+            return entryAt (find (key, descending ? LOWER : HIGHER));
+        }
+
+        public K higherKey (K key)
+        {
+            return keyAt (find (key, descending ? LOWER : HIGHER));
+        }
+
+        public Set<K> keySet()
+        {
+            return navigableKeySet();
+        }
+
+        public Map.Entry<K,V> lastEntry()
+        {
+            return entryAt (last());
+        }
+
+        public K lastKey()
+        {
+            return keyOrThrow (last());
+        }
+
+        public Map.Entry<K,V> lowerEntry (K key)
+        {
+            return entryAt (find (key, descending ? HIGHER : LOWER));
+        }
+
+        public K lowerKey (K key)
+        {
+            return keyAt (find (key, descending ? HIGHER : LOWER));
+        }
+
+        public NavigableSet<K> navigableKeySet()
+        {
+            return new KeySet (this);
+        }
+
+        public Map.Entry<K,V> pollFirstEntry()
+        {
+            return removeEntry (first());
+        }
+
+        public Map.Entry<K,V> pollLastEntry()
+        {
+            return removeEntry (last());
+        }
+
+        public SortedMap<K,V> subMap (K fromKey, K toKey)
+        {
+            return subMap (fromKey, true, toKey, false);
+        }
+
+        public NavigableMap<K,V> subMap (K       fromKey,
+                                         boolean fromInclusive,
+                                         K       toKey,
+                                         boolean toInclusive)
+        {
+            if (! inRange (fromKey, fromInclusive))
+                throw new IllegalArgumentException ("fromKey out of range");
+            if (! inRange (toKey, toInclusive))
+                throw new IllegalArgumentException ("toKey out of range");
+
+            if (descending)
+            {
+                return new SubMap (false, toKey, toInclusive,
+                                   false, fromKey, fromInclusive,
+                                   true);
+            }
+
+            return new SubMap (false, fromKey, fromInclusive,
+                               false, toKey, toInclusive,
+                               false);
+        }
+
+        public SortedMap<K,V> tailMap (K fromKey)
+        {
+            return tailMap (fromKey, true);
+        }
+
+        public NavigableMap<K,V> tailMap (K fromKey, boolean inclusive)
+        {
+            if (! inRange (fromKey, inclusive))
+                throw new IllegalArgumentException ("fromKey out of range");
+
+            if (descending)
+            {
+                return new SubMap (fromStart, lo, loInclusive,
+                                   false, fromKey, inclusive,
+                                   true);
+            }
+
+            return new SubMap (false, fromKey, inclusive,
+                               toEnd, hi, hiInclusive,
+                               false);
+        }
+
+        /**
+         * Get the first entry of the view, in the view's order.
+         */
+        Cursor<K> first()
+        {
+            return descending ? absHighest() : absLowest();
+        }
+
+        /**
+         * Get the last entry of the view, in the view's order.
+         */
+        Cursor<K> last()
+        {
+            return descending ? absLowest() : absHighest();
+        }
+
+        /**
+         * Get the entry after a given one, in the view's order.
+         */
+        Cursor<K> step (Cursor<K> c)
+        {
+            return bounded (descending ? predecessor (c) : successor (c));
+        }
+
+        /**
+         * Find the entry that bears a relation to a key, in ascending
+         * terms.
+         */
+        private Cursor<K> find (K key, int relation)
+        {
+            if (key == null)
+                throw new NullPointerException ("null key");
+
+            boolean up = (relation == CEILING) || (relation == HIGHER);
+
+            if (up && tooLow (key))
+                return absLowest();
+
+            if ((! up) && tooHigh (key))
+                return absHighest();
+
+            return bounded (seek (key, relation));
+        }
+
+        private Cursor<K> absLowest()
+        {
+            return bounded (fromStart ? firstCursor()
+                                      : seek (lo, loInclusive ? CEILING
+                                                              : HIGHER));
+        }
+
+        private Cursor<K> absHighest()
+        {
+            return bounded (toEnd ? lastCursor()
+                                  : seek (hi, hiInclusive ? FLOOR : LOWER));
+        }
+
+        private Cursor<K> bounded (Cursor<K> c)
+        {
+            return ((c == null) || (! inRange (c.key()))) ? null : c;
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean inRange (Object key)
+        {
+            K k = (K) key;
+            return (! tooLow (k)) && (! tooHigh (k));
+        }
+
+        private boolean inRange (K key, boolean inclusive)
+        {
+            if (inclusive)
+                return inRange (key);
+
+            return (fromStart || (compare (key, lo) >= 0)) &&
+                   (toEnd || (compare (hi, key) >= 0));
+        }
+
+        private boolean tooLow (K key)
+        {
+            if (fromStart)
+                return false;
+
+            int c = compare (key, lo);
+            return (c < 0) || ((c == 0) && (! loInclusive));
+        }
+
+        private boolean tooHigh (K key)
+        {
+            if (toEnd)
+                return false;
+
+            int c = compare (key, hi);
+            return (c > 0) || ((c == 0) && (! hiInclusive));
+        }
+
+        private Map.Entry<K,V> removeEntry (Cursor<K> c)
+        {
+            Map.Entry<K,V> entry = entryAt (c);
+
+            if (entry != null)
+                removeKey (entry.getKey());
+
+            return entry;
+        }
+    }
+
+    /**
+     * The entry set of a view.
+     */
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        private final SubMap map;
+
+        EntrySet (SubMap map)
+        {
+            this.map = map;
+        }
+
+        public void clear()
+        {
+            map.clear();
+        }
+
+        public boolean contains (Object o)
+        {
+            if (! (o instanceof Map.Entry))
+                return false;
+
+            Map.Entry<?,?> entry = (Map.Entry<?,?>) o;
+            if (entry.getKey() == null)
+                return false;
+
+            V value = map.get (entry.getKey());
+            return (value != null) && value.equals (entry.getValue());
+        }
+
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new ViewIterator<Map.Entry<K,V>> (map)
+            {
+                public Map.Entry<K,V> next()
+                {
+                    return entryAt (nextCursor());
+                }
+            };
+        }
+
+        public boolean remove (Object o)
+        {
+            if (! contains (o))
+                return false;
+
+            map.remove (((Map.Entry<?,?>) o).getKey());
+            return true;
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+    }
+
+    /**
+     * The key set of a view.
+     */
+    private class KeySet extends AbstractSet<K> implements NavigableSet<K>
+    {
+        private final SubMap map;
+
+        KeySet (SubMap map)
+        {
+            this.map = map;
+        }
+
+        public K ceiling (K key)
+        {
+            return map.ceilingKey (key);
+        }
+
+        public void clear()
+        {
+            map.clear();
+        }
+
+        public Comparator<? super K> comparator()
+        {
+            return map.comparator();
+        }
+
+        public boolean contains (Object o)
+        {
+            return map.containsKey (o);
+        }
+
+        public Iterator<K> descendingIterator()
+        {
+            return descendingSet().iterator();
+        }
+
+        public NavigableSet<K> descendingSet()
+        {
+            return map.descendingKeySet();
+        }
+
+        public K first()
+        {
+            return map.firstKey();
+        }
+
+        public K floor (K key)
+        {
+            return map.floorKey (key);
+        }
+
+        public SortedSet<K> headSet (K toElement)
+        {
+            return headSet (toElement, false);
+        }
+
+        public NavigableSet<K> headSet (K toElement, boolean inclusive)
+        {
+            return map.headMap (toElement, inclusive).navigableKeySet();
+        }
+
+        public K higher (K key)
+        {
+            return map.higherKey (key);
+        }
+
+        public boolean isEmpty()
+        {
+            return map.isEmpty();
+        }
+
+        public Iterator<K> iterator()
+        {
+            return new ViewIterator<K> (map)
+            {
+                public K next()
+                {
+                    return nextCursor().key();
+                }
+            };
+        }
+
+        public K last()
+        {
+            return map.lastKey();
+        }
+
+        public K lower (K key)
+        {
+            return map.lowerKey (key);
+        }
+
+        public K pollFirst()
+        {
+            Map.Entry<K,V> entry = map.pollFirstEntry();
+            return (entry == null) ? null : entry.getKey();
+        }
+
+        public K pollLast()
+        {
+            Map.Entry<K,V> entry = map.pollLastEntry();
+            return (entry == null) ? null : entry.getKey();
+        }
+
+        public boolean remove (Object o)
+        {
+            if (! map.containsKey (o))
+                return false;
+
+            map.remove (o);
+            return true;
+        }
+
+        public int size()
+        {
+            return map.size();
+        }
+
+        public SortedSet<K> subSet (K fromElement, K toElement)
+        {
+            return subSet (fromElement, true, toElement, false);
+        }
+
+        public NavigableSet<K> subSet (K       fromElement,
+                                       boolean fromInclusive,
+                                       K       toElement,
+                                       boolean toInclusive)
+        {
+            return map.subMap (fromElement, fromInclusive,
+                               toElement, toInclusive).navigableKeySet();
+        }
+
+        public SortedSet<K> tailSet (K fromElement)
+        {
+            return tailSet (fromElement, true);
+        }
+
+        public NavigableSet<K> tailSet (K fromElement, boolean inclusive)
+        {
+            return map.tailMap (fromElement, inclusive).navigableKeySet();
+        }
+    }
+
+    /**
+     * Base class for the iterators over a view. The iterator reads one
+     * leaf page at a time, following the links between leaves.
+     */
+    private abstract class ViewIterator<T> implements Iterator<T>
+    {
+        private final SubMap map;
+        private Cursor<K>    next;
+        private K            lastKey          = null;
+        private int          expectedModCount = modCount;
+
+        ViewIterator (SubMap map)
+        {
+            this.map  = map;
+            this.next = map.first();
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public void remove()
+        {
+            if (lastKey == null)
+                throw new IllegalStateException();
+
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            // Removing the key changes the leaf the next cursor points
+            // into, so find the next key again afterwards.
+
+            K nextKey = (next == null) ? null : next.key();
+
+            removeKey (lastKey);
+            lastKey = null;
+
+            if (nextKey != null)
+                next = seek (nextKey, CEILING);
+
+            expectedModCount = modCount;
+        }
+
+        Cursor<K> nextCursor()
+        {
+            checkValidity();
+
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+
+            if (next == null)
+                throw new NoSuchElementException();
+
+            Cursor<K> c = next;
+            next    = map.step (c);
+            lastKey = c.key();
+            return c;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final File                  treePath;
+    private final int                   flags;
+    private final Comparator<? super K> comparator;
+    private final ValueCodec<K>         keyCodec;
+    private final ValueCodec<V>         valueCodec;
+
+    private RandomAccessFile file;
+    private FileChannel      channel;
+
+    /**
+     * The tree header: page size, root page, number of pages in the file,
+     * first free page (0 if none), and number of entries.
+     */
+    private int  pageSize;
+    private int  rootPage;
+    private int  pageCount;
+    private int  freePage;
+    private long count;
+
+    /**
+     * The largest encoded key, and the largest value stored in a leaf.
+     */
+    private int maxKeySize;
+    private int maxInlineValueSize;
+
+    /**
+     * Cached tree nodes, by page number.
+     */
+    private final LRUMap<Integer, Node<K>> pages;
+
+    /**
+     * The unbounded, ascending view the navigation methods delegate to.
+     */
+    private final SubMap view;
+
+    private int     modCount = 0;
+    private boolean modified = false;
+    private boolean valid    = true;
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>FileTreeMap</tt> object whose keys are kept in
+     * their natural order, or open an existing one.
+     *
+     * @param pathPrefix  the path prefix of the tree file
+     * @param flags       <tt>FileHashMap</tt> constructor flags (see
+     *                    above)
+     * @param keyCodec    the codec used to store the keys
+     * @param valueCodec  the codec used to store the values
+     *
+     * @throws FileNotFoundException    The file doesn't exist, and the
+     *                                  <tt>NO_CREATE</tt> flag was set.
+     * @throws ObjectExistsException    The file exists, <tt>TRANSIENT</tt>
+     *                                  was set, and
+     *                                  <tt>FORCE_OVERWRITE</tt> wasn't.
+     * @throws VersionMismatchException The file was written by an
+     *                                  incompatible version of this class.
+     * @throws IOException              Other I/O errors, including a
+     *                                  corrupt file.
+     */
+    public FileTreeMap (String        pathPrefix,
+                        int           flags,
+                        ValueCodec<K> keyCodec,
+                        ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefix, flags, null, keyCodec, valueCodec);
+    }
+
+    /**
+     * Create a new <tt>FileTreeMap</tt> object whose keys are kept in the
+     * order defined by a comparator, or open an existing one.
+     *
+     * @param pathPrefix  the path prefix of the tree file
+     * @param flags       <tt>FileHashMap</tt> constructor flags (see
+     *                    above)
+     * @param comparator  the comparator that orders the keys, or null for
+     *                    their natural ordering
+     * @param keyCodec    the codec used to store the keys
+     * @param valueCodec  the codec used to store the values
+     *
+     * @throws FileNotFoundException    The file doesn't exist, and the
+     *                                  <tt>NO_CREATE</tt> flag was set.
+     * @throws ObjectExistsException    The file exists, <tt>TRANSIENT</tt>
+     *                                  was set, and
+     *                                  <tt>FORCE_OVERWRITE</tt> wasn't.
+     * @throws VersionMismatchException The file was written by an
+     *                                  incompatible version of this class.
+     * @throws IOException              Other I/O errors, including a
+     *                                  corrupt file.
+     */
+    public FileTreeMap (String                pathPrefix,
+                        int                   flags,
+                        Comparator<? super K> comparator,
+                        ValueCodec<K>         keyCodec,
+                        ValueCodec<V>         valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               VersionMismatchException,
+               IOException
+    {
+        if (((~SUPPORTED_FLAGS) & flags) != 0)
+        {
+            throw new IllegalArgumentException ("Unsupported flags: 0x" +
+                                                Integer.toHexString (flags));
+        }
+
+        if (keyCodec == null)
+            throw new NullPointerException ("null keyCodec parameter");
+
+        if (valueCodec == null)
+            throw new NullPointerException ("null valueCodec parameter");
+
+        if ((flags & FileHashMap.TRANSIENT) != 0)
+            flags &= (~FileHashMap.NO_CREATE);
+
+        this.flags      = flags;
+        this.comparator = comparator;
+        this.keyCodec   = keyCodec;
+        this.valueCodec = valueCodec;
+        this.treePath   = new File (pathPrefix + TREE_FILE_SUFFIX);
+        this.view       = new SubMap (true, null, true, true, null, true,
+                                      false);
+
+        boolean exists = treePath.exists();
+
+        if (exists && ((flags & FileHashMap.TRANSIENT) != 0))
+        {
+            if ((flags & FileHashMap.FORCE_OVERWRITE) == 0)
+            {
+                throw new ObjectExistsException
+                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
+                     "One or both of the hash table files (\"{0}\" " +
+                     "and/or \"{1}\") already exists, but the " +
+                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
+                     "was not set.",
+                     new Object[]
+                     {
+                         treePath.getName(),
+                         treePath.getName()
+                     });
+            }
+
+            treePath.delete();
+            exists = false;
+        }
+
+        if ((! exists) && ((flags & FileHashMap.NO_CREATE) != 0))
+        {
+            throw new FileNotFoundException
+                          ("On-disk tree \"" + pathPrefix +
+                           "\" does not exist, and the " +
+                           "FileHashMap.NO_CREATE flag was set.");
+        }
+
+        this.pages = new LRUMap<Integer, Node<K>> (DEFAULT_PAGE_CACHE_SIZE);
+
+        // Write modified nodes back as they're pushed out of the cache.
+
+        pages.addRemovalListener (new ObjectRemovalListener()
+        {
+            public void objectRemoved (ObjectRemovalEvent event)
+            {
+                Map.Entry<?,?> removed = (Map.Entry<?,?>) event.getSource();
+
+                @SuppressWarnings("unchecked")
+                Node<K> node = (Node<K>) removed.getValue();
+
+                if (node.dirty)
+                {
+                    try
+                    {
+                        writeNode (node);
+                    }
+
+                    catch (IOException ex)
+                    {
+                        throw pageError (node.page, ex);
+                    }
+                }
+            }
+        },
+        true);
+
+        file    = new RandomAccessFile (treePath, "rw");
+        channel = file.getChannel();
+
+        try
+        {
+            if (exists)
+                readHeader();
+            else
+                createTree();
+        }
+
+        catch (IOException ex)
+        {
+            file.close();
+            throw ex;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the entry with the least key greater than or equal to a key.
+     *
+     * @param key  the key
+     *
+     * @return the entry, or null if there isn't one
+     */
+    public Map.Entry<K,V> ceilingEntry (K key)
+    {
+        return view.ceilingEntry (key);
+    }
+
+    /**
+     * Get the least key greater than or equal to a key.
+     *
+     * @param key  the key
+     *
+     * @return the key, or null if there isn't one
+     */
+    public K ceilingKey (K key)
+    {
+        return view.ceilingKey (key);
+    }
+
+    /**
+     * Remove all entries from the map. The tree file is truncated.
+     *
+     * @throws IllegalStateException the file couldn't be truncated
+     */
+    public void clear()
+    {
+        checkValidity();
+
+        try
+        {
+            pages.clear();
+            channel.truncate (0);
+            createTree();
+            modCount++;
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't truncate \"" +
+                                             treePath.getPath() + "\"",
+                                             ex);
+        }
+    }
+
+    /**
+     * Close the map. A persistent map is saved; the file of a transient
+     * map is deleted. Closing a closed map has no effect.
+     *
+     * @throws IOException on error
+     */
+    public void close()
+        throws IOException
+    {
+        if (! valid)
+            return;
+
+        try
+        {
+            if ((flags & FileHashMap.TRANSIENT) == 0)
+                flush();
+        }
+
+        finally
+        {
+            valid = false;
+            pages.clear();
+            file.close();
+
+            if ((flags & FileHashMap.TRANSIENT) != 0)
+                treePath.delete();
+        }
+    }
+
+    /**
+     * Get the comparator that orders the keys.
+     *
+     * @return the comparator, or null if the keys are in their natural
+     *         order
+     */
+    public Comparator<? super K> comparator()
+    {
+        return comparator;
+    }
+
+    /**
+     * Determine whether the map contains a key.
+     *
+     * @param key  the key
+     *
+     * @return <tt>true</tt> if it does, <tt>false</tt> if not
+     */
+    public boolean containsKey (Object key)
+    {
+        checkValidity();
+
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+
+        return findInLeaf (findLeaf (k), k) >= 0;
+    }
+
+    /**
+     * Close the map, if it's open, and delete its file.
+     */
+    public void delete()
+    {
+        try
+        {
+            close();
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        treePath.delete();
+    }
+
+    /**
+     * Get a reverse-order view of the keys in the map.
+     *
+     * @return the keys, in descending order
+     */
+    public NavigableSet<K> descendingKeySet()
+    {
+        return view.descendingKeySet();
+    }
+
+    /**
+     * Get a reverse-order view of the map.
+     *
+     * @return the view
+     */
+    public NavigableMap<K,V> descendingMap()
+    {
+        return view.descendingMap();
+    }
+
+    /**
+     * Get a set view of the entries in the map, in key order. The entries
+     * are snapshots; they don't support <tt>setValue()</tt>.
+     *
+     * @return the entries
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        return view.entrySet();
+    }
+
+    /**
+     * Get the entry with the least key in the map.
+     *
+     * @return the entry, or null if the map is empty
+     */
+    public Map.Entry<K,V> firstEntry()
+    {
+        return view.firstEntry();
+    }
+
+    /**
+     * Get the least key in the map.
+     *
+     * @return the key
+     *
+     * @throws NoSuchElementException the map is empty
+     */
+    public K firstKey()
+    {
+        return view.firstKey();
+    }
+
+    /**
+     * Get the entry with the greatest key less than or equal to a key.
+     *
+     * @param key  the key
+     *
+     * @return the entry, or null if there isn't one
+     */
+    public Map.Entry<K,V> floorEntry (K key)
+    {
+        return view.floorEntry (key);
+    }
+
+    /**
+     * Get the greatest key less than or equal to a key.
+     *
+     * @param key  the key
+     *
+     * @return the key, or null if there isn't one
+     */
+    public K floorKey (K key)
+    {
+        return view.floorKey (key);
+    }
+
+    /**
+     * Get the value associated with a key.
+     *
+     * @param key  the key
+     *
+     * @return the value, or <tt>null</tt> if the key isn't in the map
+     *
+     * @throws IllegalStateException the value couldn't be read or decoded
+     */
+    public V get (Object key)
+    {
+        checkValidity();
+
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+
+        Node<K> leaf = findLeaf (k);
+        int     i    = findInLeaf (leaf, k);
+
+        return (i < 0) ? null : decodeValue (leaf.values.get (i));
+    }
+
+    /**
+     * Get the number of pages the page cache holds.
+     *
+     * @return the number of pages
+     *
+     * @see #setPageCacheSize
+     */
+    public int getPageCacheSize()
+    {
+        return pages.getMaximumCapacity();
+    }
+
+    /**
+     * Get a view of the part of the map whose keys are less than a key.
+     *
+     * @param toKey  the upper bound
+     *
+     * @return the view
+     */
+    public SortedMap<K,V> headMap (K toKey)
+    {
+        return view.headMap (toKey);
+    }
+
+    /**
+     * Get a view of the part of the map whose keys are less than (or, if
+     * <tt>inclusive</tt> is set, equal to) a key.
+     *
+     * @param toKey      the upper bound
+     * @param inclusive  whether the bound is included
+     *
+     * @return the view
+     */
+    public NavigableMap<K,V> headMap (K toKey, boolean inclusive)
+    {
+        return view.headMap (toKey, inclusive);
+    }
+
+    /**
+     * Get the entry with the least key greater than a key.
+     *
+     * @param key  the key
+     *
+     * @return the entry, or null if there isn't one
+     */
+    public Map.Entry<K,V> higherEntry (K key)
+    {
+        return view.higherEntry (key);
+    }
+
+    /**
+     * Get the least key greater than a key.
+     *
+     * @param key  the key
+     *
+     * @return the key, or null if there isn't one
+     */
+    public K higherKey (K key)
+    {
+        return view.higherKey (key);
+    }
+
+    /**
+     * Determine whether the map is empty.
+     *
+     * @return <tt>true</tt> if it is, <tt>false</tt> if not
+     */
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Determine whether this object is still valid. A map is no longer
+     * valid once it has been closed.
+     *
+     * @return <tt>true</tt> if it's valid, <tt>false</tt> if not
+     */
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * Get a set view of the keys in the map, in order.
+     *
+     * @return the keys
+     */
+    public Set<K> keySet()
+    {
+        return view.navigableKeySet();
+    }
+
+    /**
+     * Get the entry with the greatest key in the map.
+     *
+     * @return the entry, or null if the map is empty
+     */
+    public Map.Entry<K,V> lastEntry()
+    {
+        return view.lastEntry();
+    }
+
+    /**
+     * Get the greatest key in the map.
+     *
+     * @return the key
+     *
+     * @throws NoSuchElementException the map is empty
+     */
+    public K lastKey()
+    {
+        return view.lastKey();
+    }
+
+    /**
+     * Get the entry with the greatest key less than a key.
+     *
+     * @param key  the key
+     *
+     * @return the entry, or null if there isn't one
+     */
+    public Map.Entry<K,V> lowerEntry (K key)
+    {
+        return view.lowerEntry (key);
+    }
+
+    /**
+     * Get the greatest key less than a key.
+     *
+     * @param key  the key
+     *
+     * @return the key, or null if there isn't one
+     */
+    public K lowerKey (K key)
+    {
+        return view.lowerKey (key);
+    }
+
+    /**
+     * Get a navigable set view of the keys in the map, in order.
+     *
+     * @return the keys
+     */
+    public NavigableSet<K> navigableKeySet()
+    {
+        return view.navigableKeySet();
+    }
+
+    /**
+     * Remove and return the entry with the least key in the map.
+     *
+     * @return the entry, or null if the map is empty
+     */
+    public Map.Entry<K,V> pollFirstEntry()
+    {
+        return view.pollFirstEntry();
+    }
+
+    /**
+     * Remove and return the entry with the greatest key in the map.
+     *
+     * @return the entry, or null if the map is empty
+     */
+    public Map.Entry<K,V> pollLastEntry()
+    {
+        return view.pollLastEntry();
+    }
+
+    /**
+     * Associate a value with a key, replacing any value the key already
+     * had.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return the key's previous value, or null if it had none
+     *
+     * @throws IllegalArgumentException the encoded key is too large
+     * @throws IllegalStateException    the key or value couldn't be
+     *                                  encoded, or an I/O error occurred
+     */
+    public V put (K key, V value)
+    {
+        checkValidity();
+
+        if ((key == null) || (value == null))
+            throw new NullPointerException ("null key or value");
+
+        try
+        {
+            byte[] keyBytes = keyCodec.encode (key);
+
+            if (keyBytes.length > maxKeySize)
+            {
+                throw new IllegalArgumentException
+                    ("Encoded key is " + keyBytes.length + " bytes long. " +
+                     "The limit is " + maxKeySize + " bytes.");
+            }
+
+            return insert (key, keyBytes, storeValue (valueCodec.encode (value)));
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't store value for key " +
+                                             key + " in \"" +
+                                             treePath.getPath() + "\"",
+                                             ex);
+        }
+    }
+
+    /**
+     * Remove a key and its value from the map.
+     *
+     * @param key  the key
+     *
+     * @return the key's value, or null if it wasn't in the map
+     *
+     * @throws IllegalStateException an I/O error occurred
+     */
+    public V remove (Object key)
+    {
+        checkValidity();
+
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+
+        return removeKey (k);
+    }
+
+    /**
+     * Write all modified pages and the tree header to the file. Does
+     * nothing for a transient map.
+     *
+     * @throws IOException on error
+     */
+    public void save()
+        throws IOException
+    {
+        checkValidity();
+
+        if ((flags & FileHashMap.TRANSIENT) == 0)
+            flush();
+    }
+
+    /**
+     * Change the number of pages the page cache holds. Modified pages
+     * pushed out of a smaller cache are written to the file.
+     *
+     * @param size  the new number of pages; values smaller than 16 are
+     *              treated as 16
+     *
+     * @return the old number of pages
+     *
+     * @see #getPageCacheSize
+     */
+    public int setPageCacheSize (int size)
+    {
+        return pages.setMaximumCapacity (Math.max (size,
+                                                   MIN_PAGE_CACHE_SIZE));
+    }
+
+    /**
+     * Get the number of entries in the map. If there are more than
+     * <tt>Integer.MAX_VALUE</tt>, returns <tt>Integer.MAX_VALUE</tt>.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return (int) Math.min (count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get a view of the part of the map whose keys range from
+     * <tt>fromKey</tt>, inclusive, to <tt>toKey</tt>, exclusive.
+     *
+     * @param fromKey  the lower bound
+     * @param toKey    the upper bound
+     *
+     * @return the view
+     */
+    public SortedMap<K,V> subMap (K fromKey, K toKey)
+    {
+        return view.subMap (fromKey, toKey);
+    }
+
+    /**
+     * Get a view of the part of the map whose keys range from
+     * <tt>fromKey</tt> to <tt>toKey</tt>.
+     *
+     * @param fromKey        the lower bound
+     * @param fromInclusive  whether the lower bound is included
+     * @param toKey          the upper bound
+     * @param toInclusive    whether the upper bound is included
+     *
+     * @return the view
+     */
+    public NavigableMap<K,V> subMap (K       fromKey,
+                                     boolean fromInclusive,
+                                     K       toKey,
+                                     boolean toInclusive)
+    {
+        return view.subMap (fromKey, fromInclusive, toKey, toInclusive);
+    }
+
+    /**
+     * Get a view of the part of the map whose keys are greater than or
+     * equal to a key.
+     *
+     * @param fromKey  the lower bound
+     *
+     * @return the view
+     */
+    public SortedMap<K,V> tailMap (K fromKey)
+    {
+        return view.tailMap (fromKey);
+    }
+
+    /**
+     * Get a view of the part of the map whose keys are greater than (or,
+     * if <tt>inclusive</tt> is set, equal to) a key.
+     *
+     * @param fromKey    the lower bound
+     * @param inclusive  whether the bound is included
+     *
+     * @return the view
+     */
+    public NavigableMap<K,V> tailMap (K fromKey, boolean inclusive)
+    {
+        return view.tailMap (fromKey, inclusive);
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void checkValidity()
+    {
+        if (! valid)
+            throw new IllegalStateException ("Invalid FileTreeMap object");
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare (K a, K b)
+    {
+        return (comparator == null) ? ((Comparable<? super K>) a).compareTo (b)
+                                    : comparator.compare (a, b);
+    }
+
+    /**
+     * Initialize an empty tree: a header and an empty root leaf.
+     *
+     * @throws IOException on error
+     */
+    private void createTree()
+        throws IOException
+    {
+        setPageSize (PAGE_SIZE);
+
+        rootPage  = 1;
+        pageCount = 2;
+        freePage  = 0;
+        count     = 0;
+
+        Node<K> root = new Node<K> (rootPage, true);
+        markDirty (root);
+        writeHeader();
+    }
+
+    /**
+     * Read and check the tree header.
+     *
+     * @throws IOException              on error, or if the file is corrupt
+     * @throws VersionMismatchException the file has the wrong version
+     */
+    private void readHeader()
+        throws IOException,
+               VersionMismatchException
+    {
+        ByteBuffer header = ByteBuffer.allocate (32);
+
+        while (header.hasRemaining())
+        {
+            if (channel.read (header, header.position()) < 0)
+                throw corruptTree();
+        }
+
+        header.flip();
+
+        if (header.getInt() != TREE_MAGIC)
+            throw corruptTree();
+
+        int version = header.getInt();
+        if (version != TREE_VERSION)
+        {
+            throw new VersionMismatchException
+                          (Package.BUNDLE_NAME,
+                           "FileHashMap.versionMismatch",
+                           "FileHashMap version mismatch in index file " +
+                           "\"{0}\". Expected version \"{1}\", found " +
+                           "version \"{2}\"",
+                           new Object[]
+                           {
+                               treePath.getName(),
+                               String.valueOf (TREE_VERSION),
+                               String.valueOf (version)
+                           },
+                           String.valueOf (TREE_VERSION),
+                           String.valueOf (version));
+        }
+
+        int size = header.getInt();
+        rootPage  = header.getInt();
+        pageCount = header.getInt();
+        freePage  = header.getInt();
+        count     = header.getLong();
+
+        if ((size < 512) || (Integer.bitCount (size) != 1) ||
+            (rootPage <= 0) || (rootPage >= pageCount) ||
+            (freePage < 0) || (freePage >= pageCount) || (count < 0))
+            throw corruptTree();
+
+        setPageSize (size);
+    }
+
+    private void setPageSize (int size)
+    {
+        pageSize           = size;
+        maxKeySize         = size / 8;
+        maxInlineValueSize = size / 8;
+    }
+
+    private void writeHeader()
+        throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate (pageSize);
+
+        header.putInt (TREE_MAGIC)
+              .putInt (TREE_VERSION)
+              .putInt (pageSize)
+              .putInt (rootPage)
+              .putInt (pageCount)
+              .putInt (freePage)
+              .putLong (count);
+
+        writePage (0, header);
+    }
+
+    /**
+     * Write every modified node, then the header.
+     *
+     * @throws IOException on error
+     */
+    private void flush()
+        throws IOException
+    {
+        for (Node<K> node : pages.values())
+        {
+            if (node.dirty)
+                writeNode (node);
+        }
+
+        if (modified)
+        {
+            writeHeader();
+            modified = false;
+        }
+    }
+
+    private IOException corruptTree()
+    {
+        return new IOException ("Tree file \"" + treePath.getPath() +
+                                "\" is corrupt.");
+    }
+
+    private IllegalStateException pageError (int page, IOException ex)
+    {
+        return new IllegalStateException ("Can't access page " + page +
+                                          " of \"" + treePath.getPath() +
+                                          "\"",
+                                          ex);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Private Methods: Pages
+    \*----------------------------------------------------------------------*/
+
+    private ByteBuffer readPage (int page)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate (pageSize);
+        long       pos = (long) page * pageSize;
+
+        while (buf.hasRemaining())
+        {
+            if (channel.read (buf, pos + buf.position()) < 0)
+                throw new EOFException ("Page " + page + " is past the " +
+                                        "end of \"" + treePath.getPath() +
+                                        "\"");
+        }
+
+        buf.flip();
+        return buf;
+    }
+
+    private void writePage (int page, ByteBuffer buf)
+        throws IOException
+    {
+        long pos = (long) page * pageSize;
+
+        buf.clear();
+        while (buf.hasRemaining())
+            channel.write (buf, pos + buf.position());
+    }
+
+    /**
+     * Allocate a page, reusing a freed one if there is one.
+     *
+     * @return the page number
+     *
+     * @throws IOException on error
+     */
+    private int allocatePage()
+        throws IOException
+    {
+        modified = true;
+
+        if (freePage == 0)
+            return pageCount++;
+
+        int page = freePage;
+        ByteBuffer buf = readPage (page);
+        if (buf.get() != FREE_PAGE)
+            throw corruptTree();
+
+        freePage = buf.getInt();
+        return page;
+    }
+
+    private void freePage (int page)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate (pageSize);
+        buf.put (FREE_PAGE).putInt (freePage);
+        writePage (page, buf);
+
+        freePage = page;
+        modified = true;
+    }
+
+    /**
+     * Get a node, from the cache if it's there.
+     *
+     * @param page  the node's page
+     *
+     * @return the node
+     *
+     * @throws IllegalStateException the page couldn't be read
+     */
+    private Node<K> getNode (int page)
+    {
+        Node<K> node = pages.get (page);
+
+        if (node == null)
+        {
+            try
+            {
+                node = readNode (page);
+            }
+
+            catch (IOException ex)
+            {
+                throw pageError (page, ex);
+            }
+
+            pages.put (page, node);
+        }
+
+        return node;
+    }
+
+    /**
+     * Note that a node has changed. The node is put back in the cache,
+     * in case the cache pushed it out (and wrote it) while the caller was
+     * working on it.
+     *
+     * @param node  the node
+     */
+    private void markDirty (Node<K> node)
+    {
+        node.dirty = true;
+        modified   = true;
+        pages.put (node.page, node);
+    }
+
+    private Node<K> readNode (int page)
+        throws IOException
+    {
+        ByteBuffer buf  = readPage (page);
+        byte       type = buf.get();
+        int        n    = buf.getShort() & 0xffff;
+        Node<K>    node;
+
+        if (type == LEAF_PAGE)
+        {
+            node = new Node<K> (page, true);
+            node.prev = buf.getInt();
+            node.next = buf.getInt();
+        }
+
+        else if (type == INNER_PAGE)
+        {
+            node = new Node<K> (page, false);
+            node.children.add (buf.getInt());
+        }
+
+        else
+        {
+            throw corruptTree();
+        }
+
+        try
+        {
+            for (int i = 0; i < n; i++)
+            {
+                byte[] keyBytes = new byte[buf.getShort() & 0xffff];
+                buf.get (keyBytes);
+                node.keyBytes.add (keyBytes);
+                node.keys.add (keyCodec.decode (keyBytes, 0, keyBytes.length));
+
+                if (node.leaf)
+                {
+                    int    pos    = buf.position();
+                    byte[] stored = new byte[(buf.get (pos) == INLINE_VALUE)
+                                                 ? VALUE_HEADER_SIZE +
+                                                   buf.getInt (pos + 1)
+                                                 : OVERFLOW_VALUE_SIZE];
+                    buf.get (stored);
+                    node.values.add (stored);
+                }
+
+                else
+                {
+                    node.children.add (buf.getInt());
+                }
+            }
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            throw new IOException ("Can't decode key: " + ex.toString());
+        }
+
+        catch (RuntimeException ex)
+        {
+            // A damaged page can send the buffer past its limit.
+
+            throw corruptTree();
+        }
+
+        node.size = buf.position();
+        return node;
+    }
+
+    private void writeNode (Node<K> node)
+        throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate (pageSize);
+        int        n   = node.keys.size();
+
+        buf.put (node.leaf ? LEAF_PAGE : INNER_PAGE).putShort ((short) n);
+
+        if (node.leaf)
+            buf.putInt (node.prev).putInt (node.next);
+        else
+            buf.putInt (node.children.get (0));
+
+        for (int i = 0; i < n; i++)
+        {
+            byte[] keyBytes = node.keyBytes.get (i);
+            buf.putShort ((short) keyBytes.length).put (keyBytes);
+
+            if (node.leaf)
+                buf.put (node.values.get (i));
+            else
+                buf.putInt (node.children.get (i + 1));
+        }
+
+        writePage (node.page, buf);
+        node.dirty = false;
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Private Methods: Values
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Convert an encoded value to the form stored in a leaf, writing it
+     * to overflow pages if it's too big to store in the leaf.
+     *
+     * @param bytes  the encoded value
+     *
+     * @return the stored form
+     *
+     * @throws IOException on error
+     */
+    private byte[] storeValue (byte[] bytes)
+        throws IOException
+    {
+        if (bytes.length <= maxInlineValueSize)
+        {
+            return ByteBuffer.allocate (VALUE_HEADER_SIZE + bytes.length)
+                             .put (INLINE_VALUE)
+                             .putInt (bytes.length)
+                             .put (bytes)
+                             .array();
+        }
+
+        int   chunk = pageSize - OVERFLOW_HEADER_SIZE;
+        int[] chain = new int[(bytes.length + chunk - 1) / chunk];
+
+        for (int i = 0; i < chain.length; i++)
+            chain[i] = allocatePage();
+
+        for (int i = 0; i < chain.length; i++)
+        {
+            int        offset = i * chunk;
+            ByteBuffer buf    = ByteBuffer.allocate (pageSize);
+
+            buf.put (OVERFLOW_PAGE)
+               .putInt ((i + 1 < chain.length) ? chain[i + 1] : 0)
+               .put (bytes, offset, Math.min (chunk, bytes.length - offset));
+            writePage (chain[i], buf);
+        }
+
+        return ByteBuffer.allocate (OVERFLOW_VALUE_SIZE)
+                         .put (OVERFLOW_VALUE)
+                         .putInt (chain[0])
+                         .putInt (bytes.length)
+                         .array();
+    }
+
+    /**
+     * Decode the stored form of a value, reading its overflow pages if it
+     * has any.
+     *
+     * @param stored  the stored form
+     *
+     * @return the value
+     *
+     * @throws IllegalStateException the value couldn't be read or decoded
+     */
+    private V decodeValue (byte[] stored)
+    {
+        ByteBuffer ref    = ByteBuffer.wrap (stored);
+        byte       tag    = ref.get();
+        int        page   = (tag == INLINE_VALUE) ? 0 : ref.getInt();
+        int        length = ref.getInt();
+
+        try
+        {
+            if (tag == INLINE_VALUE)
+                return valueCodec.decode (stored, VALUE_HEADER_SIZE, length);
+
+            byte[] bytes  = new byte[length];
+            int    offset = 0;
+
+            while (offset < length)
+            {
+                ByteBuffer buf = readPage (page);
+                if (buf.get() != OVERFLOW_PAGE)
+                    throw corruptTree();
+
+                int n = Math.min (buf.remaining() - 4, length - offset);
+                page = buf.getInt();
+                buf.get (bytes, offset, n);
+                offset += n;
+            }
+
+            return valueCodec.decode (bytes, 0, length);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't read value from \"" +
+                                             treePath.getPath() + "\"",
+                                             ex);
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException ("Can't decode value", ex);
+        }
+    }
+
+    /**
+     * Free the overflow pages of a stored value, if it has any.
+     *
+     * @param stored  the stored form
+     *
+     * @throws IOException on error
+     */
+    private void releaseValue (byte[] stored)
+        throws IOException
+    {
+        ByteBuffer ref = ByteBuffer.wrap (stored);
+
+        if (ref.get() == OVERFLOW_VALUE)
+        {
+            int page = ref.getInt();
+
+            while (page != 0)
+            {
+                ByteBuffer buf = readPage (page);
+                if (buf.get() != OVERFLOW_PAGE)
+                    throw corruptTree();
+
+                int next = buf.getInt();
+                freePage (page);
+                page = next;
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Private Methods: Tree
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Search a node's keys.
+     *
+     * @param node  the node
+     * @param key   the key to find
+     *
+     * @return the key's index, if it's there; otherwise,
+     *         (-(insertion point) - 1)
+     */
+    private int search (Node<K> node, K key)
+    {
+        List<K> keys = node.keys;
+        int     low  = 0;
+        int     high = keys.size() - 1;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int c   = compare (keys.get (mid), key);
+
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+
+        return -(low + 1);
+    }
+
+    /**
+     * Get the index of the child of an inner node that covers a key. A
+     * separator key is the least key of the child to its right.
+     */
+    private int childIndex (Node<K> node, K key)
+    {
+        int i = search (node, key);
+        return (i >= 0) ? (i + 1) : (-i - 1);
+    }
+
+    /**
+     * Find the leaf that holds, or would hold, a key.
+     */
+    private Node<K> findLeaf (K key)
+    {
+        if (key == null)
+            throw new NullPointerException ("null key");
+
+        Node<K> node = getNode (rootPage);
+
+        while (! node.leaf)
+            node = getNode (node.children.get (childIndex (node, key)));
+
+        return node;
+    }
+
+    private int findInLeaf (Node<K> leaf, K key)
+    {
+        int i = search (leaf, key);
+        return (i >= 0) ? i : -1;
+    }
+
+    /**
+     * Find the entry that bears a relation to a key.
+     *
+     * @param key       the key
+     * @param relation  CEILING, HIGHER, FLOOR or LOWER
+     *
+     * @return the entry, or null if there isn't one
+     */
+    private Cursor<K> seek (K key, int relation)
+    {
+        Node<K> leaf = findLeaf (key);
+        int     i    = search (leaf, key);
+
+        switch (relation)
+        {
+            case CEILING:
+                return forward (leaf, (i >= 0) ? i : (-i - 1));
+
+            case HIGHER:
+                return forward (leaf, (i >= 0) ? (i + 1) : (-i - 1));
+
+            case FLOOR:
+                return backward (leaf, (i >= 0) ? i : (-i - 2));
+
+            default:
+                return backward (leaf, (i >= 0) ? (i - 1) : (-i - 2));
+        }
+    }
+
+    /**
+     * Get the entry at an index in a leaf or, if the index is past the
+     * end of the leaf, the first entry of the next leaf that isn't empty.
+     */
+    private Cursor<K> forward (Node<K> leaf, int i)
+    {
+        while (i >= leaf.keys.size())
+        {
+            if (leaf.next == 0)
+                return null;
+
+            leaf = getNode (leaf.next);
+            i    = 0;
+        }
+
+        return new Cursor<K> (leaf, i);
+    }
+
+    /**
+     * Get the entry at an index in a leaf or, if the index is negative,
+     * the last entry of the previous leaf that isn't empty.
+     */
+    private Cursor<K> backward (Node<K> leaf, int i)
+    {
+        while (i < 0)
+        {
+            if (leaf.prev == 0)
+                return null;
+
+            leaf = getNode (leaf.prev);
+            i    = leaf.keys.size() - 1;
+        }
+
+        return new Cursor<K> (leaf, i);
+    }
+
+    private Cursor<K> successor (Cursor<K> c)
+    {
+        return forward (c.leaf, c.index + 1);
+    }
+
+    private Cursor<K> predecessor (Cursor<K> c)
+    {
+        return backward (c.leaf, c.index - 1);
+    }
+
+    private Cursor<K> firstCursor()
+    {
+        Node<K> node = getNode (rootPage);
+
+        while (! node.leaf)
+            node = getNode (node.children.get (0));
+
+        return forward (node, 0);
+    }
+
+    private Cursor<K> lastCursor()
+    {
+        Node<K> node = getNode (rootPage);
+
+        while (! node.leaf)
+            node = getNode (node.children.get (node.children.size() - 1));
+
+        return backward (node, node.keys.size() - 1);
+    }
+
+    private K keyAt (Cursor<K> c)
+    {
+        return (c == null) ? null : c.key();
+    }
+
+    private K keyOrThrow (Cursor<K> c)
+    {
+        if (c == null)
+            throw new NoSuchElementException();
+
+        return c.key();
+    }
+
+    private Map.Entry<K,V> entryAt (Cursor<K> c)
+    {
+        if (c == null)
+            return null;
+
+        return new AbstractMap.SimpleImmutableEntry<K,V>
+                   (c.key(), decodeValue (c.leaf.values.get (c.index)));
+    }
+
+    /**
+     * Insert or replace an entry, splitting nodes on the way back up as
+     * necessary.
+     *
+     * @param key       the key
+     * @param keyBytes  the encoded key
+     * @param stored    the stored form of the value
+     *
+     * @return the previous value, or null
+     *
+     * @throws IOException on error
+     */
+    private V insert (K key, byte[] keyBytes, byte[] stored)
+        throws IOException
+    {
+        List<Node<K>> path     = new ArrayList<Node<K>>();
+        List<Integer> indexes  = new ArrayList<Integer>();
+        Node<K>       node     = getNode (rootPage);
+        V             oldValue = null;
+
+        while (! node.leaf)
+        {
+            int i = childIndex (node, key);
+            path.add (node);
+            indexes.add (i);
+            node = getNode (node.children.get (i));
+        }
+
+        int i = search (node, key);
+        if (i >= 0)
+        {
+            byte[] old = node.values.get (i);
+            oldValue = decodeValue (old);
+            releaseValue (old);
+
+            node.values.set (i, stored);
+            node.size += stored.length - old.length;
+        }
+
+        else
+        {
+            i = -i - 1;
+            node.keys.add (i, key);
+            node.keyBytes.add (i, keyBytes);
+            node.values.add (i, stored);
+            node.size += node.entrySize (i);
+            count++;
+        }
+
+        markDirty (node);
+        modCount++;
+
+        while (node.size > pageSize)
+        {
+            Split<K> split = node.leaf ? splitLeaf (node) : splitInner (node);
+
+            if (path.isEmpty())
+            {
+                Node<K> root = new Node<K> (allocatePage(), false);
+                root.children.add (node.page);
+                root.keys.add (split.key);
+                root.keyBytes.add (split.keyBytes);
+                root.children.add (split.page);
+                root.size += root.entrySize (0);
+                markDirty (root);
+                rootPage = root.page;
+                break;
+            }
+
+            Node<K> parent = path.remove (path.size() - 1);
+            int     at     = indexes.remove (indexes.size() - 1);
+
+            parent.keys.add (at, split.key);
+            parent.keyBytes.add (at, split.keyBytes);
+            parent.children.add (at + 1, split.page);
+            parent.size += parent.entrySize (at);
+            markDirty (parent);
+            node = parent;
+        }
+
+        return oldValue;
+    }
+
+    /**
+     * Find where to split a node so that the halves are about the same
+     * size.
+     */
+    private int splitPoint (Node<K> node, int min, int max)
+    {
+        int half = node.size / 2;
+        int size = node.leaf ? LEAF_HEADER_SIZE : INNER_HEADER_SIZE;
+        int i    = 0;
+
+        while ((i < max) && (size + node.entrySize (i) <= half))
+            size += node.entrySize (i++);
+
+        return Math.max (min, Math.min (i, max));
+    }
+
+    private Split<K> splitLeaf (Node<K> node)
+        throws IOException
+    {
+        int     n     = node.keys.size();
+        int     mid   = splitPoint (node, 1, n - 1);
+        Node<K> right = new Node<K> (allocatePage(), true);
+
+        moveTail (node.keys, mid, right.keys);
+        moveTail (node.keyBytes, mid, right.keyBytes);
+        moveTail (node.values, mid, right.values);
+
+        right.prev = node.page;
+        right.next = node.next;
+        if (node.next != 0)
+        {
+            Node<K> next = getNode (node.next);
+            next.prev = right.page;
+            markDirty (next);
+        }
+
+        node.next = right.page;
+
+        resize (node);
+        resize (right);
+        markDirty (node);
+        markDirty (right);
+
+        return new Split<K> (right.keys.get (0), right.keyBytes.get (0),
+                             right.page);
+    }
+
+    private Split<K> splitInner (Node<K> node)
+        throws IOException
+    {
+        int     n     = node.keys.size();
+        int     mid   = splitPoint (node, 1, n - 2);
+        Node<K> right = new Node<K> (allocatePage(), false);
+        Split<K> split = new Split<K> (node.keys.get (mid),
+                                       node.keyBytes.get (mid),
+                                       right.page);
+
+        // The middle key moves up to the parent. The right node gets the
+        // keys after it, and the children after it.
+
+        moveTail (node.keys, mid + 1, right.keys);
+        moveTail (node.keyBytes, mid + 1, right.keyBytes);
+        moveTail (node.children, mid + 1, right.children);
+        node.keys.remove (mid);
+        node.keyBytes.remove (mid);
+
+        resize (node);
+        resize (right);
+        markDirty (node);
+        markDirty (right);
+
+        return split;
+    }
+
+    private static <T> void moveTail (List<T> from, int start, List<T> to)
+    {
+        List<T> tail = from.subList (start, from.size());
+        to.addAll (tail);
+        tail.clear();
+    }
+
+    private void resize (Node<K> node)
+    {
+        int size = node.leaf ? LEAF_HEADER_SIZE : INNER_HEADER_SIZE;
+
+        for (int i = 0; i < node.keys.size(); i++)
+            size += node.entrySize (i);
+
+        node.size = size;
+    }
+
+    /**
+     * Remove an entry. Leaves that become empty are left in the tree.
+     *
+     * @param key  the key
+     *
+     * @return the entry's value, or null if there was no entry
+     *
+     * @throws IllegalStateException an I/O error occurred
+     */
+    private V removeKey (K key)
+    {
+        Node<K> leaf = findLeaf (key);
+        int     i    = findInLeaf (leaf, key);
+
+        if (i < 0)
+            return null;
+
+        byte[] stored = leaf.values.get (i);
+        V      value  = decodeValue (stored);
+
+        leaf.size -= leaf.entrySize (i);
+        leaf.keys.remove (i);
+        leaf.keyBytes.remove (i);
+        leaf.values.remove (i);
+        count--;
+        markDirty (leaf);
+        modCount++;
+
+        try
+        {
+            releaseValue (stored);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't free overflow pages in \"" +
+                                             treePath.getPath() + "\"",
+                                             ex);
+        }
+
+        return value;
+    }
+}
@@ -0,0 +1,294 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Keeps track of the unused regions ("gaps") in a <tt>FileHashMap</tt>
+ * data file. Used when the <tt>RECLAIM_FILE_GAPS</tt> flag is set. This
+ * class is not publicly accessible.</p>
+ *
+ * <p>Gaps are indexed two ways: by file position, so that a freed region
+ * can be coalesced with the gaps on either side of it, and by size, so
+ * that the smallest gap that can hold a new value can be found. Both
+ * operations take logarithmic time. All methods are synchronized.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class FreeSpaceManager
+{
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A gap. Sorts by size, then position.
+     */
+    private static final class Gap implements Comparable<Gap>
+    {
+        final long pos;
+        final long size;
+
+        Gap (long pos, long size)
+        {
+            this.pos  = pos;
+            this.size = size;
+        }
+
+        public int compareTo (Gap other)
+        {
+            int cmp = compare (this.size, other.size);
+
+            if (cmp == 0)
+                cmp = compare (this.pos, other.pos);
+
+            return cmp;
+        }
+
+        public boolean equals (Object o)
+        {
+            return (o instanceof Gap) && (compareTo ((Gap) o) == 0);
+        }
+
+        public int hashCode()
+        {
+            return (int) (pos ^ (pos >>> 32)) ^ (int) size;
+        }
+
+        private static int compare (long a, long b)
+        {
+            return (a < b) ? -1 : ((a == b) ? 0 : 1);
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final TreeMap<Long, Gap> byPosition = new TreeMap<Long, Gap>();
+    private final TreeSet<Gap>       bySize     = new TreeSet<Gap>();
+    private long                     freeBytes  = 0;
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new, empty <tt>FreeSpaceManager</tt>.
+     */
+    FreeSpaceManager()
+    {
+        // Nothing to do
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a <tt>FreeSpaceManager</tt> from the output of
+     * {@link #toArray}.
+     *
+     * @param gaps  alternating gap positions and sizes
+     *
+     * @return the new object
+     */
+    static FreeSpaceManager fromArray (long[] gaps)
+    {
+        FreeSpaceManager result = new FreeSpaceManager();
+
+        for (int i = 0; i + 1 < gaps.length; i += 2)
+            result.free (gaps[i], gaps[i + 1]);
+
+        return result;
+    }
+
+    /**
+     * Allocate space from the smallest gap that's big enough. Any
+     * remainder stays free.
+     *
+     * @param size  the number of bytes required
+     *
+     * @return the file position of the allocated space, or -1 if no gap is
+     *         big enough
+     */
+    synchronized long allocate (int size)
+    {
+        long result = -1;
+
+        if (size > 0)
+        {
+            Gap gap = bySize.ceiling (new Gap (-1, size));
+
+            if (gap != null)
+            {
+                remove (gap);
+                if (gap.size > size)
+                    add (new Gap (gap.pos + size, gap.size - size));
+
+                result = gap.pos;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Return a region to the free space, merging it with any adjacent
+     * gaps.
+     *
+     * @param pos   the region's file position
+     * @param size  the region's size
+     */
+    synchronized void free (long pos, long size)
+    {
+        if (size <= 0)
+            return;
+
+        Map.Entry<Long, Gap> before = byPosition.floorEntry (pos);
+
+        if (before != null)
+        {
+            Gap gap = before.getValue();
+
+            assert (gap.pos + gap.size <= pos)
+                : "Region at " + pos + " freed twice";
+
+            if (gap.pos + gap.size == pos)
+            {
+                remove (gap);
+                pos   = gap.pos;
+                size += gap.size;
+            }
+        }
+
+        Gap after = byPosition.get (pos + size);
+
+        if (after != null)
+        {
+            remove (after);
+            size += after.size;
+        }
+
+        add (new Gap (pos, size));
+    }
+
+    /**
+     * Forget all gaps.
+     */
+    synchronized void clear()
+    {
+        byPosition.clear();
+        bySize.clear();
+        freeBytes = 0;
+    }
+
+    /**
+     * Get the total number of free bytes.
+     *
+     * @return the number of free bytes
+     */
+    synchronized long getFreeBytes()
+    {
+        return freeBytes;
+    }
+
+    /**
+     * Get the number of gaps.
+     *
+     * @return the number of gaps
+     */
+    synchronized int getGapCount()
+    {
+        return byPosition.size();
+    }
+
+    /**
+     * Get the gaps as an array of alternating positions and sizes, in
+     * position order. Suitable for serializing.
+     *
+     * @return the array
+     *
+     * @see #fromArray
+     */
+    synchronized long[] toArray()
+    {
+        long[] result = new long[byPosition.size() * 2];
+        int    i      = 0;
+
+        for (Gap gap : byPosition.values())
+        {
+            result[i++] = gap.pos;
+            result[i++] = gap.size;
+        }
+
+        return result;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private void add (Gap gap)
+    {
+        byPosition.put (gap.pos, gap);
+        bySize.add (gap);
+        freeBytes += gap.size;
+    }
+
+    private void remove (Gap gap)
+    {
+        byPosition.remove (gap.pos);
+        bySize.remove (gap);
+        freeBytes -= gap.size;
+    }
+}
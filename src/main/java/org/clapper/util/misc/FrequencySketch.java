@@ -0,0 +1,250 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.Arrays;
+
+/**
+ * <p>A count-min sketch that estimates how often each of a large number
+ * of objects has been seen recently, in a small, fixed amount of memory.
+ * {@link LRUMap}'s TinyLFU eviction policy uses it to decide whether a
+ * new entry is likely to be more useful than the entry it would displace.</p>
+ *
+ * <p>Each object is counted in four 4-bit counters, chosen by hashing its
+ * hash code four different ways; its estimated frequency is the smallest
+ * of the four, which is the count least inflated by collisions with other
+ * objects. The counters are packed sixteen to a <tt>long</tt>, and
+ * saturate at 15. To let the sketch forget objects that used to be
+ * popular, every counter is halved once the number of increments reaches
+ * ten times the table's length.</p>
+ *
+ * <p>This class is not thread-safe, and is not publicly accessible.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class FrequencySketch
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Multipliers for the four row hashes.
+     */
+    private static final long[] SEEDS =
+    {
+        0xc3a5c85c97cb3127L,
+        0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L
+    };
+
+    /**
+     * Clears the bit that halving shifts into each counter from its
+     * neighbor.
+     */
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    /**
+     * The largest table we'll allocate.
+     */
+    private static final int MAX_TABLE_SIZE = 1 << 26;
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private long[] table      = new long[0];
+    private int    sampleSize = 0;
+    private int    increments = 0;
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a sketch.
+     *
+     * @param expectedSize  the number of distinct objects it should be able
+     *                      to tell apart
+     */
+    FrequencySketch (int expectedSize)
+    {
+        ensureCapacity (expectedSize);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Make the sketch big enough to tell apart a given number of objects.
+     * If it has to grow, everything it has counted so far is forgotten.
+     *
+     * @param expectedSize  the number of objects
+     */
+    void ensureCapacity (int expectedSize)
+    {
+        int size = 16;
+        while ((size < expectedSize) && (size < MAX_TABLE_SIZE))
+            size <<= 1;
+
+        if (size > table.length)
+        {
+            table      = new long[size];
+            sampleSize = 10 * size;
+            increments = 0;
+        }
+    }
+
+    /**
+     * Estimate how often an object has been seen.
+     *
+     * @param o  the object
+     *
+     * @return the estimated count, from 0 to 15
+     */
+    int frequency (Object o)
+    {
+        int hash      = spread (o.hashCode());
+        int start     = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+
+        for (int i = 0; i < 4; i++)
+        {
+            int  index = indexOf (hash, i);
+            int  count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+
+            frequency = Math.min (frequency, count);
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Count a sighting of an object.
+     *
+     * @param o  the object
+     */
+    void increment (Object o)
+    {
+        int     hash    = spread (o.hashCode());
+        int     start   = (hash & 3) << 2;
+        boolean counted = false;
+
+        for (int i = 0; i < 4; i++)
+        {
+            int  index  = indexOf (hash, i);
+            int  offset = (start + i) << 2;
+            long mask   = 0xfL << offset;
+
+            if ((table[index] & mask) != mask)
+            {
+                table[index] += 1L << offset;
+                counted = true;
+            }
+        }
+
+        if (counted && (++increments >= sampleSize))
+            halve();
+    }
+
+    /**
+     * Forget everything.
+     */
+    void clear()
+    {
+        Arrays.fill (table, 0L);
+        increments = 0;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Halve every counter, so that old sightings count for less.
+     */
+    private void halve()
+    {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+
+        increments /= 2;
+    }
+
+    /**
+     * Get the table index of an object's counter in one row.
+     *
+     * @param hash  the object's spread hash code
+     * @param row   the row, from 0 to 3
+     *
+     * @return the index
+     */
+    private int indexOf (int hash, int row)
+    {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return ((int) h) & (table.length - 1);
+    }
+
+    /**
+     * Improve the distribution of a hash code.
+     *
+     * @param h  the hash code
+     *
+     * @return the improved hash
+     */
+    private static int spread (int h)
+    {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+}
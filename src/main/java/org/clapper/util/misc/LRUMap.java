@@ -48,9 +48,14 @@ package org.clapper.util.misc;
 
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import java.io.Serializable;
@@ -85,8 +90,71 @@ import java.util.Collection;
  *       at creation time, to prevent accidental unsynchronized access to
  *       the map:
  *       <pre>Map m = Collections.synchronizedMap (new LRUMap (...));</pre>
+ *       A map that's read by many threads at once is better served by a
+ *       {@link ConcurrentLRUMap}, whose reads don't contend for a lock,
+ *       and which can load missing values itself, once per key, however
+ *       many threads want them.
  * </ul>
  *
+ * <p>By default, an <tt>LRUMap</tt>'s capacity is a number of entries.
+ * Maps whose values vary a lot in size can instead be given a maximum
+ * <i>weight</i>, with the {@link #LRUMap(int,long,Weigher)} constructor:
+ * each entry is weighed by a {@link Weigher} when it's stored, and least
+ * recently used entries are discarded whenever the total weight of the
+ * entries would exceed the maximum. (An entry that is heavier than the
+ * maximum on its own is discarded at once, along with any value it
+ * replaces, and the others are left alone. Removal listeners are told of
+ * both as automatic removals.) Such a map
+ * still has a maximum number of entries, too; pass
+ * <tt>Integer.MAX_VALUE</tt> if only the weight matters.</p>
+ *
+ * <p>Discarding the least recently used entry works well when recent
+ * use predicts future use, but a single scan over many keys that are
+ * never used again can flush every useful entry out of the map. So
+ * {@link #setEvictionPolicy setEvictionPolicy()} can select one of
+ * these {@link EvictionPolicy eviction policies}:</p>
+ *
+ * <ul>
+ *   <li>{@link EvictionPolicy#LRU LRU}, the default, discards the least
+ *       recently used entry.
+ *   <li>{@link EvictionPolicy#TWO_QUEUE TWO_QUEUE} keeps new entries in a
+ *       first-in, first-out queue holding about a quarter of the map, and
+ *       discards from it first. An entry is moved to the main, least
+ *       recently used, queue only if it's put again shortly after being
+ *       discarded from the first queue, which the map notices by
+ *       remembering the keys (but not the values) of recently discarded
+ *       entries.
+ *   <li>{@link EvictionPolicy#TINY_LFU TINY_LFU} keeps new entries in a
+ *       small least recently used window, and moves the entries it
+ *       pushes out into the main part of the map only if they have been
+ *       used more often than the entry they would displace. Usage is
+ *       estimated, in a few bits per entry, by a count-min sketch that is
+ *       periodically aged so that it forgets entries that used to be
+ *       popular. This policy usually has the best hit rate, particularly
+ *       when a few keys are much more popular than the rest.
+ * </ul>
+ *
+ * <p>Whatever the policy, removal listeners are notified of every entry
+ * that's discarded, and the map's iterators visit every entry, though
+ * only the <tt>LRU</tt> policy visits them in order of use.</p>
+ *
+ * <p>Entries can also be made to expire a fixed time after they're
+ * written, with {@link #setExpireAfterWrite setExpireAfterWrite()}, or
+ * after they're last read or written, with
+ * {@link #setExpireAfterAccess setExpireAfterAccess()}. (If both are set,
+ * an entry expires at whichever time comes first.) An expired entry is
+ * never returned by <tt>get()</tt>, <tt>containsKey()</tt> or
+ * <tt>remove()</tt>. It's discarded, and removal listeners are notified
+ * of an automatic removal, when the map next notices it: when it's next
+ * looked up, or when the map's timer wheel reaches it. The timer wheel
+ * sorts the entries into buckets by expiration time, so that the expired
+ * ones can be found without looking at the rest. It's advanced by calls
+ * to <tt>get()</tt> and <tt>put()</tt>, rather than by a thread of its
+ * own, and finds an expired entry within about a second of its
+ * expiration time, provided the map is being used. Until then, the entry
+ * still counts towards <tt>size()</tt>, and the map's iterators still
+ * visit it.</p>
+ *
  * <p>There are other, similar implementations. For instance, see the
  * {@link <a href="http://jakarta.apache.org/commons/collections/apidocs/org/apache/commons/collections/LRUMap.html">LRUMap</a>}
  * class in the
@@ -122,6 +190,33 @@ public class LRUMap<K,V>
                                Inner Classes
     \*----------------------------------------------------------------------*/
 
+    /**
+     * The policies an <tt>LRUMap</tt> can use to choose which entry to
+     * discard when it's full. See the class documentation for details.
+     *
+     * @see #setEvictionPolicy
+     */
+    public enum EvictionPolicy
+    {
+        /**
+         * Discard the least recently used entry. This is the default.
+         */
+        LRU,
+
+        /**
+         * Keep entries that have been used only once in a first-in,
+         * first-out queue, apart from the entries that have been reused,
+         * and discard them first.
+         */
+        TWO_QUEUE,
+
+        /**
+         * Admit an entry to the bulk of the map only if it has been used
+         * more often than the entry it would displace.
+         */
+        TINY_LFU
+    }
+
     /**
      * Set of Map.Entry (really, LRULinkedListEntry) objects returned by
      * the LRUMap.entrySet() method.
@@ -188,32 +283,63 @@ public class LRUMap<K,V>
     }
 
     /**
-     * Iterator returned by EntrySet.iterator()
+     * Base class for the iterators. Walks the entries in each of the
+     * eviction policy's queues in turn.
      */
-    private class EntryIterator implements Iterator<LRULinkedListEntry>
+    private abstract class QueueWalker
     {
-        private LRULinkedListEntry current;
+        private final Iterator<LRULinkedList> queues  =
+            evictor.queues.iterator();
+        private LRULinkedListEntry            current = null;
 
-        EntryIterator()
+        QueueWalker()
         {
-            current = lruQueue.head;
+            skipEmptyQueues();
         }
 
-        public LRULinkedListEntry next()
+        public boolean hasNext()
+        {
+            return (current != null);
+        }
+
+        public void remove()
         {
+            throw new UnsupportedOperationException();
+        }
+
+        LRULinkedListEntry nextEntry()
+        {
+            if (current == null)
+                throw new NoSuchElementException();
+
             LRULinkedListEntry result = current;
             current = current.next;
+            skipEmptyQueues();
             return result;
         }
 
-        public boolean hasNext()
+        private void skipEmptyQueues()
         {
-            return (current != null);
+            while ((current == null) && queues.hasNext())
+                current = queues.next().head;
         }
+    }
 
-        public void remove()
+    /**
+     * Iterator returned by EntrySet.iterator()
+     */
+    private class EntryIterator
+        extends QueueWalker
+        implements Iterator<LRULinkedListEntry>
+    {
+        EntryIterator()
         {
-            throw new UnsupportedOperationException();
+            // Nothing to do
+        }
+
+        public LRULinkedListEntry next()
+        {
+            return nextEntry();
         }
     }
 
@@ -256,30 +382,16 @@ public class LRUMap<K,V>
     /**
      * Iterator returned by KeySet.iterator()
      */
-    private class KeySetIterator implements Iterator<K>
+    private class KeySetIterator extends QueueWalker implements Iterator<K>
     {
-        private LRULinkedListEntry current;
-
         KeySetIterator()
         {
-            current = lruQueue.head;
+            // Nothing to do
         }
 
         public K next()
         {
-            LRULinkedListEntry result = current;
-            current = current.next;
-            return result.key;
-        }
-
-        public boolean hasNext()
-        {
-            return (current != null);
-        }
-
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
+            return nextEntry().key;
         }
     }
 
@@ -343,30 +455,16 @@ public class LRUMap<K,V>
     /**
      * Iterator returned by ValueSet.iterator()
      */
-    private class ValueSetIterator implements Iterator<V>
+    private class ValueSetIterator extends QueueWalker implements Iterator<V>
     {
-        private LRULinkedListEntry current;
-
         ValueSetIterator()
         {
-            current = lruQueue.head;
+            // Nothing to do
         }
 
         public V next()
         {
-            LRULinkedListEntry result = current;
-            current = current.next;
-            return result.value;
-        }
-
-        public boolean hasNext()
-        {
-            return (current != null);
-        }
-
-        public void remove()
-        {
-            throw new UnsupportedOperationException();
+            return nextEntry().value;
         }
     }
 
@@ -380,6 +478,17 @@ public class LRUMap<K,V>
         LRULinkedListEntry  next     = null;
         K                   key      = null;
         V                   value    = null;
+        int                 weight   = 0;
+        LRULinkedList       queue    = null;
+
+        // Expiration times, which are tracked only while entries expire,
+        // and the entry's links in its timer wheel bucket.
+
+        long                writeTime      = 0;
+        long                accessTime     = 0;
+        long                expirationTime = Long.MAX_VALUE;
+        LRULinkedListEntry  timerPrevious  = null;
+        LRULinkedListEntry  timerNext      = null;
 
         LRULinkedListEntry (K key, V value)
         {
@@ -418,6 +527,17 @@ public class LRUMap<K,V>
             this.value = value;
             return oldValue;
         }
+
+        void unlinkTimer()
+        {
+            if (timerNext != null)
+            {
+                timerNext.timerPrevious = timerPrevious;
+                timerPrevious.timerNext = timerNext;
+                timerNext = null;
+                timerPrevious = null;
+            }
+        }
     }
 
     /**
@@ -447,6 +567,7 @@ public class LRUMap<K,V>
         {
             entry.next = null;
             entry.previous = tail;
+            entry.queue = this;
 
             if (head == null)
             {
@@ -467,6 +588,7 @@ public class LRUMap<K,V>
         {
             entry.next = null;
             entry.previous = null;
+            entry.queue = this;
 
             if (head == null)
             {
@@ -501,6 +623,7 @@ public class LRUMap<K,V>
 
             entry.next = null;
             entry.previous = null;
+            entry.queue = null;
 
             size--;
             assert (size >= 0);
@@ -542,6 +665,430 @@ public class LRUMap<K,V>
         }
     }
 
+    /**
+     * Decides which entry to discard when the map is full, by keeping the
+     * entries in one or more {@link LRULinkedList} queues. Every entry in
+     * the hash map is in exactly one of the evictor's queues.
+     */
+    private abstract class Evictor
+    {
+        /**
+         * The evictor's queues, in the order in which the map's iterators
+         * visit them.
+         */
+        final List<LRULinkedList> queues = new ArrayList<LRULinkedList>();
+
+        /**
+         * Take charge of a new entry.
+         *
+         * @param entry  the entry, which has just been put in the hash map
+         */
+        abstract void added (LRULinkedListEntry entry);
+
+        /**
+         * Note that an entry has been retrieved or replaced.
+         *
+         * @param entry  the entry
+         */
+        abstract void accessed (LRULinkedListEntry entry);
+
+        /**
+         * Unlink the entry that should be discarded next.
+         *
+         * @return the entry, or null if there are none
+         */
+        abstract LRULinkedListEntry evict();
+
+        /**
+         * Forget an entry that has been removed from the hash map.
+         *
+         * @param entry  the entry
+         */
+        void removed (LRULinkedListEntry entry)
+        {
+            entry.queue.remove (entry);
+        }
+
+        /**
+         * Forget all entries.
+         */
+        void clear()
+        {
+            for (LRULinkedList queue : queues)
+                queue.clear();
+        }
+
+        /**
+         * Get the number of entries in the evictor's queues.
+         *
+         * @return the number of entries
+         */
+        int size()
+        {
+            int size = 0;
+            for (LRULinkedList queue : queues)
+                size += queue.size;
+
+            return size;
+        }
+
+        /**
+         * Create one of the evictor's queues.
+         *
+         * @return the queue
+         */
+        LRULinkedList newQueue()
+        {
+            LRULinkedList queue = new LRULinkedList();
+            queues.add (queue);
+            return queue;
+        }
+    }
+
+    /**
+     * The {@link EvictionPolicy#LRU LRU} policy: one queue, in order of
+     * last use.
+     */
+    private class LRUEvictor extends Evictor
+    {
+        private final LRULinkedList queue = newQueue();
+
+        LRUEvictor()
+        {
+            // Nothing to do
+        }
+
+        void added (LRULinkedListEntry entry)
+        {
+            queue.addToHead (entry);
+        }
+
+        void accessed (LRULinkedListEntry entry)
+        {
+            queue.moveToHead (entry);
+        }
+
+        LRULinkedListEntry evict()
+        {
+            return queue.removeTail();
+        }
+    }
+
+    /**
+     * The {@link EvictionPolicy#TWO_QUEUE TWO_QUEUE} policy. New entries
+     * go into a first-in, first-out queue. Entries that are pushed out of
+     * it leave their keys behind in a "ghost" list; a key that is put
+     * again while it's still a ghost has proven to be reused, and goes
+     * into the main, least recently used, queue.
+     */
+    private class TwoQueueEvictor extends Evictor
+    {
+        private final LRULinkedList in   = newQueue();
+        private final LRULinkedList main = newQueue();
+
+        private final LinkedHashMap<Object,Boolean> ghosts =
+            new LinkedHashMap<Object,Boolean>();
+
+        TwoQueueEvictor()
+        {
+            // Nothing to do
+        }
+
+        void added (LRULinkedListEntry entry)
+        {
+            if (ghosts.remove (entry.key) != null)
+                main.addToHead (entry);
+            else
+                in.addToHead (entry);
+        }
+
+        void accessed (LRULinkedListEntry entry)
+        {
+            // Accesses don't reorder the first-in, first-out queue.
+
+            if (entry.queue == main)     // NOPMD (legal reference comparison)
+                main.moveToHead (entry);
+        }
+
+        LRULinkedListEntry evict()
+        {
+            if ((main.size > 0) && (in.size <= Math.max (1, hash.size() / 4)))
+                return main.removeTail();
+
+            LRULinkedListEntry entry = in.removeTail();
+            if (entry != null)
+            {
+                ghosts.put (entry.key, Boolean.TRUE);
+
+                int maxGhosts = Math.max (1, hash.size() / 2);
+                Iterator<Object> it = ghosts.keySet().iterator();
+                while (ghosts.size() > maxGhosts)
+                {
+                    it.next();
+                    it.remove();
+                }
+            }
+
+            return entry;
+        }
+
+        void clear()
+        {
+            super.clear();
+            ghosts.clear();
+        }
+    }
+
+    /**
+     * The {@link EvictionPolicy#TINY_LFU TINY_LFU} policy. New entries go
+     * into a small least recently used "window" queue. Entries pushed out
+     * of the window go on probation, and a probationary entry that is
+     * used again is promoted to the protected queue, which holds most of
+     * the map. When an entry must be discarded, the newest probationary
+     * entry is kept, at the expense of the oldest, only if a
+     * {@link FrequencySketch} says it has been used more often.
+     */
+    private class TinyLfuEvictor extends Evictor
+    {
+        private final LRULinkedList   window    = newQueue();
+        private final LRULinkedList   probation = newQueue();
+        private final LRULinkedList   protect   = newQueue();
+        private final FrequencySketch sketch;
+
+        TinyLfuEvictor()
+        {
+            sketch = new FrequencySketch (Math.min (maxCapacity,
+                                                    hash.size() + 1));
+        }
+
+        void added (LRULinkedListEntry entry)
+        {
+            sketch.ensureCapacity (hash.size());
+            sketch.increment (entry.key);
+            window.addToHead (entry);
+
+            if (window.size > Math.max (1, hash.size() / 100))
+                probation.addToHead (window.removeTail());
+        }
+
+        void accessed (LRULinkedListEntry entry)
+        {
+            sketch.increment (entry.key);
+
+            if (entry.queue != probation) // NOPMD (legal reference comparison)
+            {
+                entry.queue.moveToHead (entry);
+                return;
+            }
+
+            probation.remove (entry);
+            protect.addToHead (entry);
+
+            int maxProtected = Math.max (1,
+                                         (hash.size() - window.size) * 4 / 5);
+            while (protect.size > maxProtected)
+                probation.addToHead (protect.removeTail());
+        }
+
+        LRULinkedListEntry evict()
+        {
+            if (probation.size < 2)
+            {
+                if (probation.size > 0)
+                    return probation.removeTail();
+
+                if (protect.size > 0)
+                    return protect.removeTail();
+
+                return window.removeTail();
+            }
+
+            LRULinkedListEntry candidate = probation.head;
+            LRULinkedListEntry victim    = probation.tail;
+
+            int candidateFrequency = sketch.frequency (candidate.key);
+            if (candidateFrequency > sketch.frequency (victim.key))
+            {
+                probation.remove (victim);
+                return victim;
+            }
+
+            probation.remove (candidate);
+            return candidate;
+        }
+
+        void clear()
+        {
+            super.clear();
+            sketch.clear();
+        }
+    }
+
+    /**
+     * A hierarchical timer wheel, which finds the expired entries in
+     * amortized constant time. Each level of the wheel is a ring of
+     * buckets, each of which holds the entries that expire during one
+     * span of time; the spans grow coarser from level to level, so that
+     * the levels together cover about 50 days, and a final bucket holds
+     * the entries that expire even later. Advancing the wheel visits only
+     * the buckets whose spans have passed. Their expired entries are
+     * discarded, and the rest are moved down to a finer level.
+     */
+    private class TimerWheel
+    {
+        /**
+         * The buckets' sentinel entries, level by level. Each bucket is a
+         * circular list, linked through the entries' timer links.
+         */
+        private final List<LRULinkedListEntry> buckets =
+            new ArrayList<LRULinkedListEntry>();
+
+        private final int[] firstBucket = new int[TIMER_SHIFTS.length];
+        private long        time;
+
+        TimerWheel (long now)
+        {
+            this.time = now;
+
+            for (int level = 0; level < TIMER_SHIFTS.length; level++)
+            {
+                firstBucket[level] = buckets.size();
+                for (int i = 0; i < TIMER_BUCKETS[level]; i++)
+                {
+                    LRULinkedListEntry sentinel =
+                        new LRULinkedListEntry (null, null);
+
+                    sentinel.timerPrevious = sentinel;
+                    sentinel.timerNext = sentinel;
+                    buckets.add (sentinel);
+                }
+            }
+        }
+
+        /**
+         * Put an entry in the bucket for its expiration time.
+         *
+         * @param entry  the entry, which must not already be in a bucket
+         */
+        void schedule (LRULinkedListEntry entry)
+        {
+            LRULinkedListEntry sentinel = findBucket (entry.expirationTime);
+
+            entry.timerPrevious = sentinel.timerPrevious;
+            entry.timerNext = sentinel;
+            sentinel.timerPrevious.timerNext = entry;
+            sentinel.timerPrevious = entry;
+        }
+
+        /**
+         * Advance the wheel to the current time, discarding the expired
+         * entries in the buckets it passes.
+         *
+         * @param now  the current time
+         */
+        void advance (long now)
+        {
+            long previous = time;
+
+            // The clock can be set back. Just wait for it to catch up.
+
+            if (now <= previous)
+                return;
+
+            time = now;
+            for (int level = 0; level < TIMER_SHIFTS.length; level++)
+            {
+                long previousTicks = previous >>> TIMER_SHIFTS[level];
+                long ticks = (now >>> TIMER_SHIFTS[level]) - previousTicks;
+
+                if (ticks == 0)
+                    break;
+
+                expire (level, previousTicks, ticks);
+            }
+        }
+
+        /**
+         * Empty every bucket.
+         */
+        void clear()
+        {
+            for (LRULinkedListEntry sentinel : buckets)
+            {
+                while (sentinel.timerNext != sentinel)
+                    sentinel.timerNext.unlinkTimer();
+            }
+        }
+
+        /**
+         * Visit the buckets of one level that the wheel has just passed,
+         * along with the current one.
+         *
+         * @param level          the level
+         * @param previousTicks  the level's tick count before the advance
+         * @param ticks          the number of ticks the level advanced
+         */
+        private void expire (int level, long previousTicks, long ticks)
+        {
+            int mask  = TIMER_BUCKETS[level] - 1;
+            int steps = (int) Math.min (ticks + 1, TIMER_BUCKETS[level]);
+
+            for (int i = 0; i < steps; i++)
+            {
+                int index = firstBucket[level] +
+                            (int) ((previousTicks + i) & mask);
+                LRULinkedListEntry sentinel = buckets.get (index);
+                LRULinkedListEntry entry = sentinel.timerNext;
+
+                sentinel.timerPrevious = sentinel;
+                sentinel.timerNext = sentinel;
+
+                while (entry != sentinel) // NOPMD (legal reference comparison)
+                {
+                    LRULinkedListEntry next = entry.timerNext;
+
+                    entry.timerPrevious = null;
+                    entry.timerNext = null;
+
+                    if (entry.expirationTime <= time)
+                        removeExpired (entry);
+                    else
+                        schedule (entry);
+
+                    entry = next;
+                }
+            }
+        }
+
+        /**
+         * Find the bucket for an expiration time: the one on the finest
+         * level whose ring reaches that far ahead.
+         *
+         * @param expirationTime  the time
+         *
+         * @return the bucket's sentinel
+         */
+        private LRULinkedListEntry findBucket (long expirationTime)
+        {
+            long duration = expirationTime - time;
+            int  last     = TIMER_SHIFTS.length - 1;
+
+            for (int level = 0; level < last; level++)
+            {
+                if (duration < (1L << TIMER_SHIFTS[level + 1]))
+                {
+                    long ticks = expirationTime >>> TIMER_SHIFTS[level];
+                    int  mask  = TIMER_BUCKETS[level] - 1;
+
+                    return buckets.get (firstBucket[level] +
+                                        (int) (ticks & mask));
+                }
+            }
+
+            return buckets.get (firstBucket[last]);
+        }
+    }
+
     /**
      * Wraps any ObjectRemovalListener passed into addRemovalListener().
      * Keeps track of both the listener and its "automaticOnly" status
@@ -574,6 +1121,19 @@ public class LRUMap<K,V>
      */
     private static final long serialVersionUID = 1L;
 
+    /**
+     * The base-2 logarithm of the span of time, in milliseconds, covered
+     * by one bucket on each level of a timer wheel: about a second, a
+     * minute, an hour, a day and a half, and 50 days.
+     */
+    private static final int[] TIMER_SHIFTS = {10, 16, 22, 27, 32};
+
+    /**
+     * The number of buckets on each level of a timer wheel. Each level's
+     * buckets together span one bucket of the next level.
+     */
+    private static final int[] TIMER_BUCKETS = {64, 64, 32, 32, 1};
+
     /*----------------------------------------------------------------------*\
                                Type Aliases
     \*----------------------------------------------------------------------*/
@@ -606,12 +1166,32 @@ public class LRUMap<K,V>
     \*----------------------------------------------------------------------*/
 
     private int            maxCapacity;
+    private long           maxWeight   = Long.MAX_VALUE;
+    private long           totalWeight = 0;
     private float          loadFactor;
     private int            initialCapacity;
     private EntryMap       hash;
-    private LRULinkedList  lruQueue;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private Evictor        evictor;
     private ListenerMap    removalListeners = null;
 
+    /**
+     * Weighs the entries, or null if the capacity is an entry count only.
+     */
+    private Weigher<? super K, ? super V> weigher = null;
+
+    /**
+     * How long entries last after they're written, and after they're
+     * read or written, in milliseconds, or 0 for no limit.
+     */
+    private long expireAfterWrite  = 0;
+    private long expireAfterAccess = 0;
+
+    /**
+     * Finds the expired entries, or null if entries don't expire.
+     */
+    private TimerWheel timerWheel = null;
+
     /*----------------------------------------------------------------------*\
                                 Constructors
     \*----------------------------------------------------------------------*/
@@ -663,20 +1243,61 @@ public class LRUMap<K,V>
         this.loadFactor      = loadFactor;
         this.initialCapacity = initialCapacity;
         this.hash            = new EntryMap (initialCapacity, loadFactor);
-        this.lruQueue        = new LRULinkedList();
+        this.evictor         = new LRUEvictor();
     }
 
     /**
-     * Constructs a new map with the same mappings and parameters as the
+     * Constructs a new, empty map whose capacity is limited by the total
+     * weight of its entries, as well as by their number. See the class
+     * documentation for details.
+     *
+     * @param maxCapacity  the maximum number of entries permitted in the
+     *                     map
+     * @param maxWeight    the maximum total weight of the entries in the
+     *                     map
+     * @param weigher      weighs the entries
+     *
+     * @see #getMaximumWeight
+     * @see #getWeight
+     */
+    public LRUMap (int                           maxCapacity,
+                   long                          maxWeight,
+                   Weigher<? super K, ? super V> weigher)
+    {
+        this (DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, maxCapacity);
+
+        if (maxWeight < 0)
+            throw new IllegalArgumentException ("Bad maximum weight: " +
+                                                maxWeight);
+
+        if (weigher == null)
+            throw new NullPointerException ("null weigher");
+
+        this.maxWeight = maxWeight;
+        this.weigher   = weigher;
+    }
+
+    /**
+     * <p>Constructs a new map with the same mappings and parameters as the
      * given <tt>LRUMap</tt>. The initial capacity and load factor is
      * the same as for the parent <tt>HashMap</tt> class. The insertion
-     * order of the keys is preserved.
+     * order of the keys is preserved.</p>
+     *
+     * <p>The new map uses the same {@link EvictionPolicy} and expiration
+     * settings, though the copied entries' expiration times start over.
+     * A {@link Weigher} isn't copied, since it may not accept every key
+     * and value the new map can hold, so the new map's capacity is limited
+     * by its number of entries only. ({@link #clone} copies a map's
+     * <tt>Weigher</tt>, too.)</p>
      *
      * @param map  the map whose mappings are to be copied
      */
     public LRUMap (LRUMap<? extends K, ? extends V> map)
     {
         this (map.initialCapacity, map.loadFactor, map.maxCapacity);
+        setEvictionPolicy (map.evictionPolicy);
+        setExpireAfterWrite (map.expireAfterWrite);
+        setExpireAfterAccess (map.expireAfterAccess);
         doPutAll (map);
     }
 
@@ -746,7 +1367,11 @@ public class LRUMap<K,V>
     public void clear()
     {
         hash.clear();
-        lruQueue.clear();
+        evictor.clear();
+        totalWeight = 0;
+
+        if (timerWheel != null)
+            timerWheel.clear();
     }
 
     /**
@@ -760,7 +1385,8 @@ public class LRUMap<K,V>
      */
     public boolean containsKey (Object key)
     {
-        return hash.containsKey (key);
+        LRULinkedListEntry entry = hash.get (key);
+        return (entry != null) && (! isExpired (entry));
     }
 
     /**
@@ -817,8 +1443,15 @@ public class LRUMap<K,V>
     public V get (Object key)
     {
         V                   value = null;
+        long                now    = expireEntries();
         LRULinkedListEntry  entry  = (LRULinkedListEntry) hash.get (key);
 
+        if ((entry != null) && isExpired (entry, now))
+        {
+            removeExpired (entry);
+            entry = null;
+        }
+
         if (entry != null)
         {
             // It's there. It's just been accessed, so move it to the
@@ -827,13 +1460,58 @@ public class LRUMap<K,V>
             assert (entry.key.equals (key)) :
                    "entry.key=" + entry.key + ", key=" + key;
 
-            lruQueue.moveToHead (entry);
+            evictor.accessed (entry);
             value = entry.value;
+
+            if (expireAfterAccess > 0)
+            {
+                entry.accessTime = now;
+                scheduleExpiration (entry);
+            }
         }
 
         return value;
     }
 
+    /**
+     * Get the policy this map uses to choose which entry to discard when
+     * it's full.
+     *
+     * @return the eviction policy
+     *
+     * @see #setEvictionPolicy
+     */
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
+    /**
+     * Get how long entries last after they're last read or written.
+     *
+     * @return the time, in milliseconds, or 0 if there's no limit
+     *
+     * @see #setExpireAfterAccess
+     * @see #getExpireAfterWrite
+     */
+    public long getExpireAfterAccess()
+    {
+        return expireAfterAccess;
+    }
+
+    /**
+     * Get how long entries last after they're written.
+     *
+     * @return the time, in milliseconds, or 0 if there's no limit
+     *
+     * @see #setExpireAfterWrite
+     * @see #getExpireAfterAccess
+     */
+    public long getExpireAfterWrite()
+    {
+        return expireAfterWrite;
+    }
+
     /**
      * Get the initial capacity of this <tt>LRUMap</tt>.
      *
@@ -874,6 +1552,34 @@ public class LRUMap<K,V>
         return maxCapacity;
     }
 
+    /**
+     * Get the maximum total weight of the entries in this map.
+     *
+     * @return the maximum weight, or <tt>Long.MAX_VALUE</tt> if the map
+     *         has no {@link Weigher}
+     *
+     * @see #setMaximumWeight
+     * @see #getWeight
+     */
+    public long getMaximumWeight()
+    {
+        return maxWeight;
+    }
+
+    /**
+     * Get the total weight of the entries in this map, as computed by its
+     * {@link Weigher} when they were stored.
+     *
+     * @return the total weight, which is always 0 if the map has no
+     *         <tt>Weigher</tt>
+     *
+     * @see #getMaximumWeight
+     */
+    public long getWeight()
+    {
+        return totalWeight;
+    }
+
     /**
      * Determine whether this map is empty or not.
      *
@@ -945,17 +1651,126 @@ public class LRUMap<K,V>
 
         if (entry != null)
         {
+            boolean expired = isExpired (entry);
+
             value = entry.value;
-            lruQueue.remove (entry);
+            totalWeight -= entry.weight;
+            evictor.removed (entry);
+            entry.unlinkTimer();
 
-            callRemovalListeners (key, value, false);
+            // An entry that has expired is already gone, as far as the
+            // caller is concerned.
+
+            callRemovalListeners (key, value, expired);
+            if (expired)
+                value = null;
         }
 
-        assert (hash.size() == lruQueue.size);
+        assert (hash.size() == evictor.size());
 
         return value;
     }
 
+    /**
+     * Change the policy this map uses to choose which entry to discard
+     * when it's full. The entries already in the map are kept, but what
+     * the old policy knew about how they have been used is lost.
+     *
+     * @param policy  the new eviction policy
+     *
+     * @return the old eviction policy
+     *
+     * @see #getEvictionPolicy
+     */
+    public EvictionPolicy setEvictionPolicy (EvictionPolicy policy)
+    {
+        if (policy == null)
+            throw new NullPointerException ("null eviction policy");
+
+        // Hand the entries to the new evictor oldest first, so that, as
+        // far as it can tell, they were used in the same order.
+
+        LinkedList<LRULinkedListEntry> entries =
+            new LinkedList<LRULinkedListEntry>();
+        for (Iterator<LRULinkedListEntry> it = new EntryIterator();
+             it.hasNext(); )
+        {
+            entries.addFirst (it.next());
+        }
+
+        switch (policy)
+        {
+            case TWO_QUEUE:
+                evictor = new TwoQueueEvictor();
+                break;
+
+            case TINY_LFU:
+                evictor = new TinyLfuEvictor();
+                break;
+
+            default:
+                evictor = new LRUEvictor();
+                break;
+        }
+
+        for (LRULinkedListEntry entry : entries)
+            evictor.added (entry);
+
+        EvictionPolicy oldPolicy = this.evictionPolicy;
+        this.evictionPolicy = policy;
+        return oldPolicy;
+    }
+
+    /**
+     * Set how long entries last after they're last read (with
+     * {@link #get get()}) or written. Entries that are already in the map
+     * are treated as if they were read just now, unless their times were
+     * already being tracked. See the class documentation for details.
+     *
+     * @param millis  the time, in milliseconds, or 0 for no limit
+     *
+     * @return the old time
+     *
+     * @see #getExpireAfterAccess
+     * @see #setExpireAfterWrite
+     */
+    public long setExpireAfterAccess (long millis)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException ("Bad expiration time: " +
+                                                millis);
+
+        long oldMillis = this.expireAfterAccess;
+        this.expireAfterAccess = millis;
+        rescheduleExpirations();
+        return oldMillis;
+    }
+
+    /**
+     * Set how long entries last after they're written. Entries that are
+     * already in the map are treated as if they were written just now,
+     * unless their times were already being tracked. See the class
+     * documentation for details.
+     *
+     * @param millis  the time, in milliseconds, or 0 for no limit
+     *
+     * @return the old time
+     *
+     * @see #getExpireAfterWrite
+     * @see #setExpireAfterAccess
+     */
+    public long setExpireAfterWrite (long millis)
+    {
+        if (millis < 0)
+            throw new IllegalArgumentException ("Bad expiration time: " +
+                                                millis);
+
+        long oldMillis = this.expireAfterWrite;
+        this.expireAfterWrite = millis;
+        rescheduleExpirations();
+        return oldMillis;
+    }
+
     /**
      * Set or change the maximum capacity of this <tt>LRUMap</tt>. If the
      * maximum capacity is reduced to less than the map's current size,
@@ -972,11 +1787,39 @@ public class LRUMap<K,V>
         assert (newCapacity > 0);
 
         int oldCapacity = this.maxCapacity;
-        clearTo (newCapacity);
+        clearTo (newCapacity, maxWeight);
         this.maxCapacity = newCapacity;
         return oldCapacity;
     }
 
+    /**
+     * Change the maximum total weight of the entries in this map. If the
+     * map is heavier than the new maximum, it's lightened by discarding
+     * the oldest entries.
+     *
+     * @param newWeight  the new maximum weight
+     *
+     * @return the old maximum weight
+     *
+     * @throws IllegalStateException the map has no {@link Weigher}
+     *
+     * @see #getMaximumWeight
+     */
+    public long setMaximumWeight (long newWeight)
+    {
+        if (weigher == null)
+            throw new IllegalStateException ("LRUMap has no Weigher.");
+
+        if (newWeight < 0)
+            throw new IllegalArgumentException ("Bad maximum weight: " +
+                                                newWeight);
+
+        long oldWeight = this.maxWeight;
+        clearTo (hash.size(), newWeight);
+        this.maxWeight = newWeight;
+        return oldWeight;
+    }
+
     /**
      * Get the number of entries in the map. Note that this value can
      * temporarily exceed the maximum capacity of the map. See the class
@@ -986,7 +1829,7 @@ public class LRUMap<K,V>
      */
     public int size()
     {
-        return lruQueue.size;
+        return hash.size();
     }
 
     /**
@@ -1015,6 +1858,23 @@ public class LRUMap<K,V>
        return new ValueSet();
     }
 
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Discard the entry the eviction policy picks, as if to make room for
+     * a new one. Removal listeners are notified of an automatic removal.
+     *
+     * @return <tt>true</tt> if an entry was discarded, <tt>false</tt> if
+     *         the map is empty
+     */
+    boolean removeEldest()
+    {
+        return (hash.size() > 0) &&
+               (clearTo (hash.size() - 1, Long.MAX_VALUE) != null);
+    }
+
     /*----------------------------------------------------------------------*\
                              Protected Methods
     \*----------------------------------------------------------------------*/
@@ -1030,23 +1890,44 @@ public class LRUMap<K,V>
     protected Object clone()
         throws CloneNotSupportedException
     {
-        return new LRUMap<K,V> (this);
+        LRUMap<K,V> copy = new LRUMap<K,V> (initialCapacity,
+                                            loadFactor,
+                                            maxCapacity);
+        copy.maxWeight = maxWeight;
+        copy.weigher   = weigher;
+        copy.setEvictionPolicy (evictionPolicy);
+        copy.setExpireAfterWrite (expireAfterWrite);
+        copy.setExpireAfterAccess (expireAfterAccess);
+        copy.doPutAll (this);
+        return copy;
     }
 
     /*----------------------------------------------------------------------*\
                               Private Methods
     \*----------------------------------------------------------------------*/
 
-    private LRULinkedListEntry clearTo (int size)
+    /**
+     * Discard the entries the eviction policy picks until the map holds no
+     * more than a given number of entries, with no more than a given total
+     * weight.
+     *
+     * @param size    the number of entries
+     * @param weight  the total weight
+     *
+     * @return the last entry discarded, or null if none was
+     */
+    private LRULinkedListEntry clearTo (int size, long weight)
     {
-        assert (hash.size() == lruQueue.size);
+        assert (hash.size() == evictor.size());
         LRULinkedListEntry oldTail = null;
 
-        while (lruQueue.size > size)
+        while ( (hash.size() > size) ||
+                ((totalWeight > weight) && (hash.size() > 0)) )
         {
-            oldTail = lruQueue.removeTail();
+            oldTail = evictor.evict();
 
             assert (oldTail != null);
+            oldTail.unlinkTimer();
 
             Object              key = oldTail.key;
             LRULinkedListEntry  rem = (LRULinkedListEntry) hash.remove (key);
@@ -1054,11 +1935,14 @@ public class LRUMap<K,V>
             assert (rem != null);
             assert (rem.key == key);
 
+            totalWeight -= rem.weight;
+
             callRemovalListeners (key, rem.value, true);
         }
 
-        assert (lruQueue.size <= size);
-        assert (hash.size() == lruQueue.size);
+        assert (hash.size() <= size);
+        assert (totalWeight <= Math.max (weight, 0));
+        assert (hash.size() == evictor.size());
 
         return oldTail;
     }
@@ -1112,57 +1996,251 @@ public class LRUMap<K,V>
 
     /**
      * Actual implementation of putAll(). Extracted to a private method
-     * so it can be called from the constructor.
+     * so it can be called from the constructor. Walks the entries, rather
+     * than getting each key's value, since getting a value from another
+     * <tt>LRUMap</tt> would reorder it in the middle of the walk.
      *
      * @param map  the map from which to extract values
      */
     private void doPutAll(final Map<? extends K, ? extends V> map)
     {
-        for (Iterator<? extends K> it = map.keySet().iterator();
-             it.hasNext(); )
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+            doPut (entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Advance the timer wheel, discarding the expired entries it passes.
+     *
+     * @return the current time, or 0 if entries don't expire
+     */
+    private long expireEntries()
+    {
+        if (timerWheel == null)
+            return 0;
+
+        long now = System.currentTimeMillis();
+        timerWheel.advance (now);
+        return now;
+    }
+
+    /**
+     * Determine whether an entry has expired, even if the timer wheel
+     * hasn't come to it yet.
+     *
+     * @param entry  the entry
+     *
+     * @return whether it has expired
+     */
+    private boolean isExpired (LRULinkedListEntry entry)
+    {
+        return (timerWheel != null) &&
+               isExpired (entry, System.currentTimeMillis());
+    }
+
+    private boolean isExpired (LRULinkedListEntry entry, long now)
+    {
+        return (timerWheel != null) && (entry.expirationTime <= now);
+    }
+
+    /**
+     * Discard an expired entry. Removal listeners are notified of an
+     * automatic removal.
+     *
+     * @param entry  the entry
+     */
+    private void removeExpired (LRULinkedListEntry entry)
+    {
+        K key = entry.key;
+        V value = entry.value;
+
+        hash.remove (key);
+        evictor.removed (entry);
+        entry.unlinkTimer();
+        totalWeight -= entry.weight;
+
+        callRemovalListeners (key, value, true);
+    }
+
+    /**
+     * Compute an entry's expiration time from its write and access times,
+     * and put it in the right timer wheel bucket.
+     *
+     * @param entry  the entry
+     */
+    private void scheduleExpiration (LRULinkedListEntry entry)
+    {
+        long expiration = Long.MAX_VALUE;
+
+        if (expireAfterWrite > 0)
+            expiration = addMillis (entry.writeTime, expireAfterWrite);
+
+        if (expireAfterAccess > 0)
         {
-            K key = it.next();
-            V value = map.get (key);
+            expiration = Math.min (expiration,
+                                   addMillis (entry.accessTime,
+                                              expireAfterAccess));
+        }
 
-            doPut (key, value);
+        entry.unlinkTimer();
+        entry.expirationTime = expiration;
+        if (expiration != Long.MAX_VALUE)
+            timerWheel.schedule (entry);
+    }
+
+    /**
+     * Add a number of milliseconds to a time, without overflowing.
+     *
+     * @param time    the time
+     * @param millis  the milliseconds
+     *
+     * @return the sum, or <tt>Long.MAX_VALUE</tt> if it's too big
+     */
+    private static long addMillis (long time, long millis)
+    {
+        return (millis >= Long.MAX_VALUE - time) ? Long.MAX_VALUE
+                                                 : time + millis;
+    }
+
+    /**
+     * Bring the entries' expiration times up to date after the expiration
+     * settings change, starting or stopping the timer wheel as needed.
+     */
+    private void rescheduleExpirations()
+    {
+        if ((expireAfterWrite == 0) && (expireAfterAccess == 0))
+        {
+            if (timerWheel != null)
+            {
+                timerWheel.clear();
+                timerWheel = null;
+
+                for (LRULinkedListEntry entry : hash.values())
+                    entry.expirationTime = Long.MAX_VALUE;
+            }
+
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (timerWheel == null)
+        {
+            timerWheel = new TimerWheel (now);
+
+            for (LRULinkedListEntry entry : hash.values())
+            {
+                entry.writeTime = now;
+                entry.accessTime = now;
+            }
         }
+
+        for (LRULinkedListEntry entry : hash.values())
+            scheduleExpiration (entry);
+
+        timerWheel.advance (now);
+    }
+
+    /**
+     * Weigh an entry.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return its weight, or 0 if the map has no Weigher
+     */
+    private int weigh (K key, V value)
+    {
+        if (weigher == null)
+            return 0;
+
+        int weight = weigher.weigh (key, value);
+        if (weight < 0)
+            throw new IllegalArgumentException ("Negative weight " + weight +
+                                                " for key " + key);
+
+        return weight;
     }
 
     private V doPut(final K key, final V value)
     {
         // If the total number of entries is at capacity, then we need to
-        // remove one of them to make room. The linked list is a priority
-        // queue, of sorts, with least recently used items at the end. So
-        // remove the tail entries.
+        // remove one of them to make room. The evictor decides which.
 
         V                   oldValue = null;
+        long                now      = expireEntries();
         LRULinkedListEntry  entry    = (LRULinkedListEntry) hash.get (key);
+        int                 weight   = weigh (key, value);
+
+        if ((entry != null) && isExpired (entry, now))
+        {
+            removeExpired (entry);
+            entry = null;
+        }
+
+        if (weight > this.maxWeight)
+        {
+            // Too heavy to keep even with the others gone. Discard it at
+            // once, rather than evict everything else trying to make room.
+            // It replaces any existing mapping, so that goes, too, and the
+            // listeners are told about both.
+
+            if (entry != null)
+            {
+                oldValue = entry.value;
+                hash.remove (key);
+                evictor.removed (entry);
+                entry.unlinkTimer();
+                totalWeight -= entry.weight;
+
+                callRemovalListeners (key, oldValue, true);
+            }
+
+            callRemovalListeners (key, value, true);
+            return oldValue;
+        }
 
         if (entry == null)
         {
             // Must add a new one. Clear out the cruft. Reuse the last
             // cleared entry, though, rather than allocate a new object.
 
-            entry = clearTo (this.maxCapacity - 1);
+            entry = clearTo (this.maxCapacity - 1, this.maxWeight - weight);
             if (entry == null)
                 entry = new LRULinkedListEntry (key, value);
             else
                 entry.setKeyValue (key, value);
 
-            lruQueue.addToHead (entry);
             hash.put (key, entry);
+            evictor.added (entry);
         }
 
         else
         {
-            // We're replacing the value with a new one. Move the entry to
-            // the head of the list.
+            // We're replacing the value with a new one, which counts as a
+            // use of the entry.
 
             oldValue = entry.value;
             entry.value = value;
-            lruQueue.moveToHead (entry);
+            totalWeight -= entry.weight;
+            evictor.accessed (entry);
         }
 
+        entry.weight = weight;
+        totalWeight += weight;
+
+        if (timerWheel != null)
+        {
+            entry.writeTime = now;
+            entry.accessTime = now;
+            scheduleExpiration (entry);
+        }
+
+        // A replacement value heavier than the old one may push the total
+        // over the maximum.
+
+        if (totalWeight > this.maxWeight)
+            clearTo (this.maxCapacity, this.maxWeight);
+
         return oldValue;
     }
 }
@@ -0,0 +1,889 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+
+package org.clapper.util.misc;
+
+import org.clapper.util.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>A {@link FileHashMap} specialized for <tt>long</tt> keys. Values are
+ * stored in a data file, exactly as they are by <tt>FileHashMap</tt>, but
+ * the index is a primitive open-addressing hash table: the keys, file
+ * positions and value sizes live in three parallel arrays, with no
+ * per-entry objects. The index takes about a quarter of the memory of a
+ * <tt>FileHashMap&lt;Long,V&gt;</tt> index, and {@link #get get()} and
+ * {@link #put put()} allocate nothing apart from the value itself (and,
+ * for <tt>put()</tt>, its encoded bytes). <tt>int</tt> keys can be stored
+ * by widening them to <tt>long</tt>.</p>
+ *
+ * <p>The data file and index file are named just like a
+ * <tt>FileHashMap</tt>'s, but the index is stored in a format of its own,
+ * so the two classes can't open each other's maps. The following
+ * <tt>FileHashMap</tt> constructor flags are supported:
+ * {@link FileHashMap#NO_CREATE NO_CREATE},
+ * {@link FileHashMap#TRANSIENT TRANSIENT},
+ * {@link FileHashMap#FORCE_OVERWRITE FORCE_OVERWRITE} and
+ * {@link FileHashMap#RECLAIM_FILE_GAPS RECLAIM_FILE_GAPS}. They mean the
+ * same thing they do for <tt>FileHashMap</tt>. The index of a persistent
+ * map is written to disk by {@link #save} and {@link #close}.</p>
+ *
+ * <p>Like <tt>FileHashMap</tt> without the <tt>CONCURRENT</tt> flag, this
+ * class is not synchronized.</p>
+ *
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public class LongFileHashMap<V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Constructor flags this class supports.
+     */
+    private static final int SUPPORTED_FLAGS = FileHashMap.NO_CREATE
+                                             | FileHashMap.TRANSIENT
+                                             | FileHashMap.FORCE_OVERWRITE
+                                             | FileHashMap.RECLAIM_FILE_GAPS;
+
+    /**
+     * Index file magic number ("FHLX") and format version.
+     */
+    private static final int INDEX_MAGIC   = 0x46484c58;
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Smallest table size. Table sizes are powers of two.
+     */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The value size that marks an empty slot.
+     */
+    private static final int EMPTY = -1;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final File          valuesDBPath;
+    private final File          indexFilePath;
+    private final int           flags;
+    private final ValueCodec<V> valueCodec;
+
+    private RandomAccessFile valuesDB   = null;
+    private long             dataLength = 0;
+    private FreeSpaceManager freeSpace  = null;
+
+    /**
+     * The index: parallel arrays of keys, value positions and value sizes.
+     * A slot is empty if its size is EMPTY.
+     */
+    private long[] keys;
+    private long[] positions;
+    private int[]  sizes;
+    private int    count     = 0;
+    private int    threshold = 0;
+
+    /**
+     * Reused for reading values, so that get() doesn't allocate.
+     */
+    private byte[] readBuf = new byte[256];
+
+    private boolean modified = false;
+    private boolean valid    = true;
+
+    /**
+     * For log messages
+     */
+    private static final Logger log = new Logger (LongFileHashMap.class);
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>LongFileHashMap</tt> object, or open an existing
+     * one.
+     *
+     * @param pathPrefix  the path prefix of the data and index files
+     * @param flags       <tt>FileHashMap</tt> constructor flags (see
+     *                    above)
+     * @param valueCodec  the codec used to store the values
+     *
+     * @throws FileNotFoundException    The files don't exist, and the
+     *                                  <tt>NO_CREATE</tt> flag was set.
+     * @throws ObjectExistsException    One of the files exists, but not
+     *                                  the other; or the files exist,
+     *                                  <tt>TRANSIENT</tt> was set, and
+     *                                  <tt>FORCE_OVERWRITE</tt> wasn't.
+     * @throws VersionMismatchException The index file was written by an
+     *                                  incompatible version of this class.
+     * @throws IOException              Other I/O errors, including a
+     *                                  corrupt index file.
+     */
+    public LongFileHashMap (String        pathPrefix,
+                            int           flags,
+                            ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               VersionMismatchException,
+               IOException
+    {
+        if (((~SUPPORTED_FLAGS) & flags) != 0)
+        {
+            throw new IllegalArgumentException ("Unsupported flags: 0x" +
+                                                Integer.toHexString (flags));
+        }
+
+        if (valueCodec == null)
+            throw new NullPointerException ("null valueCodec parameter");
+
+        if ((flags & FileHashMap.TRANSIENT) != 0)
+            flags &= (~FileHashMap.NO_CREATE);
+
+        this.flags      = flags;
+        this.valueCodec = valueCodec;
+
+        valuesDBPath  = new File (pathPrefix + FileHashMap.DATA_FILE_SUFFIX);
+        indexFilePath = new File (pathPrefix + FileHashMap.INDEX_FILE_SUFFIX);
+
+        int filesFound = 0;
+        if (valuesDBPath.exists())
+            filesFound++;
+        if (indexFilePath.exists())
+            filesFound++;
+
+        if ((filesFound > 0) && ((flags & FileHashMap.TRANSIENT) != 0))
+        {
+            if ((flags & FileHashMap.FORCE_OVERWRITE) == 0)
+            {
+                throw new ObjectExistsException
+                    (Package.BUNDLE_NAME, "FileHashMap.diskFilesExist",
+                     "One or both of the hash table files (\"{0}\" " +
+                     "and/or \"{1}\") already exists, but the " +
+                     "FileHashMap.FORCE_OVERWRITE constructor flag " +
+                     "was not set.",
+                     new Object[]
+                     {
+                         valuesDBPath.getName(),
+                         indexFilePath.getName()
+                     });
+            }
+
+            valuesDBPath.delete();
+            indexFilePath.delete();
+            filesFound = 0;
+        }
+
+        long[] savedGaps = null;
+
+        switch (filesFound)
+        {
+            case 0:
+                if ((flags & FileHashMap.NO_CREATE) != 0)
+                {
+                    throw new FileNotFoundException
+                                  ("On-disk hash table \"" +
+                                   pathPrefix +
+                                   "\" does not exist, and the " +
+                                   "FileHashMap.NO_CREATE flag was set.");
+                }
+
+                allocateTable (MIN_CAPACITY);
+                valuesDB = new RandomAccessFile (valuesDBPath, "rw");
+                valuesDB.setLength (0);
+                break;
+
+            case 1:
+                throw new ObjectExistsException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.halfMissing",
+                               "One of the hash table files exists (\"{0}\" " +
+                               "or \"{1}\") exists, but the other one does " +
+                               "not.",
+                               new Object[]
+                               {
+                                   valuesDBPath.getName(),
+                                   indexFilePath.getName()
+                               });
+
+            case 2:
+                valuesDB   = new RandomAccessFile (valuesDBPath, "rw");
+                dataLength = valuesDB.length();
+                savedGaps  = loadIndex();
+                break;
+
+            default:
+                assert (false);
+        }
+
+        if ((flags & FileHashMap.RECLAIM_FILE_GAPS) != 0)
+        {
+            if (savedGaps != null)
+                freeSpace = FreeSpaceManager.fromArray (savedGaps);
+            else
+                findFileGaps();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Remove all entries from the map. The data file is truncated.
+     *
+     * @throws IOException error truncating the data file
+     */
+    public void clear()
+        throws IOException
+    {
+        checkValidity();
+
+        count = 0;
+        allocateTable (MIN_CAPACITY);
+        valuesDB.setLength (0);
+        dataLength = 0;
+
+        if (freeSpace != null)
+            freeSpace.clear();
+
+        modified = true;
+    }
+
+    /**
+     * Close the map. The index of a persistent map is saved, if it has
+     * changed; the files of a transient map are deleted. Closing a closed
+     * map has no effect.
+     *
+     * @throws IOException on error
+     */
+    public void close()
+        throws IOException
+    {
+        if (! valid)
+            return;
+
+        try
+        {
+            if ((flags & FileHashMap.TRANSIENT) == 0)
+            {
+                if (modified)
+                    saveIndex();
+            }
+        }
+
+        finally
+        {
+            valid = false;
+            valuesDB.close();
+
+            if ((flags & FileHashMap.TRANSIENT) != 0)
+                deleteMapFiles();
+        }
+    }
+
+    /**
+     * Determine whether the map contains a key.
+     *
+     * @param key  the key
+     *
+     * @return <tt>true</tt> if it does, <tt>false</tt> if not
+     */
+    public boolean containsKey (long key)
+    {
+        checkValidity();
+        return findSlot (key) >= 0;
+    }
+
+    /**
+     * Close the map, if it's open, and delete its files.
+     */
+    public void delete()
+    {
+        try
+        {
+            close();
+        }
+
+        catch (IOException ex)
+        {
+        }
+
+        deleteMapFiles();
+    }
+
+    /**
+     * Get the value associated with a key.
+     *
+     * @param key  the key
+     *
+     * @return the value, or <tt>null</tt> if the key isn't in the map
+     *
+     * @throws IllegalStateException the value couldn't be read or decoded
+     */
+    public V get (long key)
+    {
+        checkValidity();
+
+        int slot = findSlot (key);
+        if (slot < 0)
+            return null;
+
+        int size = sizes[slot];
+        if (readBuf.length < size)
+            readBuf = new byte[Math.max (size, readBuf.length * 2)];
+
+        try
+        {
+            valuesDB.seek (positions[slot]);
+            valuesDB.readFully (readBuf, 0, size);
+            return valueCodec.decode (readBuf, 0, size);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't read value for key " +
+                                             key + " from \"" +
+                                             valuesDBPath.getPath() + "\"",
+                                             ex);
+        }
+
+        catch (ClassNotFoundException ex)
+        {
+            throw new IllegalStateException ("Can't decode value for key " +
+                                             key, ex);
+        }
+    }
+
+    /**
+     * Determine whether the map is empty.
+     *
+     * @return <tt>true</tt> if it is, <tt>false</tt> if not
+     */
+    public boolean isEmpty()
+    {
+        return count == 0;
+    }
+
+    /**
+     * Get the keys in the map, in no particular order.
+     *
+     * @return a new array holding the keys
+     */
+    public long[] keys()
+    {
+        checkValidity();
+
+        long[] result = new long[count];
+        int    n      = 0;
+
+        for (int i = 0; i < sizes.length; i++)
+        {
+            if (sizes[i] != EMPTY)
+                result[n++] = keys[i];
+        }
+
+        return result;
+    }
+
+    /**
+     * Associate a value with a key, replacing any previous value.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return <tt>true</tt> if the key already had a value, <tt>false</tt>
+     *         if it's new
+     *
+     * @throws IOException error encoding or writing the value
+     */
+    public boolean put (long key, V value)
+        throws IOException
+    {
+        checkValidity();
+
+        if (value == null)
+            throw new NullPointerException ("null value");
+
+        byte[] bytes = valueCodec.encode (value);
+        long   pos   = -1;
+
+        if (freeSpace != null)
+            pos = freeSpace.allocate (bytes.length);
+
+        if (pos < 0)
+        {
+            pos = dataLength;
+            dataLength += bytes.length;
+        }
+
+        valuesDB.seek (pos);
+        valuesDB.write (bytes);
+        modified = true;
+
+        int slot = findSlot (key);
+        if (slot >= 0)
+        {
+            if (freeSpace != null)
+                freeSpace.free (positions[slot], sizes[slot]);
+
+            positions[slot] = pos;
+            sizes[slot]     = bytes.length;
+            return true;
+        }
+
+        if (count >= threshold)
+            allocateTable (keys.length * 2);
+
+        insert (key, pos, bytes.length);
+        count++;
+        return false;
+    }
+
+    /**
+     * Remove a key and its value.
+     *
+     * @param key  the key
+     *
+     * @return <tt>true</tt> if the key was in the map, <tt>false</tt> if not
+     */
+    public boolean remove (long key)
+    {
+        checkValidity();
+
+        int slot = findSlot (key);
+        if (slot < 0)
+            return false;
+
+        if (freeSpace != null)
+            freeSpace.free (positions[slot], sizes[slot]);
+
+        deleteSlot (slot);
+        count--;
+        modified = true;
+        return true;
+    }
+
+    /**
+     * Save the index of a persistent map, if it has changed. Does nothing
+     * for a transient map.
+     *
+     * @throws IOException on error
+     */
+    public void save()
+        throws IOException
+    {
+        checkValidity();
+
+        if (((flags & FileHashMap.TRANSIENT) == 0) && modified)
+            saveIndex();
+    }
+
+    /**
+     * Get the number of entries in the map.
+     *
+     * @return the number of entries
+     */
+    public int size()
+    {
+        return count;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Replace the index table with an empty one of a given capacity, and
+     * move any existing entries into it.
+     *
+     * @param capacity  the new capacity, a power of two
+     */
+    private void allocateTable (int capacity)
+    {
+        long[] oldKeys      = keys;
+        long[] oldPositions = positions;
+        int[]  oldSizes     = sizes;
+
+        keys      = new long[capacity];
+        positions = new long[capacity];
+        sizes     = new int[capacity];
+        threshold = (capacity / 3) * 2;
+        Arrays.fill (sizes, EMPTY);
+
+        if ((oldSizes != null) && (count > 0))
+        {
+            for (int i = 0; i < oldSizes.length; i++)
+            {
+                if (oldSizes[i] != EMPTY)
+                    insert (oldKeys[i], oldPositions[i], oldSizes[i]);
+            }
+        }
+    }
+
+    private void checkValidity()
+    {
+        if (! valid)
+            throw new IllegalStateException ("Invalid LongFileHashMap object");
+    }
+
+    /**
+     * Remove an entry from the table, moving later entries in the same
+     * probe sequence back so that no tombstone is needed.
+     *
+     * @param slot  the slot to empty
+     */
+    private void deleteSlot (int slot)
+    {
+        int mask = keys.length - 1;
+        int hole = slot;
+        int i    = slot;
+
+        for (;;)
+        {
+            i = (i + 1) & mask;
+            if (sizes[i] == EMPTY)
+                break;
+
+            // An entry can fill the hole only if the hole lies between its
+            // home slot and its current slot.
+
+            int home = hash (keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask))
+            {
+                keys[hole]      = keys[i];
+                positions[hole] = positions[i];
+                sizes[hole]     = sizes[i];
+                hole            = i;
+            }
+        }
+
+        sizes[hole] = EMPTY;
+    }
+
+    private void deleteMapFiles()
+    {
+        valuesDBPath.delete();
+        indexFilePath.delete();
+    }
+
+    /**
+     * Find the gaps in the data file, from the index. Used when
+     * RECLAIM_FILE_GAPS is set and the index file didn't record them.
+     */
+    private void findFileGaps()
+    {
+        final long[] regionPos  = new long[count];
+        final int[]  regionSize = new int[count];
+        Integer[]    order      = new Integer[count];
+        int          n          = 0;
+
+        for (int i = 0; i < sizes.length; i++)
+        {
+            if (sizes[i] != EMPTY)
+            {
+                regionPos[n]  = positions[i];
+                regionSize[n] = sizes[i];
+                order[n]      = n;
+                n++;
+            }
+        }
+
+        Arrays.sort (order, new Comparator<Integer>()
+        {
+            public int compare (Integer a, Integer b)
+            {
+                long pa = regionPos[a];
+                long pb = regionPos[b];
+                return (pa < pb) ? -1 : ((pa == pb) ? 0 : 1);
+            }
+        });
+
+        freeSpace = new FreeSpaceManager();
+        long end  = 0;
+
+        for (Integer i : order)
+        {
+            if (regionPos[i] > end)
+                freeSpace.free (end, regionPos[i] - end);
+            end = Math.max (end, regionPos[i] + regionSize[i]);
+        }
+
+        if (dataLength > end)
+            freeSpace.free (end, dataLength - end);
+    }
+
+    /**
+     * Find the slot holding a key.
+     *
+     * @param key  the key
+     *
+     * @return the slot, or -1 if the key isn't in the table
+     */
+    private int findSlot (long key)
+    {
+        int mask = keys.length - 1;
+        int i    = hash (key) & mask;
+
+        while (sizes[i] != EMPTY)
+        {
+            if (keys[i] == key)
+                return i;
+
+            i = (i + 1) & mask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Spread the bits of a key (the MurmurHash3 finalizer), so that
+     * sequential IDs don't cluster in the table.
+     *
+     * @param key  the key
+     *
+     * @return the hash code
+     */
+    private static int hash (long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Put an entry in the first free slot of its probe sequence. The key
+     * must not already be in the table, and the table must have room.
+     */
+    private void insert (long key, long pos, int size)
+    {
+        int mask = keys.length - 1;
+        int i    = hash (key) & mask;
+
+        while (sizes[i] != EMPTY)
+            i = (i + 1) & mask;
+
+        keys[i]      = key;
+        positions[i] = pos;
+        sizes[i]     = size;
+    }
+
+    /**
+     * Load the index file.
+     *
+     * @return the saved gaps, as alternating positions and sizes, or
+     *         <tt>null</tt> if none were saved
+     *
+     * @throws IOException on error
+     */
+    private long[] loadIndex()
+        throws IOException,
+               VersionMismatchException
+    {
+        DataInputStream in = new DataInputStream
+                                 (new BufferedInputStream
+                                     (new FileInputStream (indexFilePath)));
+        try
+        {
+            if (in.readInt() != INDEX_MAGIC)
+                throw corruptIndex();
+
+            int version = in.readInt();
+            if (version != INDEX_VERSION)
+            {
+                throw new VersionMismatchException
+                              (Package.BUNDLE_NAME,
+                               "FileHashMap.versionMismatch",
+                               "FileHashMap version mismatch in index file " +
+                               "\"{0}\". Expected version \"{1}\", found " +
+                               "version \"{2}\"",
+                               new Object[]
+                               {
+                                   indexFilePath.getName(),
+                                   String.valueOf (INDEX_VERSION),
+                                   String.valueOf (version)
+                               },
+                               String.valueOf (INDEX_VERSION),
+                               String.valueOf (version));
+            }
+
+            int n        = in.readInt();
+            int gapCount = in.readInt();
+            if (n < 0)
+                throw corruptIndex();
+
+            int capacity = MIN_CAPACITY;
+            while (((capacity / 3) * 2) <= n)
+                capacity *= 2;
+
+            count = 0;
+            allocateTable (capacity);
+
+            for (int i = 0; i < n; i++)
+            {
+                long key  = in.readLong();
+                long pos  = in.readLong();
+                int  size = in.readInt();
+
+                if ((pos < 0) || (size < 0) || (pos + size > dataLength) ||
+                    (findSlot (key) >= 0))
+                    throw corruptIndex();
+
+                insert (key, pos, size);
+                count++;
+            }
+
+            long[] gaps = null;
+            if (gapCount >= 0)
+            {
+                gaps = new long[gapCount * 2];
+                for (int i = 0; i < gaps.length; i++)
+                    gaps[i] = in.readLong();
+            }
+
+            return gaps;
+        }
+
+        catch (EOFException ex)
+        {
+            throw corruptIndex();
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private IOException corruptIndex()
+    {
+        return new IOException ("Index file \"" + indexFilePath.getPath() +
+                                "\" is corrupt.");
+    }
+
+    /**
+     * Save the index to a temporary file, force it to disk, and rename it
+     * over the index file.
+     *
+     * @throws IOException on error
+     */
+    private void saveIndex()
+        throws IOException
+    {
+        File             tmp  = new File (indexFilePath.getPath() + ".tmp");
+        FileOutputStream file = new FileOutputStream (tmp);
+        long[]           gaps = (freeSpace == null) ? null
+                                                    : freeSpace.toArray();
+
+        log.debug ("Saving index for \"" + valuesDBPath.getPath() + "\": " +
+                   count + " entries");
+
+        valuesDB.getChannel().force (false);
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream
+                                       (new BufferedOutputStream (file));
+
+            out.writeInt (INDEX_MAGIC);
+            out.writeInt (INDEX_VERSION);
+            out.writeInt (count);
+            out.writeInt ((gaps == null) ? -1 : (gaps.length / 2));
+
+            for (int i = 0; i < sizes.length; i++)
+            {
+                if (sizes[i] != EMPTY)
+                {
+                    out.writeLong (keys[i]);
+                    out.writeLong (positions[i]);
+                    out.writeInt (sizes[i]);
+                }
+            }
+
+            if (gaps != null)
+            {
+                for (long l : gaps)
+                    out.writeLong (l);
+            }
+
+            out.flush();
+            file.getFD().sync();
+        }
+
+        finally
+        {
+            file.close();
+        }
+
+        FileHashMap.replaceFile (tmp, indexFilePath);
+        modified = false;
+    }
+}
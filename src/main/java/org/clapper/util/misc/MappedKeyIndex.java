@@ -0,0 +1,969 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>An on-disk replacement for the in-memory index of a
+ * <tt>FileHashMap</tt>. Used when the <tt>MAPPED_INDEX</tt> flag is set.
+ * The index is an open-addressing hash table of fixed-size slots, stored
+ * in a memory-mapped file; the keys themselves are stored, encoded, in a
+ * separate append-only key file. Neither the keys nor the index entries
+ * occupy the Java heap, so the index can hold far more keys than an
+ * in-memory <tt>HashMap</tt>, and it adds nothing to garbage collection
+ * time. This class is not publicly accessible.</p>
+ *
+ * <p>Keys are hashed and compared in their encoded form, so the key codec
+ * must always encode equal keys to identical bytes.</p>
+ *
+ * <p>The table file starts with a 64-byte header (magic number, format
+ * version, capacity, size, tombstone count and total size of the live
+ * values), followed by
+ * <i>capacity</i> 32-byte slots. Each slot holds the value's file position
+ * and size, the key's hash, the key's position and length in the key
+ * file, and the slot state (empty, used or deleted). Collisions are
+ * resolved by linear probing; deleted slots are left as tombstones until
+ * the table is next resized. Since the slot holds the hash, resizing never
+ * has to read the keys.</p>
+ *
+ * <p>Lookups share a read lock; modifications take a write lock. Resizing
+ * builds a new table file alongside the old one and renames it into
+ * place, so iterators created before a resize keep working against the
+ * old table.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class MappedKeyIndex<K> extends AbstractMap<K, FileHashMapEntry<K>>
+{
+    /*----------------------------------------------------------------------*\
+                             Package Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Magic number at the start of a mapped index file: "FHMI".
+     */
+    static final int MAGIC = 0x46484D49;
+
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE    = 64;
+    private static final int H_MAGIC        = 0;
+    private static final int H_VERSION      = 4;
+    private static final int H_CAPACITY     = 8;
+    private static final int H_SIZE         = 16;
+    private static final int H_TOMBSTONES   = 24;
+    private static final int H_LIVE_BYTES   = 32;
+
+    private static final int SLOT_SIZE      = 32;
+    private static final int S_VALUE_POS    = 0;
+    private static final int S_VALUE_SIZE   = 8;
+    private static final int S_HASH         = 12;
+    private static final int S_KEY_POS      = 16;
+    private static final int S_KEY_LENGTH   = 24;
+    private static final int S_STATE        = 28;
+
+    private static final int EMPTY          = 0;
+    private static final int USED           = 1;
+    private static final int DELETED        = 2;
+
+    private static final long MIN_CAPACITY  = 1024;
+
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * One generation of the slot table. Replaced wholesale on resize.
+     */
+    private static class Table
+    {
+        final RandomAccessFile    file;
+        final SegmentedMappedFile map;
+        final long                capacity;
+
+        Table (File path, long capacity, boolean create)
+            throws IOException
+        {
+            this (path, capacity, create, false);
+        }
+
+        Table (File path, long capacity, boolean create, boolean readOnly)
+            throws IOException
+        {
+            this.file     = new RandomAccessFile (path, readOnly ? "r" : "rw");
+            this.capacity = capacity;
+
+            if (create)
+            {
+                file.setLength (0);
+                file.setLength (HEADER_SIZE + (capacity * SLOT_SIZE));
+            }
+
+            this.map = new SegmentedMappedFile
+                           (file.getChannel(),
+                            readOnly ? FileChannel.MapMode.READ_ONLY
+                                     : FileChannel.MapMode.READ_WRITE,
+                            SegmentedMappedFile.DEFAULT_SEGMENT_SIZE);
+
+            if (create)
+            {
+                map.putInt (H_MAGIC, MAGIC);
+                map.putInt (H_VERSION, VERSION);
+                map.putLong (H_CAPACITY, capacity);
+            }
+        }
+
+        long slot (long i)
+        {
+            return HEADER_SIZE + (i * SLOT_SIZE);
+        }
+    }
+
+    /**
+     * Iterates over the used slots of one table generation.
+     */
+    private class SlotIterator
+        implements Iterator<Map.Entry<K, FileHashMapEntry<K>>>
+    {
+        private final Table               table;
+        private final SegmentedMappedFile tableKeys;
+        private long                      next = -1;
+        private long        nextValuePos;
+        private int         nextValueSize;
+        private byte[]      nextKey;
+
+        SlotIterator()
+        {
+            Lock l = lock.readLock();
+            l.lock();
+            try
+            {
+                table     = MappedKeyIndex.this.table;
+                tableKeys = MappedKeyIndex.this.keys;
+                advance();
+            }
+
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return next < table.capacity;
+        }
+
+        public Map.Entry<K, FileHashMapEntry<K>> next()
+        {
+            if (! hasNext())
+                throw new NoSuchElementException();
+
+            K key;
+            try
+            {
+                key = keyCodec.decode (nextKey, 0, nextKey.length);
+            }
+
+            catch (ClassNotFoundException ex)
+            {
+                throw new IllegalStateException ("Can't decode key: " +
+                                                 ex.getMessage());
+            }
+
+            catch (IOException ex)
+            {
+                throw new IllegalStateException ("Can't decode key: " +
+                                                 ex.getMessage());
+            }
+
+            FileHashMapEntry<K> entry =
+                new FileHashMapEntry<K> (nextValuePos, nextValueSize, key);
+
+            Lock l = lock.readLock();
+            l.lock();
+            try
+            {
+                advance();
+            }
+
+            finally
+            {
+                l.unlock();
+            }
+
+            return new AbstractMap.SimpleEntry<K, FileHashMapEntry<K>>
+                (key, entry);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private void advance()
+        {
+            try
+            {
+                for (next++; next < table.capacity; next++)
+                {
+                    long slot = table.slot (next);
+
+                    if (table.map.getInt (slot + S_STATE) == USED)
+                    {
+                        nextValuePos  = table.map.getLong (slot + S_VALUE_POS);
+                        nextValueSize = table.map.getInt (slot + S_VALUE_SIZE);
+                        nextKey       = readKey (table, tableKeys, slot);
+                        break;
+                    }
+                }
+            }
+
+            catch (IOException ex)
+            {
+                throw new IllegalStateException ("Can't read index: " +
+                                                 ex.getMessage());
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final File          indexPath;
+    private final File          keyPath;
+    private final ValueCodec<K> keyCodec;
+
+    private Table               table;
+    private long                size;
+    private long                tombstones;
+    private long                liveBytes;
+
+    private RandomAccessFile    keyFile;
+    private FileChannel         keyChannel;
+    private SegmentedMappedFile keys;
+    private long                keyEnd;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    private MappedKeyIndex (File indexPath, File keyPath, ValueCodec<K> codec)
+    {
+        this.indexPath = indexPath;
+        this.keyPath   = keyPath;
+        this.keyCodec  = codec;
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Determine whether a file is a mapped index, by checking its magic
+     * number.
+     *
+     * @param path  the file
+     *
+     * @return <tt>true</tt> if it's a mapped index, <tt>false</tt> if not
+     *
+     * @throws IOException on error
+     */
+    static boolean isMappedIndex (File path)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream (new FileInputStream (path));
+
+        try
+        {
+            return (path.length() >= HEADER_SIZE) && (in.readInt() == MAGIC);
+        }
+
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Open an existing mapped index.
+     *
+     * @param indexPath  the table file
+     * @param keyPath    the key file
+     * @param keyCodec   the key codec
+     * @param readOnly   whether to open the files read-only. A read-only
+     *                   index must not be modified.
+     *
+     * @return the index
+     *
+     * @throws IOException on error, or if the file isn't a mapped index
+     */
+    static <K> MappedKeyIndex<K> open (File          indexPath,
+                                       File          keyPath,
+                                       ValueCodec<K> keyCodec,
+                                       boolean       readOnly)
+        throws IOException
+    {
+        MappedKeyIndex<K> result = new MappedKeyIndex<K> (indexPath,
+                                                          keyPath,
+                                                          keyCodec);
+        RandomAccessFile f = new RandomAccessFile (indexPath, "r");
+        long capacity;
+
+        try
+        {
+            if ((f.readInt() != MAGIC) || (f.readInt() != VERSION))
+            {
+                throw new IOException ("\"" + indexPath.getPath() + "\" is " +
+                                       "not a version " + VERSION +
+                                       " mapped FileHashMap index.");
+            }
+
+            capacity = f.readLong();
+        }
+
+        finally
+        {
+            f.close();
+        }
+
+        result.table      = new Table (indexPath, capacity, false, readOnly);
+        result.size       = result.table.map.getLong (H_SIZE);
+        result.tombstones = result.table.map.getLong (H_TOMBSTONES);
+        result.liveBytes  = result.table.map.getLong (H_LIVE_BYTES);
+        result.openKeyFile (false, readOnly);
+
+        return result;
+    }
+
+    /**
+     * Create a new mapped index, overwriting any existing one, and
+     * optionally fill it from an in-memory index. The table is built under
+     * a temporary name, then renamed into place.
+     *
+     * @param indexPath  the table file
+     * @param keyPath    the key file
+     * @param keyCodec   the key codec
+     * @param initial    the initial contents
+     *
+     * @return the index
+     *
+     * @throws IOException on error
+     */
+    static <K> MappedKeyIndex<K> create (File                        indexPath,
+                                         File                        keyPath,
+                                         ValueCodec<K>               keyCodec,
+                                         Map<K, FileHashMapEntry<K>> initial)
+        throws IOException
+    {
+        MappedKeyIndex<K> result = new MappedKeyIndex<K> (indexPath,
+                                                          keyPath,
+                                                          keyCodec);
+        File temp = tempPath (indexPath);
+
+        result.table = new Table (temp,
+                                  capacityFor (initial.size()),
+                                  true);
+        result.openKeyFile (true);
+
+        for (Map.Entry<K, FileHashMapEntry<K>> e : initial.entrySet())
+            result.put (e.getKey(), e.getValue());
+
+        result.table.map.force();
+        result.install (temp, result.table.capacity);
+
+        return result;
+    }
+
+    /**
+     * Get the total size of the values the index refers to.
+     *
+     * @return the number of bytes
+     */
+    long getLiveBytes()
+    {
+        Lock l = lock.readLock();
+        l.lock();
+        try
+        {
+            return liveBytes;
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Force all changes to the storage device.
+     *
+     * @throws IOException on error
+     */
+    void force()
+        throws IOException
+    {
+        Lock l = lock.readLock();
+        l.lock();
+        try
+        {
+            table.map.force();
+            keyChannel.force (false);
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Close the index files. Mappings are released when they're garbage
+     * collected.
+     *
+     * @throws IOException on error
+     */
+    void close()
+        throws IOException
+    {
+        Lock l = lock.writeLock();
+        l.lock();
+        try
+        {
+            table.file.close();
+            keyFile.close();
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    /**
+     * FNV-1a over the encoded key, followed by a final avalanche step, so
+     * the hash is stable across VMs regardless of the key's own
+     * <tt>hashCode()</tt>.
+     */
+    static int hash (byte[] b)
+    {
+        int h = 0x811c9dc5;
+
+        for (int i = 0; i < b.length; i++)
+        {
+            h ^= (b[i] & 0xff);
+            h *= 0x01000193;
+        }
+
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        h *= 0xc2b2ae35;
+        h ^= (h >>> 16);
+
+        return h;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    public void clear()
+    {
+        Lock l = lock.writeLock();
+        l.lock();
+        try
+        {
+            // Replace the files rather than truncating them, since old
+            // iterators may still have them mapped.
+
+            File temp = tempPath (indexPath);
+            Table t = new Table (temp, MIN_CAPACITY, true);
+            t.file.close();
+            install (temp, MIN_CAPACITY);
+
+            keyFile.close();
+            keyPath.delete();
+            openKeyFile (true);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't clear index: " +
+                                             ex.getMessage());
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    public boolean containsKey (Object key)
+    {
+        return get (key) != null;
+    }
+
+    public Set<Map.Entry<K, FileHashMapEntry<K>>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K, FileHashMapEntry<K>>>()
+        {
+            public Iterator<Map.Entry<K, FileHashMapEntry<K>>> iterator()
+            {
+                return new SlotIterator();
+            }
+
+            public int size()
+            {
+                return MappedKeyIndex.this.size();
+            }
+        };
+    }
+
+    public FileHashMapEntry<K> get (Object key)
+    {
+        byte[] keyBytes = encode (key);
+        if (keyBytes == null)
+            return null;
+
+        int  hash = hash (keyBytes);
+        Lock l    = lock.readLock();
+        l.lock();
+        try
+        {
+            return entryAt (find (keyBytes, hash), key);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't read index: " +
+                                             ex.getMessage());
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    public FileHashMapEntry<K> put (K key, FileHashMapEntry<K> entry)
+    {
+        byte[] keyBytes = encode (key);
+        if (keyBytes == null)
+            throw new IllegalArgumentException ("Can't encode key " + key);
+
+        int  hash = hash (keyBytes);
+        Lock l    = lock.writeLock();
+        l.lock();
+        try
+        {
+            if ((size + tombstones + 1) > (table.capacity / 4) * 3)
+                resize (capacityFor (size + 1));
+
+            long                i      = find (keyBytes, hash);
+            FileHashMapEntry<K> result = null;
+            long                slot;
+
+            if (i >= 0)
+            {
+                result = entryAt (i, key);
+                slot = table.slot (i);
+                liveBytes -= result.getObjectSize();
+            }
+
+            else
+            {
+                i = -(i + 1);
+                slot = table.slot (i);
+
+                if (table.map.getInt (slot + S_STATE) == DELETED)
+                    tombstones--;
+
+                long keyPos = appendKey (keyBytes);
+                table.map.putInt (slot + S_HASH, hash);
+                table.map.putLong (slot + S_KEY_POS, keyPos);
+                table.map.putInt (slot + S_KEY_LENGTH, keyBytes.length);
+                size++;
+            }
+
+            table.map.putLong (slot + S_VALUE_POS, entry.getFilePosition());
+            table.map.putInt (slot + S_VALUE_SIZE, entry.getObjectSize());
+            table.map.putInt (slot + S_STATE, USED);
+            liveBytes += entry.getObjectSize();
+            writeCounts();
+
+            return result;
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't update index: " +
+                                             ex.getMessage());
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    public FileHashMapEntry<K> remove (Object key)
+    {
+        byte[] keyBytes = encode (key);
+        if (keyBytes == null)
+            return null;
+
+        int  hash = hash (keyBytes);
+        Lock l    = lock.writeLock();
+        l.lock();
+        try
+        {
+            long                i      = find (keyBytes, hash);
+            FileHashMapEntry<K> result = entryAt (i, key);
+
+            if (result != null)
+            {
+                table.map.putInt (table.slot (i) + S_STATE, DELETED);
+                size--;
+                tombstones++;
+                liveBytes -= result.getObjectSize();
+                writeCounts();
+            }
+
+            return result;
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalStateException ("Can't update index: " +
+                                             ex.getMessage());
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    public int size()
+    {
+        Lock l = lock.readLock();
+        l.lock();
+        try
+        {
+            return (int) Math.min (size, Integer.MAX_VALUE);
+        }
+
+        finally
+        {
+            l.unlock();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static File tempPath (File path)
+    {
+        return new File (path.getPath() + ".tmp");
+    }
+
+    /**
+     * Get the smallest power-of-two capacity that keeps the table at most
+     * half full with the specified number of keys.
+     */
+    private static long capacityFor (long keys)
+    {
+        long capacity = MIN_CAPACITY;
+
+        while (capacity < keys * 2)
+            capacity <<= 1;
+
+        return capacity;
+    }
+
+    private byte[] encode (Object key)
+    {
+        // Erasure means the cast can't fail here. A key of the wrong type
+        // makes the codec throw ClassCastException instead.
+
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+
+        try
+        {
+            return keyCodec.encode (k);
+        }
+
+        catch (ClassCastException ex)
+        {
+            return null;
+        }
+
+        catch (IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Find a key's slot.
+     *
+     * @return the slot index if the key is present; otherwise,
+     *         <tt>-(insertion point) - 1</tt>
+     */
+    private long find (byte[] keyBytes, int hash)
+        throws IOException
+    {
+        long mask       = table.capacity - 1;
+        long i          = (hash & 0xffffffffL) & mask;
+        long firstFree  = -1;
+
+        for (;;)
+        {
+            long slot  = table.slot (i);
+            int  state = table.map.getInt (slot + S_STATE);
+
+            if (state == EMPTY)
+                break;
+
+            if (state == DELETED)
+            {
+                if (firstFree < 0)
+                    firstFree = i;
+            }
+
+            else if ( (table.map.getInt (slot + S_HASH) == hash) &&
+                      (table.map.getInt (slot + S_KEY_LENGTH) ==
+                       keyBytes.length) &&
+                      Arrays.equals (readKey (table, keys, slot), keyBytes) )
+            {
+                return i;
+            }
+
+            i = (i + 1) & mask;
+        }
+
+        return -((firstFree >= 0 ? firstFree : i) + 1);
+    }
+
+    private FileHashMapEntry<K> entryAt (long i, Object key)
+        throws IOException
+    {
+        FileHashMapEntry<K> result = null;
+
+        if (i >= 0)
+        {
+            // The key encoded to the same bytes as a stored key, so it's
+            // a K as far as the codec is concerned.
+
+            @SuppressWarnings("unchecked")
+            K    k    = (K) key;
+            long slot = table.slot (i);
+
+            result = new FileHashMapEntry<K>
+                         (table.map.getLong (slot + S_VALUE_POS),
+                          table.map.getInt (slot + S_VALUE_SIZE),
+                          k);
+        }
+
+        return result;
+    }
+
+    private static byte[] readKey (Table               t,
+                                   SegmentedMappedFile k,
+                                   long                slot)
+        throws IOException
+    {
+        byte[] result = new byte[t.map.getInt (slot + S_KEY_LENGTH)];
+        k.get (t.map.getLong (slot + S_KEY_POS), result, 0, result.length);
+        return result;
+    }
+
+    private long appendKey (byte[] keyBytes)
+        throws IOException
+    {
+        long       pos = keyEnd;
+        ByteBuffer buf = ByteBuffer.wrap (keyBytes);
+
+        while (buf.hasRemaining())
+            keyChannel.write (buf, pos + buf.position());
+
+        keyEnd += keyBytes.length;
+        return pos;
+    }
+
+    private void writeCounts()
+        throws IOException
+    {
+        table.map.putLong (H_SIZE, size);
+        table.map.putLong (H_TOMBSTONES, tombstones);
+        table.map.putLong (H_LIVE_BYTES, liveBytes);
+    }
+
+    /**
+     * Rebuild the table with a new capacity, dropping tombstones.
+     */
+    private void resize (long newCapacity)
+        throws IOException
+    {
+        File  temp     = tempPath (indexPath);
+        Table newTable = new Table (temp, newCapacity, true);
+        long  mask     = newCapacity - 1;
+
+        for (long i = 0; i < table.capacity; i++)
+        {
+            long from = table.slot (i);
+
+            if (table.map.getInt (from + S_STATE) != USED)
+                continue;
+
+            int  hash = table.map.getInt (from + S_HASH);
+            long j    = (hash & 0xffffffffL) & mask;
+
+            while (newTable.map.getInt (newTable.slot (j) + S_STATE) != EMPTY)
+                j = (j + 1) & mask;
+
+            long to = newTable.slot (j);
+            newTable.map.putLong (to + S_VALUE_POS,
+                                  table.map.getLong (from + S_VALUE_POS));
+            newTable.map.putInt (to + S_VALUE_SIZE,
+                                 table.map.getInt (from + S_VALUE_SIZE));
+            newTable.map.putInt (to + S_HASH, hash);
+            newTable.map.putLong (to + S_KEY_POS,
+                                  table.map.getLong (from + S_KEY_POS));
+            newTable.map.putInt (to + S_KEY_LENGTH,
+                                 table.map.getInt (from + S_KEY_LENGTH));
+            newTable.map.putInt (to + S_STATE, USED);
+        }
+
+        newTable.map.putLong (H_SIZE, size);
+        newTable.map.putLong (H_LIVE_BYTES, liveBytes);
+        newTable.map.force();
+        newTable.file.close();
+
+        table.file.close();
+        install (temp, newCapacity);
+        tombstones = 0;
+        writeCounts();
+    }
+
+    /**
+     * Rename a newly built table file into place and open it.
+     */
+    private void install (File temp, long capacity)
+        throws IOException
+    {
+        if (! temp.renameTo (indexPath))
+        {
+            // Some platforms won't rename over an existing file.
+
+            indexPath.delete();
+            if (! temp.renameTo (indexPath))
+            {
+                throw new IOException ("Can't rename \"" + temp.getPath() +
+                                       "\" to \"" + indexPath.getPath() +
+                                       "\"");
+            }
+        }
+
+        if (table != null)
+            table.file.close();
+
+        table = new Table (indexPath, capacity, false);
+        size = table.map.getLong (H_SIZE);
+        tombstones = table.map.getLong (H_TOMBSTONES);
+        liveBytes = table.map.getLong (H_LIVE_BYTES);
+    }
+
+    private void openKeyFile (boolean create)
+        throws IOException
+    {
+        openKeyFile (create, false);
+    }
+
+    private void openKeyFile (boolean create, boolean readOnly)
+        throws IOException
+    {
+        keyFile = new RandomAccessFile (keyPath, readOnly ? "r" : "rw");
+        if (create)
+            keyFile.setLength (0);
+
+        keyChannel = keyFile.getChannel();
+        keyEnd     = keyFile.length();
+        keys       = new SegmentedMappedFile
+                         (keyChannel,
+                          FileChannel.MapMode.READ_ONLY,
+                          SegmentedMappedFile.DEFAULT_SEGMENT_SIZE);
+    }
+}
@@ -0,0 +1,323 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a (possibly very large) file into memory as a series of fixed-size
+ * <tt>MappedByteBuffer</tt> segments. A single <tt>MappedByteBuffer</tt>
+ * can address at most 2GB, so larger files have to be mapped piecewise.
+ * Segments are mapped lazily, the first time a byte within them is
+ * accessed, and the last segment is transparently remapped when the file
+ * grows beyond its mapped length. Used by <tt>FileHashMap</tt>. This class
+ * is not publicly accessible.
+ *
+ * <p>Reads do not change any shared buffer position, so they may be issued
+ * concurrently by multiple threads without locking.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class SegmentedMappedFile
+{
+    /*----------------------------------------------------------------------*\
+                             Package Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Default segment size: 1GB.
+     */
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final FileChannel          channel;
+    private final FileChannel.MapMode  mapMode;
+    private final int                  segmentSize;
+
+    /**
+     * The mapped segments. Replaced (never modified in place) when a
+     * segment is added or remapped, so readers can use it without locking.
+     */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new <tt>SegmentedMappedFile</tt>. Nothing is mapped until
+     * it is first accessed.
+     *
+     * @param channel      the open channel for the file
+     * @param mapMode      the mapping mode
+     * @param segmentSize  the size of each segment, in bytes
+     */
+    SegmentedMappedFile (FileChannel         channel,
+                         FileChannel.MapMode mapMode,
+                         int                 segmentSize)
+    {
+        assert (segmentSize > 0);
+
+        this.channel     = channel;
+        this.mapMode     = mapMode;
+        this.segmentSize = segmentSize;
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Copy bytes from the mapped file into a byte array.
+     *
+     * @param pos     the file position at which to start reading
+     * @param buf     the destination buffer
+     * @param offset  the offset in <tt>buf</tt> at which to store the bytes
+     * @param length  the number of bytes to copy
+     *
+     * @throws IOException the requested region lies beyond the end of the
+     *                     file, or the file could not be mapped
+     */
+    void get (long pos, byte[] buf, int offset, int length)
+        throws IOException
+    {
+        while (length > 0)
+        {
+            int segIndex  = (int) (pos / segmentSize);
+            int segOffset = (int) (pos % segmentSize);
+            int n         = Math.min (length, segmentSize - segOffset);
+
+            ByteBuffer seg = getSegment (segIndex, segOffset + n).duplicate();
+            seg.position (segOffset);
+            seg.get (buf, offset, n);
+
+            pos    += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Read a big-endian <tt>int</tt>. The value must not straddle a segment
+     * boundary.
+     *
+     * @param pos  the file position
+     *
+     * @return the value
+     *
+     * @throws IOException the position lies beyond the end of the file, or
+     *                     the file could not be mapped
+     */
+    int getInt (long pos)
+        throws IOException
+    {
+        int segOffset = (int) (pos % segmentSize);
+        return getSegment ((int) (pos / segmentSize), segOffset + 4)
+              .getInt (segOffset);
+    }
+
+    /**
+     * Read a big-endian <tt>long</tt>. The value must not straddle a
+     * segment boundary.
+     *
+     * @param pos  the file position
+     *
+     * @return the value
+     *
+     * @throws IOException the position lies beyond the end of the file, or
+     *                     the file could not be mapped
+     */
+    long getLong (long pos)
+        throws IOException
+    {
+        int segOffset = (int) (pos % segmentSize);
+        return getSegment ((int) (pos / segmentSize), segOffset + 8)
+              .getLong (segOffset);
+    }
+
+    /**
+     * Store a big-endian <tt>int</tt>. Only valid for a read-write
+     * mapping. The value must not straddle a segment boundary.
+     *
+     * @param pos    the file position
+     * @param value  the value
+     *
+     * @throws IOException the position lies beyond the end of the file, or
+     *                     the file could not be mapped
+     */
+    void putInt (long pos, int value)
+        throws IOException
+    {
+        int segOffset = (int) (pos % segmentSize);
+        getSegment ((int) (pos / segmentSize), segOffset + 4)
+            .putInt (segOffset, value);
+    }
+
+    /**
+     * Store a big-endian <tt>long</tt>. Only valid for a read-write
+     * mapping. The value must not straddle a segment boundary.
+     *
+     * @param pos    the file position
+     * @param value  the value
+     *
+     * @throws IOException the position lies beyond the end of the file, or
+     *                     the file could not be mapped
+     */
+    void putLong (long pos, long value)
+        throws IOException
+    {
+        int segOffset = (int) (pos % segmentSize);
+        getSegment ((int) (pos / segmentSize), segOffset + 8)
+            .putLong (segOffset, value);
+    }
+
+    /**
+     * Force changes made through a read-write mapping to the storage
+     * device.
+     */
+    void force()
+    {
+        for (MappedByteBuffer seg : segments)
+        {
+            if (seg != null)
+                seg.force();
+        }
+    }
+
+    /**
+     * Forget all mapped segments, so they'll be remapped on demand. This
+     * doesn't unmap them: a <tt>MappedByteBuffer</tt> stays mapped until
+     * it's garbage collected, and a reader may still be using one. So the
+     * underlying file must not be truncated while this object, or any
+     * segment it handed out, is still in use, since touching a mapped page
+     * that no longer has a backing file page is fatal on most platforms.
+     */
+    synchronized void unmapAll()
+    {
+        segments = new MappedByteBuffer[0];
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get a segment that is mapped at least <tt>minLength</tt> bytes into
+     * the segment, mapping or remapping it if necessary.
+     *
+     * @param segIndex   the segment index
+     * @param minLength  the minimum number of bytes that must be mapped
+     *
+     * @return the segment
+     *
+     * @throws IOException the file is too short, or mapping failed
+     */
+    private MappedByteBuffer getSegment (int segIndex, int minLength)
+        throws IOException
+    {
+        MappedByteBuffer[] segs = segments;
+        MappedByteBuffer   seg  = (segIndex < segs.length) ? segs[segIndex]
+                                                           : null;
+
+        if ((seg == null) || (seg.limit() < minLength))
+            seg = remap (segIndex, minLength);
+
+        return seg;
+    }
+
+    private synchronized MappedByteBuffer remap (int segIndex, int minLength)
+        throws IOException
+    {
+        // Somebody else may have beaten us to it.
+
+        MappedByteBuffer[] segs = segments;
+        if ((segIndex < segs.length) &&
+            (segs[segIndex] != null) &&
+            (segs[segIndex].limit() >= minLength))
+        {
+            return segs[segIndex];
+        }
+
+        long start  = (long) segIndex * segmentSize;
+        long length = Math.min ((long) segmentSize, channel.size() - start);
+
+        if (length < minLength)
+        {
+            throw new IOException ("Attempt to map " + minLength +
+                                   " bytes at file position " + start +
+                                   ", but only " + Math.max (0, length) +
+                                   " bytes are available.");
+        }
+
+        MappedByteBuffer seg = channel.map (mapMode, start, length);
+
+        MappedByteBuffer[] newSegs = segs;
+        if (segIndex >= segs.length)
+        {
+            newSegs = new MappedByteBuffer[segIndex + 1];
+            System.arraycopy (segs, 0, newSegs, 0, segs.length);
+        }
+
+        else
+        {
+            newSegs = segs.clone();
+        }
+
+        newSegs[segIndex] = seg;
+        segments = newSegs;
+
+        return seg;
+    }
+}
@@ -0,0 +1,786 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+
+package org.clapper.util.misc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A disk-based map that spreads its keys across several independent
+ * {@link FileHashMap} <i>shards</i>, each with its own data file, index,
+ * free-space allocator and locks. The shards' files may be placed in
+ * different directories, or on different devices, so that reads and
+ * writes by different threads can proceed on all of them at once, rather
+ * than queueing on a single data file.</p>
+ *
+ * <p>A key's shard is chosen from a CRC-32 checksum of the key's encoded
+ * form, so the key codec must always encode equal keys to identical bytes,
+ * but the keys' hash codes don't matter. A persistent map must always be
+ * reopened with the same path prefixes, in the same order. To catch a
+ * mistake, each shard has a small manifest file, named with the shard's
+ * prefix and {@link #MANIFEST_FILE_SUFFIX}, that records the number of
+ * shards and the shard's position; the constructor refuses to open a
+ * shard whose manifest doesn't match.</p>
+ *
+ * <p>Every shard is opened with the {@link FileHashMap#CONCURRENT} flag,
+ * so a <tt>ShardedFileHashMap</tt> may be shared freely between threads.
+ * Its views and iterators visit the shards in turn, and are weakly
+ * consistent, like those of a concurrent <tt>FileHashMap</tt>. Methods
+ * that affect the whole map, such as {@link #size}, {@link #save} and
+ * {@link #close}, apply to each shard in turn; they are not atomic across
+ * shards.</p>
+ *
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public class ShardedFileHashMap<K,V> extends AbstractMap<K,V>
+{
+    /*----------------------------------------------------------------------*\
+                             Public Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Suffix of each shard's manifest file.
+     */
+    public static final String MANIFEST_FILE_SUFFIX = ".shards";
+
+    /*----------------------------------------------------------------------*\
+                          Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Iterates over a view of each shard in turn.
+     */
+    private abstract class ShardIterator<T> implements Iterator<T>
+    {
+        private int         shard   = 0;
+        private Iterator<T> current = null;
+        private Iterator<T> last    = null;
+
+        abstract Iterator<T> shardIterator (FileHashMap<K,V> map);
+
+        public boolean hasNext()
+        {
+            while ((current == null) || (! current.hasNext()))
+            {
+                if (shard == shards.length)
+                    return false;
+
+                current = shardIterator (shards[shard++]);
+            }
+
+            return true;
+        }
+
+        public T next()
+        {
+            if (! hasNext())
+                throw new NoSuchElementException();
+
+            last = current;
+            return current.next();
+        }
+
+        public void remove()
+        {
+            if (last == null)
+                throw new IllegalStateException();
+
+            last.remove();
+            last = null;
+        }
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<K,V>>
+    {
+        public Iterator<Map.Entry<K,V>> iterator()
+        {
+            return new ShardIterator<Map.Entry<K,V>>()
+            {
+                Iterator<Map.Entry<K,V>> shardIterator (FileHashMap<K,V> map)
+                {
+                    return map.entrySet().iterator();
+                }
+            };
+        }
+
+        public int size()
+        {
+            return ShardedFileHashMap.this.size();
+        }
+
+        public void clear()
+        {
+            ShardedFileHashMap.this.clear();
+        }
+    }
+
+    private class KeySet extends AbstractSet<K>
+    {
+        public Iterator<K> iterator()
+        {
+            return new ShardIterator<K>()
+            {
+                Iterator<K> shardIterator (FileHashMap<K,V> map)
+                {
+                    return map.keySet().iterator();
+                }
+            };
+        }
+
+        public int size()
+        {
+            return ShardedFileHashMap.this.size();
+        }
+
+        public boolean contains (Object o)
+        {
+            return containsKey (o);
+        }
+
+        public boolean remove (Object o)
+        {
+            return shardFor (o).keySet().remove (o);
+        }
+
+        public void clear()
+        {
+            ShardedFileHashMap.this.clear();
+        }
+    }
+
+    private class Values extends AbstractCollection<V>
+    {
+        public Iterator<V> iterator()
+        {
+            return new ShardIterator<V>()
+            {
+                Iterator<V> shardIterator (FileHashMap<K,V> map)
+                {
+                    return map.values().iterator();
+                }
+            };
+        }
+
+        public int size()
+        {
+            return ShardedFileHashMap.this.size();
+        }
+
+        public void clear()
+        {
+            ShardedFileHashMap.this.clear();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final FileHashMap<K,V>[] shards;
+    private final File[]             manifests;
+    private final ValueCodec<K>      keyCodec;
+
+    private transient EntrySet entrySetResult = null;
+    private transient KeySet   keySetResult   = null;
+    private transient Values   valuesResult   = null;
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create or open a sharded map whose keys and values are stored with
+     * Java serialization.
+     *
+     * @param pathPrefixes  the path prefix of each shard's files (see
+     *                      {@link FileHashMap#FileHashMap(String,int)}).
+     *                      The number of prefixes is the number of shards.
+     * @param flags         <tt>FileHashMap</tt> constructor flags, applied
+     *                      to every shard. {@link FileHashMap#CONCURRENT}
+     *                      is always added.
+     *
+     * @throws FileNotFoundException    see <tt>FileHashMap</tt>
+     * @throws ObjectExistsException    see <tt>FileHashMap</tt>
+     * @throws ClassNotFoundException   see <tt>FileHashMap</tt>
+     * @throws VersionMismatchException see <tt>FileHashMap</tt>
+     * @throws IOException              see <tt>FileHashMap</tt>
+     */
+    public ShardedFileHashMap (String[] pathPrefixes, int flags)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        this (pathPrefixes,
+              flags,
+              ValueCodecs.<K>javaSerialization(),
+              ValueCodecs.<V>javaSerialization());
+    }
+
+    /**
+     * Create or open a sharded map that stores its keys and values with
+     * the specified codecs.
+     *
+     * @param pathPrefixes  the path prefix of each shard's files (see
+     *                      {@link FileHashMap#FileHashMap(String,int)}).
+     *                      The number of prefixes is the number of shards.
+     * @param flags         <tt>FileHashMap</tt> constructor flags, applied
+     *                      to every shard. {@link FileHashMap#CONCURRENT}
+     *                      is always added.
+     * @param keyCodec      the codec used for the keys
+     * @param valueCodec    the codec used for the values
+     *
+     * @throws FileNotFoundException    see <tt>FileHashMap</tt>
+     * @throws ObjectExistsException    see <tt>FileHashMap</tt>
+     * @throws ClassNotFoundException   see <tt>FileHashMap</tt>
+     * @throws VersionMismatchException see <tt>FileHashMap</tt>
+     * @throws IOException              see <tt>FileHashMap</tt>; also, a
+     *                                  shard's manifest doesn't match the
+     *                                  prefixes
+     */
+    public ShardedFileHashMap (String[]      pathPrefixes,
+                               int           flags,
+                               ValueCodec<K> keyCodec,
+                               ValueCodec<V> valueCodec)
+        throws FileNotFoundException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException,
+               IOException
+    {
+        if (pathPrefixes.length == 0)
+            throw new IllegalArgumentException ("No shard path prefixes");
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        FileHashMap<K,V>[] shards =
+            (FileHashMap<K,V>[]) new FileHashMap[pathPrefixes.length];
+
+        this.shards    = shards;
+        this.manifests = new File[pathPrefixes.length];
+        this.keyCodec  = keyCodec;
+
+        boolean ok = false;
+        try
+        {
+            for (int i = 0; i < shards.length; i++)
+            {
+                shards[i] = new FileHashMap<K,V> (pathPrefixes[i],
+                                                  flags |
+                                                  FileHashMap.CONCURRENT,
+                                                  keyCodec,
+                                                  valueCodec);
+
+                manifests[i] = new File (pathPrefixes[i] +
+                                         MANIFEST_FILE_SUFFIX);
+                if ((flags & FileHashMap.TRANSIENT) == 0)
+                    checkManifest (i, flags);
+            }
+
+            ok = true;
+        }
+
+        finally
+        {
+            if (! ok)
+            {
+                for (FileHashMap<K,V> shard : shards)
+                {
+                    if (shard != null)
+                        closeQuietly (shard);
+                }
+            }
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Remove all mappings from every shard.
+     */
+    public void clear()
+    {
+        for (FileHashMap<K,V> shard : shards)
+            shard.clear();
+    }
+
+    /**
+     * Close every shard. See {@link FileHashMap#close}. All the shards are
+     * closed even if closing one of them fails; the first failure is then
+     * rethrown.
+     *
+     * @throws NotSerializableException see <tt>FileHashMap</tt>
+     * @throws IOException              see <tt>FileHashMap</tt>
+     */
+    public void close()
+        throws NotSerializableException,
+               IOException
+    {
+        IOException failure = null;
+
+        for (FileHashMap<K,V> shard : shards)
+        {
+            try
+            {
+                shard.close();
+            }
+
+            catch (IOException ex)
+            {
+                if (failure == null)
+                    failure = ex;
+            }
+        }
+
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Compact every shard. See {@link FileHashMap#compact}.
+     *
+     * @return the total number of bytes reclaimed
+     *
+     * @throws IOException on error
+     */
+    public long compact()
+        throws IOException
+    {
+        long total = 0;
+
+        for (FileHashMap<K,V> shard : shards)
+            total += shard.compact();
+
+        return total;
+    }
+
+    /**
+     * Determine whether the map contains a key.
+     *
+     * @param key  the key
+     *
+     * @return <tt>true</tt> if it does, <tt>false</tt> if not
+     */
+    public boolean containsKey (Object key)
+    {
+        return shardFor (key).containsKey (key);
+    }
+
+    /**
+     * Close every shard and delete its files, including its manifest.
+     */
+    public void delete()
+    {
+        for (FileHashMap<K,V> shard : shards)
+            shard.delete();
+
+        for (File manifest : manifests)
+            manifest.delete();
+    }
+
+    /**
+     * Returns a "thin" set view of the mappings in this map. See
+     * {@link FileHashMap#entrySet}.
+     *
+     * @return the set view
+     */
+    public Set<Map.Entry<K,V>> entrySet()
+    {
+        if (entrySetResult == null)
+            entrySetResult = new EntrySet();
+
+        return entrySetResult;
+    }
+
+    /**
+     * Get the value associated with a key.
+     *
+     * @param key  the key
+     *
+     * @return the value, or <tt>null</tt> if the key isn't in the map
+     */
+    public V get (Object key)
+    {
+        return shardFor (key).get (key);
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Determine whether the map is still valid (i.e., hasn't been closed).
+     *
+     * @return <tt>true</tt> if every shard is valid, <tt>false</tt> if not
+     */
+    public boolean isValid()
+    {
+        for (FileHashMap<K,V> shard : shards)
+        {
+            if (! shard.isValid())
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a set view of the keys in this map.
+     *
+     * @return the set view
+     */
+    public Set<K> keySet()
+    {
+        if (keySetResult == null)
+            keySetResult = new KeySet();
+
+        return keySetResult;
+    }
+
+    /**
+     * Associate a value with a key, in the key's shard.
+     *
+     * @param key    the key
+     * @param value  the value
+     *
+     * @return the previous value, or <tt>null</tt> if there wasn't one
+     */
+    public V put (K key, V value)
+    {
+        return shardFor (key).put (key, value);
+    }
+
+    /**
+     * Copy all the mappings from another map to this one. The mappings
+     * are divided by shard, and each shard's share is written as a batch.
+     *
+     * @param map  the mappings to store
+     */
+    public void putAll (Map<? extends K, ? extends V> map)
+    {
+        List<Map<K,V>> byShard = new ArrayList<Map<K,V>> (shards.length);
+
+        for (int i = 0; i < shards.length; i++)
+            byShard.add (new HashMap<K,V>());
+
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet())
+        {
+            K key = entry.getKey();
+            byShard.get (shardIndex (key)).put (key, entry.getValue());
+        }
+
+        for (int i = 0; i < shards.length; i++)
+        {
+            if (! byShard.get (i).isEmpty())
+                shards[i].putAll (byShard.get (i));
+        }
+    }
+
+    /**
+     * Remove a key and its value.
+     *
+     * @param key  the key
+     *
+     * @return the previous value, or <tt>null</tt> if there wasn't one
+     */
+    public V remove (Object key)
+    {
+        return shardFor (key).remove (key);
+    }
+
+    /**
+     * Save every shard's index. See {@link FileHashMap#save}.
+     *
+     * @throws NotSerializableException see <tt>FileHashMap</tt>
+     * @throws IOException              see <tt>FileHashMap</tt>
+     */
+    public void save()
+        throws NotSerializableException,
+               IOException
+    {
+        for (FileHashMap<K,V> shard : shards)
+            shard.save();
+    }
+
+    /**
+     * Get the total number of mappings in all the shards.
+     *
+     * @return the number of mappings
+     */
+    public int size()
+    {
+        long total = 0;
+
+        for (FileHashMap<K,V> shard : shards)
+            total += shard.size();
+
+        return (int) Math.min (total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Force every shard's values to the storage device. See
+     * {@link FileHashMap#sync}.
+     *
+     * @throws IOException on error
+     */
+    public void sync()
+        throws IOException
+    {
+        for (FileHashMap<K,V> shard : shards)
+            shard.sync();
+    }
+
+    /**
+     * Check the values in every shard. See {@link FileHashMap#verify}.
+     *
+     * @return the keys of the damaged values
+     *
+     * @throws IOException on error
+     */
+    public Collection<K> verify()
+        throws IOException
+    {
+        List<K> damaged = new ArrayList<K>();
+
+        for (FileHashMap<K,V> shard : shards)
+            damaged.addAll (shard.verify());
+
+        return damaged;
+    }
+
+    /**
+     * Returns a collection view of the values in this map. Each shard's
+     * values are read in file order. See {@link FileHashMap#values}.
+     *
+     * @return the collection view
+     */
+    public Collection<V> values()
+    {
+        if (valuesResult == null)
+            valuesResult = new Values();
+
+        return valuesResult;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static void closeQuietly (FileHashMap<?,?> map)
+    {
+        try
+        {
+            map.close();
+        }
+
+        catch (IOException ex)
+        {
+        }
+    }
+
+    /**
+     * Check a newly opened shard's manifest, or write it if the shard is
+     * new.
+     *
+     * @param i      the shard's index
+     * @param flags  the constructor flags
+     *
+     * @throws IOException the manifest doesn't match, or can't be read or
+     *                     written
+     */
+    private void checkManifest (int i, int flags)
+        throws IOException
+    {
+        File manifest = manifests[i];
+
+        if (((flags & FileHashMap.FORCE_OVERWRITE) != 0) ||
+            (! manifest.exists()))
+        {
+            // A shard that already holds data, but has no manifest, was
+            // written with some other routing. Its keys can't be found.
+
+            if (((flags & FileHashMap.FORCE_OVERWRITE) == 0) &&
+                (! shards[i].isEmpty()))
+            {
+                throw new IOException ("Shard manifest \"" + manifest +
+                                       "\" is missing, but the shard " +
+                                       "isn't empty");
+            }
+
+            if ((flags & FileHashMap.READ_ONLY) == 0)
+                writeManifest (manifest, i);
+
+            return;
+        }
+
+        DataInputStream in = new DataInputStream
+                                 (new FileInputStream (manifest));
+        int count;
+        int index;
+        try
+        {
+            count = in.readInt();
+            index = in.readInt();
+        }
+
+        finally
+        {
+            in.close();
+        }
+
+        if ((count != shards.length) || (index != i))
+        {
+            throw new IOException ("Shard manifest \"" + manifest +
+                                   "\" is for shard " + index + " of " +
+                                   count + ", not shard " + i + " of " +
+                                   shards.length);
+        }
+    }
+
+    /**
+     * Record a shard's position in its manifest file.
+     *
+     * @param manifest  the manifest file
+     * @param i         the shard's index
+     *
+     * @throws IOException on error
+     */
+    private void writeManifest (File manifest, int i)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream
+                                   (new FileOutputStream (manifest));
+        try
+        {
+            out.writeInt (shards.length);
+            out.writeInt (i);
+        }
+
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private FileHashMap<K,V> shardFor (Object key)
+    {
+        return shards[shardIndex (key)];
+    }
+
+    /**
+     * Choose a key's shard, from a CRC-32 checksum of its encoded form.
+     * Unlike its hash code, the encoded form of a key is fixed by the key
+     * codec, so the choice is the same from one run to the next.
+     *
+     * @param key  the key
+     *
+     * @return the shard's index
+     *
+     * @throws NullPointerException     key is <tt>null</tt>
+     * @throws ClassCastException       key is of the wrong type
+     * @throws IllegalArgumentException key can't be encoded
+     */
+    private int shardIndex (Object key)
+    {
+        if (key == null)
+            throw new NullPointerException ("null key");
+
+        // Erasure means the cast can't fail here. A key of the wrong type
+        // makes the codec throw ClassCastException instead.
+
+        @SuppressWarnings("unchecked")
+        K k = (K) key;
+
+        byte[] bytes;
+        try
+        {
+            bytes = keyCodec.encode (k);
+        }
+
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException ("Can't encode key \"" + key +
+                                                "\": " + ex.toString());
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update (bytes, 0, bytes.length);
+        return (int) (crc.getValue() % shards.length);
+    }
+}
@@ -0,0 +1,175 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A counter that many threads can update at once without contending
+ * for it. A single <tt>AtomicLong</tt> updated by every thread becomes a
+ * bottleneck, since each update has to win the cache line that holds it.
+ * A <tt>StripedCounter</tt> keeps several cells, each on its own cache
+ * line, and each thread adds to the cell its thread ID picks. Reading the
+ * counter adds up the cells, so it's slower than updating it, and, while
+ * updates are in progress, not an exact snapshot.</p>
+ *
+ * <p>This class is not publicly accessible.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+final class StripedCounter
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The distance between cells, in <tt>long</tt>s: enough to keep two
+     * cells off the same 64-byte cache line.
+     */
+    private static final int CELL_SPACING = 8;
+
+    /**
+     * The maximum number of cells.
+     */
+    private static final int MAX_CELLS = 64;
+
+    /**
+     * The number of cells, shared by all counters: the next power of 2 at
+     * least as big as the number of processors.
+     */
+    private static final int CELLS = cellCount();
+
+    /*----------------------------------------------------------------------*\
+                             Private Variables
+    \*----------------------------------------------------------------------*/
+
+    private final AtomicLongArray cells =
+        new AtomicLongArray (CELLS * CELL_SPACING);
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a counter whose value is 0.
+     */
+    StripedCounter()
+    {
+        // Nothing to do
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Add one to the counter.
+     */
+    void increment()
+    {
+        add (1);
+    }
+
+    /**
+     * Add to the counter.
+     *
+     * @param delta  the amount to add
+     */
+    void add (long delta)
+    {
+        cells.addAndGet (cellIndex(), delta);
+    }
+
+    /**
+     * Get the counter's value.
+     *
+     * @return the sum of the cells
+     */
+    long get()
+    {
+        long sum = 0;
+        for (int i = 0; i < CELLS; i++)
+            sum += cells.get (i * CELL_SPACING);
+
+        return sum;
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Choose the calling thread's cell.
+     *
+     * @return the cell's index in the array
+     */
+    private static int cellIndex()
+    {
+        int h = (int) Thread.currentThread().getId() * 0x9e3779b9;
+        return ((h ^ (h >>> 16)) & (CELLS - 1)) * CELL_SPACING;
+    }
+
+    /**
+     * Decide how many cells a counter needs.
+     *
+     * @return the number of cells
+     */
+    private static int cellCount()
+    {
+        int cells = 1;
+        while ( (cells < Runtime.getRuntime().availableProcessors()) &&
+                (cells < MAX_CELLS) )
+        {
+            cells <<= 1;
+        }
+
+        return cells;
+    }
+}
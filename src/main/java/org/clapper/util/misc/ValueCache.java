@@ -0,0 +1,309 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A bounded, least-recently-used cache of decoded <tt>FileHashMap</tt>
+ * values, built on a {@link ConcurrentLRUMap}, so that concurrent readers
+ * don't serialize on it. The cache can be bounded by the number of
+ * values, by their estimated size, or both. The estimated size of a value
+ * is the size of its encoded form in the data file, which is known
+ * without any extra work. This class is not publicly accessible.</p>
+ *
+ * <p>A reader that misses loads the value from disk, then offers it to
+ * the cache. Meanwhile, a writer may change the value and invalidate the
+ * key. To keep the reader from caching the stale value afterwards, every
+ * invalidation advances a version number for the key; the reader takes
+ * the key's version before looking the key up, and the cache refuses the
+ * value if the version has changed since. The versions are kept for
+ * stripes of keys, picked by hash code, rather than for each key, so a
+ * write to one key occasionally makes the cache refuse a value for
+ * another one in the same stripe.</p>
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+class ValueCache<V>
+{
+    /*----------------------------------------------------------------------*\
+                             Private Constants
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * The number of version stripes. Must be a power of 2.
+     */
+    private static final int VERSION_STRIPES = 256;
+
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * A cached value, with its estimated size.
+     */
+    private static final class CachedValue<V>
+    {
+        final V   value;
+        final int size;
+
+        CachedValue (V value, int size)
+        {
+            this.value = value;
+            this.size  = size;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Data Items
+    \*----------------------------------------------------------------------*/
+
+    private final ConcurrentLRUMap<Object, CachedValue<V>> values;
+    private final long                                     maxBytes;
+    private final AtomicLong                               bytes =
+        new AtomicLong (0);
+    private final AtomicLongArray                          versions =
+        new AtomicLongArray (VERSION_STRIPES);
+    private final StripedCounter                           hits =
+        new StripedCounter();
+    private final StripedCounter                           misses =
+        new StripedCounter();
+
+    /*----------------------------------------------------------------------*\
+                               Constructors
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Create a new, empty cache.
+     *
+     * @param maxValues  the maximum number of values to cache, or 0 for no
+     *                   limit
+     * @param maxBytes   the maximum total estimated size of the cached
+     *                   values, or 0 for no limit
+     */
+    ValueCache (int maxValues, long maxBytes)
+    {
+        this.values   = new ConcurrentLRUMap<Object, CachedValue<V>>
+                            ((maxValues > 0) ? maxValues : Integer.MAX_VALUE);
+        this.maxBytes = (maxBytes > 0) ? maxBytes : Long.MAX_VALUE;
+
+        // Keep the byte count right, however a value leaves the cache.
+
+        values.addRemovalListener (new ObjectRemovalListener()
+        {
+            public void objectRemoved (ObjectRemovalEvent event)
+            {
+                Map.Entry<?,?> removed = (Map.Entry<?,?>) event.getSource();
+                bytes.addAndGet (-((CachedValue<?>) removed.getValue()).size);
+            }
+        },
+        false);
+    }
+
+    /*----------------------------------------------------------------------*\
+                          Package-visible Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get the current version of a key. Pass it to {@link #put put()}
+     * when caching a value loaded from disk.
+     *
+     * @param key  the key
+     *
+     * @return the version
+     */
+    long getStamp (Object key)
+    {
+        return versions.get (stripe (key));
+    }
+
+    /**
+     * Look up a value, counting a hit or a miss.
+     *
+     * @param key  the key
+     *
+     * @return the cached value, or null
+     */
+    V get (Object key)
+    {
+        CachedValue<V> cached = values.get (key);
+
+        if (cached == null)
+        {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return cached.value;
+    }
+
+    /**
+     * Cache a value loaded from disk, unless its key has been invalidated
+     * since the value was looked up, or the value is too big to cache.
+     *
+     * @param key    the key
+     * @param value  the value
+     * @param size   the value's estimated size
+     * @param stamp  the result of {@link #getStamp} before the value was
+     *               looked up
+     */
+    void put (Object key, V value, int size, long stamp)
+    {
+        int stripe = stripe (key);
+
+        if ((stamp != versions.get (stripe)) || (size > maxBytes))
+            return;
+
+        CachedValue<V> cached = new CachedValue<V> (value, size);
+        CachedValue<V> old    = values.put (key, cached);
+
+        // A replaced value doesn't go through the removal listener.
+
+        if (old != null)
+            bytes.addAndGet (-old.size);
+
+        bytes.addAndGet (size);
+
+        // The key may have been invalidated between the check and the
+        // put, in which case the invalidation's remove() may have come
+        // too early. Take the value out again.
+
+        if (stamp != versions.get (stripe))
+            values.remove (key, cached);
+
+        while ((bytes.get() > maxBytes) && values.removeEldest())
+            continue;
+    }
+
+    /**
+     * Discard the cached value for a key that's been changed or removed.
+     *
+     * @param key  the key
+     */
+    void invalidate (Object key)
+    {
+        versions.incrementAndGet (stripe (key));
+        values.remove (key);
+    }
+
+    /**
+     * Discard all cached values.
+     */
+    void clear()
+    {
+        for (int i = 0; i < VERSION_STRIPES; i++)
+            versions.incrementAndGet (i);
+
+        // Remove the values one by one, rather than calling clear(), so
+        // the removal listener keeps the byte count right.
+
+        for (Object key : values.keySet())
+            values.remove (key);
+    }
+
+    /**
+     * Get the number of lookups that found a cached value.
+     *
+     * @return the hit count
+     */
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that didn't find a cached value.
+     *
+     * @return the miss count
+     */
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of cached values.
+     *
+     * @return the number of values
+     */
+    int size()
+    {
+        return values.size();
+    }
+
+    /**
+     * Get the total estimated size of the cached values.
+     *
+     * @return the size, in bytes
+     */
+    long getBytes()
+    {
+        return bytes.get();
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Pick a key's version stripe.
+     *
+     * @param key  the key
+     *
+     * @return the stripe
+     */
+    private static int stripe (Object key)
+    {
+        int h = key.hashCode() * 0x9e3779b9;
+        return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+    }
+}
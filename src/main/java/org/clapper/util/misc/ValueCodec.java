@@ -0,0 +1,110 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.IOException;
+
+/**
+ * <p>A <tt>ValueCodec</tt> converts objects to and from the bytes that
+ * represent them on disk. {@link FileHashMap} uses a <tt>ValueCodec</tt>
+ * to encode the values it writes to its data file, and to decode them
+ * again when they're read back.</p>
+ *
+ * <p>By default, <tt>FileHashMap</tt> uses Java serialization, which works
+ * for any <tt>Serializable</tt> object but writes a stream header and a
+ * full class descriptor for every value. For small values, that overhead
+ * can dwarf the value itself. A type-specific codec avoids it. The
+ * {@link ValueCodecs} class provides codecs for the common cases.</p>
+ *
+ * <p>Implementations must be thread-safe, since a concurrent
+ * <tt>FileHashMap</tt> may call them from many threads at once. A codec
+ * is not recorded in the map's files, so a persistent map must always be
+ * reopened with the same codec that wrote it.</p>
+ *
+ * @see ValueCodecs
+ * @see FileHashMap#FileHashMap(String,int,ValueCodec)
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public interface ValueCodec<T>
+{
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Encode an object as an array of bytes.
+     *
+     * @param value  the object to encode. Will not be null.
+     *
+     * @return the encoded bytes
+     *
+     * @throws IOException the object cannot be encoded
+     */
+    public byte[] encode (T value)
+        throws IOException;
+
+    /**
+     * Decode an object from a region of a byte array. The region contains
+     * exactly the bytes that {@link #encode} produced for the object.
+     *
+     * @param buf     the buffer holding the encoded bytes
+     * @param offset  the offset of the first encoded byte in <tt>buf</tt>
+     * @param length  the number of encoded bytes
+     *
+     * @return the decoded object
+     *
+     * @throws IOException            the bytes cannot be decoded
+     * @throws ClassNotFoundException the class of the encoded object cannot
+     *                                be loaded
+     */
+    public T decode (byte[] buf, int offset, int length)
+        throws IOException,
+               ClassNotFoundException;
+}
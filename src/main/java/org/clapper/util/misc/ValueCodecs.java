@@ -0,0 +1,546 @@
+/*---------------------------------------------------------------------------*\
+  $Id$
+  ---------------------------------------------------------------------------
+  This software is released under a BSD-style license:
+
+  Copyright (c) 2004-2007 Brian M. Clapper. All rights reserved.
+
+  Redistribution and use in source and binary forms, with or without
+  modification, are permitted provided that the following conditions are
+  met:
+
+  1.  Redistributions of source code must retain the above copyright notice,
+      this list of conditions and the following disclaimer.
+
+  2.  The end-user documentation included with the redistribution, if any,
+      must include the following acknowlegement:
+
+        "This product includes software developed by Brian M. Clapper
+        (bmc@clapper.org, http://www.clapper.org/bmc/). That software is
+        copyright (c) 2004-2007 Brian M. Clapper."
+
+      Alternately, this acknowlegement may appear in the software itself,
+      if wherever such third-party acknowlegements normally appear.
+
+  3.  Neither the names "clapper.org", "clapper.org Java Utility Library",
+      nor any of the names of the project contributors may be used to
+      endorse or promote products derived from this software without prior
+      written permission. For written permission, please contact
+      bmc@clapper.org.
+
+  4.  Products derived from this software may not be called "clapper.org
+      Java Utility Library", nor may "clapper.org" appear in their names
+      without prior written permission of Brian M. Clapper.
+
+  THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+  WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+  MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN
+  NO EVENT SHALL BRIAN M. CLAPPER BE LIABLE FOR ANY DIRECT, INDIRECT,
+  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+  NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+  DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+  THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+  (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+  THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+\*---------------------------------------------------------------------------*/
+
+package org.clapper.util.misc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+
+import java.lang.reflect.InvocationTargetException;
+
+/**
+ * <p>Factory methods for the standard {@link ValueCodec} implementations.
+ * The codecs for <tt>byte[]</tt>, <tt>String</tt> and the boxed primitive
+ * types write only the raw value, with no header of any kind. The
+ * <tt>Externalizable</tt> codec writes only what the object's
+ * <tt>writeExternal()</tt> method writes, omitting the class descriptor
+ * that Java serialization would add. All the codecs returned by this class
+ * are thread-safe.</p>
+ *
+ * <p>For example, the following statement creates a persistent
+ * <tt>FileHashMap</tt> that stores its <tt>String</tt> values as plain
+ * UTF-8 bytes:</p>
+ *
+ * <blockquote><pre>
+ * Map&lt;Long,String&gt; map =
+ *     new FileHashMap&lt;Long,String&gt; ("/my/map", 0, ValueCodecs.forStrings());
+ * </pre></blockquote>
+ *
+ * @see ValueCodec
+ * @see FileHashMap
+ *
+ * @version <tt>$Revision$</tt>
+ *
+ * @author Copyright &copy; 2004-2007 Brian M. Clapper
+ */
+public final class ValueCodecs
+{
+    /*----------------------------------------------------------------------*\
+                           Private Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    private static class SerializationCodec implements ValueCodec<Object>
+    {
+        public byte[] encode (Object value)
+            throws IOException
+        {
+            if (! (value instanceof Serializable))
+            {
+                throw new NotSerializableException
+                    (value.getClass().getName());
+            }
+
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            ObjectOutputStream    objStream  = new ObjectOutputStream
+                                                          (byteStream);
+            objStream.writeObject (value);
+            objStream.close();
+            return byteStream.toByteArray();
+        }
+
+        public Object decode (byte[] buf, int offset, int length)
+            throws IOException,
+                   ClassNotFoundException
+        {
+            ObjectInputStream objStream = new ObjectInputStream
+                               (new ByteArrayInputStream (buf, offset, length));
+            return objStream.readObject();
+        }
+    }
+
+    private static class ByteArrayCodec implements ValueCodec<byte[]>
+    {
+        public byte[] encode (byte[] value)
+        {
+            return value.clone();
+        }
+
+        public byte[] decode (byte[] buf, int offset, int length)
+        {
+            byte[] result = new byte[length];
+            System.arraycopy (buf, offset, result, 0, length);
+            return result;
+        }
+    }
+
+    private static class StringCodec implements ValueCodec<String>
+    {
+        public byte[] encode (String value)
+            throws UnsupportedEncodingException
+        {
+            return value.getBytes ("UTF-8");
+        }
+
+        public String decode (byte[] buf, int offset, int length)
+            throws UnsupportedEncodingException
+        {
+            return new String (buf, offset, length, "UTF-8");
+        }
+    }
+
+    /**
+     * Base class for the fixed-width numeric codecs. Values are stored
+     * big-endian, like <tt>java.io.DataOutput</tt> does.
+     */
+    private abstract static class FixedWidthCodec<T> implements ValueCodec<T>
+    {
+        private final int width;
+
+        FixedWidthCodec (int width)
+        {
+            this.width = width;
+        }
+
+        public byte[] encode (T value)
+        {
+            byte[] buf  = new byte[width];
+            long   bits = toBits (value);
+
+            for (int i = width - 1; i >= 0; i--)
+            {
+                buf[i] = (byte) bits;
+                bits >>>= 8;
+            }
+
+            return buf;
+        }
+
+        public T decode (byte[] buf, int offset, int length)
+            throws IOException
+        {
+            if (length != width)
+            {
+                throw new IOException ("Expected a " + width + "-byte " +
+                                       "value, but found " + length +
+                                       " bytes.");
+            }
+
+            long bits = 0;
+            for (int i = 0; i < width; i++)
+                bits = (bits << 8) | (buf[offset + i] & 0xff);
+
+            return fromBits (bits);
+        }
+
+        abstract long toBits (T value);
+
+        abstract T fromBits (long bits);
+    }
+
+    private static class ExternalizableCodec<T extends Externalizable>
+        implements ValueCodec<T>
+    {
+        private final Class<T> cls;
+
+        ExternalizableCodec (Class<T> cls)
+        {
+            this.cls = cls;
+        }
+
+        public byte[] encode (T value)
+            throws IOException
+        {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            ObjectOutputStream    objStream  = new ObjectOutputStream
+                                                          (byteStream);
+
+            // Call writeExternal() directly, rather than writeObject(), so
+            // no class descriptor is written.
+
+            value.writeExternal (objStream);
+            objStream.close();
+            return byteStream.toByteArray();
+        }
+
+        public T decode (byte[] buf, int offset, int length)
+            throws IOException,
+                   ClassNotFoundException
+        {
+            T result;
+
+            try
+            {
+                result = cls.getDeclaredConstructor().newInstance();
+            }
+
+            catch (NoSuchMethodException ex)
+            {
+                throw new IOException ("Can't instantiate " + cls.getName() +
+                                       ": no no-argument constructor");
+            }
+
+            catch (InvocationTargetException ex)
+            {
+                // The constructor threw something.
+
+                throw new IOException ("Can't instantiate " + cls.getName() +
+                                       ": " + ex.getCause().toString());
+            }
+
+            catch (InstantiationException ex)
+            {
+                throw new IOException ("Can't instantiate " + cls.getName() +
+                                       ": " + ex.toString());
+            }
+
+            catch (IllegalAccessException ex)
+            {
+                throw new IOException ("Can't instantiate " + cls.getName() +
+                                       ": " + ex.toString());
+            }
+
+            ObjectInputStream objStream = new ObjectInputStream
+                               (new ByteArrayInputStream (buf, offset, length));
+            result.readExternal (objStream);
+            return result;
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                            Private Class Data
+    \*----------------------------------------------------------------------*/
+
+    private static final SerializationCodec SERIALIZATION =
+        new SerializationCodec();
+
+    private static final ByteArrayCodec BYTE_ARRAYS = new ByteArrayCodec();
+
+    private static final StringCodec STRINGS = new StringCodec();
+
+    private static final ValueCodec<Boolean> BOOLEANS =
+        new FixedWidthCodec<Boolean> (1)
+        {
+            long toBits (Boolean value)
+            {
+                return value.booleanValue() ? 1 : 0;
+            }
+
+            Boolean fromBits (long bits)
+            {
+                return Boolean.valueOf (bits != 0);
+            }
+        };
+
+    private static final ValueCodec<Byte> BYTES =
+        new FixedWidthCodec<Byte> (1)
+        {
+            long toBits (Byte value)
+            {
+                return value.byteValue();
+            }
+
+            Byte fromBits (long bits)
+            {
+                return Byte.valueOf ((byte) bits);
+            }
+        };
+
+    private static final ValueCodec<Character> CHARACTERS =
+        new FixedWidthCodec<Character> (2)
+        {
+            long toBits (Character value)
+            {
+                return value.charValue();
+            }
+
+            Character fromBits (long bits)
+            {
+                return Character.valueOf ((char) bits);
+            }
+        };
+
+    private static final ValueCodec<Short> SHORTS =
+        new FixedWidthCodec<Short> (2)
+        {
+            long toBits (Short value)
+            {
+                return value.shortValue();
+            }
+
+            Short fromBits (long bits)
+            {
+                return Short.valueOf ((short) bits);
+            }
+        };
+
+    private static final ValueCodec<Integer> INTEGERS =
+        new FixedWidthCodec<Integer> (4)
+        {
+            long toBits (Integer value)
+            {
+                return value.intValue();
+            }
+
+            Integer fromBits (long bits)
+            {
+                return Integer.valueOf ((int) bits);
+            }
+        };
+
+    private static final ValueCodec<Long> LONGS =
+        new FixedWidthCodec<Long> (8)
+        {
+            long toBits (Long value)
+            {
+                return value.longValue();
+            }
+
+            Long fromBits (long bits)
+            {
+                return Long.valueOf (bits);
+            }
+        };
+
+    private static final ValueCodec<Float> FLOATS =
+        new FixedWidthCodec<Float> (4)
+        {
+            long toBits (Float value)
+            {
+                return Float.floatToIntBits (value.floatValue());
+            }
+
+            Float fromBits (long bits)
+            {
+                return Float.valueOf (Float.intBitsToFloat ((int) bits));
+            }
+        };
+
+    private static final ValueCodec<Double> DOUBLES =
+        new FixedWidthCodec<Double> (8)
+        {
+            long toBits (Double value)
+            {
+                return Double.doubleToLongBits (value.doubleValue());
+            }
+
+            Double fromBits (long bits)
+            {
+                return Double.valueOf (Double.longBitsToDouble (bits));
+            }
+        };
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    private ValueCodecs()
+    {
+        // Can't be instantiated
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Get a codec that uses standard Java serialization. This is the
+     * default codec for {@link FileHashMap}. It can encode any object that
+     * implements <tt>java.io.Serializable</tt>; other objects cause a
+     * <tt>NotSerializableException</tt>.
+     *
+     * @return the codec
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> ValueCodec<T> javaSerialization()
+    {
+        // The cast is safe, because the codec hands back whatever it was
+        // given.
+
+        return (ValueCodec<T>) SERIALIZATION;
+    }
+
+    /**
+     * Get a codec for <tt>byte</tt> arrays. The array is stored as is.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<byte[]> forByteArrays()
+    {
+        return BYTE_ARRAYS;
+    }
+
+    /**
+     * Get a codec for strings. Strings are stored in UTF-8.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<String> forStrings()
+    {
+        return STRINGS;
+    }
+
+    /**
+     * Get a codec for <tt>Boolean</tt> objects. Each value occupies one
+     * byte.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Boolean> forBooleans()
+    {
+        return BOOLEANS;
+    }
+
+    /**
+     * Get a codec for <tt>Byte</tt> objects. Each value occupies one byte.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Byte> forBytes()
+    {
+        return BYTES;
+    }
+
+    /**
+     * Get a codec for <tt>Character</tt> objects. Each value occupies two
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Character> forCharacters()
+    {
+        return CHARACTERS;
+    }
+
+    /**
+     * Get a codec for <tt>Short</tt> objects. Each value occupies two
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Short> forShorts()
+    {
+        return SHORTS;
+    }
+
+    /**
+     * Get a codec for <tt>Integer</tt> objects. Each value occupies four
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Integer> forIntegers()
+    {
+        return INTEGERS;
+    }
+
+    /**
+     * Get a codec for <tt>Long</tt> objects. Each value occupies eight
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Long> forLongs()
+    {
+        return LONGS;
+    }
+
+    /**
+     * Get a codec for <tt>Float</tt> objects. Each value occupies four
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Float> forFloats()
+    {
+        return FLOATS;
+    }
+
+    /**
+     * Get a codec for <tt>Double</tt> objects. Each value occupies eight
+     * bytes.
+     *
+     * @return the codec
+     */
+    public static ValueCodec<Double> forDoubles()
+    {
+        return DOUBLES;
+    }
+
+    /**
+     * Get a codec for objects of a specific <tt>Externalizable</tt> class.
+     * The codec writes only the data the object's <tt>writeExternal()</tt>
+     * method produces. To decode a value, it instantiates the class via
+     * its public no-argument constructor and calls <tt>readExternal()</tt>.
+     * Because no class descriptor is stored, every value must be an
+     * instance of exactly the specified class.
+     *
+     * @param cls  the class of the values
+     *
+     * @return the codec
+     */
+    public static <T extends Externalizable> ValueCodec<T>
+    forExternalizable (Class<T> cls)
+    {
+        return new ExternalizableCodec<T> (cls);
+    }
+}
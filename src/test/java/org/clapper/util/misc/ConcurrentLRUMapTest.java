@@ -0,0 +1,485 @@
+package org.clapper.util.misc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest extends MapTestBase
+{
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public ConcurrentLRUMapTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Test the LRU behavior, including accesses that are still buffered
+     * when a write needs to evict something.
+     */
+    @Test public void lruBehavior()
+    {
+        ConcurrentLRUMap<Integer,String> map =
+            new ConcurrentLRUMap<Integer,String>(10);
+        for (int i = 0; i < 10; i++)
+            map.put(i, String.valueOf(i));
+
+        map.put(100, "100");
+        assertFalse("Map still contains key 0", map.containsKey(0));
+
+        map.get(1);
+        map.put(101, "101");
+        assertTrue("Map doesn't contain freshened key 1", map.containsKey(1));
+        assertFalse("Map still contains key 2", map.containsKey(2));
+
+        // Lots of reads, enough to make the buffers drain on their own.
+
+        for (int n = 0; n < 100; n++)
+            map.get(3);
+        map.put(102, "102");
+        assertTrue("Map doesn't contain freshened key 3", map.containsKey(3));
+        assertFalse("Map still contains key 4", map.containsKey(4));
+        assertEquals(10, map.size());
+
+        map.setMaximumCapacity(5);
+        assertEquals(5, map.size());
+        assertTrue(map.containsKey(3));
+    }
+
+    /**
+     * Test the removal listeners.
+     */
+    @Test public void removalListeners()
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(1);
+        final List<Object> automatic = new ArrayList<Object>();
+        final List<Object> all = new ArrayList<Object>();
+
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                automatic.add(((Map.Entry) event.getSource()).getKey());
+            }
+        }, true);
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                all.add(((Map.Entry) event.getSource()).getValue());
+            }
+        }, false);
+
+        map.put("a", "a value");
+        map.put("b", "b value");
+        map.remove("b");
+
+        assertEquals(1, automatic.size());
+        assertEquals("a", automatic.get(0));
+        assertEquals(2, all.size());
+        assertEquals("b value", all.get(1));
+    }
+
+    /**
+     * Test the ConcurrentMap methods.
+     */
+    @Test public void concurrentMapMethods()
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+
+        assertNull(map.putIfAbsent("a", "1"));
+        assertEquals("1", map.putIfAbsent("a", "2"));
+        assertFalse(map.replace("a", "2", "3"));
+        assertTrue(map.replace("a", "1", "3"));
+        assertEquals("3", map.replace("a", "4"));
+        assertNull(map.replace("b", "4"));
+        assertFalse(map.remove("a", "3"));
+        assertTrue(map.remove("a", "4"));
+        assertTrue(map.isEmpty());
+    }
+
+    /**
+     * Test a map shared by many reading and writing threads.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentAccess()
+        throws Exception
+    {
+        final ConcurrentLRUMap<Integer,Integer> map =
+            new ConcurrentLRUMap<Integer,Integer>(500);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final AtomicInteger evicted = new AtomicInteger(0);
+        Thread[] threads = new Thread[16];
+
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                evicted.incrementAndGet();
+            }
+        }, true);
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            final int id = i;
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < 20000; j++)
+                    {
+                        int key = (j * 31 + id) % 1000;
+                        if ((j % 4) == 0)
+                            map.put(key, key);
+                        else
+                        {
+                            Integer value = map.get(key);
+                            if ((value != null) && (value != key))
+                                errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, errors.get());
+        assertTrue(map.size() <= 500);
+
+        // Each entry that was added is either still there or was evicted.
+
+        int added = map.size() + evicted.get();
+        map.setMaximumCapacity(1);
+        assertEquals(1, map.size());
+        assertEquals(added, 1 + evicted.get());
+    }
+
+    /**
+     * Test that concurrent misses on one key share a single load, and
+     * that a failed load is reported and retried.
+     */
+    @Test public void loading()
+        throws Exception
+    {
+        final ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+        final AtomicInteger loads = new AtomicInteger(0);
+        final AtomicInteger errors = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CacheLoader<String,String> loader =
+            new CacheLoader<String,String>()
+            {
+                public String load(String key)
+                    throws Exception
+                {
+                    loads.incrementAndGet();
+                    Thread.sleep(200);
+                    return key + " value";
+                }
+            };
+        Thread[] threads = new Thread[20];
+
+        for (int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        if (! "k value".equals(map.get("k", loader)))
+                            errors.incrementAndGet();
+                    }
+
+                    catch (Exception ex)
+                    {
+                        errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, errors.get());
+        assertEquals("Loader not called exactly once", 1, loads.get());
+        assertEquals("k value", map.get("k"));
+
+        CacheLoader<String,String> failing = new CacheLoader<String,String>()
+        {
+            public String load(String key)
+                throws Exception
+            {
+                throw new IllegalStateException("no " + key);
+            }
+        };
+
+        try
+        {
+            map.get("x", failing);
+            fail("Failed load not reported");
+        }
+
+        catch (ExecutionException ex)
+        {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+
+        assertFalse(map.containsKey("x"));
+        assertEquals("x value", map.get("x", loader));
+    }
+
+    /**
+     * Test that a refresh that finishes after a put() or remove() doesn't
+     * overwrite the newer state of the entry.
+     */
+    @Test public void staleRefresh()
+        throws Exception
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+        final List<Runnable> refreshes = new ArrayList<Runnable>();
+        Executor executor = new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                refreshes.add(task);
+            }
+        };
+        CacheLoader<String,String> loader = new CacheLoader<String,String>()
+        {
+            public String load(String key)
+            {
+                return key + " reloaded";
+            }
+        };
+
+        map.setRefreshAfterWrite(100, executor);
+        map.put("k", "k old");
+        map.put("r", "r old");
+        Thread.sleep(150);
+
+        assertEquals("k old", map.get("k", loader));
+        assertEquals("r old", map.get("r", loader));
+        assertEquals(2, refreshes.size());
+
+        // The loads finish only after the entries change.
+
+        map.put("k", "k newer");
+        map.remove("r");
+        for (Runnable refresh : refreshes)
+            refresh.run();
+
+        assertEquals("Refresh overwrote a newer put",
+                     "k newer", map.get("k"));
+        assertFalse("Refresh restored a removed key", map.containsKey("r"));
+    }
+
+    /**
+     * Test that a load that finishes after a put() of the same key doesn't
+     * overwrite the newer value, with get() and with getAll().
+     */
+    @Test public void staleLoad()
+        throws Exception
+    {
+        final ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+        final CountDownLatch loading = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CacheLoader<String,String> loader =
+            new CacheLoader<String,String>()
+            {
+                public String load(String key)
+                    throws Exception
+                {
+                    loading.countDown();
+                    release.await();
+                    return key + " loaded";
+                }
+            };
+        final BulkCacheLoader<String,String> bulkLoader =
+            new BulkCacheLoader<String,String>()
+            {
+                public Map<String,String> loadAll(Set<String> keys)
+                    throws Exception
+                {
+                    loading.countDown();
+                    release.await();
+                    Map<String,String> values = new HashMap<String,String>();
+                    for (String key : keys)
+                        values.put(key, key + " loaded");
+                    return values;
+                }
+            };
+        final List<String> results =
+            Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads =
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results.add(map.get("k", loader));
+                    }
+
+                    catch (Exception ex)
+                    {
+                        results.add(ex.toString());
+                    }
+                }
+            },
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results.add(map.getAll(Arrays.asList("b"),
+                                               bulkLoader).get("b"));
+                    }
+
+                    catch (Exception ex)
+                    {
+                        results.add(ex.toString());
+                    }
+                }
+            }
+        };
+
+        for (Thread thread : threads)
+            thread.start();
+
+        // Store newer values while the loaders are running.
+
+        loading.await();
+        map.put("k", "k put");
+        map.put("b", "b put");
+        release.countDown();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals("Load overwrote a newer put", "k put", map.get("k"));
+        assertEquals("Bulk load overwrote a newer put",
+                     "b put", map.get("b"));
+        assertTrue(results.contains("k put"));
+        assertTrue(results.contains("b put"));
+    }
+
+    /**
+     * Test getAll(), which should load only the missing keys, in one call.
+     */
+    @Test public void getAll()
+        throws Exception
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+        final List<Set<String>> calls = new ArrayList<Set<String>>();
+        BulkCacheLoader<String,String> loader =
+            new BulkCacheLoader<String,String>()
+            {
+                public Map<String,String> loadAll(Set<String> keys)
+                {
+                    calls.add(keys);
+                    Map<String,String> values = new HashMap<String,String>();
+                    for (String key : keys)
+                        values.put(key, key + " loaded");
+                    return values;
+                }
+            };
+
+        map.put("b", "b value");
+        Map<String,String> values =
+            map.getAll(Arrays.asList("a", "b", "c", "a"), loader);
+
+        assertEquals(Arrays.asList("a", "b", "c"),
+                     new ArrayList<String>(values.keySet()));
+        assertEquals("a loaded", values.get("a"));
+        assertEquals("b value", values.get("b"));
+        assertEquals("c loaded", values.get("c"));
+        assertEquals(1, calls.size());
+        assertEquals(2, calls.get(0).size());
+        assertEquals("c loaded", map.get("c"));
+
+        map.getAll(Arrays.asList("a", "b"), loader);
+        assertEquals("Loader called for present keys", 1, calls.size());
+    }
+
+    /**
+     * Test refreshAfterWrite: a stale value is served while it's reloaded.
+     */
+    @Test public void refreshAfterWrite()
+        throws Exception
+    {
+        ConcurrentLRUMap<String,String> map =
+            new ConcurrentLRUMap<String,String>(10);
+        final List<Runnable> refreshes = new ArrayList<Runnable>();
+        Executor executor = new Executor()
+        {
+            public void execute(Runnable task)
+            {
+                refreshes.add(task);
+            }
+        };
+        CacheLoader<String,String> loader = new CacheLoader<String,String>()
+        {
+            public String load(String key)
+            {
+                return key + " new";
+            }
+        };
+
+        assertEquals(0, map.setRefreshAfterWrite(100, executor));
+        map.put("k", "k old");
+        assertEquals("k old", map.get("k", loader));
+        assertTrue("Fresh entry refreshed", refreshes.isEmpty());
+
+        Thread.sleep(150);
+        assertEquals("k old", map.get("k", loader));
+        assertEquals("k old", map.get("k", loader));
+        assertEquals("Refresh not started once", 1, refreshes.size());
+
+        refreshes.get(0).run();
+        assertEquals("k new", map.get("k", loader));
+        assertEquals(1, refreshes.size());
+    }
+
+    /*----------------------------------------------------------------------*\
+                             Protected Methods
+    \*----------------------------------------------------------------------*/
+
+    protected Map<String,String> newMap()
+    {
+        return new ConcurrentLRUMap<String,String>(100);
+    }
+}
@@ -5,8 +5,23 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  *
@@ -98,6 +113,1387 @@ public class FileHashMapTest extends MapTestBase
         }
     }
 
+    /**
+     * Test reading values from a memory-mapped data file, including values
+     * written after the file was first mapped.
+     *
+     * @throws IOException              error creating/writing/reading map
+     * @throws ObjectExistsException    unexpected
+     * @throws ClassNotFoundException   can't deserialized object
+     * @throws VersionMismatchException bad or unsupported version stamp
+     *                                  in <tt>FileHashMap</tt> index file
+     */
+    @Test public void memoryMapped()
+        throws IOException,
+               ObjectExistsException,
+               ClassNotFoundException,
+               VersionMismatchException
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT |
+                 FileHashMap.FORCE_OVERWRITE |
+                 FileHashMap.MEMORY_MAPPED);
+        try
+        {
+            for (int i = 0; i < 100; i++)
+            {
+                map.put ("key" + i, "value" + i);
+                assertEquals ("value" + i, map.get ("key" + i));
+            }
+
+            map.put ("key50", "a new value for key 50");
+            assertEquals ("a new value for key 50", map.get ("key50"));
+            assertEquals ("value99", map.get ("key99"));
+
+            map.clear();
+            assertNull (map.get ("key1"));
+            map.put ("key1", "after clear");
+            assertEquals ("after clear", map.get ("key1"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that a memory-mapped map still works after a write on an
+     * interrupted thread closes its data file's channel.
+     *
+     * @throws Exception on error
+     */
+    @Test public void interruptedMemoryMappedPut()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT |
+                 FileHashMap.FORCE_OVERWRITE |
+                 FileHashMap.MEMORY_MAPPED,
+                 ValueCodecs.forStrings());
+        try
+        {
+            map.put ("a", "value a");
+
+            Thread.currentThread().interrupt();
+            try
+            {
+                map.put ("b", "value b");
+                fail ("Write on an interrupted thread succeeded");
+            }
+
+            catch (RuntimeException ex)
+            {
+            }
+
+            finally
+            {
+                Thread.interrupted();
+            }
+
+            map.put ("c", "value c");
+            assertEquals ("value a", map.get ("a"));
+            assertEquals ("value c", map.get ("c"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test save/restore of a FileHashMap that uses a non-default codec.
+     *
+     * @throws Exception on error
+     */
+    @Test public void valueCodec()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings());
+        try
+        {
+            map.put ("a", "alpha");
+            map.put ("empty", "");
+            map.put ("a", "aleph");
+            map.save();
+
+            FileHashMap<String,String> map2 =
+                new FileHashMap<String,String>
+                    (FILE_PREFIX, 0, ValueCodecs.forStrings());
+
+            assertEquals (2, map2.size());
+            assertEquals ("aleph", map2.get ("a"));
+            assertEquals ("", map2.get ("empty"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test reading an index file in the old, serialized format, and
+     * rewriting it in the binary format.
+     *
+     * @throws Exception on error
+     */
+    @Test public void oldIndexFormat()
+        throws Exception
+    {
+        File indexFile = new File (FILE_PREFIX +
+                                   FileHashMap.INDEX_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings());
+        try
+        {
+            map.put ("a", "alpha");
+            map.put ("b", "beta");
+            map.close();
+            assertTrue (FileHashMapIndexFile.isIndexFile (indexFile));
+
+            HashMap<String,FileHashMapEntry<String>> old =
+                new HashMap<String,FileHashMapEntry<String>>();
+            old.put ("a", new FileHashMapEntry<String> (0, 5, "a"));
+            old.put ("b", new FileHashMapEntry<String> (5, 4, "b"));
+
+            ObjectOutputStream out =
+                new ObjectOutputStream (new FileOutputStream (indexFile));
+            try
+            {
+                out.writeObject ("org.clapper.util.misc.FileHashMap-1.0");
+                out.writeObject (old);
+            }
+
+            finally
+            {
+                out.close();
+            }
+
+            map = new FileHashMap<String,String>
+                      (FILE_PREFIX, 0, ValueCodecs.forStrings());
+            assertEquals (2, map.size());
+            assertEquals ("alpha", map.get ("a"));
+            assertEquals ("beta", map.get ("b"));
+
+            map.put ("c", "gamma");
+            map.close();
+            assertTrue (FileHashMapIndexFile.isIndexFile (indexFile));
+
+            map = new FileHashMap<String,String>
+                      (FILE_PREFIX, 0, ValueCodecs.forStrings());
+            assertEquals (3, map.size());
+            assertEquals ("beta", map.get ("b"));
+            assertEquals ("gamma", map.get ("c"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test recovery of a DURABLE map that was never saved or closed,
+     * including a torn record at the end of its change log.
+     *
+     * @throws Exception on error
+     */
+    @Test public void durable()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX, FileHashMap.DURABLE, ValueCodecs.forStrings());
+        FileHashMap<String,String> map2 = null;
+        try
+        {
+            map.setCheckpointInterval (10);
+            for (int i = 0; i < 25; i++)
+                map.put ("key" + i, "value" + i);
+            map.remove ("key3");
+            map.put ("key4", "new value 4");
+            map.sync();
+
+            // Simulate a crash in the middle of appending a record.
+
+            RandomAccessFile log =
+                new RandomAccessFile (FILE_PREFIX +
+                                      FileHashMap.LOG_FILE_SUFFIX, "rw");
+            try
+            {
+                log.seek (log.length());
+                log.write (new byte[] {0, 0, 0, 40, 1, 2, 3});
+            }
+
+            finally
+            {
+                log.close();
+            }
+
+            map2 = new FileHashMap<String,String>
+                       (FILE_PREFIX,
+                        FileHashMap.DURABLE,
+                        ValueCodecs.forStrings());
+
+            assertEquals (24, map2.size());
+            assertNull (map2.get ("key3"));
+            assertEquals ("new value 4", map2.get ("key4"));
+            assertEquals ("value24", map2.get ("key24"));
+
+            map2.put ("key25", "value25");
+            map2.close();
+
+            map2 = new FileHashMap<String,String>
+                       (FILE_PREFIX, 0, ValueCodecs.forStrings());
+            assertEquals (25, map2.size());
+            assertEquals ("value25", map2.get ("key25"));
+        }
+
+        finally
+        {
+            if (map2 != null)
+                map2.close();
+            map.delete();
+        }
+    }
+
+    /**
+     * Test batch writes: putAll(), and a BatchWriter with a small buffer,
+     * replaying the batches from the change log.
+     *
+     * @throws Exception on error
+     */
+    @Test public void batchWriter()
+        throws Exception
+    {
+        File dataFile = new File (FILE_PREFIX + FileHashMap.DATA_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX, FileHashMap.DURABLE, ValueCodecs.forStrings());
+        FileHashMap<String,String> map2 = null;
+        try
+        {
+            Map<String,String> source = new HashMap<String,String>();
+            for (int i = 0; i < 100; i++)
+                source.put ("key" + i, "0123456789");
+
+            map.putAll (source);
+            assertEquals (100, map.size());
+            assertEquals (1000, dataFile.length());
+            assertEquals ("0123456789", map.get ("key42"));
+
+            FileHashMap<String,String>.BatchWriter batch = map.beginBatch (25);
+            for (int i = 0; i < 10; i++)
+                batch.put ("key" + i, "abcdefghij");
+
+            // The buffer fills every three values, so the last one hasn't
+            // been written yet.
+
+            assertEquals ("abcdefghij", map.get ("key8"));
+            assertEquals ("0123456789", map.get ("key9"));
+            batch.commit();
+            assertEquals ("abcdefghij", map.get ("key9"));
+            assertEquals (100, map.size());
+
+            try
+            {
+                batch.put ("key0", null);
+                fail ("Null value accepted");
+            }
+
+            catch (NullPointerException ex)
+            {
+            }
+
+            batch.commit();
+            map.sync();
+
+            map2 = new FileHashMap<String,String>
+                       (FILE_PREFIX,
+                        FileHashMap.DURABLE,
+                        ValueCodecs.forStrings());
+            assertEquals (100, map2.size());
+            assertEquals ("abcdefghij", map2.get ("key0"));
+            assertEquals ("0123456789", map2.get ("key99"));
+        }
+
+        finally
+        {
+            if (map2 != null)
+                map2.close();
+            map.delete();
+        }
+    }
+
+    /**
+     * Test iteration over the values and entries, which reads the data
+     * file ahead, with gaps between the values and a value too big for
+     * the read-ahead window.
+     *
+     * @throws Exception on error
+     */
+    @Test public void sequentialScan()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings());
+        try
+        {
+            Map<String,String> expected = new HashMap<String,String>();
+            StringBuilder      big      = new StringBuilder();
+
+            while (big.length() < (3 * 1024 * 1024))
+                big.append ("0123456789abcdef");
+
+            for (int i = 0; i < 20000; i++)
+            {
+                String value = (i == 10000) ? big.toString() : ("value" + i);
+                map.put ("key" + i, value);
+                expected.put ("key" + i, value);
+            }
+
+            for (int i = 0; i < 20000; i += 3)
+            {
+                map.remove ("key" + i);
+                expected.remove ("key" + i);
+            }
+
+            List<String> values = new ArrayList<String> (map.values());
+            List<String> expectedValues =
+                new ArrayList<String> (expected.values());
+            Collections.sort (values);
+            Collections.sort (expectedValues);
+            assertEquals (expectedValues, values);
+
+            int n = 0;
+            for (Map.Entry<String,String> entry : map.entrySet())
+            {
+                assertEquals (expected.get (entry.getKey()), entry.getValue());
+                n++;
+            }
+
+            assertEquals (expected.size(), n);
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test a map with an on-disk index: growth past several resizes,
+     * removal and replacement, reopening, and conversion of an existing
+     * map's in-memory index.
+     *
+     * @throws Exception on error
+     */
+    @Test public void mappedIndex()
+        throws Exception
+    {
+        FileHashMap<String,Integer> map =
+            new FileHashMap<String,Integer> (FILE_PREFIX, 0);
+        FileHashMap<String,Integer> map2 = null;
+        try
+        {
+            map.put ("converted", -1);
+            map.close();
+
+            map = new FileHashMap<String,Integer>
+                      (FILE_PREFIX, FileHashMap.MAPPED_INDEX);
+            assertEquals (Integer.valueOf (-1), map.get ("converted"));
+
+            for (int i = 0; i < 5000; i++)
+                map.put ("key" + i, i);
+
+            for (int i = 0; i < 5000; i += 2)
+                assertEquals (Integer.valueOf (i), map.remove ("key" + i));
+
+            map.put ("key1", 100);
+            map.put ("key2", 200);
+
+            assertEquals (2502, map.size());
+            assertNull (map.get ("key4"));
+            assertEquals (Integer.valueOf (100), map.get ("key1"));
+            assertEquals (Integer.valueOf (200), map.get ("key2"));
+            assertEquals (Integer.valueOf (4999), map.get ("key4999"));
+            assertFalse (map.containsKey (Integer.valueOf (1)));
+
+            int total = 0;
+            for (String key : map.keySet())
+            {
+                assertTrue (map.containsKey (key));
+                total++;
+            }
+
+            assertEquals (2502, total);
+            map.close();
+
+            map2 = new FileHashMap<String,Integer> (FILE_PREFIX, 0);
+            assertEquals (2502, map2.size());
+            assertEquals (Integer.valueOf (4999), map2.get ("key4999"));
+            assertEquals (Integer.valueOf (-1), map2.get ("converted"));
+
+            map2.clear();
+            assertEquals (0, map2.size());
+            map2.put ("after", 1);
+            assertEquals (Integer.valueOf (1), map2.get ("after"));
+        }
+
+        finally
+        {
+            if (map2 != null)
+                map2.delete();
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that RECLAIM_FILE_GAPS reuses freed space, including space
+     * recorded in the gap list saved with the index.
+     *
+     * @throws Exception on error
+     */
+    @Test public void reclaimFileGaps()
+        throws Exception
+    {
+        File dataFile = new File (FILE_PREFIX + FileHashMap.DATA_FILE_SUFFIX);
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.RECLAIM_FILE_GAPS,
+                 ValueCodecs.forStrings());
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put ("key" + i, "0123456789");
+
+            long length = dataFile.length();
+
+            for (int i = 0; i < 100; i += 3)
+                map.remove ("key" + i);
+            map.put ("key1", "01234");
+            map.put ("key1", "0123456789");
+
+            for (int i = 0; i < 100; i += 3)
+                map.put ("new" + i, "abcdefghij");
+
+            assertEquals (length, dataFile.length());
+            map.remove ("key50");
+            map.close();
+
+            map = new FileHashMap<String,String>
+                      (FILE_PREFIX,
+                       FileHashMap.RECLAIM_FILE_GAPS,
+                       ValueCodecs.forStrings());
+            map.put ("key50", "ABCDEFGHIJ");
+            assertEquals (length, dataFile.length());
+            assertEquals ("ABCDEFGHIJ", map.get ("key50"));
+            assertEquals ("abcdefghij", map.get ("new99"));
+            assertEquals ("0123456789", map.get ("key98"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test compaction, with both kinds of index, and of a transient map
+     * with an on-disk index.
+     *
+     * @throws Exception on error
+     */
+    @Test public void compact()
+        throws Exception
+    {
+        int[] indexFlags =
+        {
+            0,
+            FileHashMap.MAPPED_INDEX,
+            FileHashMap.TRANSIENT | FileHashMap.MAPPED_INDEX
+        };
+        File  dataFile   = new File (FILE_PREFIX +
+                                     FileHashMap.DATA_FILE_SUFFIX);
+
+        for (int indexFlag : indexFlags)
+        {
+            boolean transientMap = ((indexFlag & FileHashMap.TRANSIENT) != 0);
+            FileHashMap<String,String> map =
+                new FileHashMap<String,String>
+                    (FILE_PREFIX,
+                     FileHashMap.FORCE_OVERWRITE | indexFlag,
+                     ValueCodecs.forStrings());
+            try
+            {
+                assertEquals (0.0, map.getFragmentation(), 0.0);
+
+                for (int i = 0; i < 100; i++)
+                    map.put ("key" + i, "0123456789");
+                assertEquals (0.0, map.getFragmentation(), 0.0);
+
+                for (int i = 0; i < 100; i += 2)
+                    map.remove ("key" + i);
+                map.put ("key1", "abcdefghij");
+                assertEquals (0.5, map.getFragmentation(), 0.01);
+
+                long saved = map.compact();
+                assertEquals (510, saved);
+                assertEquals (500, dataFile.length());
+                assertEquals (0.0, map.getFragmentation(), 0.0);
+                assertEquals (50, map.size());
+                assertEquals ("abcdefghij", map.get ("key1"));
+                assertEquals ("0123456789", map.get ("key99"));
+                assertNull (map.get ("key98"));
+                for (int i = 1; i < 100; i += 2)
+                    assertNotNull (map.get ("key" + i));
+
+                map.put ("key98", "ABCDEFGHIJ");
+                map.close();
+
+                // No compaction files are left behind.
+
+                String[] suffixes =
+                {
+                    FileHashMap.DATA_FILE_SUFFIX,
+                    FileHashMap.INDEX_FILE_SUFFIX,
+                    FileHashMap.KEY_FILE_SUFFIX
+                };
+
+                for (String suffix : suffixes)
+                {
+                    assertFalse (new File (FILE_PREFIX + suffix +
+                                           ".compact").exists());
+                }
+
+                if (transientMap)
+                    continue;
+
+                map = new FileHashMap<String,String>
+                          (FILE_PREFIX, indexFlag, ValueCodecs.forStrings());
+                assertEquals (51, map.size());
+                assertEquals ("abcdefghij", map.get ("key1"));
+                assertEquals ("ABCDEFGHIJ", map.get ("key98"));
+                assertEquals ("0123456789", map.get ("key3"));
+            }
+
+            finally
+            {
+                map.delete();
+            }
+        }
+    }
+
+    /**
+     * Test the background compactor.
+     *
+     * @throws Exception on error
+     */
+    @Test public void backgroundCompactor()
+        throws Exception
+    {
+        FileHashMap<Integer,String> map =
+            new FileHashMap<Integer,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT |
+                 FileHashMap.FORCE_OVERWRITE |
+                 FileHashMap.CONCURRENT);
+        try
+        {
+            map.startCompactor (0.5, 10);
+
+            for (int i = 0; i < 1000; i++)
+                map.put (i % 10, "value" + i);
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while ( (map.getFragmentation() >= 0.5) &&
+                    (System.currentTimeMillis() < deadline) )
+            {
+                Thread.sleep (10);
+            }
+
+            assertTrue (map.getFragmentation() < 0.5);
+            assertEquals (10, map.size());
+            for (int i = 0; i < 10; i++)
+                assertEquals ("value" + (990 + i), map.get (i));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test the decoded value cache.
+     *
+     * @throws Exception on error
+     */
+    @Test public void valueCache()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings());
+        try
+        {
+            for (int i = 0; i < 10; i++)
+                map.put ("key" + i, "0123456789");
+
+            map.setValueCache (2, 0);
+            assertEquals ("0123456789", map.get ("key0"));
+            assertEquals ("0123456789", map.get ("key0"));
+            assertEquals (1, map.getValueCacheHits());
+            assertEquals (1, map.getValueCacheMisses());
+
+            // Writes and removals invalidate.
+
+            map.put ("key0", "abc");
+            assertEquals ("abc", map.get ("key0"));
+            map.remove ("key0");
+            assertNull (map.get ("key0"));
+            assertEquals (1, map.getValueCacheHits());
+
+            // Count limit: key1 is the least recently used.
+
+            map.get ("key1");
+            map.get ("key2");
+            map.get ("key3");
+            map.get ("key3");
+            map.get ("key2");
+            assertEquals (3, map.getValueCacheHits());
+            map.get ("key1");
+            assertEquals (3, map.getValueCacheHits());
+
+            // Size limit: 25 bytes hold only two 10-byte values.
+
+            map.setValueCache (0, 25);
+            map.get ("key1");
+            map.get ("key2");
+            map.get ("key3");
+            map.get ("key1");
+            assertEquals (0, map.getValueCacheHits());
+            map.get ("key3");
+            assertEquals (1, map.getValueCacheHits());
+
+            map.clear();
+            assertNull (map.get ("key3"));
+
+            map.setValueCache (0, 0);
+            assertEquals (0, map.getValueCacheHits());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that CHECKSUMS and verify() detect damaged values.
+     *
+     * @throws Exception on error
+     */
+    @Test public void checksums()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.FORCE_OVERWRITE | FileHashMap.CHECKSUMS,
+                 ValueCodecs.forStrings());
+        try
+        {
+            // Each value takes an 8-byte header plus 10 bytes.
+
+            for (int i = 0; i < 10; i++)
+                map.put ("key" + i, "0123456789");
+
+            assertTrue (map.verify().isEmpty());
+            map.close();
+
+            RandomAccessFile data =
+                new RandomAccessFile (FILE_PREFIX +
+                                      FileHashMap.DATA_FILE_SUFFIX,
+                                      "rw");
+            try
+            {
+                data.seek ((3 * 18) + 8 + 5);
+                data.write ('X');
+                data.setLength ((9 * 18) + 10);
+            }
+
+            finally
+            {
+                data.close();
+            }
+
+            map = new FileHashMap<String,String>
+                      (FILE_PREFIX,
+                       FileHashMap.CHECKSUMS,
+                       ValueCodecs.forStrings());
+            assertEquals (Arrays.asList ("key3", "key9"), map.verify());
+            assertEquals ("0123456789", map.get ("key4"));
+
+            try
+            {
+                map.get ("key3");
+                fail ("Damaged value was not detected.");
+            }
+
+            catch (IllegalStateException ex)
+            {
+            }
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test the asynchronous methods.
+     *
+     * @throws Exception on error
+     */
+    @Test public void asyncAccess()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE |
+                 FileHashMap.CONCURRENT,
+                 ValueCodecs.forStrings());
+        try
+        {
+            List<Future<String>> puts = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++)
+                puts.add (map.putAsync ("key" + i, "value" + i));
+
+            for (Future<String> put : puts)
+                assertNull (put.get());
+
+            assertEquals ("value0", map.putAsync ("key0", "new").get());
+
+            List<Future<String>> gets = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++)
+                gets.add (map.getAsync ("key" + i));
+
+            assertEquals ("new", gets.get (0).get());
+            for (int i = 1; i < 200; i++)
+                assertEquals ("value" + i, gets.get (i).get());
+
+            assertNull (map.getAsync ("missing").get());
+
+            Map<String,String> all =
+                map.getAllAsync (Arrays.asList ("key1", "key7", "missing"))
+                   .get();
+            assertEquals (2, all.size());
+            assertEquals ("value7", all.get ("key7"));
+
+            // A caller-supplied executor.
+
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try
+            {
+                map.setAsyncExecutor (executor);
+                assertEquals ("value9", map.getAsync ("key9").get());
+            }
+
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        finally
+        {
+            map.delete();
+        }
+
+        map = new FileHashMap<String,String>
+                  (FILE_PREFIX,
+                   FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE);
+        try
+        {
+            map.getAsync ("key");
+            fail ("Asynchronous access to a non-CONCURRENT map succeeded.");
+        }
+
+        catch (IllegalStateException ex)
+        {
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test sharing a map read-only, with both kinds of index.
+     *
+     * @throws Exception on error
+     */
+    @Test public void readOnly()
+        throws Exception
+    {
+        int[] indexFlags = {0, FileHashMap.MAPPED_INDEX};
+
+        for (int indexFlag : indexFlags)
+        {
+            FileHashMap<String,String> map =
+                new FileHashMap<String,String>
+                    (FILE_PREFIX,
+                     FileHashMap.FORCE_OVERWRITE | indexFlag,
+                     ValueCodecs.forStrings());
+            for (int i = 0; i < 100; i++)
+                map.put ("key" + i, "value" + i);
+            map.close();
+
+            FileHashMap<String,String> reader1 = null;
+            FileHashMap<String,String> reader2 = null;
+            try
+            {
+                reader1 = new FileHashMap<String,String>
+                              (FILE_PREFIX,
+                               FileHashMap.READ_ONLY,
+                               ValueCodecs.forStrings());
+                reader2 = new FileHashMap<String,String>
+                              (FILE_PREFIX,
+                               FileHashMap.READ_ONLY |
+                               FileHashMap.CONCURRENT,
+                               ValueCodecs.forStrings());
+
+                assertEquals (100, reader1.size());
+                assertEquals ("value42", reader1.get ("key42"));
+                assertEquals ("value99", reader2.get ("key99"));
+                assertEquals (100, new ArrayList<String>
+                                       (reader2.values()).size());
+
+                try
+                {
+                    reader1.put ("key0", "new");
+                    fail ("Modified a read-only map.");
+                }
+
+                catch (UnsupportedOperationException ex)
+                {
+                }
+
+                try
+                {
+                    new FileHashMap<String,String>
+                        (FILE_PREFIX, 0, ValueCodecs.forStrings());
+                    fail ("Opened a map for writing while it was shared.");
+                }
+
+                catch (IOException ex)
+                {
+                }
+            }
+
+            finally
+            {
+                if (reader1 != null)
+                    reader1.close();
+                if (reader2 != null)
+                    reader2.close();
+            }
+
+            // Once the readers are gone, it can be written again.
+
+            map = new FileHashMap<String,String>
+                      (FILE_PREFIX, indexFlag, ValueCodecs.forStrings());
+            try
+            {
+                map.put ("key0", "new");
+                assertEquals ("new", map.get ("key0"));
+            }
+
+            finally
+            {
+                map.delete();
+            }
+
+            assertFalse (new File (FILE_PREFIX +
+                                   FileHashMap.LOCK_FILE_SUFFIX).exists());
+        }
+
+        try
+        {
+            new FileHashMap<String,String> (FILE_PREFIX,
+                                            FileHashMap.READ_ONLY);
+            fail ("Opened a nonexistent map read-only.");
+        }
+
+        catch (FileNotFoundException ex)
+        {
+        }
+
+        assertFalse (new File (FILE_PREFIX +
+                               FileHashMap.LOCK_FILE_SUFFIX).exists());
+    }
+
+    @Test public void stats()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String> (FILE_PREFIX,
+                                            FileHashMap.FORCE_OVERWRITE |
+                                            FileHashMap.RECLAIM_FILE_GAPS,
+                                            ValueCodecs.forStrings());
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put ("key" + i, "value" + i);
+            for (int i = 0; i < 10; i++)
+                assertEquals ("value" + i, map.get ("key" + i));
+            map.remove ("key50");
+            map.save();
+
+            FileHashMapStats stats = map.getStats();
+            assertEquals (99, stats.getSize());
+            assertEquals (100, stats.getWrites());
+            assertEquals (100, stats.getEncodes());
+            // remove() reads the old value, to return it.
+
+            assertEquals (11, stats.getReads());
+            assertEquals (11, stats.getDecodes());
+            assertEquals (("value0".length() * 10) + "value50".length(),
+                          stats.getBytesRead());
+            assertEquals (stats.getFileSize(), stats.getBytesWritten());
+            assertEquals (1, stats.getGapCount());
+            assertEquals ("value50".length(), stats.getGapBytes());
+            assertEquals (stats.getFileSize() - stats.getGapBytes(),
+                          stats.getLiveBytes());
+            assertEquals (map.getFragmentation(), stats.getFragmentation(),
+                          1e-9);
+            assertTrue (stats.getIndexSaves() >= 1);
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName  name   = map.registerMBean();
+            assertEquals (name, map.registerMBean());
+            assertEquals (99, server.getAttribute (name, "Size"));
+            assertEquals (1, server.getAttribute (name, "GapCount"));
+
+            map.close();
+            assertFalse (server.isRegistered (name));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void expiration()
+        throws Exception
+    {
+        FileHashMap<String,String> map =
+            new FileHashMap<String,String> (FILE_PREFIX,
+                                            FileHashMap.FORCE_OVERWRITE |
+                                            FileHashMap.DURABLE,
+                                            ValueCodecs.forStrings());
+        FileHashMap<String,String> recovered = null;
+        try
+        {
+            map.put ("a", "1", 50);
+            map.put ("b", "2");
+            map.put ("d", "4", 60000);
+            map.setDefaultTimeToLive (50);
+            map.putAll (Collections.singletonMap ("c", "3"));
+            map.setDefaultTimeToLive (0);
+
+            assertEquals ("1", map.get ("a"));
+            assertTrue (map.containsKey ("c"));
+
+            Thread.sleep (100);
+
+            assertNull (map.get ("a"));
+            assertFalse (map.containsKey ("a"));
+            assertNull (map.get ("c"));
+            assertEquals ("2", map.get ("b"));
+            assertEquals ("4", map.get ("d"));
+            assertEquals (4, map.size());
+
+            // Expiration times are saved with the index...
+
+            map.close();
+            map = new FileHashMap<String,String> (FILE_PREFIX,
+                                                  FileHashMap.DURABLE,
+                                                  ValueCodecs.forStrings());
+            assertNull (map.get ("a"));
+            assertEquals ("4", map.get ("d"));
+
+            assertEquals (2, map.removeExpired());
+            assertEquals (2, map.size());
+            assertEquals (0, map.removeExpired());
+
+            // Storing an expired key again revives it.
+
+            assertNull (map.put ("a", "5"));
+            assertEquals ("5", map.get ("a"));
+
+            try
+            {
+                map.put ("e", "6", -1);
+                fail ("Accepted a negative time to live.");
+            }
+
+            catch (IllegalArgumentException ex)
+            {
+            }
+
+            // ...and recorded in the change log.
+
+            map.put ("f", "7", 50);
+            map.put ("g", "8", 60000);
+            map.sync();
+
+            recovered = new FileHashMap<String,String>
+                            (FILE_PREFIX,
+                             FileHashMap.DURABLE,
+                             ValueCodecs.forStrings());
+            Thread.sleep (100);
+            assertNull (recovered.get ("f"));
+            assertEquals ("8", recovered.get ("g"));
+        }
+
+        finally
+        {
+            if (recovered != null)
+                recovered.close();
+            map.delete();
+        }
+
+        map = new FileHashMap<String,String> (FILE_PREFIX,
+                                              FileHashMap.FORCE_OVERWRITE |
+                                              FileHashMap.CONCURRENT,
+                                              ValueCodecs.forStrings());
+        try
+        {
+            for (int i = 0; i < 10; i++)
+                map.put ("key" + i, "value" + i, 20);
+
+            map.startExpirySweeper (10);
+            for (int i = 0; (i < 200) && (map.size() > 0); i++)
+                Thread.sleep (10);
+            map.stopExpirySweeper();
+
+            assertEquals (0, map.size());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+
+        map = new FileHashMap<String,String> (FILE_PREFIX,
+                                              FileHashMap.FORCE_OVERWRITE |
+                                              FileHashMap.MAPPED_INDEX,
+                                              ValueCodecs.forStrings());
+        try
+        {
+            map.put ("a", "1", 50);
+            fail ("Expiration worked with a mapped index.");
+        }
+
+        catch (UnsupportedOperationException ex)
+        {
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    @Test public void builder()
+        throws Exception
+    {
+        int[] flagSets = {0, FileHashMap.CHECKSUMS | FileHashMap.MAPPED_INDEX};
+
+        for (int flags : flagSets)
+        {
+            // An existing map is replaced.
+
+            FileHashMap<String,String> map =
+                new FileHashMap<String,String> (FILE_PREFIX,
+                                                FileHashMap.FORCE_OVERWRITE |
+                                                FileHashMap.DURABLE |
+                                                flags,
+                                                ValueCodecs.forStrings());
+            map.put ("old", "value");
+            map.sync();
+            map.close();
+
+            FileHashMap.Builder<String,String> builder =
+                new FileHashMap.Builder<String,String>
+                    (FILE_PREFIX,
+                     flags,
+                     ValueCodecs.<String>javaSerialization(),
+                     ValueCodecs.forStrings());
+
+            Map<String,String> expected = new HashMap<String,String>();
+            for (int i = 0; i < 1000; i++)
+                expected.put ("key" + i, "value" + i);
+
+            builder.putAll (expected.entrySet().iterator());
+            assertEquals (1000, builder.size());
+
+            try
+            {
+                builder.put ("key0", "again");
+                fail ("Accepted a duplicate key.");
+            }
+
+            catch (IllegalArgumentException ex)
+            {
+            }
+
+            builder.finish();
+
+            try
+            {
+                builder.put ("key1000", "value1000");
+                fail ("Used a finished builder.");
+            }
+
+            catch (IllegalStateException ex)
+            {
+            }
+
+            map = new FileHashMap<String,String> (FILE_PREFIX,
+                                                  FileHashMap.READ_ONLY |
+                                                  flags,
+                                                  ValueCodecs.forStrings());
+            try
+            {
+                assertEquals (expected, new HashMap<String,String> (map));
+                assertNull (map.get ("old"));
+                assertEquals (0.0, map.getFragmentation(), 0.0);
+
+                // It can't be replaced while it's open.
+
+                builder = new FileHashMap.Builder<String,String>
+                              (FILE_PREFIX,
+                               flags,
+                               ValueCodecs.<String>javaSerialization(),
+                               ValueCodecs.forStrings());
+                builder.put ("new", "value");
+
+                try
+                {
+                    builder.finish();
+                    fail ("Replaced an open map.");
+                }
+
+                catch (IOException ex)
+                {
+                }
+            }
+
+            finally
+            {
+                map.close();
+            }
+
+            map = new FileHashMap<String,String> (FILE_PREFIX,
+                                                  flags,
+                                                  ValueCodecs.forStrings());
+            try
+            {
+                assertEquals (1000, map.size());
+                map.put ("key1000", "value1000");
+                assertEquals ("value1000", map.get ("key1000"));
+                assertEquals ("value999", map.get ("key999"));
+            }
+
+            finally
+            {
+                map.delete();
+            }
+
+            assertFalse (new File (FILE_PREFIX + FileHashMap.DATA_FILE_SUFFIX +
+                                   ".build").exists());
+        }
+    }
+
+    /**
+     * Test a CONCURRENT map shared by several reading and writing threads.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentReadersAndWriters()
+        throws Exception
+    {
+        final FileHashMap<Integer,String> map =
+            new FileHashMap<Integer,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT |
+                 FileHashMap.FORCE_OVERWRITE |
+                 FileHashMap.CONCURRENT |
+                 FileHashMap.RECLAIM_FILE_GAPS);
+        final int    THREADS = 8;
+        final int    KEYS    = 200;
+        final List<Throwable> errors =
+            Collections.synchronizedList (new ArrayList<Throwable>());
+
+        try
+        {
+            for (int i = 0; i < KEYS; i++)
+                map.put (i, "value" + i);
+
+            Thread[] threads = new Thread[THREADS];
+            for (int t = 0; t < THREADS; t++)
+            {
+                final int id = t;
+                threads[t] = new Thread()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            for (int i = 0; i < 1000; i++)
+                            {
+                                int key = (i * 31 + id) % KEYS;
+                                if ((id % 2) == 0)
+                                    map.put (key, "value" + key);
+                                else
+                                    assertEquals ("value" + key, map.get (key));
+                            }
+                        }
+
+                        catch (Throwable ex)
+                        {
+                            errors.add (ex);
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertTrue ("Errors in threads: " + errors, errors.isEmpty());
+            assertEquals (KEYS, map.size());
+            for (int i = 0; i < KEYS; i++)
+                assertEquals ("value" + i, map.get (i));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that iterating over a CONCURRENT map while another thread
+     * rewrites it, reusing the space it frees, never yields a value that
+     * belongs to another key, or one made of pieces of two.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentIteration()
+        throws Exception
+    {
+        int[] modes = {0, FileHashMap.MEMORY_MAPPED};
+
+        for (int mode : modes)
+        {
+            final FileHashMap<Integer,String> map =
+                new FileHashMap<Integer,String>
+                    (FILE_PREFIX,
+                     FileHashMap.TRANSIENT |
+                     FileHashMap.FORCE_OVERWRITE |
+                     FileHashMap.CONCURRENT |
+                     FileHashMap.RECLAIM_FILE_GAPS |
+                     mode);
+            final int          KEYS = 500;
+            final AtomicBoolean done = new AtomicBoolean (false);
+
+            try
+            {
+                for (int i = 0; i < KEYS; i++)
+                    map.put (i, value (i, 0));
+
+                Thread writer = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int n = 1; ! done.get(); n++)
+                        {
+                            int key = (n * 31) % KEYS;
+                            if ((n % 5) == 0)
+                                map.remove (key);
+                            else
+                                map.put (key, value (key, n));
+                        }
+                    }
+                };
+                writer.start();
+
+                int  bad = 0;
+                long deadline = System.currentTimeMillis() + 750;
+                try
+                {
+                    while (System.currentTimeMillis() < deadline)
+                    {
+                        for (Map.Entry<Integer,String> e : map.entrySet())
+                        {
+                            String v = e.getValue();
+                            if ((v != null) &&
+                                (! v.matches ("k" + e.getKey() + ":\\d+:x*")))
+                                bad++;
+                        }
+
+                        for (String v : map.values())
+                        {
+                            if ((v != null) && (! v.matches ("k\\d+:\\d+:x*")))
+                                bad++;
+                        }
+                    }
+                }
+
+                finally
+                {
+                    done.set (true);
+                    writer.join();
+                }
+
+                assertEquals ("Bad values with mode " + mode, 0, bad);
+            }
+
+            finally
+            {
+                map.delete();
+            }
+        }
+    }
+
     /**
      * Test concurrent modification.
      * @throws IOException              error creating/writing/reading map
@@ -175,6 +1571,18 @@ public class FileHashMapTest extends MapTestBase
                                Private Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Make a value whose length varies, so that rewriting keys leaves
+     * gaps of different sizes.
+     */
+    private static String value (int key, int n)
+    {
+        StringBuilder buf = new StringBuilder ("k" + key + ":" + n + ":");
+        for (int i = 0; i < (n % 20); i++)
+            buf.append ('x');
+        return buf.toString();
+    }
+
     private String getFilePrefix()
     {
         StringBuilder filePrefixBuf = new StringBuilder();
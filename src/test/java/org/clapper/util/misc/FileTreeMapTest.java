@@ -0,0 +1,278 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ *
+ */
+public class FileTreeMapTest
+{
+    /*----------------------------------------------------------------------*\
+                                 Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String FILE_PREFIX = "junit_ftm";
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compare a map against a TreeMap through a random series of puts and
+     * removes. The page cache is kept small, so that modified pages are
+     * written and read back, and some values are big enough to need
+     * overflow pages.
+     *
+     * @throws Exception on error
+     */
+    @Test public void putGetRemove()
+        throws Exception
+    {
+        FileTreeMap<Integer,String> map =
+            new FileTreeMap<Integer,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forIntegers(),
+                 ValueCodecs.forStrings());
+        TreeMap<Integer,String> expected = new TreeMap<Integer,String>();
+        Random                  random   = new Random (42);
+
+        try
+        {
+            map.setPageCacheSize (16);
+
+            for (int i = 0; i < 30000; i++)
+            {
+                int key = random.nextInt (10000);
+
+                if (random.nextInt (4) == 0)
+                    assertEquals (expected.remove (key), map.remove (key));
+
+                else
+                {
+                    String value = value (key, i);
+                    assertEquals (expected.put (key, value),
+                                  map.put (key, value));
+                }
+            }
+
+            assertEquals (expected.size(), map.size());
+            assertEquals (expected, map);
+            assertEquals (new ArrayList<Integer> (expected.keySet()),
+                          new ArrayList<Integer> (map.keySet()));
+
+            map.clear();
+            assertTrue (map.isEmpty());
+            assertNull (map.firstEntry());
+            map.put (1, "one");
+            assertEquals ("one", map.get (1));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test the navigation methods and range views against a TreeMap.
+     *
+     * @throws Exception on error
+     */
+    @Test public void navigation()
+        throws Exception
+    {
+        FileTreeMap<Integer,String> map =
+            new FileTreeMap<Integer,String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forIntegers(),
+                 ValueCodecs.forStrings());
+        TreeMap<Integer,String> expected = new TreeMap<Integer,String>();
+
+        try
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                expected.put (i * 2, "v" + i);
+                map.put (i * 2, "v" + i);
+            }
+
+            for (int key = -3; key < 10003; key += 7)
+            {
+                assertEquals (expected.lowerKey (key), map.lowerKey (key));
+                assertEquals (expected.floorKey (key), map.floorKey (key));
+                assertEquals (expected.ceilingKey (key),
+                              map.ceilingKey (key));
+                assertEquals (expected.higherKey (key), map.higherKey (key));
+            }
+
+            assertEquals (expected.firstEntry(), map.firstEntry());
+            assertEquals (expected.lastEntry(), map.lastEntry());
+
+            checkView (expected.subMap (1001, true, 2001, false),
+                       map.subMap (1001, true, 2001, false));
+            checkView (expected.headMap (500, true),
+                       map.headMap (500, true));
+            checkView (expected.tailMap (9000, false),
+                       map.tailMap (9000, false));
+            checkView (expected.descendingMap(), map.descendingMap());
+            checkView (expected.descendingMap().subMap (3000, true,
+                                                        2000, false),
+                       map.descendingMap().subMap (3000, true, 2000, false));
+            checkView (expected.subMap (100, true, 900, false)
+                               .headMap (300, false),
+                       map.subMap (100, true, 900, false)
+                          .headMap (300, false));
+
+            // Removing through a view's iterator.
+
+            Iterator<Integer> it = map.subMap (100, 200).keySet().iterator();
+            while (it.hasNext())
+            {
+                if (it.next() % 4 == 0)
+                    it.remove();
+            }
+
+            expected.subMap (100, 200).keySet().clear();
+            for (int key = 102; key < 200; key += 4)
+                expected.put (key, map.get (key));
+            checkView (expected, map);
+
+            assertEquals (expected.pollFirstEntry(), map.pollFirstEntry());
+            assertEquals (expected.pollLastEntry(), map.pollLastEntry());
+            assertEquals (expected.size(), map.size());
+
+            try
+            {
+                map.headMap (100).put (200, "x");
+                fail ("Put a key outside a view's range.");
+            }
+
+            catch (IllegalArgumentException ex)
+            {
+            }
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that a map can be saved and reopened, and that freed overflow
+     * pages are reused.
+     *
+     * @throws Exception on error
+     */
+    @Test public void saveAndReload()
+        throws Exception
+    {
+        FileTreeMap<String,String> map =
+            new FileTreeMap<String,String> (FILE_PREFIX, 0,
+                                            ValueCodecs.forStrings(),
+                                            ValueCodecs.forStrings());
+        try
+        {
+            map.clear();
+            for (int i = 0; i < 2000; i++)
+                map.put (key (i), value (i, i));
+            map.close();
+
+            map = new FileTreeMap<String,String> (FILE_PREFIX,
+                                                  FileHashMap.NO_CREATE,
+                                                  ValueCodecs.forStrings(),
+                                                  ValueCodecs.forStrings());
+            assertEquals (2000, map.size());
+            for (int i = 0; i < 2000; i++)
+                assertEquals (value (i, i), map.get (key (i)));
+
+            assertEquals (key (0), map.firstKey());
+            assertEquals (key (1999), map.lastKey());
+
+            // Replacing the big values frees their overflow pages, and
+            // storing them again reuses the pages.
+
+            long length = new java.io.File
+                              (FILE_PREFIX +
+                               FileTreeMap.TREE_FILE_SUFFIX).length();
+            for (int i = 0; i < 2000; i += 100)
+                map.put (key (i), "small");
+            for (int i = 0; i < 2000; i += 100)
+                map.put (key (i), value (i, i));
+            map.save();
+
+            assertEquals (length, new java.io.File
+                                      (FILE_PREFIX +
+                                       FileTreeMap.TREE_FILE_SUFFIX)
+                                      .length());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private static String key (int i)
+    {
+        return String.format ("key%06d", i);
+    }
+
+    /**
+     * Make a value. Every hundredth one is too big to store in a leaf.
+     */
+    private static String value (int key, int i)
+    {
+        if (key % 100 != 0)
+            return "value" + i;
+
+        StringBuilder buf = new StringBuilder();
+        while (buf.length() < 20000)
+            buf.append (i).append (' ');
+        return buf.toString();
+    }
+
+    private static void checkView (NavigableMap<Integer,String> expected,
+                                   NavigableMap<Integer,String> actual)
+    {
+        assertEquals (expected.size(), actual.size());
+        assertEquals (expected.isEmpty(), actual.isEmpty());
+
+        List<Map.Entry<Integer,String>> entries =
+            new ArrayList<Map.Entry<Integer,String>> (actual.entrySet());
+        assertEquals (new ArrayList<Map.Entry<Integer,String>>
+                          (expected.entrySet()),
+                      entries);
+        assertEquals (new ArrayList<Integer> (expected.descendingKeySet()),
+                      new ArrayList<Integer> (actual.descendingKeySet()));
+
+        if (! expected.isEmpty())
+        {
+            assertEquals (expected.firstKey(), actual.firstKey());
+            assertEquals (expected.lastKey(), actual.lastKey());
+
+            Integer mid = entries.get (entries.size() / 2).getKey();
+            assertEquals (expected.lowerKey (mid), actual.lowerKey (mid));
+            assertEquals (expected.higherKey (mid), actual.higherKey (mid));
+            assertEquals (expected.floorKey (mid + 1),
+                          actual.floorKey (mid + 1));
+            assertEquals (expected.ceilingKey (mid - 1),
+                          actual.ceilingKey (mid - 1));
+        }
+    }
+}
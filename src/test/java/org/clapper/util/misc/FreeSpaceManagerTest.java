@@ -0,0 +1,66 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ *
+ */
+public class FreeSpaceManagerTest
+{
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void bestFit()
+    {
+        FreeSpaceManager free = new FreeSpaceManager();
+
+        free.free (0, 100);
+        free.free (200, 10);
+        free.free (300, 50);
+
+        assertEquals (200, free.allocate (10));
+        assertEquals (300, free.allocate (20));
+        assertEquals (320, free.allocate (30));
+        assertEquals (0, free.allocate (60));
+        assertEquals (-1, free.allocate (41));
+        assertEquals (60, free.allocate (40));
+        assertEquals (0, free.getGapCount());
+        assertEquals (0, free.getFreeBytes());
+    }
+
+    @Test public void coalesce()
+    {
+        FreeSpaceManager free = new FreeSpaceManager();
+
+        free.free (10, 10);
+        free.free (30, 10);
+        assertEquals (2, free.getGapCount());
+
+        free.free (20, 10);
+        assertEquals (1, free.getGapCount());
+        assertEquals (30, free.getFreeBytes());
+
+        free.free (0, 10);
+        free.free (40, 5);
+        assertEquals (1, free.getGapCount());
+        assertEquals (0, free.allocate (45));
+    }
+
+    @Test public void toAndFromArray()
+    {
+        FreeSpaceManager free = new FreeSpaceManager();
+
+        free.free (100, 7);
+        free.free (5, 3);
+
+        long[] gaps = free.toArray();
+        assertArrayEquals (new long[] {5, 3, 100, 7}, gaps);
+
+        FreeSpaceManager copy = FreeSpaceManager.fromArray (gaps);
+        assertEquals (10, copy.getFreeBytes());
+        assertEquals (100, copy.allocate (4));
+        assertEquals (5, copy.allocate (3));
+    }
+}
@@ -1,5 +1,8 @@
 package org.clapper.util.misc;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import org.clapper.util.logging.Logger;
 
@@ -188,6 +191,183 @@ public class LRUMapTest extends MapTestBase
         
     }
 
+    /**
+     * Test weight-based capacity.
+     */
+    @Test public void weigher()
+    {
+        Weigher<String,String> byLength = new Weigher<String,String>()
+        {
+            public int weigh(String key, String value)
+            {
+                return value.length();
+            }
+        };
+        LRUMap<String,String> map =
+            new LRUMap<String,String>(Integer.MAX_VALUE, 10, byLength);
+
+        map.put("a", "1234");
+        map.put("b", "1234");
+        assertEquals(8, map.getWeight());
+        map.get("a");
+
+        // Needs 2 more units; b is the least recently used.
+
+        TestListener listener = new TestListener("b", "1234");
+        map.addRemovalListener(listener, true);
+        map.put("c", "1234");
+        assertTrue("Listener not invoked as expected", listener.wasCalled());
+        assertFalse(map.containsKey("b"));
+        assertEquals(8, map.getWeight());
+        map.removeRemovalListener(listener);
+
+        // Replacing a value reweighs it.
+
+        map.put("a", "12");
+        assertEquals(6, map.getWeight());
+        assertEquals(2, map.size());
+
+        // Too heavy to keep at all, but the others stay.
+
+        map.put("d", "12345678901");
+        assertFalse(map.containsKey("d"));
+        assertEquals(6, map.getWeight());
+        assertEquals(2, map.size());
+
+        map.put("a", "1234");
+        map.put("b", "1234");
+        map.remove("a");
+        assertEquals(4, map.getWeight());
+        assertEquals(10, map.setMaximumWeight(3));
+        assertTrue(map.isEmpty());
+        assertEquals(3, map.getMaximumWeight());
+    }
+
+    /**
+     * Test that an entry heavier than the maximum weight is discarded
+     * without evicting the others.
+     */
+    @Test public void oversizedEntry()
+    {
+        Weigher<String,Integer> byValue = new Weigher<String,Integer>()
+        {
+            public int weigh(String key, Integer value)
+            {
+                return value;
+            }
+        };
+        LRUMap<String,Integer> map =
+            new LRUMap<String,Integer>(Integer.MAX_VALUE, 100, byValue);
+
+        for (int i = 0; i < 10; i++)
+            map.put("key" + i, 5);
+
+        final List<String> removed = new ArrayList<String>();
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                Map.Entry<?,?> entry = (Map.Entry<?,?>) event.getSource();
+                removed.add(entry.getKey() + "=" + entry.getValue());
+            }
+        },
+        true);
+
+        map.put("huge", 500);
+        assertFalse(map.containsKey("huge"));
+        assertEquals(10, map.size());
+        assertEquals(50, map.getWeight());
+        assertEquals(Arrays.asList("huge=500"), removed);
+        for (int i = 0; i < 10; i++)
+            assertTrue(map.containsKey("key" + i));
+
+        // Replacing a value with one that's too heavy drops the mapping,
+        // and the listeners hear about the old value, too.
+
+        removed.clear();
+        assertEquals(Integer.valueOf(5), map.put("key3", 500));
+        assertFalse(map.containsKey("key3"));
+        assertEquals(Arrays.asList("key3=5", "key3=500"), removed);
+        assertEquals(9, map.size());
+        assertEquals(45, map.getWeight());
+    }
+
+    /**
+     * Test that the TWO_QUEUE and TINY_LFU eviction policies keep
+     * frequently used entries through a scan that would flush them out of
+     * an LRU map.
+     */
+    @Test public void evictionPolicies()
+    {
+        assertEquals(0, scanResistance(LRUMap.EvictionPolicy.LRU));
+        assertEquals(20, scanResistance(LRUMap.EvictionPolicy.TWO_QUEUE));
+        assertEquals(20, scanResistance(LRUMap.EvictionPolicy.TINY_LFU));
+
+        // Changing the policy keeps the entries.
+
+        LRUMap<Integer,String> map = makeAndFillIntegerKeyedMap(10);
+        assertEquals(LRUMap.EvictionPolicy.LRU,
+                     map.setEvictionPolicy(LRUMap.EvictionPolicy.TINY_LFU));
+        assertEquals(LRUMap.EvictionPolicy.TINY_LFU, map.getEvictionPolicy());
+        assertEquals(10, map.size());
+        assertEquals(10, map.keySet().size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(String.valueOf(i), map.get(i));
+
+        LRUMap<Integer,String> copy = new LRUMap<Integer,String>(map);
+        assertEquals(LRUMap.EvictionPolicy.TINY_LFU, copy.getEvictionPolicy());
+        assertEquals(map, copy);
+    }
+
+    /**
+     * Test expire-after-write and expire-after-access.
+     */
+    @Test public void expiration()
+        throws InterruptedException
+    {
+        LRUMap<String,String> map = new LRUMap<String,String>(10);
+        final List<Object> removed = new ArrayList<Object>();
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                removed.add(((Map.Entry) event.getSource()).getKey());
+            }
+        }, true);
+
+        assertEquals(0, map.setExpireAfterWrite(100));
+        map.put("a", "a value");
+        map.put("b", "b value");
+        assertEquals("a value", map.get("a"));
+        Thread.sleep(150);
+        assertFalse("Expired key still present", map.containsKey("a"));
+        assertNull("Expired value returned", map.get("a"));
+        assertTrue("Listener not invoked for a", removed.contains("a"));
+
+        // b is discarded when the timer wheel gets to it, without being
+        // looked up.
+
+        Thread.sleep(1100);
+        map.put("c", "c value");
+        assertTrue("Listener not invoked for b", removed.contains("b"));
+        assertEquals(1, map.size());
+
+        // Reading an entry keeps it alive.
+
+        assertEquals(100, map.setExpireAfterWrite(0));
+        map.setExpireAfterAccess(500);
+        for (int i = 0; i < 8; i++)
+        {
+            Thread.sleep(100);
+            assertEquals("c value", map.get("c"));
+        }
+
+        Thread.sleep(700);
+        assertNull("Expired value returned", map.get("c"));
+        assertTrue(map.isEmpty());
+        assertEquals(3, removed.size());
+    }
+
     /*----------------------------------------------------------------------*\
                              Protected Methods
     \*----------------------------------------------------------------------*/
@@ -201,6 +381,60 @@ public class LRUMapTest extends MapTestBase
                               Private Methods
     \*----------------------------------------------------------------------*/
 
+    /**
+     * Use 20 keys over and over, between short runs of keys that are used
+     * only once, in a map that holds 100 entries, as a cache would. Then
+     * scan 200 more keys that are used only once.
+     *
+     * @return the number of the 20 keys left in the map after a scan
+     */
+    private int scanResistance(LRUMap.EvictionPolicy policy)
+    {
+        LRUMap<Integer,String> map = new LRUMap<Integer,String>(100);
+        map.setEvictionPolicy(policy);
+
+        final int[] removed = new int[1];
+        map.addRemovalListener(new ObjectRemovalListener()
+        {
+            public void objectRemoved(ObjectRemovalEvent event)
+            {
+                removed[0]++;
+            }
+        }, true);
+
+        int scanKey = 1000;
+        int puts = 0;
+        for (int round = 0; round < 10; round++)
+        {
+            for (int i = 0; i < 20; i++)
+            {
+                if (map.get(i) == null)
+                {
+                    map.put(i, String.valueOf(i));
+                    puts++;
+                }
+            }
+
+            for (int i = 0; i < 40; i++, puts++)
+                map.put(scanKey++, "once");
+        }
+
+        for (int i = 0; i < 200; i++, puts++)
+            map.put(scanKey++, "scan");
+
+        assertEquals(100, map.size());
+        assertEquals("Wrong number of removal events", puts - 100, removed[0]);
+
+        int kept = 0;
+        for (int i = 0; i < 20; i++)
+        {
+            if (map.containsKey(i))
+                kept++;
+        }
+
+        return kept;
+    }
+
     private LRUMap<Integer,String> makeAndFillIntegerKeyedMap(int capacity)
     {
         LRUMap<Integer,String> map = new LRUMap<Integer,String>(capacity);
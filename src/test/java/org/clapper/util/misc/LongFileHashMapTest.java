@@ -0,0 +1,156 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ */
+public class LongFileHashMapTest
+{
+    /*----------------------------------------------------------------------*\
+                                 Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String FILE_PREFIX = "junit_lfhm";
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Compare a map against a HashMap through a random series of puts and
+     * removes, which exercises table growth and deletion.
+     *
+     * @throws Exception on error
+     */
+    @Test public void putGetRemove()
+        throws Exception
+    {
+        LongFileHashMap<String> map =
+            new LongFileHashMap<String>
+                (FILE_PREFIX,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings());
+        Map<Long,String> expected = new HashMap<Long,String>();
+        Random           random   = new Random (42);
+
+        try
+        {
+            for (int i = 0; i < 20000; i++)
+            {
+                long key = random.nextInt (2000) * 1024L;
+
+                if (random.nextInt (3) == 0)
+                {
+                    assertEquals (expected.remove (key) != null,
+                                  map.remove (key));
+                }
+
+                else
+                {
+                    String value = "v" + i;
+                    assertEquals (expected.put (key, value) != null,
+                                  map.put (key, value));
+                }
+            }
+
+            assertEquals (expected.size(), map.size());
+            for (long key = 0; key < 2000 * 1024L; key += 1024)
+            {
+                assertEquals (expected.get (key), map.get (key));
+                assertEquals (expected.containsKey (key),
+                              map.containsKey (key));
+            }
+
+            long[] keys = map.keys();
+            Arrays.sort (keys);
+            assertEquals (expected.size(), keys.length);
+            for (long key : keys)
+                assertTrue (expected.containsKey (key));
+
+            map.clear();
+            assertTrue (map.isEmpty());
+            assertNull (map.get (1024));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+
+        assertFalse (new File (FILE_PREFIX +
+                               FileHashMap.DATA_FILE_SUFFIX).exists());
+    }
+
+    /**
+     * Test saving and reopening a map, with gap reclamation.
+     *
+     * @throws Exception on error
+     */
+    @Test public void saveAndReload()
+        throws Exception
+    {
+        File dataFile = new File (FILE_PREFIX + FileHashMap.DATA_FILE_SUFFIX);
+        LongFileHashMap<String> map =
+            new LongFileHashMap<String>
+                (FILE_PREFIX,
+                 FileHashMap.FORCE_OVERWRITE | FileHashMap.RECLAIM_FILE_GAPS,
+                 ValueCodecs.forStrings());
+        try
+        {
+            for (long i = 0; i < 100; i++)
+                map.put (i, "0123456789");
+
+            long length = dataFile.length();
+
+            for (long i = 0; i < 100; i += 2)
+                map.remove (i);
+            map.put (-1L, "abcdefghij");
+            assertEquals (length, dataFile.length());
+            map.close();
+
+            map = new LongFileHashMap<String>
+                      (FILE_PREFIX,
+                       FileHashMap.NO_CREATE | FileHashMap.RECLAIM_FILE_GAPS,
+                       ValueCodecs.forStrings());
+            assertEquals (51, map.size());
+            assertEquals ("abcdefghij", map.get (-1L));
+            assertEquals ("0123456789", map.get (99L));
+            assertNull (map.get (98L));
+
+            for (long i = 2; i < 100; i += 2)
+                map.put (1000 + i, "ABCDEFGHIJ");
+            assertEquals (length, dataFile.length());
+            map.close();
+
+            // Without saved gaps, they're found from the index.
+
+            map = new LongFileHashMap<String>
+                      (FILE_PREFIX,
+                       FileHashMap.NO_CREATE,
+                       ValueCodecs.forStrings());
+            map.remove (1002L);
+            map.close();
+
+            map = new LongFileHashMap<String>
+                      (FILE_PREFIX,
+                       FileHashMap.RECLAIM_FILE_GAPS,
+                       ValueCodecs.forStrings());
+            map.put (2000L, "0123456789");
+            assertEquals (length, dataFile.length());
+            assertEquals ("ABCDEFGHIJ", map.get (1098L));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+}
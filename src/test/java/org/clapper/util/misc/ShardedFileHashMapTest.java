@@ -0,0 +1,217 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ */
+public class ShardedFileHashMapTest
+{
+    /*----------------------------------------------------------------------*\
+                                 Constants
+    \*----------------------------------------------------------------------*/
+
+    private static final String[] FILE_PREFIXES =
+    {
+        "junit_sfhm0", "junit_sfhm1", "junit_sfhm2", "junit_sfhm3"
+    };
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    /**
+     * Test storing, iterating, and reopening a sharded map.
+     *
+     * @throws Exception on error
+     */
+    @Test public void saveAndReload()
+        throws Exception
+    {
+        ShardedFileHashMap<String,String> map =
+            new ShardedFileHashMap<String,String>
+                (FILE_PREFIXES,
+                 FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings(),
+                 ValueCodecs.forStrings());
+        try
+        {
+            Map<String,String> expected = new HashMap<String,String>();
+            for (int i = 0; i < 1000; i++)
+                expected.put ("key" + i, "value" + i);
+
+            map.putAll (expected);
+            map.put ("extra", "value");
+            expected.put ("extra", "value");
+
+            assertEquals (1001, map.size());
+            assertEquals (expected, new HashMap<String,String> (map));
+
+            // Every shard got some of the keys.
+
+            for (String prefix : FILE_PREFIXES)
+            {
+                assertTrue (new File (prefix +
+                                      FileHashMap.DATA_FILE_SUFFIX).length()
+                            > 0);
+            }
+
+            for (int i = 7; i < 1000; i += 10)
+                assertEquals ("value" + i, map.remove ("key" + i));
+
+            assertEquals (901, map.size());
+            map.close();
+            assertFalse (map.isValid());
+
+            map = new ShardedFileHashMap<String,String>
+                      (FILE_PREFIXES,
+                       FileHashMap.NO_CREATE,
+                       ValueCodecs.forStrings(),
+                       ValueCodecs.forStrings());
+            assertEquals (901, map.size());
+            assertEquals ("value8", map.get ("key8"));
+            assertNull (map.get ("key7"));
+            assertTrue (map.containsKey ("extra"));
+
+            Set<String> values = new HashSet<String> (map.values());
+            assertEquals (901, values.size());
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+
+    /**
+     * Test that a map can't be reopened with a different set of shards.
+     *
+     * @throws Exception on error
+     */
+    @Test public void manifestMismatch()
+        throws Exception
+    {
+        ShardedFileHashMap<String,String> map =
+            new ShardedFileHashMap<String,String>
+                (FILE_PREFIXES,
+                 FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forStrings(),
+                 ValueCodecs.forStrings());
+        try
+        {
+            for (int i = 0; i < 100; i++)
+                map.put ("key" + i, "value" + i);
+
+            map.close();
+
+            String[] fewer = new String[FILE_PREFIXES.length - 1];
+            System.arraycopy (FILE_PREFIXES, 0, fewer, 0, fewer.length);
+
+            try
+            {
+                new ShardedFileHashMap<String,String>
+                    (fewer,
+                     FileHashMap.NO_CREATE,
+                     ValueCodecs.forStrings(),
+                     ValueCodecs.forStrings());
+                fail ("Opened a 4-shard map with 3 prefixes");
+            }
+
+            catch (IOException ex)
+            {
+            }
+
+            String[] swapped = FILE_PREFIXES.clone();
+            swapped[0] = FILE_PREFIXES[1];
+            swapped[1] = FILE_PREFIXES[0];
+
+            try
+            {
+                new ShardedFileHashMap<String,String>
+                    (swapped,
+                     FileHashMap.NO_CREATE,
+                     ValueCodecs.forStrings(),
+                     ValueCodecs.forStrings());
+                fail ("Opened a map with its prefixes out of order");
+            }
+
+            catch (IOException ex)
+            {
+            }
+
+            map = new ShardedFileHashMap<String,String>
+                      (FILE_PREFIXES,
+                       FileHashMap.NO_CREATE,
+                       ValueCodecs.forStrings(),
+                       ValueCodecs.forStrings());
+            assertEquals (100, map.size());
+            assertEquals ("value42", map.get ("key42"));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+
+        for (String prefix : FILE_PREFIXES)
+        {
+            assertFalse (new File (prefix +
+                                   ShardedFileHashMap.MANIFEST_FILE_SUFFIX)
+                         .exists());
+        }
+    }
+
+    /**
+     * Test writers in several threads at once.
+     *
+     * @throws Exception on error
+     */
+    @Test public void concurrentWriters()
+        throws Exception
+    {
+        final ShardedFileHashMap<Integer,String> map =
+            new ShardedFileHashMap<Integer,String>
+                (FILE_PREFIXES,
+                 FileHashMap.TRANSIENT | FileHashMap.FORCE_OVERWRITE,
+                 ValueCodecs.forIntegers(),
+                 ValueCodecs.forStrings());
+        try
+        {
+            Thread[] threads = new Thread[4];
+
+            for (int t = 0; t < threads.length; t++)
+            {
+                final int base = t * 1000;
+                threads[t] = new Thread()
+                {
+                    public void run()
+                    {
+                        for (int i = 0; i < 1000; i++)
+                            map.put (base + i, "v" + (base + i));
+                    }
+                };
+                threads[t].start();
+            }
+
+            for (Thread thread : threads)
+                thread.join();
+
+            assertEquals (4000, map.size());
+            for (int i = 0; i < 4000; i++)
+                assertEquals ("v" + i, map.get (i));
+        }
+
+        finally
+        {
+            map.delete();
+        }
+    }
+}
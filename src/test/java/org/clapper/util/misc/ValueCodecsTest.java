@@ -0,0 +1,123 @@
+package org.clapper.util.misc;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Arrays;
+import java.util.Date;
+
+public class ValueCodecsTest
+{
+    /*----------------------------------------------------------------------*\
+                               Inner Classes
+    \*----------------------------------------------------------------------*/
+
+    public static class Point implements Externalizable
+    {
+        private static final long serialVersionUID = 1L;
+
+        int x;
+        int y;
+
+        public Point()
+        {
+        }
+
+        Point (int x, int y)
+        {
+            this.x = x;
+            this.y = y;
+        }
+
+        public void writeExternal (ObjectOutput out) throws IOException
+        {
+            out.writeInt (x);
+            out.writeInt (y);
+        }
+
+        public void readExternal (ObjectInput in) throws IOException
+        {
+            x = in.readInt();
+            y = in.readInt();
+        }
+    }
+
+    /*----------------------------------------------------------------------*\
+                                Constructor
+    \*----------------------------------------------------------------------*/
+
+    public ValueCodecsTest()
+    {
+    }
+
+    /*----------------------------------------------------------------------*\
+                               Public Methods
+    \*----------------------------------------------------------------------*/
+
+    @Test public void primitives() throws Exception
+    {
+        assertEquals (Integer.valueOf (-42),
+                      roundTrip (ValueCodecs.forIntegers(), -42));
+        assertEquals (Long.valueOf (Long.MIN_VALUE),
+                      roundTrip (ValueCodecs.forLongs(), Long.MIN_VALUE));
+        assertEquals (Double.valueOf (3.25),
+                      roundTrip (ValueCodecs.forDoubles(), 3.25));
+        assertEquals (Float.valueOf (-1.5f),
+                      roundTrip (ValueCodecs.forFloats(), -1.5f));
+        assertEquals (Short.valueOf ((short) -7),
+                      roundTrip (ValueCodecs.forShorts(), (short) -7));
+        assertEquals (Character.valueOf ('\u00e9'),
+                      roundTrip (ValueCodecs.forCharacters(), '\u00e9'));
+        assertEquals (Byte.valueOf ((byte) -1),
+                      roundTrip (ValueCodecs.forBytes(), (byte) -1));
+        assertEquals (Boolean.TRUE,
+                      roundTrip (ValueCodecs.forBooleans(), true));
+        assertEquals (8, ValueCodecs.forLongs().encode (1L).length);
+    }
+
+    @Test public void stringsAndBytes() throws Exception
+    {
+        assertEquals ("caf\u00e9",
+                      roundTrip (ValueCodecs.forStrings(), "caf\u00e9"));
+        assertEquals ("", roundTrip (ValueCodecs.forStrings(), ""));
+
+        byte[] bytes = new byte[] {1, 2, 3};
+        assertTrue (Arrays.equals (bytes,
+                                   roundTrip (ValueCodecs.forByteArrays(),
+                                              bytes)));
+    }
+
+    @Test public void externalizable() throws Exception
+    {
+        ValueCodec<Point> codec = ValueCodecs.forExternalizable (Point.class);
+        Point p = roundTrip (codec, new Point (3, 4));
+        assertEquals (3, p.x);
+        assertEquals (4, p.y);
+    }
+
+    @Test public void javaSerialization() throws Exception
+    {
+        Date now = new Date();
+        ValueCodec<Date> codec = ValueCodecs.javaSerialization();
+        assertEquals (now, roundTrip (codec, now));
+    }
+
+    /*----------------------------------------------------------------------*\
+                              Private Methods
+    \*----------------------------------------------------------------------*/
+
+    private <T> T roundTrip (ValueCodec<T> codec, T value) throws Exception
+    {
+        // Decode from the middle of a larger buffer, to make sure offsets
+        // are honored.
+
+        byte[] encoded = codec.encode (value);
+        byte[] buf     = new byte[encoded.length + 4];
+        System.arraycopy (encoded, 0, buf, 2, encoded.length);
+        return codec.decode (buf, 2, encoded.length);
+    }
+}